@@ -1,13 +1,14 @@
 package com.limegroup.gnutella;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -22,6 +23,7 @@ import com.limegroup.gnutella.messages.QueryRequest;
 import com.limegroup.gnutella.util.CommonUtils;
 import com.limegroup.gnutella.util.Comparators;
 import com.limegroup.gnutella.util.ConverterObjectInputStream;
+import com.limegroup.gnutella.util.JournalFile;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
@@ -57,6 +59,14 @@ public final class CreationTimeCache {
      */
     private static final File CTIME_CACHE_FILE = 
         new File(CommonUtils.getUserSettingsDir(), "createtimes.cache");
+    
+    /**
+     * Where creation times are stored now, createtimes.dat and
+     * createtimes.jnl.  The old file above is only read if these don't
+     * exist yet.
+     */
+    private static final JournalFile JOURNAL =
+        new JournalFile(CommonUtils.getUserSettingsDir(), "createtimes");
 
     /**
      * CreationTimeCache instance variable.  
@@ -96,6 +106,7 @@ public final class CreationTimeCache {
      * testing.
      */
     private CreationTimeCache() {
+        dirty = !JOURNAL.exists();
         URN_TO_TIME_MAP = createMap();
         // use a custom comparator to sort the map in descending order....
         TIME_TO_URNSET_MAP = new TreeMap(Comparators.inverseLongComparator());
@@ -132,8 +143,10 @@ public final class CreationTimeCache {
     public synchronized void removeTime(URN urn) {
         Long time = (Long) URN_TO_TIME_MAP.remove(urn);
         removeURNFromURNSet(urn, time);
-        if(time != null)
+        if(time != null) {
+            JOURNAL.remove(toBytes(urn));
             dirty = true;
+        }
     }
 
 
@@ -166,6 +179,7 @@ public final class CreationTimeCache {
                     if ((fd == null) || (fd.getFile() == null) || !fd.getFile().exists()) {
                         dirty = true;
                         iter.remove();
+                        JOURNAL.remove(toBytes(currURN));
                         if (shouldClearURNSetMap)
                             removeURNFromURNSet(currURN, cTime);
                     }
@@ -205,6 +219,7 @@ public final class CreationTimeCache {
         if(existing == null || !existing.equals(cTime)) {
             dirty = true;
             URN_TO_TIME_MAP.put(urn, cTime);
+            JOURNAL.put(toBytes(urn), toBytes(time));
         }
     }
 
@@ -317,7 +332,9 @@ public final class CreationTimeCache {
     
         
     /**
-     * Write cache so that we only have to calculate them once.
+     * Write cache so that we only have to calculate them once.  Appends what
+     * changed to the journal, or writes a new snapshot when it's time to
+     * compact.
      */
     public synchronized void persistCache() {
         if(!dirty)
@@ -325,19 +342,24 @@ public final class CreationTimeCache {
         
         //It's not ideal to hold a lock while writing to disk, but I doubt think
         //it's a problem in practice.
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(CTIME_CACHE_FILE)));
-            oos.writeObject(URN_TO_TIME_MAP);
+            if(JOURNAL.shouldCompact()) {
+                JournalFile.Snapshot snapshot = JOURNAL.newSnapshot();
+                try {
+                    for(Iterator i = URN_TO_TIME_MAP.entrySet().iterator(); i.hasNext(); ) {
+                        Map.Entry next = (Map.Entry)i.next();
+                        snapshot.put(toBytes((URN)next.getKey()),
+                                     toBytes(((Long)next.getValue()).longValue()));
+                    }
+                    snapshot.commit();
+                } finally {
+                    snapshot.abort();
+                }
+            } else {
+                JOURNAL.flush();
+            }
         } catch (IOException e) {
             ErrorService.error(e);
-        } finally {
-            try {
-                if (oos != null)
-                    oos.close();
-            }
-            catch (IOException ignored) {}
         }
         
         dirty = false;
@@ -407,9 +429,26 @@ public final class CreationTimeCache {
 
 
     /**
-     * Loads values from cache file, if available
+     * Loads values from the journal, or if we don't have one yet, from the
+     * old cache file.
      */
     private Map createMap() {
+        if(JOURNAL.exists()) {
+            final Map result = new HashMap();
+            JOURNAL.read(new JournalFile.Reader() {
+                public void put(byte[] key, byte[] value) throws IOException {
+                    DataInputStream in =
+                        new DataInputStream(new ByteArrayInputStream(value));
+                    result.put(URN.createSHA1Urn(new String(key, "UTF-8")),
+                               new Long(in.readLong()));
+                }
+                public void remove(byte[] key) throws IOException {
+                    result.remove(URN.createSHA1Urn(new String(key, "UTF-8")));
+                }
+            });
+            return result;
+        }
+        
         ObjectInputStream ois = null;
 		try {
             ois = new ConverterObjectInputStream(new BufferedInputStream(
@@ -428,4 +467,24 @@ public final class CreationTimeCache {
             }
         }
 	}
+
+    /** Encodes a URN for the journal. */
+    private static byte[] toBytes(URN urn) {
+        try {
+            return urn.toString().getBytes("UTF-8");
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
+
+    /** Encodes a time for the journal. */
+    private static byte[] toBytes(long time) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream(8);
+            new DataOutputStream(bytes).writeLong(time);
+            return bytes.toByteArray();
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
 }
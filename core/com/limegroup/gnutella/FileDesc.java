@@ -320,17 +320,18 @@ public class FileDesc implements FileDetails {
     }
       
     /**
-     * Increase & return the new hit count.
+     * Increase & return the new hit count.  Synchronized because queries
+     * no longer run under the FileManager's lock.
      * @return the new hit count
      */    
-    public int incrementHitCount() {
+    public synchronized int incrementHitCount() {
         return ++_hits;
     }
     
     /** 
      * @return the current hit count 
      */
-    public int getHitCount() {
+    public synchronized int getHitCount() {
         return _hits;
     }
     
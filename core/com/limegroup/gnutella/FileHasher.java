@@ -0,0 +1,373 @@
+package com.limegroup.gnutella;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.limegroup.gnutella.settings.SharingSettings;
+import com.limegroup.gnutella.statistics.HashingStat;
+import com.limegroup.gnutella.statistics.HashingStatBytes;
+import com.limegroup.gnutella.tigertree.HashTreeBuilder;
+import com.limegroup.gnutella.util.FileUtils;
+import com.limegroup.gnutella.util.IntWrapper;
+import com.limegroup.gnutella.util.ManagedThread;
+import com.limegroup.gnutella.util.SystemUtils;
+
+/**
+ * Hashes files from disk.  read(..) reads a file once, in large blocks, and
+ * feeds the same bytes to a SHA1 digest and a HashTreeBuilder, so a new
+ * shared file gets its URN and its THEX tree from one pass over the disk.<p>
+ *
+ * Hashing jobs added with invokeLater(..) run on up to
+ * SharingSettings.HASHING_THREADS threads, so a library scan uses all the
+ * processors.  At most HASHING_THREADS_PER_DISK of them read from the same
+ * file system root at once, so a hard disk isn't made to seek between many
+ * files.  Only Windows has a root for each drive, so on other systems that
+ * limit defaults to HASHING_THREADS.  Disks with jobs waiting take turns.  Like WorkerPool, threads exit
+ * after they've been idle a few seconds.<p>
+ *
+ * The statistics count the files and bytes read(..) has hashed to the end,
+ * and the time the threads were busy, for files per second and bytes per
+ * second.  HashingStat and HashingStatBytes report them to the
+ * StatisticsManager too, with the files that failed.
+ */
+public final class FileHasher {
+
+    private static final Log LOG = LogFactory.getLog(FileHasher.class);
+
+    /** The number of bytes read from the file at a time. */
+    private static final int BLOCK_SIZE = 256 * 1024;
+
+    /**
+     * Constant for the amount of time the computer must be idle before we
+     * hash at full speed, when friendly hashing is on.
+     */
+    private static final int MIN_IDLE_TIME = 5 * 60 * 1000;
+
+    /** How long a thread waits for a job before exiting. */
+    private static final int IDLE_TIME = 5 * 1000;
+
+    /**
+     * The progress of files currently being hashed.
+     * Files are added to this when hashing is started
+     * and removed when hashing finishes.
+     * IntWrapper stores the amount of bytes read.
+     */
+    private static final Map /* File -> IntWrapper */ PROGRESS =
+        Collections.synchronizedMap(new HashMap());
+
+    /**
+     * Guards everything below.
+     */
+    private static final Object LOCK = new Object();
+
+    /**
+     * The Disk for each file system root, keyed by the root's path.
+     * LOCKING: obtain LOCK
+     */
+    private static final Map /* String -> Disk */ DISKS = new HashMap();
+
+    /**
+     * The Disk each thread's current job is on.
+     * LOCKING: obtain LOCK
+     */
+    private static final Map /* Thread -> Disk */ CURRENT = new HashMap();
+
+    /**
+     * The Disks that have jobs waiting, in the order they get a turn.
+     * LOCKING: obtain LOCK
+     */
+    private static final LinkedList /* of Disk */ TURNS = new LinkedList();
+
+    /**
+     * The number of threads, and how many of them are waiting for a job.
+     * LOCKING: obtain LOCK
+     */
+    private static int _threads;
+    private static int _idle;
+
+    /**
+     * The number of jobs running, and when the first of them started.
+     * LOCKING: obtain LOCK
+     */
+    private static int _running;
+    private static long _busySince;
+
+    /**
+     * Statistics.
+     * LOCKING: obtain LOCK
+     */
+    private static long _busyTime;
+    private static long _filesHashed;
+    private static long _bytesHashed;
+
+    private FileHasher() {}
+
+    /**
+     * Runs a job that hashes file, once there's a thread free and the disk
+     * file is on isn't busy.
+     */
+    public static void invokeLater(File file, Runnable job) {
+        String root = FileUtils.getRoot(file);
+        synchronized(LOCK) {
+            Disk disk = (Disk)DISKS.get(root);
+            if(disk == null) {
+                disk = new Disk();
+                DISKS.put(root, disk);
+            }
+            disk.jobs.add(job);
+            if(!TURNS.contains(disk))
+                TURNS.add(disk);
+
+            if(_idle > 0)
+                LOCK.notifyAll();
+            else if(_threads < SharingSettings.HASHING_THREADS.getValue())
+                startThread();
+        }
+    }
+
+    /**
+     * Reads file from start to end, and gives each block to sha1 and tree.
+     * BLOCKING.  Slows down while the user is at the computer, if friendly
+     * hashing is on.
+     *
+     * @param sha1 the digest to update, or null
+     * @param tree the tree to update, or null
+     * @exception InterruptedException the calling thread was interrupted
+     *  while hashing
+     */
+    public static void read(File file, MessageDigest sha1, HashTreeBuilder tree)
+      throws IOException, InterruptedException {
+        byte[] buffer;
+        if(Thread.currentThread() instanceof HashThread)
+            buffer = ((HashThread)Thread.currentThread()).BUFFER;
+        else
+            buffer = new byte[BLOCK_SIZE];
+
+        IntWrapper progress = new IntWrapper(0);
+        PROGRESS.put(file, progress);
+        FileInputStream fis = null;
+        long total = 0;
+        boolean done = false;
+        try {
+            fis = new FileInputStream(file);
+            int read;
+            while((read = fis.read(buffer)) != -1) {
+                long start = System.currentTimeMillis();
+                if(sha1 != null)
+                    sha1.update(buffer, 0, read);
+                if(tree != null)
+                    tree.update(buffer, 0, read);
+                progress.addInt(read);
+                total += read;
+                HashingStatBytes.BYTES_READ.addData(read);
+                if(SystemUtils.getIdleTime() < MIN_IDLE_TIME &&
+                  SharingSettings.FRIENDLY_HASHING.getValue()) {
+                    long interval = System.currentTimeMillis() - start;
+                    if(interval > 0)
+                        Thread.sleep(interval * 3);
+                    else
+                        Thread.yield();
+                }
+            }
+            done = true;
+        } finally {
+            PROGRESS.remove(file);
+            if(fis != null) {
+                try {
+                    fis.close();
+                } catch(IOException ignored) {}
+            }
+            if(done) {
+                synchronized(LOCK) {
+                    _filesHashed++;
+                    _bytesHashed += total;
+                }
+                HashingStat.FILES_HASHED.incrementStat();
+            } else {
+                HashingStat.FILES_FAILED.incrementStat();
+            }
+        }
+    }
+
+    /**
+     * Gets the amount of bytes hashed for a file that is being hashed.
+     * Returns -1 if the file is not being hashed at all.
+     */
+    public static int getProgress(File file) {
+        IntWrapper progress = (IntWrapper)PROGRESS.get(file);
+        if(progress == null)
+            return -1;
+        else
+            return progress.getInt();
+    }
+
+    /** Returns the number of files hashed to the end. */
+    public static long getFilesHashed() {
+        synchronized(LOCK) {
+            return _filesHashed;
+        }
+    }
+
+    /** Returns the number of bytes of the files hashed to the end. */
+    public static long getBytesHashed() {
+        synchronized(LOCK) {
+            return _bytesHashed;
+        }
+    }
+
+    /**
+     * Returns the number of files hashed per second of the time there have
+     * been jobs running.
+     */
+    public static float getFilesPerSecond() {
+        synchronized(LOCK) {
+            long busy = getBusyTime();
+            return busy == 0 ? 0 : _filesHashed * 1000f / busy;
+        }
+    }
+
+    /**
+     * Returns the number of bytes hashed per second of the time there have
+     * been jobs running.
+     */
+    public static float getBytesPerSecond() {
+        synchronized(LOCK) {
+            long busy = getBusyTime();
+            return busy == 0 ? 0 : _bytesHashed * 1000f / busy;
+        }
+    }
+
+    /** Returns the number of jobs waiting for a thread or their disk. */
+    public static int getQueueSize() {
+        synchronized(LOCK) {
+            int ret = 0;
+            for(int i = 0; i < TURNS.size(); i++)
+                ret += ((Disk)TURNS.get(i)).jobs.size();
+            return ret;
+        }
+    }
+
+    /**
+     * Returns the milliseconds jobs have been running, counting the current
+     * stretch.  Hold LOCK when calling this.
+     */
+    private static long getBusyTime() {
+        if(_running == 0)
+            return _busyTime;
+        return _busyTime + System.currentTimeMillis() - _busySince;
+    }
+
+    /** Starts a new thread.  Hold LOCK when calling this. */
+    private static void startThread() {
+        _threads++;
+        Thread t = new HashThread();
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Takes the next job from the first disk in TURNS that can read another
+     * file, and sends that disk to the back.  Returns null if there isn't
+     * one.  Hold LOCK when calling this.
+     */
+    private static Runnable nextJob() {
+        int perDisk = Math.max(1, SharingSettings.HASHING_THREADS_PER_DISK.getValue());
+        for(int i = 0; i < TURNS.size(); i++) {
+            Disk disk = (Disk)TURNS.get(i);
+            if(disk.running >= perDisk)
+                continue;
+            Runnable job = (Runnable)disk.jobs.remove(0);
+            TURNS.remove(i);
+            if(!disk.jobs.isEmpty())
+                TURNS.add(disk);
+            disk.running++;
+            if(_running++ == 0)
+                _busySince = System.currentTimeMillis();
+            CURRENT.put(Thread.currentThread(), disk);
+            return job;
+        }
+        return null;
+    }
+
+    /** Marks the calling thread's job done.  Hold LOCK when calling this. */
+    private static void jobDone() {
+        Disk disk = (Disk)CURRENT.remove(Thread.currentThread());
+        disk.running--;
+        if(--_running == 0)
+            _busyTime += System.currentTimeMillis() - _busySince;
+        // a thread may be waiting for this disk
+        if(!disk.jobs.isEmpty() && _idle > 0)
+            LOCK.notifyAll();
+    }
+
+    /**
+     * The hashing jobs for one file system root.
+     */
+    private static class Disk {
+        /** The jobs waiting. */
+        final List jobs = new LinkedList();
+        /** The number of jobs running. */
+        int running;
+    }
+
+    /**
+     * A hashing thread, with its own buffer for read(..).
+     */
+    private static class HashThread extends ManagedThread {
+        final byte[] BUFFER = new byte[BLOCK_SIZE];
+
+        HashThread() {
+            super("Hasher");
+        }
+
+        /**
+         * Runs jobs until there's been none this thread could run for
+         * IDLE_TIME.
+         */
+        public void managedRun() {
+            while(true) {
+                Runnable job;
+                synchronized(LOCK) {
+                    job = nextJob();
+                    if(job == null) {
+                        _idle++;
+                        try {
+                            LOCK.wait(IDLE_TIME);
+                        } catch(InterruptedException ignored) {
+                        } finally {
+                            _idle--;
+                        }
+                        job = nextJob();
+                    }
+                    if(job == null) {
+                        _threads--;
+                        return;
+                    }
+                }
+
+                // a job that was interrupted shouldn't pass that on
+                Thread.interrupted();
+                try {
+                    job.run();
+                } catch(Throwable t) {
+                    LOG.debug("hashing job threw", t);
+                    ErrorService.error(t);
+                } finally {
+                    synchronized(LOCK) {
+                        jobDone();
+                    }
+                }
+            }
+        }
+    }
+}
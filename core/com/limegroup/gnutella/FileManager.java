@@ -31,6 +31,7 @@ import com.limegroup.gnutella.util.FileUtils;
 import com.limegroup.gnutella.util.Function;
 import com.limegroup.gnutella.util.I18NConvert;
 import com.limegroup.gnutella.util.IntSet;
+import com.limegroup.gnutella.util.PostingList;
 import com.limegroup.gnutella.util.ProcessingQueue;
 import com.limegroup.gnutella.util.StringUtils;
 import com.limegroup.gnutella.util.Trie;
@@ -42,6 +43,13 @@ import com.limegroup.gnutella.xml.LimeXMLDocument;
  * individual files, directory, or sets of directories.  Provides a method to
  * efficiently query for files whose names contain certain keywords.<p>
  *
+ * Queries don't lock this.  They read an immutable Snapshot of the index,
+ * which is rebuilt from the live structures and published at most once every
+ * SNAPSHOT_INTERVAL milliseconds while files are being added.  A rescan of a
+ * large library only holds up queries while a snapshot is being copied, not
+ * for the whole rescan.  Removed files drop out of the current snapshot
+ * right away.<p>
+ *
  * This class is thread-safe.
  */
 public abstract class FileManager {
@@ -151,14 +159,16 @@ public abstract class FileManager {
      * Keywords are the tokens when the filename is tokenized with the
      * characters from DELIMITERS as delimiters.
      * 
-     * IncompleteFile keywords are NOT stored.
+     * IncompleteFile keywords are NOT stored.  The indices are kept in
+     * compressed PostingLists, since new files always get the largest index
+     * and this is the biggest structure in the library.
      * 
-     * INVARIANT: For all keys k in _keywordTrie, for all i in the IntSet
+     * INVARIANT: For all keys k in _keywordTrie, for all i in the PostingList
      * _keywordTrie.get(k), _files[i]._path.substring(k)!=-1. Likewise for all
      * i, for all k in _files[i]._path where _files[i] is not an
      * IncompleteFileDesc, _keywordTrie.get(k) contains i.
      */
-    private Trie /* String -> IntSet  */ _keywordTrie;
+    private Trie /* String -> PostingList  */ _keywordTrie;
     
     /**
      * A map of appropriately case-normalized URN strings to the
@@ -219,6 +229,64 @@ public abstract class FileManager {
      * relatively useful.                                                                                                       
      */
     private IntSet _incompletesShared;
+
+    /**
+     * The most recent snapshot of the index, which query() reads without
+     * locking.  Replaced as a whole by publishSnapshot().
+     */
+    private volatile Snapshot _snapshot = Snapshot.EMPTY;
+
+    /**
+     * True if the index has changed since _snapshot was built.
+     * LOCKING: obtain this.
+     */
+    private boolean _snapshotDirty;
+
+    /**
+     * The number of folder removals in progress.  While there are any,
+     * removed files are kept in _removedFiles and taken out of _snapshot
+     * together when the last one ends, so unsharing a folder copies the
+     * snapshot's files array once instead of once per file.
+     * LOCKING: obtain this.
+     */
+    private int _removingFolders;
+
+    /**
+     * The FileDescs removed since _removingFolders became non-zero.
+     * LOCKING: obtain this.
+     */
+    private final List /* of FileDesc */ _removedFiles = new ArrayList();
+
+    /**
+     * True if a SnapshotPublisher is scheduled to run.
+     * LOCKING: obtain this.
+     */
+    private boolean _snapshotScheduled;
+
+    /**
+     * The time when the last snapshot was published.
+     * LOCKING: obtain this.
+     */
+    private long _lastSnapshot;
+
+    /**
+     * The least number of milliseconds between two snapshots.  Changes made
+     * closer together than this are published together.
+     */
+    private static final long SNAPSHOT_INTERVAL = 1000;
+
+    /**
+     * Statistics on how long queries and rescans take, kept apart so query
+     * throughput can be measured while a rescan is running.
+     * LOCKING: obtain STATS_LOCK.
+     */
+    private final Object STATS_LOCK = new Object();
+    private long _queryCount;
+    private long _queryTime;
+    private int _snapshotCount;
+    private long _snapshotTime;
+    private long _loadStartTime;
+    private long _lastLoadTime;
     
     /**
      * The revision of the library.  Every time 'loadSettings' is called, the revision
@@ -353,6 +421,7 @@ public abstract class FileManager {
 		_completelySharedDirectories = new HashSet();
         _incompletesShared = new IntSet();
         _fileToFileDescMap = new HashMap();
+        snapshotChanged();
     }
 
     /** Asynchronously loads all files by calling loadSettings.  Sets this's
@@ -633,6 +702,10 @@ public abstract class FileManager {
             _loadingFinished = _revision;
             revision = _loadingFinished;
         }
+
+        synchronized(STATS_LOCK) {
+            _lastLoadTime = System.currentTimeMillis() - _loadStartTime;
+        }
         
         loadFinished(revision);
     }
@@ -642,7 +715,11 @@ public abstract class FileManager {
      */
     protected void loadFinished(int revision) {
         if(LOG.isDebugEnabled())
-            LOG.debug("Finished loading revision: " + revision);
+            LOG.debug("Finished loading revision: " + revision +
+                      " in " + getLastLoadTime() + "ms, " +
+                      FileHasher.getFilesHashed() + " files hashed so far at " +
+                      FileHasher.getFilesPerSecond() + " files/s, " +
+                      FileHasher.getBytesPerSecond() + " bytes/s");
         
         // Various cleanup & persisting...
         trim();
@@ -678,6 +755,10 @@ public abstract class FileManager {
         if(LOG.isDebugEnabled())
             LOG.debug("Loading Library Revision: " + revision);
         
+        synchronized(STATS_LOCK) {
+            _loadStartTime = System.currentTimeMillis();
+        }
+
         final File[] directories;
         synchronized (this) {
             // Reset the file list info
@@ -849,9 +930,20 @@ public abstract class FileManager {
 	 */
 	public void removeFolderIfShared(File folder) {
         _isUpdating = true;
-        removeFolderIfShared(folder, null);
-        _isUpdating = false;
-
+        synchronized(this) {
+            _removingFolders++;
+        }
+        try {
+            removeFolderIfShared(folder, null);
+        } finally {
+            synchronized(this) {
+                if(--_removingFolders == 0) {
+                    _snapshot = _snapshot.without(_removedFiles);
+                    _removedFiles.clear();
+                }
+            }
+            _isUpdating = false;
+        }
 	}
 	
 	/**
@@ -1167,13 +1259,13 @@ public abstract class FileManager {
         
         for (int i = 0; i < keywords.length; i++) {
             String keyword = keywords[i];
-            //Ensure the _keywordTrie has a set of indices associated with keyword.
-            IntSet indices = (IntSet)_keywordTrie.get(keyword);
+            //Ensure the _keywordTrie has a list of indices associated with keyword.
+            PostingList indices = (PostingList)_keywordTrie.get(keyword);
             if (indices == null) {
-                indices = new IntSet();
+                indices = new PostingList(1);
                 _keywordTrie.add(keyword, indices);
             }
-            //Add fileIndex to the set.
+            //Add fileIndex to the list.  It's the largest, so this appends.
             indices.add(fileIndex);
         }
 	
@@ -1204,6 +1296,7 @@ public abstract class FileManager {
         // Ensure file can be found by URN lookups
         this.updateUrnIndex(fileDesc);
         _needRebuild = true; // Record that our QRP table is no longer up to date
+        snapshotChanged();
         return fileDesc;
     }
 
@@ -1269,6 +1362,15 @@ public abstract class FileManager {
         _fileToFileDescMap.remove(f);
         _needRebuild = true; // Record that our QRP table is no longer up to date
 
+        // Stop returning the file from queries now, or when the folder it's
+        // being removed with is done, and clean it out of the snapshot's
+        // index with the next batch of changes.
+        if (_removingFolders > 0)
+            _removedFiles.add(fd);
+        else
+            _snapshot = _snapshot.without(Collections.singletonList(fd));
+        snapshotChanged();
+
         // If it's an incomplete file, the only reference we 
         // have is the URN, so remove that and be done.
         // We also return false, because the file was never really
@@ -1312,7 +1414,7 @@ public abstract class FileManager {
         String[] keywords = extractKeywords(fd);
         for (int j = 0; j < keywords.length; j++) {
             String keyword = keywords[j];
-            IntSet indices = (IntSet)_keywordTrie.get(keyword);
+            PostingList indices = (PostingList)_keywordTrie.get(keyword);
             if (indices != null) {
                 indices.remove(i);
                 if (indices.size() == 0)
@@ -1399,6 +1501,7 @@ public abstract class FileManager {
         this.updateUrnIndex(ifd);
         _numIncompleteFiles++;
         _needRebuild = true;
+        snapshotChanged();
         File parent = FileUtils.getParentFile(incompleteFile);
         dispatchFileEvent(new FileManagerEvent(this, FileManagerEvent.ADD, ifd));
     }
@@ -1530,9 +1633,9 @@ public abstract class FileManager {
      *  affects performance, not correctness; hence no modifies clause. */
     private synchronized void trim() {
         _keywordTrie.trim(new Function() {
-            public Object apply(Object intSet) {
-                ((IntSet)intSet).trim();
-                return intSet;
+            public Object apply(Object list) {
+                ((PostingList)list).trim();
+                return list;
             }
         });
     }
@@ -1910,13 +2013,27 @@ public abstract class FileManager {
      * Design note: returning an empty array requires no extra allocations,
      * as empty arrays are immutable.
      */
-    public synchronized Response[] query(QueryRequest request) {
+    public Response[] query(QueryRequest request) {
+        long start = System.currentTimeMillis();
+        Response[] ret = query(_snapshot, request);
+        synchronized(STATS_LOCK) {
+            _queryCount++;
+            _queryTime += System.currentTimeMillis() - start;
+        }
+        return ret;
+    }
+
+    /**
+     * Returns an array of all responses in the given snapshot matching the
+     * given request.  Doesn't lock this.
+     */
+    private Response[] query(Snapshot snap, QueryRequest request) {
         String str = request.getQuery();
         boolean includeXML = shouldIncludeXMLInResponse(request);
 
         //Special case: return up to 3 of your 'youngest' files.
         if (request.isWhatIsNewRequest()) 
-            return respondToWhatIsNewRequest(request, includeXML);
+            return respondToWhatIsNewRequest(snap, request, includeXML);
 
         //Special case: return everything for Clip2 indexing query ("    ") and
         //browse queries ("*.*").  If these messages had initial TTLs too high,
@@ -1924,7 +2041,7 @@ public abstract class FileManager {
         //network.  Note that some initial TTLs are filterd by GreedyQuery
         //before they ever reach this point.
         if (str.equals(INDEXING_QUERY) || str.equals(BROWSE_QUERY))
-            return respondToIndexingQuery(includeXML);
+            return respondToIndexingQuery(snap, includeXML);
 
         //Normal case: query the index to find all matches.  TODO: this
         //sometimes returns more results (>255) than we actually send out.
@@ -1932,10 +2049,10 @@ public abstract class FileManager {
         //Trie requires that getPrefixedBy(String, int, int) passes
         //an already case-changed string.  Both search & urnSearch
         //do this kind of match, so we canonicalize the case for them.
-        str = _keywordTrie.canonicalCase(str);        
-        IntSet matches = search(str, null);
+        str = snap.keywordTrie.canonicalCase(str);        
+        PostingList matches = search(snap, str, null);
         if(request.getQueryUrns().size() > 0)
-            matches = urnSearch(request.getQueryUrns().iterator(),matches);
+            matches = urnSearch(snap, request.getQueryUrns().iterator(),matches);
         
         if (matches==null)
             return EMPTY_RESPONSES;
@@ -1945,13 +2062,12 @@ public abstract class FileManager {
         LimeXMLDocument doc = request.getRichQuery();
 
         // Iterate through our hit indices to create a list of results.
-        for (IntSet.IntSetIterator iter=matches.iterator(); iter.hasNext();) { 
+        for (PostingList.Cursor iter=matches.cursor(); iter.hasNext();) { 
             int i = iter.next();
-            FileDesc desc = (FileDesc)_files.get(i);
+            FileDesc desc = snap.files[i];
+            // removed since the snapshot was built
             if(desc == null)
-                Assert.that(false, 
-                            "unexpected null in FileManager for query:\n"+
-                            request);
+                continue;
 
             if ((filter != null) && !filter.allow(desc.getFileName()))
                 continue;
@@ -1976,7 +2092,8 @@ public abstract class FileManager {
     /**
      * Responds to a what is new request.
      */
-    private Response[] respondToWhatIsNewRequest(QueryRequest request, 
+    private Response[] respondToWhatIsNewRequest(Snapshot snap,
+                                                 QueryRequest request, 
                                                  boolean includeXML) {
         // see if there are any files to send....
         // NOTE: we only request up to 3 urns.  we don't need to worry
@@ -1986,15 +2103,15 @@ public abstract class FileManager {
             return EMPTY_RESPONSES;
         
         // get the appropriate responses
-        Response[] resps = new Response[urnList.size()];
+        List resps = new ArrayList(urnList.size());
         for (int i = 0; i < urnList.size(); i++) {
             URN currURN = (URN) urnList.get(i);
-            FileDesc desc = getFileDescForUrn(currURN);
+            FileDesc desc = snap.getFileDescForUrn(currURN);
             
-            // should never happen since we don't add times for IFDs and
-            // we clear removed files...
-            if ((desc==null) || (desc instanceof IncompleteFileDesc))
-                throw new RuntimeException("Bad Rep - No IFDs allowed!");
+            // we don't add times for IFDs and we clear removed files, but
+            // the snapshot may not have caught up with the cache yet
+            if (desc == null)
+                continue;
             
             // Formulate the response
             Response r = new Response(desc);
@@ -2002,41 +2119,37 @@ public abstract class FileManager {
                 addXMLToResponse(r, desc);
             
             // Cache it
-            resps[i] = r;
+            resps.add(r);
         }
-        return resps;
+        if (resps.size() == 0)
+            return EMPTY_RESPONSES;
+        return (Response[])resps.toArray(new Response[resps.size()]);
     }
 
     /** Responds to a Indexing (mostly BrowseHost) query - gets all the shared
      *  files of this client.
      */
-    private Response[] respondToIndexingQuery(boolean includeXML) {
-        //Special case: if no shared files, return null
-        // This works even if incomplete files are shared, because
-        // they are added to _numIncompleteFiles and not _numFiles.
-        if (_numFiles==0)
-            return EMPTY_RESPONSES;
-
+    private Response[] respondToIndexingQuery(Snapshot snap, boolean includeXML) {
         //Extract responses for all non-null (i.e., not deleted) files.
-        //Because we ignore all incomplete files, _numFiles continues
-        //to work as the expected size of ret.
-        Response[] ret=new Response[_numFiles-_numForcedFiles];
-        int j=0;
-        for (int i=0; i<_files.size(); i++) {
-            FileDesc desc = (FileDesc)_files.get(i);
+        //Files removed since the snapshot was built are null, so we can't
+        //know the count ahead of time.
+        List ret = new ArrayList(snap.files.length);
+        for (int i=0; i<snap.files.length; i++) {
+            FileDesc desc = snap.files[i];
             // If the file was unshared or is an incomplete file,
             // DO NOT SEND IT.
             if (desc==null || desc instanceof IncompleteFileDesc || isForcedShare(desc)) 
                 continue;
         
-            Assert.that(j<ret.length, "_numFiles is too small");
-            ret[j] = new Response(desc);
+            Response resp = new Response(desc);
             if(includeXML)
-                addXMLToResponse(ret[j], desc);
-            j++;
+                addXMLToResponse(resp, desc);
+            ret.add(resp);
         }
-        Assert.that(j==ret.length, "_numFiles is too large");
-        return ret;
+        //Special case: if no shared files, return the empty array
+        if (ret.size() == 0)
+            return EMPTY_RESPONSES;
+        return (Response[])ret.toArray(new Response[ret.size()]);
     }
 
     
@@ -2059,16 +2172,24 @@ public abstract class FileManager {
 
 
     /**
-     * Returns a set of indices of files matching q, or null if there are no
+     * Returns a list of indices of files matching q, or null if there are no
      * matches.  Subclasses may override to provide different notions of
      * matching.  The caller of this method must not mutate the returned
-     * value.
+     * value.  Searches the most recently published snapshot.
+     */
+    protected PostingList search(String query, PostingList priors) {
+        return search(_snapshot, query, priors);
+    }
+
+    /**
+     * Returns a list of indices of files in the given snapshot matching q, or
+     * null if there are no matches.  The caller of this method must not
+     * mutate the returned value, which may be a list from the index.
      */
-    protected IntSet search(String query, IntSet priors) {
-        //As an optimization, we lazily allocate all sets in case there are no
-        //matches.  TODO2: we can avoid allocating sets when getPrefixedBy
-        //returns an iterator of one element and there is only one keyword.
-        IntSet ret=priors;
+    private static PostingList search(Snapshot snap, String query, PostingList priors) {
+        //As an optimization, we lazily allocate all lists in case there are no
+        //matches, and never copy a list from the index just to read it.
+        PostingList ret=priors;
 
         //For each keyword in the query....  (Note that we avoid calling
         //StringUtils.split and take advantage of Trie's offset/limit feature.)
@@ -2084,34 +2205,37 @@ public abstract class FileManager {
             }
 
             //Search for keyword, i.e., keywords[i...j-1].  
-            Iterator /* of IntSet */ iter=
-                _keywordTrie.getPrefixedBy(query, i, j);
-            if (iter.hasNext()) {
-                //Got match.  Union contents of the iterator and store in
-                //matches.  As an optimization, if this is the only keyword and
-                //there is only one set returned, return that set without 
-                //copying.
-                IntSet matches=null;
-                while (iter.hasNext()) {                
-                    IntSet s=(IntSet)iter.next();
-                    if (matches==null) {
-                        if (i==0 && j==query.length() && !(iter.hasNext()))
-                            return s;
-                        matches=new IntSet();
-                    }
-                    matches.addAll(s);
-                }
-
-                //Intersect matches with ret.  If ret isn't allocated,
-                //initialize to matches.
-                if (ret==null)   
-                    ret=matches;
-                else
-                    ret.retainAll(matches);
-            } else {
+            Iterator /* of PostingList */ iter=
+                snap.keywordTrie.getPrefixedBy(query, i, j);
+            if (!iter.hasNext()) {
                 //No match.  Optimizaton: no matches for keyword => failure
                 return null;
             }
+
+            //Got match.  Union the lists of all the keywords it's a prefix
+            //of into matches, swapping between two scratch lists.  If there's
+            //only one list, use it as it is.
+            PostingList matches=(PostingList)iter.next();
+            if (iter.hasNext()) {
+                PostingList into=new PostingList(matches.size());
+                PostingList spare=new PostingList(matches.size());
+                PostingList.union(matches, (PostingList)iter.next(), into);
+                while (iter.hasNext()) {
+                    PostingList.union(into, (PostingList)iter.next(), spare);
+                    PostingList t=into;
+                    into=spare;
+                    spare=t;
+                }
+                matches=into;
+            }
+
+            //Intersect matches with ret.  If ret isn't allocated,
+            //initialize to matches.
+            if (ret==null)   
+                ret=matches;
+            else
+                ret=PostingList.intersect(ret, matches,
+                    new PostingList(Math.min(ret.size(), matches.size())));
             
             //Optimization: no matches after intersect => failure
             if (ret.size()==0)
@@ -2126,26 +2250,28 @@ public abstract class FileManager {
     /**
      * Find all files with matching full URNs
      */
-    private synchronized IntSet urnSearch(Iterator urnsIter,IntSet priors) {
-        IntSet ret = priors;
+    private static PostingList urnSearch(Snapshot snap, Iterator urnsIter, PostingList priors) {
+        PostingList ret = priors;
         while(urnsIter.hasNext()) {
             URN urn = (URN)urnsIter.next();
             // TODO (eventually): case-normalize URNs as appropriate
             // for now, though, prevalent practice is same as local: 
             // lowercase "urn:<type>:", uppercase Base32 SHA1
-            IntSet hits = (IntSet)_urnMap.get(urn);
+            IntSet hits = (IntSet)snap.urnMap.get(urn);
             if(hits!=null) {
                 // double-check hits to be defensive (not strictly needed)
                 IntSet.IntSetIterator iter = hits.iterator();
                 while(iter.hasNext()) {
-                    FileDesc fd = (FileDesc)_files.get(iter.next());
+                    FileDesc fd = snap.files[iter.next()];
         		    // If the file is unshared or an incomplete file
         		    // DO NOT SEND IT.
         		    if(fd == null || fd instanceof IncompleteFileDesc)
         			    continue;
                     if(fd.containsUrn(urn)) {
-                        // still valid
-                        if(ret==null) ret = new IntSet();
+                        // still valid.  priors may belong to the snapshot,
+                        // which other queries are reading, so copy it first.
+                        if(ret==priors)
+                            ret = priors == null ? new PostingList(1) : priors.copy();
                         ret.add(fd.getIndex());
                     } 
                 }
@@ -2154,6 +2280,220 @@ public abstract class FileManager {
         return ret;
     }
     
+    ///////////////////////////////// Snapshots //////////////////////////////
+
+    /**
+     * Records that the index has changed.  Publishes a new snapshot now if
+     * the last one is at least SNAPSHOT_INTERVAL old, and otherwise schedules
+     * one for when it will be, so a burst of changes is published together.
+     * LOCKING: obtain this.
+     */
+    private void snapshotChanged() {
+        _snapshotDirty = true;
+        long wait = _lastSnapshot + SNAPSHOT_INTERVAL - System.currentTimeMillis();
+        if (wait <= 0) {
+            publishSnapshot();
+        } else if (!_snapshotScheduled) {
+            _snapshotScheduled = true;
+            RouterService.schedule(new SnapshotPublisher(), wait, 0);
+        }
+    }
+
+    /**
+     * Builds a new snapshot from _files, _keywordTrie, _urnMap and
+     * _fileToFileDescMap, and publishes it to query().
+     */
+    private synchronized void publishSnapshot() {
+        long start = System.currentTimeMillis();
+
+        Map urnMap = new HashMap((int)(_urnMap.size() / 0.75f) + 1);
+        for (Iterator iter = _urnMap.entrySet().iterator(); iter.hasNext(); ) {
+            Map.Entry entry = (Map.Entry)iter.next();
+            IntSet copy = new IntSet();
+            copy.addAll((IntSet)entry.getValue());
+            urnMap.put(entry.getKey(), copy);
+        }
+
+        _snapshot = new Snapshot(
+            (FileDesc[])_files.toArray(new FileDesc[_files.size()]),
+            _keywordTrie.copy(new Function() {
+                public Object apply(Object list) {
+                    return ((PostingList)list).copy();
+                }
+            }),
+            urnMap,
+            new HashMap(_fileToFileDescMap));
+        _snapshotDirty = false;
+        _lastSnapshot = System.currentTimeMillis();
+
+        synchronized(STATS_LOCK) {
+            _snapshotCount++;
+            _snapshotTime += _lastSnapshot - start;
+        }
+    }
+
+    /**
+     * Publishes a snapshot if the index has changed since the last one.
+     * Scheduled by snapshotChanged().
+     */
+    private class SnapshotPublisher implements Runnable {
+        public void run() {
+            synchronized(FileManager.this) {
+                _snapshotScheduled = false;
+                if (_snapshotDirty)
+                    publishSnapshot();
+            }
+        }
+    }
+
+    /**
+     * Returns the <tt>FileDesc</tt> for the given file from the snapshot
+     * queries read, without locking.  Use this in place of
+     * getFileDescForFile when building query responses, so they agree with
+     * the results of query().
+     *
+     * @return the <tt>FileDesc</tt>, or null if the file isn't in the snapshot
+     */
+    protected FileDesc getSnapshotFileDescForFile(File f) {
+        try {
+            f = FileUtils.getCanonicalFile(f);
+        } catch(IOException ioe) {
+            return null;
+        }
+        return _snapshot.getFileDescForFile(f);
+    }
+
+    /**
+     * Returns the number of queries query() has answered.
+     */
+    public long getQueryCount() {
+        synchronized(STATS_LOCK) {
+            return _queryCount;
+        }
+    }
+
+    /**
+     * Returns the total time query() has taken, in milliseconds.
+     */
+    public long getQueryTime() {
+        synchronized(STATS_LOCK) {
+            return _queryTime;
+        }
+    }
+
+    /**
+     * Returns the number of snapshots published to queries.
+     */
+    public int getSnapshotCount() {
+        synchronized(STATS_LOCK) {
+            return _snapshotCount;
+        }
+    }
+
+    /**
+     * Returns the total time spent building snapshots, in milliseconds.
+     */
+    public long getSnapshotTime() {
+        synchronized(STATS_LOCK) {
+            return _snapshotTime;
+        }
+    }
+
+    /**
+     * Returns how long the last complete load of the library took, in
+     * milliseconds, or 0 if none has finished yet.
+     */
+    public long getLastLoadTime() {
+        synchronized(STATS_LOCK) {
+            return _lastLoadTime;
+        }
+    }
+
+    /**
+     * An immutable copy of the parts of the index that queries read.
+     * A published Snapshot is never changed; without(..) makes a new one
+     * that shares everything but the files array.  Indices in keywordTrie and
+     * urnMap always refer to files, since the three are copied together.
+     */
+    private static final class Snapshot {
+
+        /** A snapshot with no files, used until the first one is built. */
+        static final Snapshot EMPTY = new Snapshot(
+            new FileDesc[0], new Trie(true), Collections.EMPTY_MAP, Collections.EMPTY_MAP);
+
+        /**
+         * The FileDescs by index, copied from _files.  Removed files are
+         * null.
+         */
+        final FileDesc[] files;
+
+        /** String -> PostingList, copied from _keywordTrie. */
+        final Trie keywordTrie;
+
+        /** URN -> IntSet, copied from _urnMap. */
+        final Map urnMap;
+
+        /** File -> FileDesc, copied from _fileToFileDescMap. */
+        private final Map fileMap;
+
+        Snapshot(FileDesc[] files, Trie keywordTrie, Map urnMap, Map fileMap) {
+            this.files = files;
+            this.keywordTrie = keywordTrie;
+            this.urnMap = urnMap;
+            this.fileMap = fileMap;
+        }
+
+        /**
+         * Returns a snapshot that doesn't return the given files, or this if
+         * none of them are in it.  Queries may still be reading this one, so
+         * the files array is copied, once, rather than changed.
+         */
+        Snapshot without(List /* of FileDesc */ fds) {
+            FileDesc[] copy = null;
+            for (int j = 0; j < fds.size(); j++) {
+                FileDesc fd = (FileDesc)fds.get(j);
+                int i = fd.getIndex();
+                if (i >= files.length || files[i] != fd)
+                    continue; // published since, or never in this one
+                if (copy == null) {
+                    copy = new FileDesc[files.length];
+                    System.arraycopy(files, 0, copy, 0, files.length);
+                }
+                copy[i] = null;
+            }
+            if (copy == null)
+                return this;
+            return new Snapshot(copy, keywordTrie, urnMap, fileMap);
+        }
+
+        /**
+         * Returns the first complete <tt>FileDesc</tt> shared under the given
+         * URN, or null if none.
+         */
+        FileDesc getFileDescForUrn(URN urn) {
+            IntSet indices = (IntSet)urnMap.get(urn);
+            if (indices == null)
+                return null;
+            for (IntSet.IntSetIterator iter = indices.iterator(); iter.hasNext(); ) {
+                FileDesc fd = files[iter.next()];
+                if (fd != null && !(fd instanceof IncompleteFileDesc))
+                    return fd;
+            }
+            return null;
+        }
+
+        /**
+         * Returns the <tt>FileDesc</tt> for the given canonical file, or null
+         * if it isn't shared or has been removed.
+         */
+        FileDesc getFileDescForFile(File f) {
+            FileDesc fd = (FileDesc)fileMap.get(f);
+            if (fd == null || files[fd.getIndex()] != fd)
+                return null;
+            return fd;
+        }
+    }
+
     /**
      * Determines if this FileDesc is a network share.
      */
@@ -37,6 +37,7 @@ import com.limegroup.gnutella.handshaking.UltrapeerHeaders;
 import com.limegroup.gnutella.io.ChannelWriter;
 import com.limegroup.gnutella.io.DelayedBufferWriter;
 import com.limegroup.gnutella.io.NBThrottle;
+import com.limegroup.gnutella.io.NIODispatcher;
 import com.limegroup.gnutella.io.NIOMultiplexor;
 import com.limegroup.gnutella.io.Throttle;
 import com.limegroup.gnutella.io.ThrottleWriter;
@@ -454,6 +455,19 @@ public class ManagedConnection extends Connection implements ReplyHandler, Messa
      */
     private volatile boolean _pushProxy;
 
+    /**
+     * The number of MessageDispatcher lanes that have told us to stop reading with setReading(false), and not yet to start again.
+     * Each lane pauses us on its own, so we only read again when none of them have us paused.
+     * Only changed while holding READ_INTEREST_LOCK.
+     */
+    private volatile int _readPauses;
+
+    /** True while the InflaterReader has stopped reading because its compression thread is far behind. */
+    private volatile boolean _inflaterFull;
+
+    /** Held while working out and setting OP_READ from _readPauses and _inflaterFull, so two threads don't cross. */
+    private final Object READ_INTEREST_LOCK = new Object();
+
     /**
      * Used for connect-back vendor messages. (do)
      * 
@@ -1290,7 +1304,23 @@ public class ManagedConnection extends Connection implements ReplyHandler, Messa
                  */
 
                 // Make a new InflaterReader, and have the MessageReader packet slicer read from it
-                reader.setReadChannel(new InflaterReader(_inflater));
+                InflaterReader inflater = new InflaterReader(_inflater);
+                reader.setReadChannel(inflater);
+
+                // When a compression thread has decompressed more data, have the NIODispatcher thread call MessageReader.handleRead() to read it
+                inflater.setReadyListener(new Runnable() {
+                    public void run() {
+                        if (_readPauses == 0) readLater(); // setReading(true) will read it if we're paused now
+                    }
+                });
+
+                // Stop reading the socket while the compression thread is far behind, instead of having NIO call us over and over
+                inflater.setReadInterest(new InflaterReader.ReadInterest() {
+                    public void interestRead(boolean on) {
+                        _inflaterFull = !on;
+                        updateReadInterest();
+                    }
+                });
 
                 /*
                  * We're not ready to read yet.
@@ -1397,6 +1427,9 @@ public class ManagedConnection extends Connection implements ReplyHandler, Messa
              * To drop a Gnutella packet, we just don't do anything else with it
              */
 
+            // Let the next packet use its payload array
+            m.release();
+
         // The Gnutella packet made it through the spam filter, we'll route it to other computers we're connected to
         } else {
 
@@ -1434,6 +1467,62 @@ public class ManagedConnection extends Connection implements ReplyHandler, Messa
         }
     }
 
+    /**
+     * Stop or start reading Gnutella packets from the remote computer.
+     * MessageDispatcher calls this to stop reading from us when the lane our packets go into gets too full, and to start again when it empties out.
+     * While we're not reading, the remote computer's data waits in the socket buffers, and TCP slows it down.
+     * Several lanes can pause us at once, so each setReading(false) must be matched by one setReading(true), and we only read again after the last one.
+     * 
+     * @param on True to have NIO tell MessageReader to read, false to stop
+     */
+    void setReading(boolean on) {
+
+        // Count the pause, so the InflaterReader's listener won't read while any lane has us paused
+        boolean reading;
+        synchronized (READ_INTEREST_LOCK) {
+            if (on) {
+                if (_readPauses > 0) _readPauses--;
+            } else {
+                _readPauses++;
+            }
+            reading = _readPauses == 0;
+
+            // Add or remove OP_READ from the interest set of our channel, leaving writes alone
+            if (isAsynchronous()) updateReadInterest();
+        }
+
+        // A compression thread may have decompressed data while we were paused, and nothing new on the socket will make NIO read it
+        if (reading && on && isAsynchronous() && isReadDeflated()) readLater();
+    }
+
+    /**
+     * Add OP_READ to the interest set of our channel if neither MessageDispatcher nor the InflaterReader has stopped reading, remove it if either has.
+     */
+    private void updateReadInterest() {
+        synchronized (READ_INTEREST_LOCK) {
+            NIODispatcher.instance().interestRead(_socket.getChannel(), _readPauses == 0 && !_inflaterFull);
+        }
+    }
+
+    /**
+     * Have the NIODispatcher thread call MessageReader.handleRead(), even though NIO hasn't said the socket has data.
+     * The InflaterReader uses this when a compression thread has decompressed data for it.
+     */
+    private void readLater() {
+
+        // Run it on the thread that handles our channel, like NIO would
+        final NIOMultiplexor socket = (NIOMultiplexor)_socket;
+        NIODispatcher.instance().invokeLater(_socket.getChannel(), new Runnable() {
+            public void run() {
+                try {
+                    socket.handleRead(); // Calls MessageReader.handleRead()
+                } catch (IOException iox) {
+                    socket.handleIOException(iox); // Shut the socket down, like NIODispatcher does when handleRead() throws
+                }
+            }
+        });
+    }
+
     /**
      * Returns the Internet protocol ManagedConnection uses in its role as as a MessageReceiver, 1 Message.N_TCP for TCP.
      * The two networks are TCP and UDP, represented by 1 Message.N_TCP and 2 Message.N_UDP.
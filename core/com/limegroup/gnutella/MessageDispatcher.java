@@ -4,8 +4,18 @@
 package com.limegroup.gnutella;
 
 import java.net.InetSocketAddress;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
 
 import com.limegroup.gnutella.messages.Message;
+import com.limegroup.gnutella.messages.PingReply;
+import com.limegroup.gnutella.messages.PingRequest;
+import com.limegroup.gnutella.messages.PushRequest;
+import com.limegroup.gnutella.messages.QueryReply;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.settings.MessageSettings;
+import com.limegroup.gnutella.statistics.DroppedDispatchStat;
 import com.limegroup.gnutella.util.ProcessingQueue;
 
 /**
@@ -21,6 +31,29 @@ import com.limegroup.gnutella.util.ProcessingQueue;
  * You can get a reference to it by calling MessageDispatcher.instance().
  * 
  * The MessageDispatcher makes a ProcessingQueue, which creates the "MessageDispatch" thread.
+ * 
+ * If MessageSettings.DISPATCH_LANES is more than 1, the MessageDispatcher makes that many lanes instead.
+ * Each lane is its own ProcessingQueue with its own thread, named "MessageDispatch0", "MessageDispatch1", and so on.
+ * This lets MessageRouter work on several packets at once, one on each processor.
+ * 
+ * A packet always goes into the lane its GUID picks, so a query and the replies and acknowledgements that share its GUID are handled in order.
+ * Packets that aren't routed by GUID, like QRP patches and vendor messages, go into the lane their connection picks.
+ * This keeps all the ones from the same remote computer in order, which QRP patches need.
+ * 
+ * Each lane counts the packets it's handled and the time it spent on them.
+ * Call getQueueDepth(lane), getMessagesDispatched(lane), and getAverageServiceTime(lane) to find out how a lane is doing.
+ * 
+ * A lane won't grow without limit if MessageRouter falls behind.
+ * When it has MessageSettings.DISPATCH_HIGH_WATER packets waiting, it stops reading from the connections still sending it more.
+ * Their data waits in the socket buffers, and TCP slows the remote computers down.
+ * The lane starts reading from them again when it's down to half that many.
+ * 
+ * Under pressure, a lane also sheds the packets that matter least.
+ * Past the high-water mark, it drops pings, and pongs that come in over TCP.
+ * Past twice the high-water mark, it drops queries too.
+ * Queries that waited longer than MessageSettings.DISPATCH_MAX_QUERY_WAIT are dropped when their turn comes.
+ * It never drops QRP patches, query hits, vendor messages, pongs that answer our UDP pings, or queries from our own leaves.
+ * DroppedDispatchStat counts what gets dropped.
  */
 class MessageDispatcher {
 
@@ -56,10 +89,118 @@ class MessageDispatcher {
     }
 
     /**
-     * Make a ProcessingQueue that will create a thread named "MessageDispatch".
-     * We can add objects that have a run() method to the ProcessingQueue, and its thread will call run() on them one at a time.
+     * The lanes packets wait in to be dispatched.
+     * Each lane has a ProcessingQueue with its own thread.
+     * There is just one, named "MessageDispatch", unless MessageSettings.DISPATCH_LANES is more than 1.
+     */
+    private final Lane[] LANES = makeLanes(MessageSettings.DISPATCH_LANES.getValue());
+
+    /**
+     * Make the given number of lanes.
+     * 
+     * @param count The number of lanes MessageSettings.DISPATCH_LANES says to have
+     * @return      An array of new Lane objects, at least 1 long
+     */
+    private static Lane[] makeLanes(int count) {
+
+        // With just one lane, name its thread "MessageDispatch" like always
+        if (count <= 1) return new Lane[] { new Lane("MessageDispatch") };
+
+        // Make a lane for each number, with a thread named "MessageDispatch0", "MessageDispatch1", and so on
+        Lane[] lanes = new Lane[count];
+        for (int i = 0; i < count; i++) lanes[i] = new Lane("MessageDispatch" + i);
+        return lanes;
+    }
+
+    /**
+     * Find out how many lanes we're dispatching packets on.
+     * 
+     * @return The number of lanes, 1 or more
+     */
+    public int getLaneCount() {
+
+        // There's a ProcessingQueue and thread for each one
+        return LANES.length;
+    }
+
+    /**
+     * Find out how many packets are waiting in a lane.
+     * 
+     * @param lane The index of the lane, 0 through getLaneCount() - 1
+     * @return     The number of packets in the lane's ProcessingQueue that its thread hasn't dispatched yet
+     */
+    public int getQueueDepth(int lane) {
+
+        // Ask the lane's ProcessingQueue
+        return LANES[lane].QUEUE.size();
+    }
+
+    /**
+     * Find out how many packets a lane has dispatched.
+     * 
+     * @param lane The index of the lane, 0 through getLaneCount() - 1
+     * @return     The number of packets the lane's thread has given to MessageRouter
+     */
+    public long getMessagesDispatched(int lane) {
+
+        // Get the count from the lane
+        return LANES[lane].getDispatched();
+    }
+
+    /**
+     * Find out how long it takes a lane to dispatch a packet, on average.
+     * 
+     * @param lane The index of the lane, 0 through getLaneCount() - 1
+     * @return     The average number of milliseconds MessageRouter spent on each packet, or 0 if the lane hasn't dispatched any yet
      */
-    private final ProcessingQueue DISPATCH = new ProcessingQueue("MessageDispatch");
+    public float getAverageServiceTime(int lane) {
+
+        // Get the average from the lane
+        return LANES[lane].getAverageServiceTime();
+    }
+
+    /**
+     * Pick the lane a packet we got over TCP goes in.
+     * Queries, query hits, pings, pongs, and pushes are routed by GUID, so they go in the lane their GUID picks.
+     * Everything else, like QRP patches and vendor messages, goes in the lane the connection picks, to keep them in order.
+     * 
+     * @param m    A Gnutella packet we just received
+     * @param conn The connection we got it from
+     * @return     The Lane to add it to
+     */
+    private Lane laneFor(Message m, ManagedConnection conn) {
+
+        // If there's just one lane, it's that one
+        if (LANES.length == 1) return LANES[0];
+
+        // Packets routed by GUID go in their GUID's lane
+        if (m instanceof QueryRequest ||
+            m instanceof QueryReply   ||
+            m instanceof PingRequest  ||
+            m instanceof PingReply    ||
+            m instanceof PushRequest) return laneFor(m);
+
+        // Everything else from this connection goes in its lane, in the order it sent them
+        return LANES[(System.identityHashCode(conn) & 0x7FFFFFFF) % LANES.length];
+    }
+
+    /**
+     * Pick the lane a packet goes in by its GUID.
+     * 
+     * @param m A Gnutella packet we just received
+     * @return  The Lane to add it to
+     */
+    private Lane laneFor(Message m) {
+
+        // If there's just one lane, it's that one
+        if (LANES.length == 1) return LANES[0];
+
+        // Combine all 16 bytes of the GUID into a number, and pick a lane with it
+        byte[] guid = m.getGUID(); // This is a reference to the packet's array, not a copy
+        int hash = 0;
+        for (int i = 0; i < guid.length; i++) hash = 31 * hash + guid[i];
+        return LANES[(hash & 0x7FFFFFFF) % LANES.length];
+    }
 
     /**
      * Have the "MessageDispatch" thread call MessageRouter.handleUDPMessage(message, addr).
@@ -69,8 +210,8 @@ class MessageDispatcher {
      */
     public void dispatchUDP(Message m, InetSocketAddress addr) {
 
-        // Wrap the given Gnutella packet and source address into a new UDPDispatch object, and add it to the ProcessingQueue
-        DISPATCH.add(new UDPDispatch(m, addr));
+        // Wrap the given Gnutella packet and source address into a new UDPDispatch object, and add it to the lane its GUID picks
+        laneFor(m).add(new UDPDispatch(m, addr), m, null);
     }
 
     /**
@@ -81,8 +222,8 @@ class MessageDispatcher {
      */
     public void dispatchMulticast(Message m, InetSocketAddress addr) {
 
-        // Wrap the given Gnutella packet and source address into a new MulticastDispatch object, and add it to the ProcessingQueue
-        DISPATCH.add(new MulticastDispatch(m, addr));
+        // Wrap the given Gnutella packet and source address into a new MulticastDispatch object, and add it to the lane its GUID picks
+        laneFor(m).add(new MulticastDispatch(m, addr), m, null);
     }
 
     /**
@@ -93,16 +234,193 @@ class MessageDispatcher {
      */
     public void dispatchTCP(Message m, ManagedConnection conn) {
 
-        // Wrap the given Gnutella packet and source connection into a new TCPDispatch object, and add it to the ProcessingQueue
-        DISPATCH.add(new TCPDispatch(m, conn));
+        // Wrap the given Gnutella packet and source connection into a new TCPDispatch object, and add it to the lane its type picks
+        laneFor(m, conn).add(new TCPDispatch(m, conn), m, conn);
+    }
+
+    /**
+     * A Lane holds a ProcessingQueue with its own "MessageDispatch" thread, and counts the packets it dispatches and how long they take.
+     */
+    private static class Lane {
+
+        /** The ProcessingQueue that has this lane's thread call run() on the Dispatch objects we add. */
+        final ProcessingQueue QUEUE;
+
+        /** The number of packets this lane has dispatched. */
+        private long _dispatched;
+
+        /** The total number of milliseconds MessageRouter spent on them. */
+        private long _serviceTime;
+
+        /** The connections we stopped reading from because this lane got too full, we'll read from them again when it empties out. */
+        private final Set PAUSED = new HashSet();
+
+        /**
+         * Make a new Lane with a ProcessingQueue that will make a thread with the given name.
+         * 
+         * @param name The name of the lane's thread, like "MessageDispatch0"
+         */
+        Lane(String name) {
+
+            // Make the ProcessingQueue, it will start the thread when we add something to it
+            QUEUE = new ProcessingQueue(name);
+        }
+
+        /**
+         * Add a Dispatch object to this lane, its thread will call run() on it soon.
+         * If the lane is too full, drops the packet if it's one we can shed, or stops reading from the connection that sent it.
+         * 
+         * @param d    A UDPDispatch, MulticastDispatch, or TCPDispatch object
+         * @param m    The Gnutella packet it holds
+         * @param conn The connection it came from, or null if it came in over UDP or multicast
+         */
+        void add(Dispatch d, Message m, ManagedConnection conn) {
+
+            // Only look for something to do if we're past the high-water mark
+            int high = MessageSettings.DISPATCH_HIGH_WATER.getValue();
+            int depth = QUEUE.size();
+            if (depth >= high) {
+
+                // Drop pings, and pongs from TCP connections, UDP pongs are answers to pings we sent
+                if (m instanceof PingRequest) {
+                    DroppedDispatchStat.PING_REQUESTS.incrementStat();
+                    m.release(); // Let the next packet use its payload array
+                    return;
+                } else if (m instanceof PingReply && conn != null) {
+                    DroppedDispatchStat.PING_REPLIES.incrementStat();
+                    m.release();
+                    return;
+                }
+
+                // Past twice the high-water mark, drop queries too
+                if (depth >= 2 * high && isSheddable(m, conn)) {
+                    DroppedDispatchStat.QUERY_REQUESTS_FULL.incrementStat();
+                    m.release();
+                    return;
+                }
+
+                // Stop reading from the connection that sent this until we catch up
+                if (conn != null) pause(conn);
+            }
+
+            // Tell the object which lane it's in and when it got there, and queue it
+            d.lane      = this;
+            d.message   = m;
+            d.queued    = System.currentTimeMillis();
+            d.sheddable = isSheddable(m, conn);
+            QUEUE.add(d);
+        }
+
+        /**
+         * Stop reading from a connection until this lane empties out.
+         * 
+         * @param conn A connection that sent us a packet while this lane was past its high-water mark
+         */
+        private synchronized void pause(ManagedConnection conn) {
+
+            // If we haven't already, stop reading from it
+            if (PAUSED.add(conn)) {
+                conn.setReading(false);
+                DroppedDispatchStat.READS_PAUSED.incrementStat();
+            }
+        }
+
+        /**
+         * Record that this lane's thread dispatched a packet.
+         * If that brings the lane down to half the high-water mark, start reading from the connections we paused again.
+         * 
+         * @param time The number of milliseconds MessageRouter spent on it
+         */
+        synchronized void dispatched(long time) {
+
+            // Add to our totals
+            _dispatched++;
+            _serviceTime += time;
+
+            // If we paused some connections and have caught up, read from them again
+            if (!PAUSED.isEmpty() && QUEUE.size() <= MessageSettings.DISPATCH_HIGH_WATER.getValue() / 2) {
+                for (Iterator i = PAUSED.iterator(); i.hasNext(); ) ((ManagedConnection)i.next()).setReading(true);
+                PAUSED.clear();
+            }
+        }
+
+        /** @return The number of packets this lane has dispatched */
+        synchronized long getDispatched() {
+            return _dispatched;
+        }
+
+        /** @return The average number of milliseconds each packet took, or 0 if there haven't been any */
+        synchronized float getAverageServiceTime() {
+            if (_dispatched == 0) return 0;
+            return (float)_serviceTime / _dispatched;
+        }
+    }
+
+    /**
+     * Determine if we can drop a packet when a lane falls too far behind.
+     * 
+     * @param m    A Gnutella packet we just received
+     * @param conn The connection it came from, or null if it came in over UDP or multicast
+     * @return     True if it's a query from another ultrapeer or over UDP, false if it's anything else or a query from our leaf
+     */
+    private static boolean isSheddable(Message m, ManagedConnection conn) {
+
+        // Only queries, and not the ones our leaves are counting on us to send
+        return m instanceof QueryRequest && (conn == null || !conn.isSupernodeClientConnection());
+    }
+
+    /**
+     * The UDPDispatch, MulticastDispatch, and TCPDispatch classes extend Dispatch.
+     * When the lane's thread calls run(), it calls dispatch() and times it.
+     */
+    private static abstract class Dispatch implements Runnable {
+
+        /** The Lane this packet is waiting in, set by Lane.add(). */
+        Lane lane;
+
+        /** The packet, so run() can release it if it drops it. */
+        Message message;
+
+        /** When Lane.add() queued this packet, the number of milliseconds since 1970. */
+        long queued;
+
+        /** True if this is a query we can drop if it waits too long. */
+        boolean sheddable;
+
+        /**
+         * The lane's thread calls this run() method.
+         * Calls dispatch(), and tells the lane how long it took.
+         * If this is a query that waited in the lane too long, drops it instead.
+         */
+        public final void run() {
+
+            // If this query waited too long, it's old news, drop it
+            long start = System.currentTimeMillis();
+            if (sheddable && start - queued > MessageSettings.DISPATCH_MAX_QUERY_WAIT.getValue()) {
+                DroppedDispatchStat.QUERY_REQUESTS_OLD.incrementStat();
+                message.release(); // Let the next packet use its payload array
+                lane.dispatched(0);
+                return;
+            }
+
+            // Give the packet to MessageRouter, and record how long that took
+            try {
+                dispatch();
+            } finally {
+                lane.dispatched(System.currentTimeMillis() - start);
+            }
+        }
+
+        /** Give the packet to MessageRouter. */
+        abstract void dispatch();
     }
 
     /**
      * A UDPDispatch object holds a Gnutella packet with the address we just received it from.
-     * UDPDispatch implements Java's Runnable interface, which means it has a run() method.
-     * It also means we can add a UDPDispatch object to the DISPATCH ProcessingQueue, which will have its "MessageDispatch" thread call run() on it.
+     * UDPDispatch extends Dispatch, which implements Java's Runnable interface and means it has a run() method.
+     * It also means we can add a UDPDispatch object to a Lane, whose "MessageDispatch" thread will call run() on it.
      */
-    private static class UDPDispatch implements Runnable {
+    private static class UDPDispatch extends Dispatch {
 
         /** Get a reference to the program's single MessageRouter object. */
         private static final MessageRouter ROUTER = RouterService.getMessageRouter();
@@ -127,10 +445,10 @@ class MessageDispatcher {
         }
 
         /**
-         * The "MessageDispatch" thread will call this run() method shortly after code above makes this UDPDispatch object.
+         * The lane's "MessageDispatch" thread will call this dispatch() method shortly after code above makes this UDPDispatch object.
          * Gives the message and source address to MessageRouter.handleUDPMessage().
          */
-        public void run() {
+        void dispatch() {
 
             // Forward the call above to MessageRouter.handleUDPMessage(m, addr)
             ROUTER.handleUDPMessage(m, addr);
@@ -139,10 +457,10 @@ class MessageDispatcher {
 
     /**
      * A MulticastDispatch object holds a Gnutella packet with the address we just received it from.
-     * MulticastDispatch implements Java's Runnable interface, which means it has a run() method.
-     * It also means we can add a MulticastDispatch object to the DISPATCH ProcessingQueue, which will have its "MessageDispatch" thread call run() on it.
+     * MulticastDispatch extends Dispatch, which implements Java's Runnable interface and means it has a run() method.
+     * It also means we can add a MulticastDispatch object to a Lane, whose "MessageDispatch" thread will call run() on it.
      */
-    private static class MulticastDispatch implements Runnable {
+    private static class MulticastDispatch extends Dispatch {
 
         /** Get a reference to the program's single MessageRouter object. */
         private static final MessageRouter ROUTER = RouterService.getMessageRouter();
@@ -167,10 +485,10 @@ class MessageDispatcher {
         }
 
         /**
-         * The "MessageDispatch" thread will call this run() method shortly after code above makes this MulticastDispatch object.
+         * The lane's "MessageDispatch" thread will call this dispatch() method shortly after code above makes this MulticastDispatch object.
          * Gives the message and source address to MessageRouter.handleMulticastMessage().
          */
-        public void run() {
+        void dispatch() {
 
             // Forward the call above to MessageRouter.handleMulticastMessage(m, addr)
             ROUTER.handleMulticastMessage(m, addr);
@@ -179,10 +497,10 @@ class MessageDispatcher {
 
     /**
      * A TCPDispatch object holds a Gnutella packet with the ManagedConnection that just sent it to us.
-     * TCPDispatch implements Java's Runnable interface, which means it has a run() method.
-     * It also means we can add a TCPDispatch object to the DISPATCH ProcessingQueue, which will have its "MessageDispatch" thread call run() on it.
+     * TCPDispatch extends Dispatch, which implements Java's Runnable interface and means it has a run() method.
+     * It also means we can add a TCPDispatch object to a Lane, whose "MessageDispatch" thread will call run() on it.
      */
-    private static class TCPDispatch implements Runnable {
+    private static class TCPDispatch extends Dispatch {
 
         /** Get a reference to the program's single MessageRouter object. */
         private static final MessageRouter ROUTER = RouterService.getMessageRouter();
@@ -207,10 +525,10 @@ class MessageDispatcher {
         }
 
         /**
-         * The "MessageDispatch" thread will call this run() method shortly after code above makes this TCPDispatch object.
+         * The lane's "MessageDispatch" thread will call this dispatch() method shortly after code above makes this TCPDispatch object.
          * Gives the message and source connection to MessageRouter.handleMessage().
          */
-        public void run() {
+        void dispatch() {
 
             // Forward the call above to MessageRouter(m, conn)
             ROUTER.handleMessage(m, conn);
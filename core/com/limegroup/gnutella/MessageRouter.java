@@ -33,6 +33,7 @@ import com.limegroup.gnutella.messages.*;
 import com.limegroup.gnutella.messages.vendor.*;
 
 // Import classes related to QRT, the hash mask of what a computer is sharing
+import com.limegroup.gnutella.routing.LeafRouteIndex;
 import com.limegroup.gnutella.routing.PatchTableMessage;
 import com.limegroup.gnutella.routing.QueryRouteTable;
 import com.limegroup.gnutella.routing.ResetTableMessage;
@@ -62,6 +63,7 @@ import com.limegroup.gnutella.util.NoMoreStorageException;
 import com.limegroup.gnutella.util.Sockets;
 import com.limegroup.gnutella.util.IOUtils;
 import com.limegroup.gnutella.util.ProcessingQueue;
+import com.limegroup.gnutella.util.TimingWheel;
 import com.limegroup.gnutella.version.UpdateHandler;
 
 import org.apache.commons.logging.LogFactory;
@@ -315,9 +317,9 @@ public abstract class MessageRouter {
 	//done
 
 	/**
-	 * A thread that loops forever, calling forwardQueryRouteTables() every 10 seconds.
+	 * A timer task that calls forwardQueryRouteTables() every 10 seconds.
 	 * The program's single MessageRouter object makes this one QRPPropagator object.
-	 * QRPPropagator extends MangedThread, which extends Thread, so this is a thread.
+	 * initialize() schedules it in the program's TimingWheel.
 	 */
 	private final QRPPropagator QRP_PROPAGATOR = new QRPPropagator();
 
@@ -329,6 +331,13 @@ public abstract class MessageRouter {
      */
     private QueryRouteTable _lastQueryRouteTable;
 
+    /**
+     * The QRP tables our leaves have sent us, turned on their side.
+     * For each slot in a QRP table, has a bitmask of the leaves that let searches for it through.
+     * forwardQueryRequestToLeaves() uses it to find the leaves a query should go to without testing them one by one.
+     */
+    private final LeafRouteIndex LEAF_INDEX = new LeafRouteIndex();
+
     //do
 
     /**
@@ -398,7 +407,7 @@ public abstract class MessageRouter {
 		_callback = RouterService.getCallback();
 		_fileManager = RouterService.getFileManager();
 		_promotionManager = RouterService.getPromotionManager();
-	    QRP_PROPAGATOR.start();
+	    TimingWheel.instance().schedule(QRP_PROPAGATOR, 10 * 1000, 10 * 1000, "QRPPropagator");
 
         // schedule a runner to clear unused out-of-band replies
         RouterService.schedule(new Expirer(), CLEAR_TIME, CLEAR_TIME);
@@ -502,6 +511,9 @@ public abstract class MessageRouter {
         _queryRouteTable.removeReplyHandler(rh);
         _pushRouteTable.removeReplyHandler(rh);
         _headPongRouteTable.removeReplyHandler(rh);
+
+        // If it's a leaf, take its QRP table out of our index
+        LEAF_INDEX.detach(rh);
     }
 
     //do
@@ -939,6 +951,9 @@ public abstract class MessageRouter {
 
             // If it didn't, keep going with handlePingRequest(request, handler)
             handlePingRequest(request, handler);
+
+        // It's a duplicate we're dropping, let the next packet use its payload array
+        else request.release();
     }
 
     /**
@@ -964,6 +979,9 @@ public abstract class MessageRouter {
 
             // If it didn't, keep going with handleUDPPingRequest(request, handler, addr)
             handleUDPPingRequest(request, handler, addr);
+
+        // It's a duplicate we're dropping, let the next packet use its payload array
+        else request.release();
     }
 
     /**
@@ -1117,6 +1135,7 @@ public abstract class MessageRouter {
     /**
      * Give the query packet to the ReceivedMessageStatHandler for TCP duplicate queries.
      * Only handleQueryRequestPossibleDuplicate() above calls this.
+     * We're dropping the query, so this also gives its payload array back to PayloadPool.
      * 
      * @param request A query packet we've received
      */
@@ -1124,6 +1143,9 @@ public abstract class MessageRouter {
 
         // Count the statistic
         ReceivedMessageStatHandler.TCP_DUPLICATE_QUERIES.addMessage(request);
+
+        // Nothing else has the query, let the next packet use its payload array
+        request.release();
     }
 
 	/**
@@ -2087,27 +2109,43 @@ public abstract class MessageRouter {
         List list = _manager.getInitializedClientConnections(); // A List of ManagedConnection objects that are leaves we've completed the Gnutella handshake with
 
         // Make a list to hold the leaves that don't have query route tables that block this search
-        List hitConnections = new ArrayList();
+        List hitConnections;
 
-        // Loop for each of our leaves
-        for (int i = 0; i < list.size(); i++) {
-            ManagedConnection mc = (ManagedConnection)list.get(i);
+        /*
+         * Feature queries depend on the version each leaf told us it supports,
+         * so they still test the leaves one at a time.  For everything else, the
+         * index ANDs together the leaf masks of the query's keyword hashes.
+         */
 
-            // This leaf sent us the query packet
-            if (mc == handler) continue; // Go to the next leaf
+        // This is a regular search, have the index find the leaves with query route tables that let it through
+        if (!query.isFeatureQuery()) {
+            hitConnections = LEAF_INDEX.getLeaves(query);
+            hitConnections.remove(handler); // Don't send the query back to the leaf that sent it to us
 
-            /*
-             * Tour Point
-             * 
-             * This is where we use QRP, the Query Routing Protocol and QRP tables.
-             * ManagedConnection.shouldForwardQuery(query) sees if the search passes through the leaf's QRP table.
-             */
+        // This is a What's New search, test each leaf
+        } else {
+            hitConnections = new ArrayList();
+
+            // Loop for each of our leaves
+            for (int i = 0; i < list.size(); i++) {
+                ManagedConnection mc = (ManagedConnection)list.get(i);
+
+                // This leaf sent us the query packet
+                if (mc == handler) continue; // Go to the next leaf
+
+                /*
+                 * Tour Point
+                 * 
+                 * This is where we use QRP, the Query Routing Protocol and QRP tables.
+                 * ManagedConnection.shouldForwardQuery(query) sees if the search passes through the leaf's QRP table.
+                 */
 
-            // If the query passes through this leaf's query route table
-            if (mc.shouldForwardQuery(query)) {
+                // If the query passes through this leaf's query route table
+                if (mc.shouldForwardQuery(query)) {
 
-                // Add it to the list of leaves we'll send it to
-                hitConnections.add(mc);
+                    // Add it to the list of leaves we'll send it to
+                    hitConnections.add(mc);
+                }
             }
         }
 
@@ -3157,6 +3195,9 @@ public abstract class MessageRouter {
         // Save the table size and chosen infinity value in the ManagedConnection object that represents the remote computer
         synchronized (mc.getQRPLock()) {
             mc.resetQueryRouteTable(rtm);
+
+            // If it's a leaf, make sure its QRP table is in our index, patches will keep it up to date from here
+            if (mc.isLeafConnection()) LEAF_INDEX.attach(mc, mc.getQueryRouteTableReceived());
         }
 
         /*
@@ -3190,6 +3231,9 @@ public abstract class MessageRouter {
         // Bring our record of the remote computer's QRP table up to date
         synchronized (mc.getQRPLock()) {
             mc.patchQueryRouteTable(ptm);
+
+            // If it's a leaf, make sure its QRP table is in our index, the patch above updated it if it was already there
+            if (mc.isLeafConnection()) LEAF_INDEX.attach(mc, mc.getQueryRouteTableReceived());
         }
 
         /*
@@ -3249,42 +3293,20 @@ public abstract class MessageRouter {
     }
 
     /**
-	 * A thread that loops forever, calling forwardQueryRouteTables() every 10 seconds.
+	 * A timer task that calls forwardQueryRouteTables() every 10 seconds.
 	 * The program's single MessageRouter object makes this one QRPPropagator object.
-	 * QRPPropagator extends MangedThread, which extends Thread, so this is a thread.
+	 * initialize() schedules it in the program's TimingWheel, which runs it on the "TimingWheel: QRPPropagator" thread.
      */
-    private class QRPPropagator extends ManagedThread {
-
-    	/**
-    	 * Make the program's single QRPPropagator object.
-    	 */
-        public QRPPropagator() {
-
-        	// Label this thread "QRPPropagator", and let Java exit even if it's still running
-            setName("QRPPropagator");
-            setDaemon(true);
-        }
+    private class QRPPropagator implements Runnable {
 
         /**
-         * Loop forever, calling forwardQueryRouteTables() every 10 seconds.
-         * When initialize() calls QRP_PROPAGATOR.start(), this managedRun() method gets called.
+         * Call forwardQueryRouteTables().
+         * The TimingWheel calls this every 10 seconds, and gives any exception it throws to the ErrorService.
          */
-        public void managedRun() {
-
-            try {
-
-            	// Loop forever
-                while (true) {
-
-                	// Wait here for 10 seconds
-                	Thread.sleep(10 * 1000);
-
-                	// Send our QRP table to all our ultrapeers that we haven't updated in the last minute
-                	forwardQueryRouteTables();
-                }
+        public void run() {
 
-            // Pass an exception to the ErrorService, and let the thread exit
-            } catch (Throwable t) { ErrorService.error(t); }
+            // Send our QRP table to all our ultrapeers that we haven't updated in the last minute
+            forwardQueryRouteTables();
         }
     }
 
@@ -3292,8 +3314,8 @@ public abstract class MessageRouter {
      * Send a group of QRP messages to all our ultrapeers to bring their records of our QRP table up to date.
      * Prepares a custom group of QRP messages for each ultrapeer that we haven't updated in the last minute, and sends them to it.
      * 
-     * Only QRPPropagator.managedRun() above calls this method.
-     * The "QRPPropagator" thread calls here every 10 seconds as the program runs.
+     * Only QRPPropagator.run() above calls this method.
+     * The "TimingWheel: QRPPropagator" thread calls here every 10 seconds as the program runs.
      * 
      * Sends updated query routing tables to all connections which haven't
      * been updated in a while.  You can call this method as often as you want;
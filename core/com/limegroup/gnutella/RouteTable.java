@@ -87,118 +87,79 @@ import com.limegroup.gnutella.search.ResultCounter;
  * ResultCounter interface
  * 
  * A RouteTable object is a list that maps GUIDs to ReplyHandler objects.
- * The values under the GUIDs aren't actually ReplyHandler objects, but rather RouteTableEntry objects that lead to ReplyHandler objects and bundle transfer statistics.
+ * The values under the GUIDs aren't actually ReplyHandler objects, but rather slots that lead to ReplyHandler objects and bundle transfer statistics.
  * ReplyRoutePair objects wrap a ReplyHandler with these transfer statistics.
  * getReplyHandler(byte[], int, short) returns a ReplyRoutePair to return a ReplyHandler with this additional information.
  * The ResultCounter interface is only implementd by one class in LimeWire, RouteTableEntry.
  * routeReply() and tryToRouteReply() return RouteTableEntry objects cast to their ResultCounter interface.
+ * A RouteTableEntry reads the count from its GUID's slot when you call getNumResults() on it.
  * 
  * === How RouteTable works. ===
  * 
  * When you make a RouteTable, you give it a time interval, like 5 seconds.
- * The RouteTable has 2 maps inside, named new and old.
- * Every 5 seconds, it moves everything from new to old, and throws away the contents of old.
- * The purge() method does this.
- * 
- * When you add a GUID and ReplyHandler, it goes into the new map.
- * When you look up a GUID, the RouteTable searches both maps.
- * 
- * This is a very efficient way to keep only recent listings in the RouteTable.
- * A lucky GUID will get added right after the purge, and be in the RouteTable for almost 10 seconds.
- * An unlucky GUID will be added right before the purge, and be in the RouteTable for just more than 5 seconds.
- * Every listing will exist for an amount of time between the given interval, and twice that interval.
- * Exactly how long a listing exists is random, depending on when during the interval the program adds it.
- * 
- * ===
- * 
- * The reply routing table.  Given a GUID from a reply message header,
- * this tells you where to route the reply.  It is mutable mapping
- * from globally unique 16-byte message IDs to connections.  Old
- * mappings may be purged without warning, preferably using a FIFO
- * policy.  This class makes a distinction between not having a mapping
- * for a GUID and mapping that GUID to null (in the case of a removed
- * ReplyHandler).
- *
- * This class can also optionally keep track of the number of reply bytes 
- * routed per guid.  This can be useful for implementing fair flow-control
- * strategies.
- * 
- * The obvious implementation of this class is a mapping from GUID to
- * ReplyHandler's.  The problem with this representation is it's hard to
- * implement removeReplyHandler efficiently.  You either have to keep the
- * references to the ReplyHandler (which wastes memory) or iterate through
- * the entire table to clean all references (which wastes time AND removes
- * valuable information for preventing duplicate queries).
- * 
- * Instead we use a layer of indirection.  _newMap/_oldMap maps GUIDs to
- * integers, which act as IDs for each connection.  _idMap maps IDs to
- * ReplyHandlers.  _handlerMap maps ReplyHandler to IDs.  So to clean up a
- * connection, we just purge the entries from _handlerMap and _idMap; there
- * is no need to iterate through the entire GUID mapping.  Adding GUIDs and
- * routing replies are still constant-time operations.
- * 
- * IDs are allocated sequentially according with the nextID variable.  The
- * field does "wrap around" after reaching the maximum integer value.
- * Though no two open connections will have the same ID--we check
- * _idMap--there is a very low probability that an ID in _map could be
- * prematurely reused.
+ * Every entry is stamped with a generation number when it's added or renewed.
+ * Every 5 seconds, the current generation number goes up by one.
+ * Entries stamped with the current generation or the one before it are alive, older ones are expired.
+ * The purge() method moves the generation forward.
+ * 
+ * This does what the old pair of new and old maps did, without moving or clearing anything.
+ * A lucky GUID will get added right after the generation changes, and be in the RouteTable for almost 10 seconds.
+ * An unlucky GUID will be added right before, and be in the RouteTable for just more than 5 seconds.
  * 
- * To approximate FIFO behavior, we keep two sets around, _newMap and
- * _oldMap.  Every few seconds, when the system time is greater than
- * nextSwitch, we clear _oldMap and replace it with _newMap.
- * (DuplicateFilter uses the same trick.)  In this way, we remember the last
- * N to 2N minutes worth of GUIDs.  This is superior to a fixed size route
- * table.
+ * === How RouteTable stores entries. ===
  * 
- * For flow-control reasons, we also store the number of bytes routed per
- * GUID in each table.  Hence the RouteTableEntry class.
+ * MessageRouter looks in its route tables for every packet it routes, from the threads of many connections at once.
+ * So a RouteTable doesn't synchronize on itself.
+ * Instead, it's split into SEGMENTS Segment objects, and a GUID's hash code picks the Segment it goes in.
+ * Each Segment has its own lock, so threads routing replies for different GUIDs rarely wait for each other.
  * 
- * INVARIANT: keys of _newMap and _oldMap are disjoint
- * INVARIANT: _idMap and _replyMap are inverses
+ * A Segment is an open addressing hash table.
+ * It keeps the 16 bytes of each GUID right in one big byte array, and the handler ID, TTL, and statistics in parallel arrays.
+ * Adding an entry doesn't make any objects, it just fills in a slot.
+ * Expired slots get reused, and when too many slots have been used, the Segment rebuilds its arrays with just the live entries.
  * 
- * TODO3: if IDs were stored in each ReplyHandler, we would not need
- * _replyMap.  Better yet, if the values of _map were indices (with tags)
- * into ConnectionManager._initialized[Client]Connections, we would not
- * need _idMap either.  However, this increases dependenceies.
+ * The indirection from GUIDs to handler IDs to ReplyHandler objects is the same as before.
+ * _idMap maps IDs to ReplyHandlers and _handlerMap maps ReplyHandler to IDs.
+ * To clean up a connection, we just remove it from _handlerMap and _idMap, there is no need to look through the GUIDs.
+ * These two maps have their own lock, _handlerLock.
+ * 
+ * routeReply() and tryToRouteReply() return a RouteTableEntry, which doesn't hold any data itself.
+ * It remembers the GUID and the serial number of the slot it was made for, and reads the count from the Segment when you ask.
+ * 
+ * IDs are allocated sequentially according with the _nextID variable.  The
+ * field does "wrap around" after reaching the maximum integer value.
+ * Though no two open connections will have the same ID--we check
+ * _idMap--there is a very low probability that an ID in a slot could be
+ * prematurely reused.
  */
 public final class RouteTable {
 
-    /*
-     * RouteTable uses _newMap and _oldMap together.
-     * 
-     * Both map byte[] to RouteTableEntry.
-     * The keys are GUID values in byte arrays.
-     * The values are RouteTableEntry objects.
-     * 
-     * The maps are Java TreeMap objects that keep their contents in sorted order.
-     * The constructor takes our GUID.GUIDByteComparator.compare(Object a, Object b) method and uses it to see which of two GUIDs should be placed first.
-     */
+    /** 16, the number of Segment objects a RouteTable is split into, each with its own lock. */
+    private static final int SEGMENTS = 16;
 
-    /** A map of message GUIDs and the ReplyHandler objects that represent the remote computers that sent us packets with them. */
-    private Map _newMap = new TreeMap(new GUID.GUIDByteComparator());
+    /** 64, the number of slots a Segment starts with, it grows as needed. */
+    private static final int INITIAL_SLOTS = 64;
 
-    /** We'll move all the listings from _newMap here before throwing them away, keeping the listings this RouteTable keeps current. */
-    private Map _oldMap = new TreeMap(new GUID.GUIDByteComparator());
+    /** The Segment objects, pick one with segmentFor(hash). */
+    private final Segment[] _segments = new Segment[SEGMENTS];
 
     /**
      * The number of milliseconds this RouteTable will remember its routing information.
      * When you make a new RouteTable, you specify the time interval you want.
      * 
      * The purge() method notices if this much time has passed since the last purge.
-     * If it has, it moves everything from the new map to the old map.
+     * If it has, it moves a Segment to the next generation.
      */
-    private int _mseconds;
+    private final int _mseconds;
 
     /**
-     * The time when the purge() method must next shift everything from the new map into the old one, and throw out the contents of the old one.
+     * If a Segment gets this many entries in its current generation, the purge() method will move it to the next generation.
+     * When you make a new RouteTable, you specify the maximum size you want, and each Segment gets an even share of it.
      */
-    private long _nextSwitchTime;
+    private final int _maxSegmentSize;
 
-    /**
-     * If the new map grows to hold this many items, the purge() method will shift its contents to the old map and throw the old contents away.
-     * When you make a new RouteTable, you specify the maximum size you want.
-     */
-    private int _maxSize;
+    /** Synchronize on this object before touching _idMap, _handlerMap, or _nextID. */
+    private final Object _handlerLock = new Object();
 
     /*
      * RouteTable uses _idMap and _handlerMap together.
@@ -213,10 +174,10 @@ public final class RouteTable {
      */
 
     /** _idMap maps Integer IDs to ReplyHandler objects. */
-    private Map _idMap = new HashMap();
+    private final Map _idMap = new HashMap();
 
     /** _handlerMap maps ReplyHandler objects to Integer IDs. */
-    private Map _handlerMap = new HashMap();
+    private final Map _handlerMap = new HashMap();
 
     /**
      * The next ID number to use in _idMap and _handlerMap.
@@ -224,89 +185,6 @@ public final class RouteTable {
      */
     private int _nextID;
 
-    /**
-     * A RouteTable maps GUIDs to RouteTableEntry objects, which contain ReplyHandler objects and more information.
-     * 
-     * In a RouteTable, _newMap and _oldMap map message GUIDs to RouteTableEntry objects.
-     * A RouteTableEntry object has our handler ID, and counts the number of bytes and packets we've routed to it.
-     * To turn a handler ID into a ReplyHandler, use handler = id2handler(id).
-     * 
-     * A RouteTableEntry object also has a TTL.
-     * You can access this TTL with getTTL() and setTTL(ttl).
-     * (do) How is this used?
-     * 
-     * RouteTableEntry implements the ResultCounter interface, requiring it to have a getNumResults() method.
-     */
-    private static final class RouteTableEntry implements ResultCounter {
-
-        /** The ID number that you can look up to get the ReplyHandler. */
-        private int handlerID;
-
-        /** The total size of reply packet data we've routed to the ReplyHandler for this GUID request. */
-        private int bytesRouted;
-
-        /** The total number of packets we've routed to the ReplyHandler for this GUID request. */
-        private int repliesRouted;
-
-        /**
-         * The ttl associated with this RTE - meaningful only if > 0. (do)
-         */
-        private byte ttl = 0;
-
-        /**
-         * Make a new RouteTableEntry object to put it in _newMap or _oldMap.
-         * 
-         * @param handlerID An ID number this class will use in place of a reference to a RouteTable object
-         */
-        RouteTableEntry(int handlerID) {
-
-            // Save the given handler ID
-            this.handlerID = handlerID;
-
-            // Start the transfer statistics at 0
-            this.bytesRouted   = 0;
-			this.repliesRouted = 0;
-        }
-
-        /**
-         * Set the TTL this RouteTableEntry object will remember.
-         * 
-         * @param ttl The new TTL number to store in this object
-         */
-        public void setTTL(byte ttl) {
-
-            // Save the given TTL number
-            this.ttl = ttl;
-        }
-
-        /**
-         * Get the TTL you set in this RouteTableEntry object.
-         * 
-         * @return The TTL code set with setTTL(ttl)
-         */
-        public byte getTTL() {
-
-            // Return the set number
-            return ttl;
-        }
-
-		/**
-         * Get the number of reply packets with this GUID that we've received.
-         * 
-         * In a RouteTable, message GUIDs map to RouteTableEntry objects.
-         * The RouteTableEntry counts this number of reply packets, and keeps the ReplyHandler which made the request.
-         * 
-         * The ResultCounter interface requires this method.
-         * 
-         * @return The number of reply packets we've routed to this remote computer for the request packet with this GUID
-         */
-		public int getNumResults() {
-
-            // Return the count we've been keeping
-            return repliesRouted;
-        }
-    }
-
     /**
      * Make a new RouteTable that will map message GUIDs to remote computers so we know where to send back a reply packet.
      * 
@@ -321,10 +199,13 @@ public final class RouteTable {
          * this in the worst case.
          */
 
-        // Save the given values, and set the times
-        this._mseconds       = seconds * 1000;                         // Convert the given time in seconds to milliseconds before saving it in _mseconds
-        this._nextSwitchTime = System.currentTimeMillis() + _mseconds; // Let purge() run for the first time that long from now
-        this._maxSize        = maxSize;
+        // Save the given values
+        this._mseconds       = seconds * 1000; // Convert the given time in seconds to milliseconds before saving it in _mseconds
+        this._maxSegmentSize = Math.max(1, maxSize / SEGMENTS);
+
+        // Make the segments, they'll each let purge() run for the first time _mseconds from now
+        long now = System.currentTimeMillis();
+        for (int i = 0; i < SEGMENTS; i++) _segments[i] = new Segment(now + _mseconds);
     }
 
     /**
@@ -336,61 +217,35 @@ public final class RouteTable {
      * Calls replyHandler.isOpen() to make sure the ManagedConnection can still send a packet to the remote computer it represents.
      * Returns null if it's closed, so it can't.
      * 
-     * Removes the GUID from the old or new lists before adding it to the new list.
-     * This has the effect of renewing the GUID.
+     * If the GUID is already listed, points it at the given ReplyHandler and stamps it with the current generation.
+     * This has the effect of renewing the GUID, and keeps the statistics it's collected.
      * 
      * @return guid         The message GUID of a request packet we received and are going to broadcast forward.
      * @return replyHandler The ManagedConnection, UDPReplyHandler, or ForMeReplyHandler that sent it to us.
-     * @return              A RouteTableEntry object that contains the given ReplyHandler, and is now listed in this RouteTable under the given GUID.
+     * @return              A RouteTableEntry object that reads the GUID's entry in this RouteTable.
      *                      RouteTableEntry implements the ResultCounter interface, letting you call getNumResults() on it.
      *                      If the given ReplyHandler is a ManagedConnection that's closed, doesn't add anything and returns null.
      */
-    public synchronized ResultCounter routeReply(byte[] guid, ReplyHandler replyHandler) {
-
-        // Used for testing
-        repOk();
-
-        // Discard the old records from this RouteTable
-        purge();
+    public ResultCounter routeReply(byte[] guid, ReplyHandler replyHandler) {
 
         // Make sure the caller gave us a ReplyHandler object that will be able to send a reply packet to the remote computer it represents
 		if (replyHandler == null) throw new NullPointerException("null reply handler");
         if (!replyHandler.isOpen()) return null; // Make sure it can still send a packet to the computer it represents
 
-        /*
-         * First clear out any old entries for the guid, memorizing the volume
-         * routed if found.  Note that if the guid is found in _newMap, we don't
-         * need to look in _oldMap.
-         */
-
         // Look up or add and look up the given ReplyHandler, getting or assigning and getting our ID for it
-        int id = handler2id(replyHandler).intValue();
-
-        // Remove the given GUID from this RouteTable
-        RouteTableEntry entry = (RouteTableEntry)_newMap.remove(guid);
-        if (entry == null) entry = (RouteTableEntry)_oldMap.remove(guid); // We only need to remove it from _oldMap if it's not in _newMap
-
-        /*
-         * Now map the guid to the new reply handler, using the volume routed if
-         * found, or zero otherwise.
-         */
-
-        // This RouteTable doesn't have an entry for the given GUID
-        if (entry == null) {
-
-            // Make a new RouteTableEntry for the given ReplyHandler, we'll store it under the given GUID
-            entry = new RouteTableEntry(id); // The RouteTableEntry object will hold the ID that leads to the ReplyHandler, not the ReplyHandler itself
-
-        // We found the GUID in this RouteTable
-        } else {
-
-            // Point the existing RouteTableEntry at the given ReplyHandler
-            entry.handlerID = id; // This saved us from having to make a new RouteTableEntry object
+        int id = handler2id(replyHandler);
+
+        // Find the Segment for the GUID, and add or renew it there
+        int hash = hash(guid);
+        Segment segment = segmentFor(hash);
+        int serial;
+        synchronized (segment) {
+            purge(segment);
+            serial = segment.put(guid, hash, id, true);
         }
 
-        // Add the given ReplyHandler under the given GUID in the new map, and return the RouteTableEntry that contains it
-        _newMap.put(guid, entry);
-		return entry;
+        // Return an object that can read the entry's count of replies
+        return new RouteTableEntry(segment, guid, serial);
     }
 
     /**
@@ -402,69 +257,71 @@ public final class RouteTable {
      * Calls replyHandler.isOpen() to make sure the ManagedConnection can still send a packet to the remote computer it represents.
      * Returns null if it's closed, so it can't.
      * 
-     * If the GUID already has an entry in the old or new lists, doesn't renew it, just returns null.
+     * If the GUID already has a live entry, doesn't renew it, just returns null.
      * 
      * @return guid         The message GUID of a request packet we received and are going to broadcast forward.
      * @return replyHandler The ManagedConnection, UDPReplyHandler, or ForMeReplyHandler that sent it to us.
-     * @return              A RouteTableEntry object that contains the given ReplyHandler, and is now listed in this RouteTable under the given GUID.
+     * @return              A RouteTableEntry object that reads the GUID's new entry in this RouteTable.
      *                      RouteTableEntry implements the ResultCounter interface, letting you call getNumResults() on it.
      *                      If the given ReplyHandler is a ManagedConnection that's closed, doesn't add anything and returns null.
      *                      If the given GUID is already listed in this RouteTable, doesn't renew it and returns null.
      */
-    public synchronized ResultCounter tryToRouteReply(byte[] guid, ReplyHandler replyHandler) {
-
-        // Used for testing
-        repOk();
-
-        // Discard the old records from this RouteTable
-        purge();
+    public ResultCounter tryToRouteReply(byte[] guid, ReplyHandler replyHandler) {
 
         // Make sure the caller gave us a ReplyHandler object that will be able to send a reply packet to the remote computer it represents, and a GUID to list it under
         Assert.that(replyHandler != null);
         Assert.that(guid != null, "Null GUID in tryToRouteReply");
         if (!replyHandler.isOpen()) return null; // Return null if the given ReplyHandler is a ManagedConnection that's lost its TCP socket connection
 
-        // The GUID isn't in the new or old lists yet
-        if (!_newMap.containsKey(guid) && !_oldMap.containsKey(guid)) {
+        // Find the Segment for the GUID
+        int hash = hash(guid);
+        Segment segment = segmentFor(hash);
 
-            // Add the given ReplyHandler under the given GUID in the new map, and return the RouteTableEntry that contains it
-            int id = handler2id(replyHandler).intValue();    // Assign a new ID for the given ReplyHandler
-			RouteTableEntry entry = new RouteTableEntry(id); // Make a new RouteTableEntry that will lead to the given ReplyHandler by containing this ID
-			_newMap.put(guid, entry);                        // Add the RouteTableEntry to the new map under the GUID key
-            return entry;                                    // Return it as a ResultCounter you can call getNumResults() on
+        // We already have this GUID, return null, call routeReply() to renew an already listed GUID
+        synchronized (segment) {
+            purge(segment);
+            if (segment.find(guid, hash) != -1) return null;
+        }
 
-        // We already have this GUID
-        } else {
+        // Assign an ID for the given ReplyHandler outside the segment lock, so we never hold both locks
+        int id = handler2id(replyHandler);
 
-            // Return null, call routeReply() to renew an already listed GUID
-            return null;
+        // Add the GUID, unless another thread beat us to it while we weren't holding the lock
+        int serial;
+        synchronized (segment) {
+            serial = segment.put(guid, hash, id, false);
         }
+        if (serial == 0) return null;
+        return new RouteTableEntry(segment, guid, serial); // Return it as a ResultCounter you can call getNumResults() on
     }
 
     /**
      * Set the TTL that an entry in a RouteTable for a GUID keeps.
      * 
-     * A RouteTableEntry, which is a ResultCounter, contains a ReplyHandler and a TTL.
      * Code in this class doesn't change or read the TTL, it just keeps it here.
      * 
      * Optional operation - if you want to remember the TTL associated with a
      * counter, in order to allow for extendable execution, you can set the TTL
      * a message (guid).
      * 
-     * @param entry A RouteTableEntry stored under a GUID in this RouteTable.
+     * @param entry A RouteTableEntry that routeReply() or tryToRouteReply() returned.
      *              RouteTableEntry implements ResultCounter, so you may have a reference of that type.
      * @param ttl   The TTL to store in a GUID's entry.
      *              This should be greater than 0.
      */
-    public synchronized void setTTL(ResultCounter entry, byte ttl) {
+    public void setTTL(ResultCounter entry, byte ttl) {
 
         // Make sure the caller gave us a RouteTableEntry object, and the TTL isn't 0
         if (entry == null)                       throw new IllegalArgumentException("Null entry!!");
         if (!(entry instanceof RouteTableEntry)) throw new IllegalArgumentException("entry is not recognized.");
         if (!(ttl > 0))                          throw new IllegalArgumentException("Input TTL too small: " + ttl);
 
-        // Have the RouteTableEntry object remember the given TTL
-        ((RouteTableEntry)entry).setTTL(ttl);
+        // Find the slot the RouteTableEntry was made for, and have it remember the given TTL
+        RouteTableEntry counter = (RouteTableEntry)entry;
+        synchronized (counter.segment) {
+            int slot = counter.slot();
+            if (slot != -1) counter.segment.ttls[slot] = ttl;
+        }
     }
 
     /**
@@ -479,21 +336,24 @@ public final class RouteTable {
      * @return       True if the GUID was listed here with getTTL, and we changed it to setTTL.
      *               False if the GUID isn't here, or doesn't have getTTL.
      */
-    public synchronized boolean getAndSetTTL(byte[] guid, byte getTTL, byte setTTL) {
+    public boolean getAndSetTTL(byte[] guid, byte getTTL, byte setTTL) {
 
         // Make sure both TTLs are 1 or more, and getTTL is the same or bigger than setTTL
         if ((getTTL < 1) || (setTTL <= getTTL)) throw new IllegalArgumentException("Bad ttl input (get/set): " + getTTL + "/" + setTTL);
 
         // Look up the given GUID in this RouteTable
-        RouteTableEntry entry = (RouteTableEntry)_newMap.get(guid);
-        if (entry == null) entry = (RouteTableEntry)_oldMap.get(guid);
-
-        // If we have the GUID listed and the TTL it's remembering is the same as getTTL
-        if ((entry != null) && (entry.getTTL() == getTTL)) {
-
-            // Have it remember the new TTL instead, and return true
-            entry.setTTL(setTTL);
-            return true;
+        int hash = hash(guid);
+        Segment segment = segmentFor(hash);
+        synchronized (segment) {
+            int slot = segment.find(guid, hash);
+
+            // If we have the GUID listed and the TTL it's remembering is the same as getTTL
+            if (slot != -1 && segment.ttls[slot] == getTTL) {
+
+                // Have it remember the new TTL instead, and return true
+                segment.ttls[slot] = setTTL;
+                return true;
+            }
         }
 
         // The GUID isn't listed, or doesn't have getTTL
@@ -510,21 +370,24 @@ public final class RouteTable {
      * @return     The ReplyHandler object that represents our connection to the remote computer that sent us a request packet with that message GUID.
      *             null if not found.
      */
-    public synchronized ReplyHandler getReplyHandler(byte[] guid) {
+    public ReplyHandler getReplyHandler(byte[] guid) {
 
         /*
          * no purge
          */
 
-        // Used for testing
-        repOk();
-
         // Look up the given message GUID to find the ID we assigned the desired ReplyHandler
-        RouteTableEntry entry = (RouteTableEntry)_newMap.get(guid);    // Look for it in _newMap
-        if (entry == null) entry = (RouteTableEntry)_oldMap.get(guid); // If not there, look for it in _oldMap
+        int hash = hash(guid);
+        Segment segment = segmentFor(hash);
+        int id;
+        synchronized (segment) {
+            int slot = segment.find(guid, hash);
+            if (slot == -1) return null; // Not found
+            id = segment.handlerIDs[slot];
+        }
 
         // Look up the ID to get the ReplyHandler, and return it
-        return (entry == null) ? null : id2handler(new Integer(entry.handlerID)); // Returns null if not found
+        return id2handler(id); // Returns null if the handler has been removed
     }
 
     /**
@@ -546,40 +409,45 @@ public final class RouteTable {
      * @return           A ReplyRoutePair object that contains the ReplyHandler that represents our connection to that computer, and packet statistics.
      *                   null if not found.
      */
-    public synchronized ReplyRoutePair getReplyHandler(byte[] guid, int replyBytes, short numReplies) {
+    public ReplyRoutePair getReplyHandler(byte[] guid, int replyBytes, short numReplies) {
 
         /*
          * no purge
          */
 
-        // Used for testing
-        repOk();
-
-        // Look up the given message GUID to find the RouteTableEntry that contains the ReplyHandler that represents the remote computer that sent us a request packet with that message GUID
-        RouteTableEntry entry = (RouteTableEntry)_newMap.get(guid);    // Look for it in _newMap
-        if (entry == null) entry = (RouteTableEntry)_oldMap.get(guid); // If not there, look for it in _oldMap
-        if (entry == null) return null; // Not found
+        // Look up the given message GUID to find the ID we assigned the desired ReplyHandler
+        int hash = hash(guid);
+        Segment segment = segmentFor(hash);
+        int id;
+        synchronized (segment) {
+            int slot = segment.find(guid, hash);
+            if (slot == -1) return null; // Not found
+            id = segment.handlerIDs[slot];
+        }
 
-        // Look up the ID to get the ReplyHandler
-        ReplyHandler handler = id2handler(new Integer(entry.handlerID));
+        // Look up the ID to get the ReplyHandler, we don't hold the segment lock while we take _handlerLock
+        ReplyHandler handler = id2handler(id);
         if (handler == null) return null; // Not found
 
         /*
          * Increment count, returning old count in tuple.
          */
 
-        // Make a new ReplyRoutePair object to match the RouteTableEntry object for the given GUID
-        ReplyRoutePair ret = new ReplyRoutePair(
-            handler,              // From the GUID, we found the ID and then the ReplyHandler
-            entry.bytesRouted,    // Save the RouteTableEntry's bytesRouted field in ReplyRoutePair.volume
-            entry.repliesRouted); // Save the RouteTableEntry's repliesRouted field in ReplyRoutePair.REPLIES_ROUTED
-
-        // Add the new bytes and file hit blocks we sent to the RouteTableEntry in the new or old map, leaving the ReplyRoutePair we just made unchanged
-        entry.bytesRouted   += replyBytes;
-        entry.repliesRouted += numReplies;
+        // Find the slot again, it may have moved if the Segment rebuilt its arrays
+        int bytesRouted, repliesRouted;
+        synchronized (segment) {
+            int slot = segment.find(guid, hash);
+            if (slot == -1) return null; // It expired while we weren't holding the lock
+            bytesRouted   = segment.bytesRouted[slot];
+            repliesRouted = segment.repliesRouted[slot];
+
+            // Add the new bytes and file hit blocks we sent to the slot, the ReplyRoutePair we make will have the counts from before
+            segment.bytesRouted[slot]   += replyBytes;
+            segment.repliesRouted[slot] += numReplies;
+        }
 
-        // Return the ReplyRoutePair with the found ReplyHandler and the packet statistics before the current updates
-        return ret;
+        // Return a ReplyRoutePair with the found ReplyHandler and the packet statistics before the current updates
+        return new ReplyRoutePair(handler, bytesRouted, repliesRouted);
     }
 
     /**
@@ -660,217 +528,437 @@ public final class RouteTable {
      * 
      * @param replyHandler A ReplyHandler object to remove from the _idMap and _handlerMap lists
      */
-    public synchronized void removeReplyHandler(ReplyHandler replyHandler) {
+    public void removeReplyHandler(ReplyHandler replyHandler) {
 
         /*
          * no purge
          */
 
-        // Used for testing
-        repOk();
-
-        /*
-         * The aggressive asserts below are to make sure bug X75 has been fixed.
-         */
-
         // Make sure the caller actually gave us a ReplyHandler to remove
         Assert.that(replyHandler != null, "Null replyHandler in removeReplyHandler");
 
         /*
-         * Note that _map is not modified.  See overview of class for rationale.
-         * Also, handler2id may actually allocate a new ID for replyHandler, when
-         * killing a connection for which we've routed no replies.  That's ok;
-         * we'll just clean up the new ID immediately.
+         * Note that the segments are not modified.  See overview of class for rationale.
          */
 
-        // Get the ReplyHandler's ID
-        Integer id = handler2id(replyHandler); // If not found, this will add it and assign it an ID
-
         // Remove the ReplyHandler and its ID from the _idMap and _handlerMap
-        _idMap.remove(id);
-        _handlerMap.remove(replyHandler);
+        synchronized (_handlerLock) {
+            Integer id = (Integer)_handlerMap.remove(replyHandler);
+            if (id != null) _idMap.remove(id);
+        }
     }
 
     /** 
      * Look up a ReplyHandler in the _handlerMap and _idMap, and get its ID.
      * If not found, adds the ReplyHandler to the lists, and returns the new ID we assigned it.
-     * 
-     * If the handler is already in _handlerMap and _idMap, returns its ID.
-     * If it's not found, adds it.
      * Chooses a new ID that isn't being used.
-     * Adds the handler and ID to _handlerMap and _idMap.
-     * Returns the new ID.
      * 
-     * @param handler A ReplyHandler to find or add in the lists.
-     * @return        An Integer object, the associated ID we found or assigned.
+     * @param handler A ReplyHandler object
+     * @return        The ID we've assigned it
      */
-    private Integer handler2id(ReplyHandler handler) {
+    private int handler2id(ReplyHandler handler) {
 
-        /*
-         * Have we encountered this handler recently?  If so, return the id.
-         */
-
-        // Look up the given handler in _handlerMap, and if found, return its ID value
-        Integer id = (Integer)_handlerMap.get(handler);
-        if (id != null) return id;
-
-        /*
-         * Otherwise return the next free id, searching in extremely rare cases
-         * if needed.  Note that his enters an infinite loop if all 2^32 IDs are
-         * taken up.  BFD.
-         */
+        synchronized (_handlerLock) {
 
-        // Loop to search for an ID that's not being used
-        while (true) {
+            // Look up the ReplyHandler, and return its ID if we found it
+            Integer id = (Integer)_handlerMap.get(handler);
+            if (id != null) return id.intValue();
 
             /*
-             * don't worry about overflow; Java wraps around TODO1?
+             * Find an unused ID.  Note that this may loop forever if there are
+             * more than 2^32 handlers, but that's not a problem.
              */
 
-            // Loop until we find an ID number that isn't being used as a key in the _idMap list
-            id = new Integer(_nextID++);       // Get the current value of _nextID, wrap it into an Integer object, and then move _nextID to the next higher value for next time
-            if (_idMap.get(id) == null) break; // If looking up that ID finds nothing, leave the loop to use it as the new key
-        }
+            // Loop until we find an ID that isn't being used
+            while (true) {
+                id = new Integer(_nextID++);       // Get the current value of _nextID, wrap it into an Integer object, and then move _nextID to the next higher value for next time
+                if (_idMap.get(id) == null) break; // If looking up that ID finds nothing, leave the loop to use it as the new key
+            }
 
-        // Load the given ReplyHandler and newly chosen ID into the _handlerMap and _idMap lists, and return the ID
-        _handlerMap.put(handler, id); // Use _handlerMap if you know the handler, and want the ID
-        _idMap.put(id, handler);      // Use _idMap if you know the ID, and want the handler
-        return id;                    // Return the ID we chose for the given hander
+            // Add the ReplyHandler and its new ID to both maps
+            _handlerMap.put(handler, id); // Use _handlerMap if you know the handler, and want the ID
+            _idMap.put(id, handler);      // Use _idMap if you know the ID, and want the handler
+            return id.intValue();         // Return the ID we chose for the given hander
+        }
     }
 
     /**
-     * Look up the ReplyHandler stored under the given ID key in _idMap.
+     * Look up an ID in _idMap to get the ReplyHandler we assigned it.
      * 
-     * @param id An ID number.
-     * @return   The ReplyHandler stored under that key in _idMap.
-     *           null if not found.
+     * @param id The ID we assigned a ReplyHandler
+     * @return   The ReplyHandler, or null if it's been removed
      */
-    private ReplyHandler id2handler(Integer id) {
+    private ReplyHandler id2handler(int id) {
 
-        // Look up the ID in _idMap, cast the value back to a ReplyHandler, and return it
-        return (ReplyHandler)_idMap.get(id);
+        synchronized (_handlerLock) {
+            return (ReplyHandler)_idMap.get(new Integer(id));
+        }
     }
 
     /**
-     * Shifts the contents of _newMap into _oldMap, and throws the old contents away.
-     * Only does this if it's been _mseconds since the last switch, or _newMap has grown too large.
+     * Move a Segment to its next generation if it's time, or if its current generation has gotten too big.
+     * After this, entries stamped two generations ago are expired.
+     * Only call this while holding the Segment's lock.
      * 
-     * @return True if the time expired or the new map grew too large, and we shifted the list contents.
-     *         False if we still need to wait some more.
+     * @param segment A Segment
      */
-    private final boolean purge() {
+    private void purge(Segment segment) {
 
-        // Only do something if we've waited long enough or the new map has grown too large
-        long now = System.currentTimeMillis(); // Get the time right now
-        if (now < _nextSwitchTime &&   // We haven't waited long enough yet, and
-            _newMap.size() < _maxSize) // The new map hasn't overgrown yet
-            return false;              // Come back later
+        // Only move forward if we've waited long enough, or the current generation has overgrown
+        long now = System.currentTimeMillis();
+        if (now < segment.nextSwitchTime && segment.newCount < _maxSegmentSize) return;
 
-        /*
-         * System.out.println(now + " " + this.hashCode() + " purging " + _oldMap.size() + " old, " + _newMap.size() + " new");
-         */
+        // Start the next generation, the one before the current one has now expired
+        segment.generation++;
+        segment.newCount       = 0;
+        segment.nextSwitchTime = now + _mseconds;
+    }
 
-        // Clear the old map, and then move everything from the new map into it
-        _oldMap.clear();   // Delete the contents of the old map
-        Map tmp = _oldMap; // Point tmp at the old map, which is empty
-        _oldMap = _newMap; // Point _oldMap at the new map, which still has contents
-        _newMap = tmp;     // Point _newMap at tmp, our reference to the empty old map
+    /**
+     * Compute a hash code from the bytes of a GUID.
+     * 
+     * @param guid A GUID in a 16 byte array
+     * @return     A hash code for it
+     */
+    private static int hash(byte[] guid) {
 
-        // Set the next time we'll do this
-        _nextSwitchTime = now + _mseconds;
+        // Mix all 16 bytes together, some of them are the same in every LimeWire GUID
+        int h = 0;
+        for (int i = 0; i < guid.length; i++) h = 31 * h + guid[i];
+        return h ^ (h >>> 16);
+    }
 
-        // Report that we purged the lists
-        return true;
+    /**
+     * Pick the Segment a GUID goes in.
+     * 
+     * @param hash The GUID's hash code from hash()
+     * @return     The Segment for it
+     */
+    private Segment segmentFor(int hash) {
+
+        // Use high bits for the segment, Segment uses low bits for the slot
+        return _segments[(hash >>> 24) & (SEGMENTS - 1)];
     }
 
     /**
-     * Express this RouteTable object as a string.
-     * Composes text like: "{GGGGUUUUIIIIDDDD->CONNECTION: host=1.2.3.4 port=6346, GGGGUUUUIIIIDDDD->... }".
-     * Calls ManagedConnection.toString(), UDPReplyHandler.toString(), and ForMeReplyHandler.toString() to have each ReplyHandler describe itself.
+     * Express this RouteTable as text.
+     * Lists the live entries in GUID order, like "{GUID->ReplyHandler, GUID->ReplyHandler}".
      * 
      * @return A String
      */
-    public synchronized String toString() {
-
-        /*
-         * Inefficient, but this is only for debugging anyway.
-         */
+    public String toString() {
+
+        // Gather the live entries from all the segments into a TreeMap that keeps them sorted by GUID
+        Map bothMaps = new TreeMap(new GUID.GUIDByteComparator());
+        for (int i = 0; i < SEGMENTS; i++) {
+            Segment segment = _segments[i];
+            synchronized (segment) {
+                for (int slot = 0; slot < segment.handlerIDs.length; slot++) {
+                    if (segment.isLive(slot)) bothMaps.put(segment.key(slot), new Integer(segment.handlerIDs[slot]));
+                }
+            }
+        }
 
-        // Make a StringBuffer that can grow to hold text, and start with a "{"
+        // Write each one like "GUID->ReplyHandler"
         StringBuffer buf = new StringBuffer("{");
-
-        // Combine the _oldMap and _newMap lists into a single big one
-        Map bothMaps = new TreeMap(new GUID.GUIDByteComparator()); // Have it use our GUID.GUIDByteComparator.compare(Object a, Object b) to keep the contents sorted
-        bothMaps.putAll(_oldMap); // Add everything in both the old and new maps to it
-        bothMaps.putAll(_newMap);
-
-        // Loop through the combined list we just made
         Iterator iter = bothMaps.keySet().iterator();
         while (iter.hasNext()) {
-
             byte[] key = (byte[])iter.next(); // Get the key the iterator is on, the key is a byte array of 16 bytes holding a GUID value
             buf.append(new GUID(key));        // Make the 16 bytes into a GUID object, convert that into base 16 text, and add it to the text we're composing
             buf.append("->");                 // After the GUID, write an arrow
-
-            int id = ((RouteTableEntry)bothMaps.get(key)).handlerID;   // Look up the byte array key in the combined map we made, get its RouteTableEntry value, and read its handler ID
-            ReplyHandler handler = id2handler(new Integer(id));        // Look up that ID in the _idMap to get the ReplyHandler it's for
-            buf.append(handler == null ? "null" : handler.toString()); // Have the ReplyHandler express itself in text, calls ManagedConnection.toString(), UDPReplyHandler.toString(), or ForMeReplyHandler.toString()
+            ReplyHandler handler = id2handler(((Integer)bothMaps.get(key)).intValue()); // Look up the ID in the _idMap to get the ReplyHandler it's for
+            buf.append(handler == null ? "null" : handler.toString()); // Have the ReplyHandler express itself in text
             if (iter.hasNext()) buf.append(", ");
         }
-
-        // End the text with the closing "}", and return it
         buf.append("}");
         return buf.toString();
     }
 
     /**
-     * Not used.
+     * A RouteTableEntry is what routeReply() and tryToRouteReply() return.
+     * You can call getNumResults() on it to find out how many replies we've routed back for the GUID.
+     * 
+     * It doesn't hold the entry's data, that's in a slot in a Segment.
+     * It remembers the GUID and the serial number the slot got when the GUID was added.
+     * If the slot has expired and been reused, the serial numbers won't match, and it returns the last count it saw.
      * 
-     * Used in the commented code in repOk().
+     * RouteTableEntry implements the ResultCounter interface, requiring it to have a getNumResults() method.
      */
-    private static boolean warned = false;
+    private static final class RouteTableEntry implements ResultCounter {
+
+        /** The Segment the GUID is in. */
+        private final Segment segment;
+
+        /** The GUID. */
+        private final byte[] guid;
+
+        /** The serial number the GUID's slot got when it was added. */
+        private final int serial;
+
+        /** The last count we read, we'll return this after the entry expires. */
+        private int results;
+
+        /**
+         * Make a new RouteTableEntry that reads a slot in a Segment.
+         * 
+         * @param segment The Segment the GUID is in
+         * @param guid    The GUID
+         * @param serial  The serial number of the GUID's slot
+         */
+        RouteTableEntry(Segment segment, byte[] guid, int serial) {
+
+            // Save the given values
+            this.segment = segment;
+            this.guid    = guid;
+            this.serial  = serial;
+        }
+
+        /**
+         * Find the slot this RouteTableEntry was made for.
+         * Only call this while holding the Segment's lock.
+         * 
+         * @return The slot index, or -1 if the entry has expired
+         */
+        int slot() {
+
+            // Look up the GUID, and make sure it's still the same entry
+            int slot = segment.find(guid, hash(guid));
+            if (slot != -1 && segment.serials[slot] != serial) return -1;
+            return slot;
+        }
+
+        /**
+         * The number of reply packets we've routed back for the GUID.
+         * The ResultCounter interface requires this method.
+         * 
+         * @return The number of reply packets we've routed to this remote computer for the request packet with this GUID
+         */
+		public int getNumResults() {
+
+            // Read the count from the slot if it's still there, otherwise return the last one we read
+            synchronized (segment) {
+                int slot = slot();
+                if (slot != -1) results = segment.repliesRouted[slot];
+                return results;
+            }
+        }
+    }
 
     /**
-     * Does nothing.
+     * A Segment is an open addressing hash table of GUIDs that one lock protects.
+     * 
+     * Slot i has the 16 GUID bytes at keys[16 * i], and its other data in handlerIDs[i], ttls[i], and so on.
+     * generations[i] is the generation the slot was stamped with, 0 means the slot has never been used.
+     * A slot is live if it was stamped with the current or the previous generation.
+     * 
+     * A GUID goes in the slot its hash code points to, or the next one after it that's free.
+     * When looking a GUID up, we keep going until we find it, or a slot that's never been used.
+     * Expired slots don't stop the search, because a live entry may have been put after them.
+     * When more than 3/4 of the slots have been used, rebuild() copies the live entries into new arrays.
      * 
-     * Would look at the lists this RouteTable keeps to check that everything looks correct.
-     * Very slow.
+     * All the methods here must be called while holding the Segment's lock.
      */
-    private final void repOk() {
+    private static final class Segment {
 
-        /*
-        if (!warned) {
-            System.err.println(
-                "WARNING: RouteTable.repOk enabled.  Expect performance problems!");
-            warned=true;
+        /** The 16 GUID bytes of each slot, all in one array. */
+        byte[] keys;
+
+        /** The handler ID of each slot. */
+        int[] handlerIDs;
+
+        /** The number of bytes of reply packets we've routed back for each slot. */
+        int[] bytesRouted;
+
+        /** The number of replies we've routed back for each slot. */
+        int[] repliesRouted;
+
+        /** The TTL MessageRouter saved for each slot. */
+        byte[] ttls;
+
+        /** The generation each slot was last stamped with, 0 for never used. */
+        int[] generations;
+
+        /** The serial number each slot got when its GUID was added. */
+        int[] serials;
+
+        /** The current generation, starts at 2 so a slot that's never been used is never live. */
+        int generation = 2;
+
+        /** The number of entries added in the current generation. */
+        int newCount;
+
+        /** The number of slots that have been used, live or expired. */
+        int used;
+
+        /** The next serial number to give a slot, 0 is never used. */
+        int nextSerial = 1;
+
+        /** The time when purge() should start the next generation. */
+        long nextSwitchTime;
+
+        /**
+         * Make a new Segment.
+         * 
+         * @param nextSwitchTime The time when purge() should start the next generation
+         */
+        Segment(long nextSwitchTime) {
+
+            // Make the arrays with the starting number of slots
+            this.nextSwitchTime = nextSwitchTime;
+            allocate(INITIAL_SLOTS);
         }
 
-        //Check that _idMap is inverse of _handlerMap...
-        for (Iterator iter=_idMap.keySet().iterator(); iter.hasNext(); ) {
-            Integer key=(Integer)iter.next();
-            ReplyHandler value=(ReplyHandler)_idMap.get(key);
-            Assert.that(_handlerMap.get(value)==key);
+        /**
+         * Make new, empty arrays.
+         * 
+         * @param slots The number of slots, a power of 2
+         */
+        private void allocate(int slots) {
+            keys          = new byte[slots * 16];
+            handlerIDs    = new int[slots];
+            bytesRouted   = new int[slots];
+            repliesRouted = new int[slots];
+            ttls          = new byte[slots];
+            generations   = new int[slots];
+            serials       = new int[slots];
+            used          = 0;
         }
-        //..and vice versa
-        for (Iterator iter=_handlerMap.keySet().iterator(); iter.hasNext(); ) {
-            ReplyHandler key=(ReplyHandler)iter.next();
-            Integer value=(Integer)_handlerMap.get(key);
-            Assert.that(_idMap.get(value)==key);
+
+        /**
+         * Determine if a slot holds a live entry.
+         * 
+         * @param slot A slot index
+         * @return     True if it was stamped with the current or previous generation
+         */
+        boolean isLive(int slot) {
+            return generations[slot] >= generation - 1;
+        }
+
+        /**
+         * Copy the GUID out of a slot.
+         * 
+         * @param slot A slot index
+         * @return     A new 16 byte array with the GUID
+         */
+        byte[] key(int slot) {
+            byte[] guid = new byte[16];
+            System.arraycopy(keys, slot * 16, guid, 0, 16);
+            return guid;
+        }
+
+        /**
+         * Determine if a slot has a given GUID.
+         * 
+         * @param slot A slot index
+         * @param guid A GUID
+         * @return     True if the slot's 16 bytes are the same
+         */
+        private boolean keyEquals(int slot, byte[] guid) {
+            int offset = slot * 16;
+            for (int i = 0; i < 16; i++) {
+                if (keys[offset + i] != guid[i]) return false;
+            }
+            return true;
+        }
+
+        /**
+         * Find the slot with a live entry for a GUID.
+         * 
+         * @param guid A GUID
+         * @param hash Its hash code
+         * @return     The slot index, or -1 if not found
+         */
+        int find(byte[] guid, int hash) {
+            int mask = handlerIDs.length - 1;
+            for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+                int g = generations[slot];
+                if (g == 0) return -1; // A slot that's never been used ends the search
+                if (g >= generation - 1 && keyEquals(slot, guid)) return slot;
+            }
         }
 
-        //Check that keys of _newMap aren't in _oldMap, values are RouteTableEntry
-        for (Iterator iter=_newMap.keySet().iterator(); iter.hasNext(); ) {
-            byte[] guid=(byte[])iter.next();
-            Assert.that(! _oldMap.containsKey(guid));
-            Assert.that(_newMap.get(guid) instanceof RouteTableEntry);
+        /**
+         * Add a GUID or renew it.
+         * 
+         * @param guid    A GUID
+         * @param hash    Its hash code
+         * @param id      The handler ID to route replies to
+         * @param replace True to renew the GUID and point it at id if it's already here, false to leave it alone
+         * @return        The serial number of the GUID's slot, or 0 if it was already here and replace is false
+         */
+        int put(byte[] guid, int hash, int id, boolean replace) {
+
+            // If the GUID is already here, renew it, keeping its statistics like the old code did
+            int slot = find(guid, hash);
+            if (slot != -1) {
+                if (!replace) return 0;
+                if (generations[slot] != generation) newCount++;
+                handlerIDs[slot]  = id;
+                generations[slot] = generation;
+                return serials[slot];
+            }
+
+            // Make sure there will still be a never used slot to end searches
+            if ((used + 1) * 4 > handlerIDs.length * 3) rebuild();
+
+            // Find the first slot that's expired or never been used
+            int mask = handlerIDs.length - 1;
+            slot = hash & mask;
+            while (isLive(slot)) slot = (slot + 1) & mask;
+            if (generations[slot] == 0) used++;
+
+            // Fill it in
+            System.arraycopy(guid, 0, keys, slot * 16, 16);
+            handlerIDs[slot]    = id;
+            bytesRouted[slot]   = 0;
+            repliesRouted[slot] = 0;
+            ttls[slot]          = 0;
+            generations[slot]   = generation;
+            serials[slot]       = nextSerial++;
+            if (nextSerial == 0) nextSerial = 1; // Skip 0 when the count wraps around
+            newCount++;
+            return serials[slot];
         }
 
-        //Check that keys of _oldMap aren't in _newMap
-        for (Iterator iter=_oldMap.keySet().iterator(); iter.hasNext(); ) {
-            byte[] guid=(byte[])iter.next();
-            Assert.that(! _newMap.containsKey(guid));
-            Assert.that(_oldMap.get(guid) instanceof RouteTableEntry);
+        /**
+         * Copy the live entries into new arrays, dropping the expired ones.
+         * Makes the arrays big enough that the live entries fill at most half of them.
+         */
+        private void rebuild() {
+
+            // Keep references to the old arrays
+            byte[] oldKeys          = keys;
+            int[]  oldHandlerIDs    = handlerIDs;
+            int[]  oldBytesRouted   = bytesRouted;
+            int[]  oldRepliesRouted = repliesRouted;
+            byte[] oldTTLs          = ttls;
+            int[]  oldGenerations   = generations;
+            int[]  oldSerials       = serials;
+
+            // Count the live entries, and pick a size
+            int live = 0;
+            for (int i = 0; i < oldHandlerIDs.length; i++) if (isLive(i)) live++;
+            int slots = INITIAL_SLOTS;
+            while (slots < (live + 1) * 2) slots <<= 1;
+            allocate(slots);
+
+            // Copy each live entry into the slot its hash code picks in the new arrays
+            int mask = slots - 1;
+            byte[] guid = new byte[16];
+            for (int i = 0; i < oldHandlerIDs.length; i++) {
+                if (oldGenerations[i] < generation - 1) continue; // Expired or never used
+                System.arraycopy(oldKeys, i * 16, guid, 0, 16);
+                int slot = hash(guid) & mask;
+                while (generations[slot] != 0) slot = (slot + 1) & mask;
+                System.arraycopy(oldKeys, i * 16, keys, slot * 16, 16);
+                handlerIDs[slot]    = oldHandlerIDs[i];
+                bytesRouted[slot]   = oldBytesRouted[i];
+                repliesRouted[slot] = oldRepliesRouted[i];
+                ttls[slot]          = oldTTLs[i];
+                generations[slot]   = oldGenerations[i];
+                serials[slot]       = oldSerials[i];
+                used++;
+            }
         }
-        */
     }
 }
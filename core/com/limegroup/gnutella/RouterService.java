@@ -54,7 +54,8 @@ import com.limegroup.gnutella.uploader.NormalUploadState;
 import com.limegroup.gnutella.util.IpPortSet;
 import com.limegroup.gnutella.util.ManagedThread;
 import com.limegroup.gnutella.util.NetworkUtils;
-import com.limegroup.gnutella.util.SimpleTimer;
+import com.limegroup.gnutella.util.ProcessingQueue;
+import com.limegroup.gnutella.util.TimingWheel;
 import com.limegroup.gnutella.version.UpdateHandler;
 import com.limegroup.gnutella.xml.MetaFileManager;
 
@@ -96,16 +97,17 @@ public class RouterService {
     
     private static final Log LOG = LogFactory.getLog(RouterService.class);
 
+    /**
+     * The queue that runs every task given to schedule(..), one at a time.
+     */
+    private static final ProcessingQueue SCHEDULED =
+        new ProcessingQueue("RouterService.schedule");
+
 	/**
 	 * <tt>FileManager</tt> instance that manages access to shared files.
 	 */
     private static FileManager fileManager = new MetaFileManager();
 
-	/**
-	 * Timer similar to java.util.Timer, which was not available on 1.1.8.
-	 */
-    private static final SimpleTimer timer = new SimpleTimer(true);
-
 	/**
 	 * <tt>Acceptor</tt> instance for accepting new connections, HTTP
 	 * requests, etc.
@@ -666,19 +668,20 @@ public class RouterService {
     //do
 
     /**
-     * Schedules the given task for repeated fixed-delay execution on this's
-     * backend thread.  <b>The task must not block for too long</b>, as 
-     * a single thread is shared among all the backend.
+     * Schedules the given task for repeated fixed-delay execution.  All the
+     * tasks scheduled here run one at a time on one thread, so <b>the task
+     * must not block for too long</b>, or every other task will be late.
+     * The TimingWheel keeps how late and how long each class of task ran.
      *
      * @param task the task to run repeatedly
      * @param delay the initial delay, in milliseconds
      * @param period the delay between executions, in milliseconds
-     * @exception IllegalStateException this is cancelled
      * @exception IllegalArgumentException delay or period negative
-     * @see com.limegroup.gnutella.util.SimpleTimer#schedule(java.lang.Runnable,long,long)
+     * @see com.limegroup.gnutella.util.TimingWheel#schedule(java.lang.Runnable,long,long,java.lang.String,com.limegroup.gnutella.util.ProcessingQueue)
      */
     public static void schedule(Runnable task, long delay, long period) {
-        timer.schedule(task, delay, period);
+        TimingWheel.instance().schedule(task, delay, period,
+                                        task.getClass().getName(), SCHEDULED);
     }
 
     /**
@@ -0,0 +1,353 @@
+package com.limegroup.gnutella;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.limegroup.gnutella.settings.MessageSettings;
+
+/**
+ * The datagrams UDPService is waiting to send, in one queue per priority
+ * class, with token bucket rate limits per class and per destination.
+ * Used to implement UDPService.  Not synchronized; UDPService locks it.<p>
+ *
+ * Each class holds at most MessageSettings.UDP_SEND_QUEUE_LENGTH datagrams.
+ * A datagram added to a full class is dropped.  next(..) returns the
+ * highest priority class that may send a datagram now.  A class over its
+ * rate waits, and lower classes may go ahead of it.<p>
+ *
+ * Within a class, each destination has its own queue, and the destinations
+ * take turns.  A destination over its rate is skipped until its bucket
+ * refills, so it doesn't hold up the others, and the datagrams to one
+ * destination are always sent in the order they were added.<p>
+ *
+ * Reliable UDP datagrams have their own congestion control, so the CONTROL
+ * class has no rate limit of its own and isn't limited per destination.
+ */
+final class UDPSendQueue {
+
+    /** The number of priority classes. */
+    static final int CLASSES = 3;
+
+    /** The class of reliable UDP messages, which go first. */
+    static final int CONTROL = 0;
+
+    /** The class of out of band replies and their acknowledgements. */
+    static final int OOB = 1;
+
+    /** The class of GUESS queries, pings, pongs, and everything else. */
+    static final int PING = 2;
+
+    /** Don't clean up the per-destination buckets until there are this many. */
+    private static final int MAX_HOSTS = 1024;
+
+    /** The largest number of datagrams in each class. */
+    private final int CAPACITY;
+
+    /**
+     * QUEUES[c] is the queue of each destination with datagrams waiting in
+     * class c, by InetAddress.  A class without per-destination limits
+     * keeps all its datagrams in one queue, under the key ALL.
+     */
+    private final Map[] /* of InetAddress -> HostQueue */ QUEUES = new Map[CLASSES];
+
+    /** TURNS[c] is the queues of class c, in the order they take turns. */
+    private final List[] /* of HostQueue */ TURNS = new List[CLASSES];
+
+    /** The index in TURNS of the queue whose turn it is next. */
+    private final int[] NEXT_TURN = new int[CLASSES];
+
+    /** The queue next(..) picked in each class, until it's removed from. */
+    private final HostQueue[] PICKED = new HostQueue[CLASSES];
+
+    /** The key of the only queue of a class without per-destination limits. */
+    private static final Object ALL = new Object();
+
+    /** The number of datagrams in each class. */
+    private final int[] SIZES = new int[CLASSES];
+
+    /** The rate limit of each class. */
+    private final TokenBucket[] CLASS_RATES = new TokenBucket[CLASSES];
+
+    /** The rate limit of each destination, by InetAddress. */
+    private final Map /* InetAddress -> TokenBucket */ HOST_RATES = new HashMap();
+
+    /** The number of bytes a second each destination may be sent, or 0. */
+    private final int HOST_RATE;
+
+    /** The number of datagrams dropped because their queue was full. */
+    private long _dropped;
+
+    UDPSendQueue() {
+        CAPACITY = Math.max(1, MessageSettings.UDP_SEND_QUEUE_LENGTH.getValue());
+        for (int c = 0; c < CLASSES; c++) {
+            QUEUES[c] = new HashMap();
+            TURNS[c] = new ArrayList();
+        }
+        CLASS_RATES[CONTROL] = new TokenBucket(0);
+        CLASS_RATES[OOB] = new TokenBucket(MessageSettings.UDP_OOB_RATE.getValue());
+        CLASS_RATES[PING] = new TokenBucket(MessageSettings.UDP_PING_RATE.getValue());
+        HOST_RATE = MessageSettings.UDP_HOST_RATE.getValue();
+    }
+
+    /**
+     * Adds a datagram to the back of the queue for its class and destination.
+     *
+     * @return false if the class was full and the datagram was dropped
+     */
+    boolean add(int c, ByteBuffer buffer, InetSocketAddress addr) {
+        if (SIZES[c] == CAPACITY) {
+            _dropped++;
+            return false;
+        }
+        Object key = isLimitedPerHost(c) ? (Object)addr.getAddress() : ALL;
+        HostQueue queue = (HostQueue)QUEUES[c].get(key);
+        if (queue == null) {
+            queue = new HostQueue(key);
+            QUEUES[c].put(key, queue);
+            TURNS[c].add(queue);
+        }
+        queue.add(buffer, addr);
+        SIZES[c]++;
+        return true;
+    }
+
+    /**
+     * Returns the highest priority class that may send a datagram now, or
+     * -1 if there isn't one.  Call getBuffer(c) and getAddress(c) to get
+     * the datagram, and remove(..) once it's sent.
+     */
+    int next(long now) {
+        for (int c = 0; c < CLASSES; c++) {
+            PICKED[c] = null;
+            if (SIZES[c] == 0 || !CLASS_RATES[c].allows(now))
+                continue;
+            List turns = TURNS[c];
+            int n = turns.size();
+            for (int i = 0; i < n; i++) {
+                int turn = (NEXT_TURN[c] + i) % n;
+                HostQueue queue = (HostQueue)turns.get(turn);
+                if (queue.key == ALL || getHostRate((InetAddress)queue.key).allows(now)) {
+                    NEXT_TURN[c] = turn;
+                    PICKED[c] = queue;
+                    return c;
+                }
+            }
+        }
+        return -1;
+    }
+
+    /** Returns the datagram next(..) picked in class c. */
+    ByteBuffer getBuffer(int c) {
+        return PICKED[c].getBuffer();
+    }
+
+    /** Returns the destination of the datagram next(..) picked in class c. */
+    InetSocketAddress getAddress(int c) {
+        return PICKED[c].getAddress();
+    }
+
+    /**
+     * Removes the datagram next(..) picked in class c, charges its size to
+     * the rate limits, and gives the next destination its turn.
+     */
+    void remove(int c, long now) {
+        HostQueue queue = PICKED[c];
+        PICKED[c] = null;
+        int bytes = queue.getBuffer().limit();
+        CLASS_RATES[c].take(bytes, now);
+        if (queue.key != ALL)
+            getHostRate((InetAddress)queue.key).take(bytes, now);
+        queue.remove();
+        SIZES[c]--;
+        if (queue.isEmpty()) {
+            QUEUES[c].remove(queue.key);
+            TURNS[c].remove(NEXT_TURN[c]);
+        } else {
+            NEXT_TURN[c]++;
+        }
+        if (NEXT_TURN[c] >= TURNS[c].size())
+            NEXT_TURN[c] = 0;
+    }
+
+    /**
+     * Returns the number of milliseconds until a rate limit lets the next
+     * datagram go, or 0 if there's nothing waiting.
+     */
+    long getWaitTime(long now) {
+        long wait = 0;
+        for (int c = 0; c < CLASSES; c++) {
+            if (SIZES[c] == 0)
+                continue;
+            long w = CLASS_RATES[c].getWaitTime(now);
+            if (isLimitedPerHost(c)) {
+                // the class can go as soon as any of its destinations can
+                long host = Long.MAX_VALUE;
+                for (Iterator i = TURNS[c].iterator(); i.hasNext() && host > 0; ) {
+                    HostQueue queue = (HostQueue)i.next();
+                    host = Math.min(host, getHostRate((InetAddress)queue.key).getWaitTime(now));
+                }
+                w = Math.max(w, host);
+            }
+            w = Math.max(w, 1);
+            if (wait == 0 || w < wait)
+                wait = w;
+        }
+        return wait;
+    }
+
+    /** Returns the number of datagrams waiting in class c. */
+    int size(int c) {
+        return SIZES[c];
+    }
+
+    /** Returns the number of datagrams dropped because their queue was full. */
+    long getDropped() {
+        return _dropped;
+    }
+
+    /** Determines if class c is limited per destination. */
+    private boolean isLimitedPerHost(int c) {
+        return c != CONTROL && HOST_RATE != 0;
+    }
+
+    /**
+     * Returns the rate limit for the given destination, making it if it's
+     * new.  Forgets the destinations we haven't sent to in a while once
+     * there are too many.
+     */
+    private TokenBucket getHostRate(InetAddress host) {
+        TokenBucket bucket = (TokenBucket)HOST_RATES.get(host);
+        if (bucket == null) {
+            if (HOST_RATES.size() >= MAX_HOSTS) {
+                long now = System.currentTimeMillis();
+                for (Iterator i = HOST_RATES.values().iterator(); i.hasNext(); ) {
+                    if (((TokenBucket)i.next()).isIdle(now))
+                        i.remove();
+                }
+            }
+            bucket = new TokenBucket(HOST_RATE);
+            HOST_RATES.put(host, bucket);
+        }
+        return bucket;
+    }
+
+    /**
+     * The datagrams waiting for one destination in one class, in a ring
+     * that grows as needed.
+     */
+    private static final class HostQueue {
+        /** The InetAddress of the destination, or ALL. */
+        final Object key;
+        private ByteBuffer[] buffers = new ByteBuffer[4];
+        private InetSocketAddress[] addresses = new InetSocketAddress[4];
+        private int head;
+        private int size;
+
+        HostQueue(Object key) {
+            this.key = key;
+        }
+
+        void add(ByteBuffer buffer, InetSocketAddress addr) {
+            if (size == buffers.length) {
+                ByteBuffer[] newBuffers = new ByteBuffer[size * 2];
+                InetSocketAddress[] newAddresses = new InetSocketAddress[size * 2];
+                for (int i = 0; i < size; i++) {
+                    newBuffers[i] = buffers[(head + i) % size];
+                    newAddresses[i] = addresses[(head + i) % size];
+                }
+                buffers = newBuffers;
+                addresses = newAddresses;
+                head = 0;
+            }
+            int tail = (head + size) % buffers.length;
+            buffers[tail] = buffer;
+            addresses[tail] = addr;
+            size++;
+        }
+
+        ByteBuffer getBuffer() {
+            return buffers[head];
+        }
+
+        InetSocketAddress getAddress() {
+            return addresses[head];
+        }
+
+        void remove() {
+            buffers[head] = null;
+            addresses[head] = null;
+            head = (head + 1) % buffers.length;
+            size--;
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+    }
+
+    /**
+     * A token bucket holding up to a second's worth of bytes.  A datagram
+     * may go whenever the bucket isn't empty, and may take it below zero;
+     * the next one then waits until it refills.
+     */
+    private static final class TokenBucket {
+        /** The number of bytes a second, or 0 for no limit. */
+        private final int rate;
+        /** The number of bytes that may be sent now. */
+        private long tokens;
+        /** The time tokens was last refilled. */
+        private long last;
+
+        TokenBucket(int rate) {
+            this.rate = rate;
+            this.tokens = rate;
+        }
+
+        boolean allows(long now) {
+            if (rate == 0)
+                return true;
+            refill(now);
+            return tokens > 0;
+        }
+
+        void take(int bytes, long now) {
+            if (rate == 0)
+                return;
+            refill(now);
+            tokens -= bytes;
+        }
+
+        /** Returns the milliseconds until the bucket isn't empty. */
+        long getWaitTime(long now) {
+            if (rate == 0)
+                return 0;
+            refill(now);
+            return tokens > 0 ? 0 : (1 - tokens) * 1000 / rate + 1;
+        }
+
+        /** Returns true if the bucket is full, so nothing was sent lately. */
+        boolean isIdle(long now) {
+            refill(now);
+            return tokens >= rate;
+        }
+
+        /** Adds the tokens earned since last. */
+        private void refill(long now) {
+            if (now < last) { // the clock went back
+                last = now;
+                return;
+            }
+            long earned = (now - last) * rate / 1000;
+            if (earned > 0) {
+                tokens = Math.min(rate, tokens + earned);
+                last = now;
+            }
+        }
+    }
+}
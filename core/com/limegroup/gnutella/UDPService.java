@@ -3,9 +3,7 @@
 
 package com.limegroup.gnutella;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
@@ -16,12 +14,12 @@ import java.net.ConnectException;
 import java.net.NoRouteToHostException;
 import java.net.PortUnreachableException;
 import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
 import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
 import java.nio.ByteBuffer;
 
-import java.util.List;
-import java.util.LinkedList;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -30,11 +28,16 @@ import com.limegroup.gnutella.messages.BadPacketException;
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.PingReply;
 import com.limegroup.gnutella.messages.PingRequest;
+import com.limegroup.gnutella.messages.QueryReply;
+import com.limegroup.gnutella.messages.vendor.LimeACKVendorMessage;
 import com.limegroup.gnutella.messages.vendor.ReplyNumberVendorMessage;
 import com.limegroup.gnutella.settings.ConnectionSettings;
+import com.limegroup.gnutella.statistics.UDPReceiveStat;
+import com.limegroup.gnutella.udpconnect.UDPConnectionMessage;
 import com.limegroup.gnutella.util.IpPort;
 import com.limegroup.gnutella.util.NetworkUtils;
 import com.limegroup.gnutella.util.BufferByteArrayOutputStream;
+import com.limegroup.gnutella.util.ManagedThread;
 import com.limegroup.gnutella.io.ReadWriteObserver;
 import com.limegroup.gnutella.io.NIODispatcher;
 
@@ -53,6 +56,12 @@ import com.limegroup.gnutella.io.NIODispatcher;
  * Extends and Implements
  * ReadObserver:  NIO can tell this object to read now, handleRead().
  * WriteObserver: NIO can tell this object to get data and write now, handleWrite().
+ * 
+ * If ConnectionSettings.UDP_RECEIVE_THREADS is more than 0, the channel is
+ * only registered with NIODispatcher for writing.  That many UDPReceiver
+ * threads each register it with a selector of their own, and receive and
+ * decode datagrams in parallel, so a flood of UDP traffic doesn't hold up
+ * the NIODispatcher thread.
  */
 public class UDPService implements ReadWriteObserver {
 
@@ -69,9 +78,26 @@ public class UDPService implements ReadWriteObserver {
 	private DatagramChannel _channel;
 	
 	/**
-	 * The list of messages to be sent, as SendBundles.
+	 * The datagrams waiting to be sent, by priority class.
+	 * LOCKING: obtain SEND_QUEUE
+	 */
+	private final UDPSendQueue SEND_QUEUE;
+
+	/**
+	 * The priority classes of outgoing messages, for getSendQueueDepth(int).
+	 * Reliable UDP messages go first, then out of band replies, then GUESS
+	 * queries, pings and everything else.
 	 */
-	private final List OUTGOING_MSGS;
+	public static final int CONTROL_PRIORITY = UDPSendQueue.CONTROL;
+	public static final int OOB_PRIORITY = UDPSendQueue.OOB;
+	public static final int PING_PRIORITY = UDPSendQueue.PING;
+
+	/**
+	 * True if a timer task will turn write interest back on once the rate
+	 * limits let the next datagram go.
+	 * LOCKING: obtain SEND_QUEUE
+	 */
+	private boolean _wakeupScheduled;
 	
 	/**
 	 * The buffer that's re-used for reading incoming messages.
@@ -93,9 +119,10 @@ public class UDPService implements ReadWriteObserver {
      */
     private volatile boolean _acceptedUnsolicitedIncoming = false;
     
-    /** The last time the _acceptedUnsolicitedIncoming was set.
+    /** The last time the _acceptedUnsolicitedIncoming was set.  Volatile
+     *  because the UDPReceiver threads set it.
      */
-    private long _lastUnsolicitedIncomingTime = 0;
+    private volatile long _lastUnsolicitedIncomingTime = 0;
 
     /**
      * The last time we received any udp packet
@@ -141,6 +168,20 @@ public class UDPService implements ReadWriteObserver {
      */
     private boolean _started = false;
 
+    /**
+     * The number of UDPReceiver threads, or 0 if NIODispatcher calls
+     * handleRead(), or -1 if we haven't started yet.  Read from
+     * ConnectionSettings.UDP_RECEIVE_THREADS the first time we start.
+     * LOCKING: this
+     */
+    private int _receiveThreads = -1;
+
+    /**
+     * The time a UDPReceiver waits in select() before checking if the
+     * channel it's reading was closed.
+     */
+    private static final long RECEIVE_TIMEOUT = 1000;
+
 
     /**
      * The time between UDP pings.  Used by the PeriodicPinger.  This is
@@ -164,7 +205,7 @@ public class UDPService implements ReadWriteObserver {
 	 * Constructs a new <tt>UDPAcceptor</tt>.
 	 */
 	protected UDPService() {	   
-	    OUTGOING_MSGS = new LinkedList();
+	    SEND_QUEUE = new UDPSendQueue();
 	    byte[] backing = new byte[BUFFER_SIZE];
 	    BUFFER = ByteBuffer.wrap(backing);
         scheduleServices();
@@ -197,13 +238,29 @@ public class UDPService implements ReadWriteObserver {
      */
     public void start() {
         DatagramChannel channel;
+        boolean receivers;
         synchronized(this) {
             _started = true;
             channel = _channel;
+            if(_receiveThreads == -1) {
+                _receiveThreads = Math.max(0, ConnectionSettings.UDP_RECEIVE_THREADS.getValue());
+                for(int i = 0; i < _receiveThreads; i++) {
+                    Thread t = new ManagedThread(new UDPReceiver(), "UDPReceiver" + i);
+                    t.setDaemon(true);
+                    t.start();
+                }
+            }
+            receivers = _receiveThreads > 0;
+            // wake up the receivers, there may be a new channel
+            notifyAll();
         }
         
-        if(channel != null)
-            NIODispatcher.instance().registerReadWrite(channel, this);
+        if(channel != null) {
+            if(receivers)
+                NIODispatcher.instance().registerWrite(channel, this);
+            else
+                NIODispatcher.instance().registerReadWrite(channel, this);
+        }
     }
 
     /** 
@@ -275,12 +332,25 @@ public class UDPService implements ReadWriteObserver {
 	 * Notification that a read can happen.
 	 */
 	public void handleRead() throws IOException {
+	    receive(_channel, BUFFER, IN_HEADER_BUF);
+	}
+
+	/**
+	 * Receives all the datagrams waiting on channel, and passes the messages
+	 * in them to processMessage.  Each datagram is decoded straight from
+	 * buffer.
+	 * 
+	 * @param channel the channel to receive from
+	 * @param buffer a heap buffer of BUFFER_SIZE bytes to receive into
+	 * @param header a 23 byte array for the message headers
+	 */
+	private void receive(DatagramChannel channel, ByteBuffer buffer, byte[] header) {
         while(true) {
-            BUFFER.clear();
+            buffer.clear();
             
             SocketAddress from;
             try {
-                from = _channel.receive(BUFFER);
+                from = channel.receive(buffer);
             } catch(IOException iox) {
                 break;
             } catch(Error error) {
@@ -291,32 +361,32 @@ public class UDPService implements ReadWriteObserver {
             // no packet.
             if(from == null)
                 break;
+            UDPReceiveStat.RECEIVED.incrementStat();
             
             if(!(from instanceof InetSocketAddress)) {
                 Assert.silent(false, "non-inet SocketAddress: " + from);
+                UDPReceiveStat.DROPPED.incrementStat();
                 continue;
             }
             
             InetSocketAddress addr = (InetSocketAddress)from;
                 
-            if(!NetworkUtils.isValidAddress(addr.getAddress()))
-                continue;
-            if(!NetworkUtils.isValidPort(addr.getPort()))
+            if(!NetworkUtils.isValidAddress(addr.getAddress()) ||
+               !NetworkUtils.isValidPort(addr.getPort())) {
+                UDPReceiveStat.DROPPED.incrementStat();
                 continue;
+            }
                 
-            byte[] data = BUFFER.array();
-            int length = BUFFER.position();
+            buffer.flip();
             try {
-                // we do things the old way temporarily
-                InputStream in = new ByteArrayInputStream(data, 0, length);
-                Message message = Message.read(in, Message.N_UDP, IN_HEADER_BUF);
-                if(message == null)
-                    continue;
-
+                Message message = Message.read(buffer, Message.N_UDP, header);
+                UDPReceiveStat.DECODED.incrementStat();
                 processMessage(message, addr);
+                continue;
             } catch (IOException ignored) {
             } catch (BadPacketException ignored) {
             }
+            UDPReceiveStat.DROPPED.incrementStat();
         }
 	}
 	
@@ -342,14 +412,15 @@ public class UDPService implements ReadWriteObserver {
 	
 	/** Updates internal state of the UDP Service. */
 	private void updateState(Message message, InetSocketAddress addr) {
-        _lastReceivedAny = System.currentTimeMillis();
+        long now = System.currentTimeMillis();
+        _lastReceivedAny = now;
 	    if (!isGUESSCapable()) {
             if (message instanceof PingRequest) {
                 GUID guid = new GUID(message.getGUID());
                 if(isValidForIncoming(CONNECT_BACK_GUID, guid, addr)) {
                     _acceptedUnsolicitedIncoming = true;
                 }
-                _lastUnsolicitedIncomingTime = _lastReceivedAny;
+                _lastUnsolicitedIncomingTime = now;
             }
             else if (message instanceof PingReply) {
                 GUID guid = new GUID(message.getGUID());
@@ -378,7 +449,7 @@ public class UDPService implements ReadWriteObserver {
         // so we can use this fact to keep the last unsolicited up
         // to date
         if (message instanceof ReplyNumberVendorMessage)
-            _lastUnsolicitedIncomingTime = _lastReceivedAny;
+            _lastUnsolicitedIncomingTime = now;
 	}
 	
 	/**
@@ -462,28 +533,61 @@ public class UDPService implements ReadWriteObserver {
         }
 
         ByteBuffer buffer = (ByteBuffer)baos.buffer().flip();
-        synchronized(OUTGOING_MSGS) {
-            OUTGOING_MSGS.add(new SendBundle(buffer, ip, port, err));
-            if(_channel != null)
+        synchronized(SEND_QUEUE) {
+            if(!SEND_QUEUE.add(getPriority(msg), buffer, new InetSocketAddress(ip, port)))
+                LOG.debug("UDP send queue full, dropping " + msg);
+            // a pending wakeup only covers datagrams the rate limits are holding
+            // back, so anything that may go now, like reliable UDP, asks for a write.
+            else if(_channel != null &&
+                    (!_wakeupScheduled || SEND_QUEUE.next(System.currentTimeMillis()) != -1))
                 NIODispatcher.instance().interestWrite(_channel, true);
         }
 	}
+
+	/**
+	 * Returns the priority class msg is sent in.
+	 */
+	private static int getPriority(Message msg) {
+	    if(msg instanceof UDPConnectionMessage)
+	        return UDPSendQueue.CONTROL;
+	    if(msg instanceof QueryReply ||
+	       msg instanceof ReplyNumberVendorMessage ||
+	       msg instanceof LimeACKVendorMessage)
+	        return UDPSendQueue.OOB;
+	    return UDPSendQueue.PING;
+	}
+
+	/**
+	 * Returns the number of datagrams waiting to be sent in the given
+	 * priority class, one of CONTROL_PRIORITY, OOB_PRIORITY or
+	 * PING_PRIORITY.
+	 */
+	public int getSendQueueDepth(int priority) {
+	    synchronized(SEND_QUEUE) {
+	        return SEND_QUEUE.size(priority);
+	    }
+	}
+
+	/**
+	 * Returns the number of datagrams dropped because their priority class
+	 * had too many waiting to be sent.
+	 */
+	public long getSendQueueDropped() {
+	    synchronized(SEND_QUEUE) {
+	        return SEND_QUEUE.getDropped();
+	    }
+	}
 	
 	/**
 	 * Notification that a write can happen.
 	 */
 	public boolean handleWrite() throws IOException {
-	    synchronized(OUTGOING_MSGS) {
-	        while(!OUTGOING_MSGS.isEmpty()) {
+	    synchronized(SEND_QUEUE) {
+	        long now = System.currentTimeMillis();
+	        for(int c = SEND_QUEUE.next(now); c != -1; c = SEND_QUEUE.next(now)) {
 	            try {
-    	            SendBundle bundle = (SendBundle)OUTGOING_MSGS.remove(0);
-    
-    	            if(_channel.send(bundle.buffer, bundle.addr) == 0) {
-    	                // we removed the bundle from the list but couldn't send it,
-    	                // so we have to put it back in.
-    	                OUTGOING_MSGS.add(0, bundle);
+    	            if(_channel.send(SEND_QUEUE.getBuffer(c), SEND_QUEUE.getAddress(c)) == 0)
     	                return true; // no room left to send.
-                    }
                 } catch(BindException ignored) {
                 } catch(ConnectException ignored) {
                 } catch(NoRouteToHostException ignored) {
@@ -491,26 +595,29 @@ public class UDPService implements ReadWriteObserver {
                 } catch(SocketException ignored) {
                     LOG.warn("Ignoring exception on socket", ignored);
                 }
+                SEND_QUEUE.remove(c, now);
 	        }
 	        
-	        // if there's no data left to send, we don't wanna be notified of write events.
+	        // if there's no data we can send now, we don't wanna be notified of write events.
 	        NIODispatcher.instance().interestWrite(_channel, false);
+	        
+	        // if the rate limits are holding data back, come back when they let it go
+	        long wait = SEND_QUEUE.getWaitTime(now);
+	        if(wait > 0 && !_wakeupScheduled) {
+	            _wakeupScheduled = true;
+	            RouterService.schedule(new Runnable() {
+	                public void run() {
+	                    synchronized(SEND_QUEUE) {
+	                        _wakeupScheduled = false;
+	                        if(_channel != null)
+	                            NIODispatcher.instance().interestWrite(_channel, true);
+	                    }
+	                }
+	            }, wait, 0);
+	        }
 	        return false;
 	    }
     }       
-	
-	/** Wrapper for outgoing data */
-	private static class SendBundle {
-	    private final ByteBuffer buffer;
-	    private final SocketAddress addr;
-	    private final ErrorCallback callback;
-	    
-	    SendBundle(ByteBuffer b, InetAddress addr, int port, ErrorCallback c) {
-	        buffer = b;
-	        this.addr = new InetSocketAddress(addr, port);
-	        callback = c;
-	    }
-	}
 
 
 	/**
@@ -734,6 +841,60 @@ public class UDPService implements ReadWriteObserver {
         }
     }
 
+    /**
+     * Receives datagrams on a thread of its own, with its own selector and
+     * buffers.  Waits for the service to be started with an open channel,
+     * and reads that channel until it's closed.
+     */
+    private class UDPReceiver implements Runnable {
+        /** The buffer datagrams are received into. */
+        private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        /** The buffer message headers are read into. */
+        private final byte[] header = new byte[23];
+
+        public void run() {
+            while(true) {
+                DatagramChannel channel;
+                synchronized(UDPService.this) {
+                    while(!_started || _channel == null || !_channel.isOpen()) {
+                        try {
+                            UDPService.this.wait();
+                        } catch(InterruptedException ie) {
+                            return;
+                        }
+                    }
+                    channel = _channel;
+                }
+                
+                Selector selector = null;
+                try {
+                    selector = Selector.open();
+                    channel.register(selector, SelectionKey.OP_READ);
+                    while(channel.isOpen()) {
+                        if(selector.select(RECEIVE_TIMEOUT) > 0)
+                            selector.selectedKeys().clear();
+                        receive(channel, buffer, header);
+                    }
+                } catch(ClosedChannelException ignored) {
+                } catch(IOException iox) {
+                    LOG.warn("UDP receiver failed", iox);
+                    // don't spin if the failure keeps happening
+                    try {
+                        Thread.sleep(RECEIVE_TIMEOUT);
+                    } catch(InterruptedException ie) {
+                        return;
+                    }
+                } finally {
+                    if(selector != null) {
+                        try {
+                            selector.close();
+                        } catch(IOException ignored) {}
+                    }
+                }
+            }
+        }
+    }
+
     private class PeriodicPinger implements Runnable {
         public void run() {
             // straightforward - send a UDP ping to a host.  it doesn't really
@@ -4,7 +4,6 @@
 package com.limegroup.gnutella;
 
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InvalidObjectException;
 import java.io.ObjectInputStream;
@@ -12,18 +11,12 @@ import java.io.ObjectOutputStream;
 import java.io.Serializable;
 import java.net.URL;
 import java.security.MessageDigest;
-import java.util.HashMap;
 import java.util.Locale;
-import java.util.Map;
-import java.util.Collections;
 
 import com.bitzi.util.Base32;
 import com.limegroup.gnutella.http.HTTPConstants;
 import com.limegroup.gnutella.http.HTTPHeaderValue;
 import com.limegroup.gnutella.security.SHA1;
-import com.limegroup.gnutella.util.IntWrapper;
-import com.limegroup.gnutella.util.SystemUtils;
-import com.limegroup.gnutella.settings.SharingSettings;
 
 /**
  * This class represents an individual Uniform Resource Name (URN), as
@@ -48,13 +41,6 @@ public final class URN implements HTTPHeaderValue, Serializable {
 	 */
 	public static final URN INVALID = new URN("bad:bad", UrnType.INVALID);
 	
-	/**
-	 * The amount of time we must be idle before we start
-	 * devoting all processing time to hashing.
-	 * (Currently 5 minutes).
-	 */
-	private static final int MIN_IDLE_TIME = 5 * 60 * 1000;
-
 	/**
 	 * Cached constant to avoid making unnecessary string allocations
 	 * in validating input.
@@ -100,25 +86,12 @@ public final class URN implements HTTPHeaderValue, Serializable {
 	 */
 	private volatile transient int hashCode = 0;  
 	
-	/**
-	 * The progress of files currently being hashed.
-	 * Files are added to this when hashing is started
-	 * and removed when hashing finishes.
-	 * IntWrapper stores the amount of bytes read.
-	 */
-	private static final Map /* File -> IntWrapper */ progressMap =
-	    Collections.synchronizedMap(new HashMap());
-	
 	/**
 	 * Gets the amount of bytes hashed for a file that is being hashed.
 	 * Returns -1 if the file is not being hashed at all.
 	 */
 	public static int getHashingProgress(File file) {
-	    IntWrapper progress = (IntWrapper)progressMap.get(file);
-	    if ( progress == null )
-	        return -1;
-	    else
-	        return progress.getInt();
+	    return FileHasher.getProgress(file);
 	}
 
 	/**
@@ -138,6 +111,16 @@ public final class URN implements HTTPHeaderValue, Serializable {
 		return new URN(createSHA1String(file), UrnType.SHA1);
 	}
 
+	/**
+	 * Creates a new SHA1 <tt>URN</tt> from a digest, for FileHasher jobs
+	 * that read the file themselves.
+	 *
+	 * @param sha1 the 20 bytes of the SHA1 hash
+	 */
+	static URN createSHA1Urn(byte[] sha1) {
+		return new URN(createSHA1String(sha1), UrnType.SHA1);
+	}
+
 	/**
 	 * Creates a new <tt>URN</tt> instance from the specified string.
 	 * The resulting URN can have any Namespace Identifier and any
@@ -577,39 +560,14 @@ public final class URN implements HTTPHeaderValue, Serializable {
       throws IOException, InterruptedException {
         
 		MessageDigest md = new SHA1();
-        byte[] buffer = new byte[65536];
-        int read;
-        IntWrapper progress = new IntWrapper(0);
-        progressMap.put( file, progress );
-        FileInputStream fis = null;        
-        
-        try {
-		    fis = new FileInputStream(file);
-            while ((read=fis.read(buffer))!=-1) {
-                long start = System.currentTimeMillis();
-                md.update(buffer,0,read);
-                progress.addInt( read );
-                if(SystemUtils.getIdleTime() < MIN_IDLE_TIME &&
-		    SharingSettings.FRIENDLY_HASHING.getValue()) {
-                    long end = System.currentTimeMillis();
-                    long interval = end - start;
-                    if(interval > 0)
-                        Thread.sleep(interval * 3);
-                    else
-                        Thread.yield();
-                }
-            }
-        } finally {		
-            progressMap.remove(file);
-            if(fis != null) {
-                try {
-                    fis.close();
-                } catch(IOException ignored) {}
-            }
-        }
-
-		byte[] sha1 = md.digest();
+		FileHasher.read(file, md, null);
+		return createSHA1String(md.digest());
+	}
 
+	/**
+	 * Returns the SHA1 URN string for the given hash.
+	 */
+	private static String createSHA1String(byte[] sha1) {
 		// preferred casing: lowercase "urn:sha1:", uppercase encoded value
 		// note that all URNs are case-insensitive for the "urn:<type>:" part,
 		// but some MAY be case-sensitive thereafter (SHA1/Base32 is case 
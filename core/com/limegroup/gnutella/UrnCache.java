@@ -1,14 +1,17 @@
 package com.limegroup.gnutella;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.security.MessageDigest;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.Iterator;
@@ -18,10 +21,13 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.ArrayList;
 
+import com.limegroup.gnutella.security.SHA1;
+import com.limegroup.gnutella.tigertree.HashTree;
+import com.limegroup.gnutella.tigertree.HashTreeBuilder;
+import com.limegroup.gnutella.tigertree.TigerTreeCache;
 import com.limegroup.gnutella.util.CommonUtils;
 import com.limegroup.gnutella.util.ConverterObjectInputStream;
-import com.limegroup.gnutella.util.IOUtils;
-import com.limegroup.gnutella.util.ProcessingQueue;
+import com.limegroup.gnutella.util.JournalFile;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
@@ -50,6 +56,13 @@ public final class UrnCache {
      */
     private static final File URN_CACHE_BACKUP_FILE = 
         new File(CommonUtils.getUserSettingsDir(), "fileurns.bak");
+    
+    /**
+     * Where the urns are stored now, fileurns.dat and fileurns.jnl.  The old
+     * files above are only read if these don't exist yet.
+     */
+    private static final JournalFile JOURNAL =
+        new JournalFile(CommonUtils.getUserSettingsDir(), "fileurns");
 
     /**
      * UrnCache instance variable.  LOCKING: obtain UrnCache.class.
@@ -59,14 +72,10 @@ public final class UrnCache {
     /**
      * UrnCache container.  LOCKING: obtain this.  Although URN_MAP is static,
      * UrnCache is a singleton, so obtaining UrnCache's monitor is sufficient--
-     * and slightly more convenient.
-     */
-    private static final Map /* UrnSetKey -> HashSet */ URN_MAP = createMap();
-    
-    /**
-     * The ProcessingQueue that Files are hashed in.
+     * and slightly more convenient.  A set read from disk stays encoded as a
+     * byte[] until getUrns(..) first asks for it.
      */
-    private final ProcessingQueue QUEUE = new ProcessingQueue("Hasher");
+    private static final Map /* UrnSetKey -> Set or byte[] */ URN_MAP = createMap();
     
     /**
      * The set of files that are pending hashing to the callbacks that are listening to them.
@@ -93,7 +102,7 @@ public final class UrnCache {
      * Create and initialize urn cache.
      */
     private UrnCache() {
-		dirty = removeOldEntries(URN_MAP);
+		dirty = removeOldEntries(URN_MAP) || !JOURNAL.exists();
 	}
 
     /**
@@ -119,7 +128,7 @@ public final class UrnCache {
                 pendingHashing.put(file, list);
             }
             list.add(callback);
-            QUEUE.add(new Processor(file));
+            FileHasher.invokeLater(file, new Processor(file));
         }
     }
     
@@ -166,7 +175,9 @@ public final class UrnCache {
     /**
      * Adds any URNs that can be locally calculated; may take a while to 
 	 * complete on large files.  After calculation, the items are added
-	 * for future remembering.
+	 * for future remembering.  The same read of the file builds its
+	 * HashTree, which goes in the TigerTreeCache so it doesn't have to be
+	 * read again when an uploader asks for the tree.
 	 *
 	 * @param file the <tt>File</tt> instance to calculate URNs for
 	 * @return the new <tt>Set</tt> of calculated <tt>URN</tt> instances.  If 
@@ -174,8 +185,27 @@ public final class UrnCache {
      * set.
      */
     public Set calculateUrns(File file) throws IOException, InterruptedException {
+        MessageDigest md = new SHA1();
+        HashTreeBuilder tree = null;
+        long size = file.length();
+        if(size > 0)
+            tree = new HashTreeBuilder(size);
+        FileHasher.read(file, md, tree);
+        URN sha1 = URN.createSHA1Urn(md.digest());
+        
+        if(tree != null) {
+            try {
+                HashTree built = tree.build(sha1);
+                if(TigerTreeCache.instance().getHashTree(sha1) == null)
+                    TigerTreeCache.addHashTree(sha1, built);
+            } catch(IOException changed) {
+                // the SHA1 is still good, the tree will be made when needed
+                LOG.warn("Unable to build tree", changed);
+            }
+        }
+        
         Set set = new HashSet(1);
-        set.add(URN.createSHA1Urn(file));
+        set.add(sha1);
         return set;
 	}
     
@@ -197,11 +227,23 @@ public final class UrnCache {
 		UrnSetKey key = new UrnSetKey(file);
 
         // one or more "urn:" names for this file 
-		Set cachedUrns = (Set)URN_MAP.get(key);
+		Object cachedUrns = URN_MAP.get(key);
 		if(cachedUrns == null)
 			return Collections.EMPTY_SET;
 
-		return cachedUrns;
+		// decode the set the first time it's asked for
+		if(cachedUrns instanceof byte[]) {
+		    try {
+		        cachedUrns = Collections.unmodifiableSet(
+		            decodeUrns((byte[])cachedUrns));
+		        URN_MAP.put(key, cachedUrns);
+		    } catch(IOException bad) {
+		        LOG.warn("Unable to decode URNs", bad);
+		        removeUrns(file);
+		        return Collections.EMPTY_SET;
+		    }
+		}
+		return (Set)cachedUrns;
     }
     
     /**
@@ -209,7 +251,8 @@ public final class UrnCache {
      */
     public synchronized void removeUrns(File f) {
         UrnSetKey k = new UrnSetKey(f);
-        URN_MAP.remove(k);
+        if(URN_MAP.remove(k) != null)
+            JOURNAL.remove(k.toBytes());
         dirty = true;
     }
 
@@ -221,14 +264,28 @@ public final class UrnCache {
     public synchronized void addUrns(File file, Set urns) {
 		UrnSetKey key = new UrnSetKey(file);
         URN_MAP.put(key, Collections.unmodifiableSet(urns));
+        JOURNAL.put(key.toBytes(), encodeUrns(urns));
         dirty = true;
     }
         
     /**
-     * Loads values from cache file, if available.  If the cache file is
-     * not readable, tries the backup.
+     * Loads values from the journal, or if we don't have one yet, from the
+     * old cache file.  If the cache file is not readable, tries the backup.
      */
     private static Map createMap() {
+        if(JOURNAL.exists()) {
+            final Map result = new HashMap();
+            JOURNAL.read(new JournalFile.Reader() {
+                public void put(byte[] key, byte[] value) throws IOException {
+                    result.put(UrnSetKey.fromBytes(key), value);
+                }
+                public void remove(byte[] key) throws IOException {
+                    result.remove(UrnSetKey.fromBytes(key));
+                }
+            });
+            return result;
+        }
+        
         Map result;
         result = readMap(URN_CACHE_FILE);
         if(result == null)
@@ -239,7 +296,7 @@ public final class UrnCache {
     }
     
     /**
-     * Loads values from cache file, if available.
+     * Loads values from an old cache file, if available.
      */
     private static Map readMap(File file) {
         Map result;
@@ -286,6 +343,7 @@ public final class UrnCache {
                 if (!f.exists() || f.lastModified() != key._modTime) {
                     dirty = true;
                     iter.remove();
+                    JOURNAL.remove(key.toBytes());
                 }
             } else {
                 dirty = true;
@@ -296,7 +354,9 @@ public final class UrnCache {
     }
     
     /**
-     * Write cache so that we only have to calculate them once.
+     * Write cache so that we only have to calculate them once.  Appends what
+     * changed to the journal, or writes a new snapshot when it's time to
+     * compact.
      */
     public synchronized void persistCache() {
         if(!dirty)
@@ -304,22 +364,66 @@ public final class UrnCache {
         
         //It's not ideal to hold a lock while writing to disk, but I doubt think
         //it's a problem in practice.
-        URN_CACHE_FILE.renameTo(URN_CACHE_BACKUP_FILE);
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(URN_CACHE_FILE)));
-            oos.writeObject(URN_MAP);
-            oos.flush();
+            if(JOURNAL.shouldCompact())
+                writeSnapshot();
+            else
+                JOURNAL.flush();
         } catch (IOException e) {
             ErrorService.error(e);
-        } finally {
-            IOUtils.close(oos);
         }
         
         dirty = false;
     }
     
+    /**
+     * Writes all of URN_MAP to a new snapshot.  Sets that were never decoded
+     * are written as they are.
+     */
+    private void writeSnapshot() throws IOException {
+        JournalFile.Snapshot snapshot = JOURNAL.newSnapshot();
+        try {
+            for(Iterator i = URN_MAP.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry next = (Map.Entry)i.next();
+                Object value = next.getValue();
+                byte[] urns = value instanceof byte[] ? 
+                    (byte[])value : encodeUrns((Set)value);
+                snapshot.put(((UrnSetKey)next.getKey()).toBytes(), urns);
+            }
+            snapshot.commit();
+        } finally {
+            snapshot.abort();
+        }
+    }
+    
+    /**
+     * Encodes a set of URNs for the journal.
+     */
+    private static byte[] encodeUrns(Set urns) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(urns.size());
+            for(Iterator i = urns.iterator(); i.hasNext(); )
+                out.writeUTF(i.next().toString());
+            return bytes.toByteArray();
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
+    
+    /**
+     * Decodes a set of URNs from the journal.
+     */
+    private static Set decodeUrns(byte[] data) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(data));
+        int size = in.readInt();
+        Set urns = new HashSet(Math.max(1, size));
+        for(int i = 0; i < size; i++)
+            urns.add(URN.createSHA1Urn(in.readUTF()));
+        return urns;
+    }
+    
     private class Processor implements Runnable {
         private final File file;
         
@@ -396,11 +500,40 @@ public final class UrnCache {
 		 *  key
 		 */
 		UrnSetKey(File file) {
-			_modTime = file.lastModified();
-			_path = file.getAbsolutePath();
+			this(file.getAbsolutePath(), file.lastModified());
+		}
+
+		private UrnSetKey(String path, long modTime) {
+			_modTime = modTime;
+			_path = path;
 			_hashCode = calculateHashCode();
 		}
 
+		/**
+		 * Encodes this key for the journal.
+		 */
+		byte[] toBytes() {
+			try {
+				ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+				DataOutputStream out = new DataOutputStream(bytes);
+				out.writeUTF(_path);
+				out.writeLong(_modTime);
+				return bytes.toByteArray();
+			} catch(IOException impossible) {
+				throw new RuntimeException(impossible.getMessage());
+			}
+		}
+
+		/**
+		 * Decodes a key from the journal.
+		 */
+		static UrnSetKey fromBytes(byte[] data) throws IOException {
+			DataInputStream in =
+				new DataInputStream(new ByteArrayInputStream(data));
+			String path = in.readUTF();
+			return new UrnSetKey(path, in.readLong());
+		}
+
 		/**
 		 * Helper method to calculate the hash code.
 		 *
@@ -0,0 +1,82 @@
+// Commented for the Learning branch
+
+package com.limegroup.gnutella.connection;
+
+import com.limegroup.gnutella.settings.ConnectionSettings;
+import com.limegroup.gnutella.util.ProcessingQueue;
+
+/**
+ * CompressionWorkers has the threads DeflaterWriter and InflaterReader compress and decompress data on, instead of the NIODispatcher thread.
+ *
+ * Every compressed Gnutella connection runs zlib on its data.
+ * With a lot of them, that was the most work the NIODispatcher thread did, and it delayed every other socket's reads and writes.
+ * Now, the NIODispatcher thread just moves bytes between buffers.
+ * It hands the compressing and decompressing to a thread here, and that thread hands the results back in ready buffers.
+ *
+ * There are ConnectionSettings.COMPRESSION_THREADS lanes, each a ProcessingQueue with its own thread.
+ * A DeflaterWriter or InflaterReader always uses the same lane, picked from its identity hash code.
+ * So, the jobs for one direction of one connection run one at a time, in the order they were added.
+ * The Deflater and Inflater objects keep state from one block of data to the next, so that order matters.
+ *
+ * If COMPRESSION_THREADS is 0, isEnabled() returns false, and DeflaterWriter and InflaterReader do the work on the NIODispatcher thread like they used to.
+ */
+public final class CompressionWorkers {
+
+    /** The lanes, or an empty array if the setting is 0. */
+    private static final ProcessingQueue[] LANES = makeLanes(ConnectionSettings.COMPRESSION_THREADS.getValue());
+
+    /** Don't let anyone make a CompressionWorkers object, all the methods are static. */
+    private CompressionWorkers() {}
+
+    /**
+     * Make the given number of lanes.
+     *
+     * @param count The number of lanes ConnectionSettings.COMPRESSION_THREADS says to have
+     * @return      An array of ProcessingQueue objects with threads named "Compressor0", "Compressor1", and so on
+     */
+    private static ProcessingQueue[] makeLanes(int count) {
+
+        // Make a ProcessingQueue for each lane
+        ProcessingQueue[] lanes = new ProcessingQueue[Math.max(0, count)];
+        for (int i = 0; i < lanes.length; i++) lanes[i] = new ProcessingQueue("Compressor" + i);
+        return lanes;
+    }
+
+    /**
+     * Determine if we have compression threads.
+     * DeflaterWriter and InflaterReader call this when they're made, to see if they should use them.
+     *
+     * @return True if ConnectionSettings.COMPRESSION_THREADS was more than 0 when the program started
+     */
+    public static boolean isEnabled() {
+
+        // Without lanes, compress on the NIODispatcher thread
+        return LANES.length > 0;
+    }
+
+    /**
+     * Have a compression thread run a job.
+     *
+     * @param owner The DeflaterWriter or InflaterReader the job is for, all the jobs with the same owner run on the same thread in order
+     * @param job   An object with a run() method that compresses or decompresses some data
+     */
+    public static void add(Object owner, Runnable job) {
+
+        // Pick the owner's lane, and add the job to it
+        int hash = System.identityHashCode(owner) & 0x7FFFFFFF; // Clear the sign bit so the remainder isn't negative
+        LANES[hash % LANES.length].add(job);
+    }
+
+    /**
+     * Find out how many jobs are waiting for the compression threads.
+     *
+     * @return The number of jobs in all the lanes
+     */
+    public static int getQueueSize() {
+
+        // Add up the lanes
+        int size = 0;
+        for (int i = 0; i < LANES.length; i++) size += LANES[i].size();
+        return size;
+    }
+}
@@ -5,7 +5,9 @@ package com.limegroup.gnutella.connection;
 
 import java.nio.ByteBuffer;
 import java.nio.channels.Channel;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.LinkedList;
 import java.util.zip.Deflater;
 
 import org.apache.commons.logging.Log;
@@ -15,6 +17,7 @@ import com.limegroup.gnutella.io.Shutdownable;
 import com.limegroup.gnutella.io.ChannelWriter;
 import com.limegroup.gnutella.io.InterestWriteChannel;
 import com.limegroup.gnutella.io.WriteObserver;
+import com.limegroup.gnutella.settings.ConnectionSettings;
 
 /**
  * DeflaterWriter implements ChannelWriter and InterestWriteChannel.
@@ -33,6 +36,16 @@ import com.limegroup.gnutella.io.WriteObserver;
  * The object that writes to this one calls interest(this, true) to get us to link back to them.
  * With this link established, this object can ask the source to write to us.
  * 
+ * If CompressionWorkers.isEnabled(), the NIODispatcher thread doesn't run the deflater.
+ * handleWrite() just moves each 4 KB of data it gets into a list, and has a compression thread compress it.
+ * The compression thread puts the compressed data in another list, and turns interest back on so NIO calls handleWrite() to send it.
+ * Only one compression job runs for a DeflaterWriter at a time, and it takes the data in order, so the stream stays in order.
+ * 
+ * Every 64 KB, we check how much compression saved.
+ * If it's less than ConnectionSettings.DEFLATE_MIN_SAVINGS percent, like for data that's already compressed, we switch the deflater to no compression.
+ * The stream is still valid deflate data, the remote computer can't tell.
+ * After 1 MB of that, we try compressing again.
+ * 
  * Extends and Implements
  * ChannelWriter:        This object has a sink channel it writes to, setWriteChannel() and getWriteChannel().
  * InterestWriteChannel: The object that gives us data can tell us it has some, interest().
@@ -64,6 +77,55 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
     /** An empty byte array we use when flushing the deflater */
     private static final byte[] EMPTY = new byte[0];
 
+    /** We check how much compression saved every 64 KB of data */
+    private static final int WINDOW = 64 * 1024;
+
+    /** After we've stopped compressing, we try again after 16 windows, 1 MB */
+    private static final int STORED_WINDOWS = 16;
+
+    /** With a compression thread, we don't take more data from our observer while this much is waiting for it, 64 KB */
+    private static final int MAX_PENDING = 64 * 1024;
+
+    /** The level we want the deflater to compress at, Deflater.DEFAULT_COMPRESSION, or Deflater.NO_COMPRESSION if compressing isn't saving anything */
+    private volatile int level = Deflater.DEFAULT_COMPRESSION;
+
+    /** The level we last set the deflater to, the flush has to change it to something else */
+    private int deflaterLevel = Deflater.DEFAULT_COMPRESSION;
+
+    /** The number of bytes we've given the deflater and it's given us back in the current 64 KB window */
+    private int windowIn;
+    private int windowOut;
+
+    /** The number of windows we've sent without compressing */
+    private int storedWindows;
+
+    /** True to have a compression thread run the deflater, false to run it in handleWrite() on the NIODispatcher thread */
+    private final boolean async;
+
+    /**
+     * With a compression thread, ByteBuffers of data from incoming, waiting to be compressed.
+     * LOCKING: obtain this
+     */
+    private final LinkedList toCompress = new LinkedList();
+
+    /** The number of bytes in toCompress. LOCKING: obtain this */
+    private int pendingBytes;
+
+    /**
+     * With a compression thread, ByteBuffers of compressed data, waiting for handleWrite() to send them.
+     * LOCKING: obtain this
+     */
+    private final LinkedList compressed = new LinkedList();
+
+    /** True while a DeflateJob is running or waiting for the compression thread. LOCKING: obtain this */
+    private boolean working;
+
+    /** An exception the compression thread got, handleWrite() will throw it. LOCKING: obtain this */
+    private IOException failure;
+
+    /** The compression thread has the deflater write here, and then copies it into a ByteArrayOutputStream */
+    private final byte[] chunk = new byte[1024];
+
     /**
      * Make a new DeflaterWriter that will use the given Deflater object.
      * The new DeflaterWriter doesn't have a channel to write to yet, though.
@@ -97,6 +159,9 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
 
         // Save the channel we'll write to, the sink
         this.channel = channel;
+
+        // See if we should compress on a compression thread
+        this.async = CompressionWorkers.isEnabled();
     }
 
     /**
@@ -282,6 +347,9 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
         InterestWriteChannel sink = channel;
         if (sink == null) throw new IllegalStateException("writing with no sink.");
 
+        // If a compression thread runs the deflater, just move data to and from it
+        if (async) return handleWriteAsync(sink);
+
         while (true) {
 
         	// Step 1
@@ -318,6 +386,9 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
                 // The deflater wrote something
                 if (deflated > 0) {
 
+                    // Count it for the ratio
+                    windowOut += deflated;
+
                 	// Since the deflater looked at the outgoing buffer as an array, it couldn't edit the buffer's position and limit
                 	// Set the outgoing buffer's position and limit to clip around the compressed data the deflater wrote
                     outgoing.position(0);
@@ -341,9 +412,9 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
                 	// This is the first flush, or we came from the bottom of the while loop
                     if (sync == 0) {
 
-                    	// Point the deflater at an empty byte array and change its level to no compression
+                    	// Point the deflater at an empty byte array and change its level to no compression, or fast compression if we're not compressing now
                     	deflater.setInput(EMPTY);
-                        deflater.setLevel(Deflater.NO_COMPRESSION);
+                        deflater.setLevel(getFlushLevel());
 
                         // Go back to the start of the while loop, try deflate again, and then go to the next step here
                         sync = 1;
@@ -352,8 +423,9 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
                     // Last time, we emptied the input and set the level to no compression
                     } else if (sync == 1) {
 
-                    	// The deflater is still pointed at the empty array, turn compression back on
-                    	deflater.setLevel(Deflater.DEFAULT_COMPRESSION);
+                    	// The deflater is still pointed at the empty array, set the level we want back again
+                    	deflater.setLevel(level);
+                        deflaterLevel = level;
 
                     	// Go back to the start of the while loop, try deflate again, and skip these flush steps to make it to the bottom of the loop
                     	sync = 2;
@@ -403,6 +475,8 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
 
                 	// Tell the deflater to get data to compress from the incoming array
                     deflater.setInput(incoming.array(), 0, incoming.position());
+                    windowIn += incoming.position();
+                    adapt(); // Switch the level the next flush will set if compressing isn't saving anything
 
                 // This can happen because the deflater doesn't support asynchronous ends
                 } catch (NullPointerException npe) { throw (IOException) new IOException().initCause(npe); }
@@ -414,6 +488,213 @@ public class DeflaterWriter implements ChannelWriter, InterestWriteChannel {
         }
     }
 
+    /**
+     * handleWrite() calls this instead of compressing the data itself when a compression thread runs the deflater.
+     * 
+     * Sends the compressed data the compression thread has finished.
+     * Has our observer write more data to us, and gives it to the compression thread.
+     * If we don't have anything to send until the compression thread is done, turns off interest.
+     * When it's done, it will turn interest back on.
+     * 
+     * @param sink The channel we write compressed data to
+     * @return     True if the channel is full and we have more to write, false if we're out of data for now
+     */
+    private boolean handleWriteAsync(InterestWriteChannel sink) throws IOException {
+
+        while (true) {
+
+            // Write the compressed data we have, and stop if the channel fills up
+            if (outgoing.hasRemaining()) {
+                sink.write(outgoing);
+                if (outgoing.hasRemaining()) return true;
+            }
+
+            // Get the next buffer the compression thread finished, or the exception it got
+            boolean full;
+            synchronized (this) {
+                if (failure != null) throw failure;
+                if (!compressed.isEmpty()) {
+                    outgoing = (ByteBuffer)compressed.removeFirst();
+                    continue;
+                }
+                full = pendingBytes >= MAX_PENDING;
+            }
+
+            // Unless the compression thread is far behind, have our observer write more data to us
+            if (!full && incoming.position() == 0) {
+                WriteObserver o = observer; // Copy the reference because another thread could change observer at any time
+                if (o != null) o.handleWrite();
+            }
+
+            synchronized (this) {
+
+                // Give the data we got to the compression thread, and start a job if one isn't running
+                if (incoming.position() > 0) {
+                    incoming.flip();
+                    toCompress.add(incoming);
+                    pendingBytes += incoming.remaining();
+                    incoming = ByteBuffer.allocate(4 * 1024);
+                    if (!working) {
+                        working = true;
+                        CompressionWorkers.add(this, new DeflateJob());
+                    }
+                }
+
+                // The compression thread may have finished something while we were getting data
+                if (!compressed.isEmpty()) continue;
+
+                // We have nothing to write now, stop NIO from calling us until the compression thread or our observer has something
+                if (working || observer == null) sink.interest(this, false);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * A DeflateJob runs on a compression thread, and compresses the data in toCompress until it's empty.
+     */
+    private class DeflateJob implements Runnable {
+
+        /** Compress the waiting data, and hand each piece back to handleWrite(). */
+        public void run() {
+
+            while (true) {
+
+                // Take the next buffer of data, or stop if there aren't any
+                ByteBuffer in;
+                synchronized (DeflaterWriter.this) {
+                    if (toCompress.isEmpty()) {
+                        working = false;
+                        return;
+                    }
+                    in = (ByteBuffer)toCompress.removeFirst();
+                    pendingBytes -= in.remaining();
+                }
+
+                // Compress it and flush the deflater, so it all goes out now
+                ByteBuffer out = null;
+                IOException error = null;
+                try {
+                    out = compress(in);
+                } catch (IOException iox) {
+                    error = iox;
+                }
+
+                // Hand back the compressed data, or the exception
+                synchronized (DeflaterWriter.this) {
+                    if (error == null) {
+                        compressed.add(out);
+                    } else {
+                        failure = error;
+                        working = false;
+                    }
+                }
+
+                // Have NIO call handleWrite() to send it
+                InterestWriteChannel c = channel;
+                if (c != null) c.interest(DeflaterWriter.this, true);
+                if (error != null) return;
+            }
+        }
+    }
+
+    /**
+     * Compress a buffer of data on the compression thread, and flush the deflater.
+     * 
+     * @param in A ByteBuffer with the data between position and limit
+     * @return   A ByteBuffer with all the compressed data, including what the flush wrote
+     */
+    private ByteBuffer compress(ByteBuffer in) throws IOException {
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(in.remaining() / 2);
+        try {
+
+            // Compress the data
+            deflater.setInput(in.array(), in.position(), in.remaining());
+            drain(out);
+
+            // Flush the deflater the way handleWrite() does, by changing its level and back
+            deflater.setInput(EMPTY);
+            deflater.setLevel(getFlushLevel());
+            drain(out);
+            deflater.setLevel(level);
+            deflaterLevel = level;
+            drain(out);
+
+        // This can happen because the deflater doesn't support asynchronous ends
+        } catch (NullPointerException npe) { throw (IOException) new IOException().initCause(npe); }
+
+        // Count it, and switch the level the next flush will set if compressing isn't saving anything
+        windowIn  += in.remaining();
+        windowOut += out.size();
+        adapt();
+        return ByteBuffer.wrap(out.toByteArray());
+    }
+
+    /**
+     * Have the deflater write compressed data until it doesn't have any more.
+     * 
+     * @param out The stream to copy the compressed data into
+     */
+    private void drain(ByteArrayOutputStream out) {
+
+        // Loop until deflate() returns 0
+        int deflated;
+        while ((deflated = deflater.deflate(chunk)) > 0) out.write(chunk, 0, deflated);
+    }
+
+    /**
+     * The level to set the deflater to, to make it flush.
+     * Changing the level makes it write out everything it has, so it has to be different than the level it's at.
+     * 
+     * @return Deflater.NO_COMPRESSION, or Deflater.BEST_SPEED if the deflater is already at no compression
+     */
+    private int getFlushLevel() {
+
+        // Pick a level different from the one the deflater is at
+        return deflaterLevel == Deflater.NO_COMPRESSION ? Deflater.BEST_SPEED : Deflater.NO_COMPRESSION;
+    }
+
+    /**
+     * At the end of each 64 KB window, see if compressing is worth it, and change level.
+     * The next flush will set the deflater to the new level.
+     * Only one thread runs the deflater at a time, so only one thread calls this at a time.
+     */
+    private void adapt() {
+
+        // Wait until we've got a whole window
+        if (windowIn < WINDOW) return;
+
+        // We're compressing, see if it saved enough
+        if (level == Deflater.DEFAULT_COMPRESSION) {
+            int savings = 100 - (int)((long)windowOut * 100 / windowIn); // If 64 KB compressed to 60 KB, it saved 6 percent
+            if (savings < ConnectionSettings.DEFLATE_MIN_SAVINGS.getValue()) {
+                if (LOG.isDebugEnabled()) LOG.debug("compression saved " + savings + "%, sending stored blocks");
+                level = Deflater.NO_COMPRESSION;
+                storedWindows = 0;
+            }
+
+        // We stopped compressing, after a while, try again
+        } else if (++storedWindows >= STORED_WINDOWS) {
+            level = Deflater.DEFAULT_COMPRESSION;
+        }
+
+        // Start the next window
+        windowIn  = 0;
+        windowOut = 0;
+    }
+
+    /**
+     * Determine if we've stopped compressing because it wasn't saving anything.
+     * 
+     * @return True if the deflater is sending data in stored blocks now
+     */
+    public boolean isStoring() {
+
+        // adapt() sets the level
+        return level == Deflater.NO_COMPRESSION;
+    }
+
     /**
      * Shuts down the original data source for this write chain.
      * This call propegates backwards in the list, all the way to the first object that calls write to give the second one data.
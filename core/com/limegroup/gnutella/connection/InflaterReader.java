@@ -6,6 +6,7 @@ package com.limegroup.gnutella.connection;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.ReadableByteChannel;
+import java.util.LinkedList;
 import java.util.zip.Inflater;
 import java.util.zip.DataFormatException;
 
@@ -17,6 +18,14 @@ import com.limegroup.gnutella.io.ChannelReader;
  * Make an InflateReader and give it a source channel of compressed data.
  * Then, call read(ByteBuffer b) on it to have it read data from the channel and decompress it into the given buffer.
  * 
+ * If CompressionWorkers.isEnabled() and you've called setReadyListener(), the NIODispatcher thread doesn't run the inflater.
+ * read() moves the compressed data from the channel into a list, and has a compression thread decompress it.
+ * The compression thread puts the data in another list, and calls the listener so the reader behind us reads again.
+ * read() gives you the data from that list.
+ * If the compression thread falls MAX_PENDING bytes behind, read() has the ReadInterest listener turn off read interest, so NIO stops calling it.
+ * The compression thread turns it back on once it's caught up to half that.
+ * Only one decompression job runs for an InflaterReader at a time, and it takes the data in order, so the stream stays in order.
+ * 
  * Extends and Implements
  * ChannelReader:                         This object has a source channel it reads from, setReadChannel() and getReadChannel().
  * java.nio.channels.ReadableByteChannel: Call read() to get data from this object.
@@ -38,6 +47,52 @@ public class InflaterReader implements ChannelReader, ReadableByteChannel {
     /** A 512 byte buffer where compressed data from the channel waits to be decompressed. */
     private ByteBuffer data; // A java.nio.ByteBuffer is a buffer that can hold bytes
 
+    /** With a compression thread, we don't read more from the channel while this much is waiting for it, 64 KB */
+    private static final int MAX_PENDING = 64 * 1024;
+
+    /** True if we can use a compression thread, the listener has to be set too */
+    private final boolean async;
+
+    /** With a compression thread, the object we tell when it's decompressed more data, so the reader behind us will read again */
+    private volatile Runnable listener;
+
+    /** With a compression thread, the object we have turn read interest off while the thread is MAX_PENDING behind, and back on */
+    private volatile ReadInterest interest;
+
+    /** True while we've turned read interest off because pendingBytes reached MAX_PENDING. LOCKING: obtain this */
+    private boolean full;
+
+    /** With a compression thread, the buffer we read compressed data from the channel into, 4 KB */
+    private ByteBuffer compressedIn;
+
+    /**
+     * With a compression thread, byte arrays of compressed data from the channel, waiting to be decompressed.
+     * LOCKING: obtain this
+     */
+    private final LinkedList toInflate = new LinkedList();
+
+    /** The number of bytes in toInflate. LOCKING: obtain this */
+    private int pendingBytes;
+
+    /**
+     * With a compression thread, ByteBuffers of decompressed data, waiting for read() to give them out.
+     * LOCKING: obtain this
+     */
+    private final LinkedList inflated = new LinkedList();
+
+    /** True while an InflateJob is running or waiting for the compression thread. LOCKING: obtain this */
+    private boolean working;
+
+    /** An exception the compression thread got, read() will throw it. LOCKING: obtain this */
+    private IOException failure;
+
+    /** True once the inflater finished or needs a dictionary, or the channel ended. LOCKING: obtain this */
+    private boolean finished;
+    private boolean eof;
+
+    /** The compression thread has the inflater write here, and then copies it into a ByteBuffer. */
+    private final byte[] chunk = new byte[4 * 1024];
+
     /**
      * Make a new InflateReader object without a source of compressed data.
      * Call setReadChannel(ReadableByteChannel) to give it a source of compressed data later.
@@ -68,6 +123,53 @@ public class InflaterReader implements ChannelReader, ReadableByteChannel {
 
         // Setup this object's temporary buffer
         this.data = ByteBuffer.allocate(512); // Make it able to hold 512 bytes
+
+        // See if we can decompress on a compression thread
+        this.async = CompressionWorkers.isEnabled();
+        if (async) compressedIn = ByteBuffer.allocate(4 * 1024);
+    }
+
+    /**
+     * Have a compression thread decompress the data, and tell the given object when it has.
+     * Call this before the first read(), if you don't, the NIODispatcher thread decompresses the data in read().
+     * 
+     * ManagedConnection gives us an object that has the NIODispatcher thread call handleRead() on the MessageReader again.
+     * The compression thread calls it each time it's decompressed some data.
+     * 
+     * @param listener The object to call run() on when there's more decompressed data to read
+     */
+    public void setReadyListener(Runnable listener) {
+
+        // Save it, read() will use the compression thread from now on
+        this.listener = listener;
+    }
+
+    /**
+     * Have the given object turn read interest off while the compression thread is far behind, and on again when it catches up.
+     * Without one, NIO keeps telling us the socket has data we won't read, and the NIODispatcher thread spins.
+     * 
+     * ManagedConnection gives us an object that changes OP_READ on its channel, unless MessageDispatcher has paused reading too.
+     * 
+     * @param interest The object to call interestRead(false) on when we stop reading the channel, and interestRead(true) when we can start again
+     */
+    public void setReadInterest(ReadInterest interest) {
+
+        // Save it, readAsync() and InflateJob will call it
+        this.interest = interest;
+    }
+
+    /**
+     * An object that can turn read interest in the channel off and on.
+     * InflaterReader turns it off while the compression thread is far behind, and back on when it's caught up.
+     */
+    public interface ReadInterest {
+
+        /**
+         * Turn read interest in the channel off or on.
+         * 
+         * @param on False to have NIO stop telling us to read, true to have it start again
+         */
+        void interestRead(boolean on);
     }
 
     /**
@@ -121,6 +223,9 @@ public class InflaterReader implements ChannelReader, ReadableByteChannel {
      */
     public int read(ByteBuffer buffer) throws IOException {
 
+        // If a compression thread runs the inflater, just move data to and from it
+        if (async && listener != null) return readAsync(buffer);
+
         int written = 0; // The number of bytes of decompressed data we'll write to the given output buffer
         int read    = 0;
 
@@ -190,6 +295,139 @@ public class InflaterReader implements ChannelReader, ReadableByteChannel {
         else                  return 0;       // The channel just doesn't have any compressed bytes for us right now
     }
 
+    /**
+     * read() calls this instead of decompressing the data itself when a compression thread runs the inflater.
+     * 
+     * Gives out the data the compression thread has decompressed.
+     * Reads compressed data from the channel, and gives it to the compression thread.
+     * 
+     * @param buffer A ByteBuffer to write the decompressed data into
+     * @return       The number of bytes we wrote there, 0 if none, -1 if we hit the end and should stop
+     */
+    private synchronized int readAsync(ByteBuffer buffer) throws IOException {
+
+        // Copy out the data the compression thread has decompressed
+        int written = 0;
+        while (buffer.hasRemaining() && !inflated.isEmpty()) {
+            ByteBuffer ready = (ByteBuffer)inflated.getFirst();
+            int n = Math.min(ready.remaining(), buffer.remaining());
+            buffer.put(ready.array(), ready.position(), n);
+            ready.position(ready.position() + n);
+            written += n;
+            if (!ready.hasRemaining()) inflated.removeFirst();
+        }
+
+        // Read compressed data from the channel, unless the compression thread is far behind
+        if (!finished && !eof) {
+            while (pendingBytes < MAX_PENDING) {
+
+                // Copy what we read into an array for the compression thread
+                int read = channel.read(compressedIn);
+                if (read <= 0) {
+                    if (read == -1) eof = true;
+                    break;
+                }
+                byte[] in = new byte[compressedIn.position()];
+                compressedIn.flip();
+                compressedIn.get(in);
+                compressedIn.clear();
+                toInflate.add(in);
+                pendingBytes += in.length;
+            }
+
+            // Start a job if one isn't running
+            if (!toInflate.isEmpty() && !working) {
+                working = true;
+                CompressionWorkers.add(this, new InflateJob());
+            }
+
+            // The compression thread is far behind, stop NIO from telling us to read until it catches up
+            // Do this holding the lock, so the compression thread can't turn interest back on before we turn it off
+            ReadInterest ri = interest;
+            if (pendingBytes >= MAX_PENDING && ri != null) {
+                full = true;
+                ri.interestRead(false);
+            }
+        }
+
+        // Return what we gave out, or report the exception or the end once all the data is out
+        if (written > 0) return written;
+        if (failure != null) throw failure;
+        if ((finished || eof) && !working && inflated.isEmpty()) return -1;
+        return 0;
+    }
+
+    /**
+     * An InflateJob runs on a compression thread, and decompresses the data in toInflate until it's empty.
+     */
+    private class InflateJob implements Runnable {
+
+        /** Decompress the waiting data, and hand each piece back to read(). */
+        public void run() {
+
+            while (true) {
+
+                // Take the next array of compressed data, or stop if there aren't any
+                byte[] in;
+                boolean resume = false;
+                synchronized (InflaterReader.this) {
+                    if (toInflate.isEmpty() || finished) {
+                        working = false;
+                        return;
+                    }
+                    in = (byte[])toInflate.removeFirst();
+                    pendingBytes -= in.length;
+
+                    // If read() stopped reading the channel, start it again once we've caught up to half of MAX_PENDING
+                    if (full && pendingBytes <= MAX_PENDING / 2) {
+                        full = false;
+                        resume = true;
+                    }
+                }
+
+                // Turn read interest back on, so the channel gets read while we decompress
+                ReadInterest ri = interest;
+                if (resume && ri != null) ri.interestRead(true);
+
+                // Decompress all of it
+                LinkedList out = new LinkedList();
+                IOException error = null;
+                boolean done = false;
+                try {
+                    inflater.setInput(in);
+                    while (true) {
+                        int n = inflater.inflate(chunk);
+                        if (n > 0) {
+                            byte[] ready = new byte[n];
+                            System.arraycopy(chunk, 0, ready, 0, n);
+                            out.add(ByteBuffer.wrap(ready));
+                        } else {
+                            done = inflater.finished() || inflater.needsDictionary();
+                            break; // It needs more input, or it's done
+                        }
+                    }
+                } catch (DataFormatException dfe) {
+                    error = (IOException)new IOException().initCause(dfe);
+                } catch (NullPointerException npe) { // If a separate thread closed the inflater
+                    error = (IOException)new IOException().initCause(npe);
+                }
+
+                // Hand back the data, and the exception or end
+                synchronized (InflaterReader.this) {
+                    inflated.addAll(out);
+                    if (error != null) failure = error;
+                    if (done) finished = true;
+                    if (error != null || done) working = false;
+                }
+
+                // Have the reader behind us read it
+                Runnable l = listener;
+                if (l != null) l.run();
+                if (error != null || done) return;
+            }
+        }
+    }
+
     /**
      * This method only gets called by read, the one above.
      * Runs the inflater, which read set on the decompressed data in the temporary buffer.
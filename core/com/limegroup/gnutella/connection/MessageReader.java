@@ -10,6 +10,7 @@ import java.nio.channels.ReadableByteChannel;
 
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.BadPacketException;
+import com.limegroup.gnutella.messages.PayloadPool;
 import com.limegroup.gnutella.io.ChannelReadObserver;
 
 /**
@@ -218,8 +219,8 @@ public class MessageReader implements ChannelReadObserver {
 
                     try {
 
-                    	// Allocate a new ByteBuffer exactly the right size to hold it
-                        payload = ByteBuffer.allocate(payloadLength);
+                    	// Wrap a ByteBuffer around an array exactly the right size to hold it, one a dropped packet gave back if we can
+                        payload = ByteBuffer.wrap(PayloadPool.get(payloadLength));
 
                     // This can run the computer out of memory
                     } catch (OutOfMemoryError e) { throw new IOException("message too large."); }
@@ -255,7 +256,7 @@ public class MessageReader implements ChannelReadObserver {
             try {
 
             	// Turn the data of the packet into a new Message object named m
-                Message m = Message.createMessage( // This static factory method returns a new object or throws an exception
+                Message m = Message.createPooledMessage( // This static factory method returns a new object or throws an exception
                     header.array(),                // Give it the data of the packet header and payload we just downloaded
                 	payload.array(),
                 	receiver.getSoftMax(),         // Ask the ManagedConnection object the maximum value for hops + TTL for this remote computer
@@ -9,7 +9,6 @@ import java.io.IOException;
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.io.ChannelWriter;
 import com.limegroup.gnutella.io.InterestWriteChannel;
-import com.limegroup.gnutella.util.BufferByteArrayOutputStream;
 
 /**
  * Give a MessageWriter Gnutella packets and it will send them to the remote computer.
@@ -17,9 +16,12 @@ import com.limegroup.gnutella.util.BufferByteArrayOutputStream;
  * Here's how to send a Gnutella packet.
  * Make a MessageWriter object, and call the send(Message m) method on it.
  * The MessageWriter object puts the message in its message queue.
- * Then, it turns the message into data and writes it into a buffer named out.
+ * Then, it gets the message's data with Message.getEncoded() and points the buffer named out at it.
  * Finally, it writes the contents of the out buffer to the channel, which is the next object in the write chain.
  * 
+ * A packet we forward to many connections is only encoded once.
+ * Each connection's MessageWriter gets its own read-only view of the same bytes, so it doesn't have to copy them.
+ * 
  * This MessageWriter is the start of a chain of writers that send data out to a remote computer.
  * As a member of the writer chain, a MessageWriter can't just write when it wants to.
  * Instead, it connects to express an interest in writing, and then the next object in the chain calls it when it wants some data.
@@ -46,13 +48,12 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
     private final MessageQueue queue;
 
     /**
-     * The output stream that this MessageWriter object writes Gnutella packets into.
+     * The data of the Gnutella packet we're writing, or null if we're not in the middle of one.
      * 
-     * Call write(source) on a BufferByteArrayOutputStream to give it more data.
-     * It has a ByteBuffer inside, and will trade it in for a bigger one when necessary.
-     * Call writeTo(destination) to get all the data out.
+     * This is a read-only view of the bytes Message.getEncoded() made, which other connections sending the same packet share.
+     * Position and limit clip around the part of the packet we haven't given the channel yet.
      */
-    private final BufferByteArrayOutputStream out;
+    private ByteBuffer out;
 
     /**
      * A statistics object that counts how many Gnutella packets this MessageWriter sends, drops, and more.
@@ -87,18 +88,6 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
      */
     private InterestWriteChannel channel;
 
-    /**
-     * The BufferByteArrayOutputStream out contains a ByteBuffer you can get with out.buffer().
-     * This boolean, flipped, keeps track of what the position and limit in that buffer identify.
-     * At the start, flipped is false because the position and limit in the buffer clip out empty space.
-     * The writeRemaining method will flip the buffer to make position and limit clip out the data before the empty space.
-     * When it does this, it changes flipped to true.
-     * When all the data has been emptied to the channel, the method clears the buffer and sets flipped back to false again.
-     * 
-     * TODO: A flipped boolean like this one should be refactored into the object that contains the buffer, BufferByteArrayOutputStream
-     */
-    private boolean flipped = false;
-
     /**
      * True when the Shutdown method has run once to shut this object down.
      * When this is true, we stop accepting incoming messages and stop writing them.
@@ -138,9 +127,6 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
 
         // Set the channel this object will write to
         this.channel = sink;
-
-        // Make a new BufferByteArrayOutputStream that can grow to hold the data of the packets we will send
-        out = new BufferByteArrayOutputStream();
     }
 
     /**
@@ -252,8 +238,8 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
                 return false;
             }
 
-            // Write the message into the output buffer
-            m.writeQuickly(out);
+            // Point the output buffer at the message's data, encoding it if no other connection has yet
+            out = m.getEncoded();
 
             // Give the message to the ManagedConnection object that represents the remote computer we just sent it to, which will measure it for statistics
             sendHandler.processSentMessage(m);
@@ -272,11 +258,9 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
      * Tries to move all the data from out to channel, but can only write as much as the channel accepts.
      * Returns true if there is still data in out to send, false if we sent everything we had.
      * 
-     * This object has a ByteBufferArrayOutputStream, a type LimeWire defines.
-     * This type holds data in a ByteBuffer.
-     * The code here never calls compact on the ByteBuffer to shift the data back to the start.
-     * Instead, it empties the buffer and then marks it blank to start over.
-     * This is faster.
+     * The out buffer is a read-only view of a packet's encoded data that other connections may share.
+     * Writing moves our position forward without changing the data.
+     * When we've written all of it, we let it go.
      * 
      * @return True if there is still data in out left to write, false if we emptied it into the channel
      */
@@ -285,34 +269,21 @@ public class MessageWriter implements ChannelWriter, OutputRunner {
     	// If this MessageWriter is being shut down, don't write any more packets
         if (shutdown) throw new IOException("connection shut down.");
 
-        // Get a reference to the ByteBuffer inside the BufferByteArrayOutputStream
-        ByteBuffer buffer = out.buffer();
-
-        // If we've already flipped the buffer so position and limit clip around the data, or
-        // Position and length still clip around empty space, and we've written some data in the buffer that has moved position forward
-        if (flipped || buffer.position() > 0) {
-
-        	// If position and limit clip around the empty space at the end
-            if (!flipped) {
-
-            	// Flip the buffer to have them clip around the data at the start
-                buffer.flip();
-                flipped = true; // Record that position and length clip around the data now
-            }
+        // If we're in the middle of a packet
+        if (out != null) {
 
             // Move the data from the buffer into the channel
-            channel.write(buffer); // Moves position forward past the data in the buffer
+            channel.write(out); // Moves position forward past the data in the buffer
 
             // The write method didn't move position up to limit, it didn't take all the data
-            if (buffer.hasRemaining()) {
+            if (out.hasRemaining()) {
 
             	// Report we still have data to write
             	return true;
             }
 
-            // Reset the buffer
-            flipped = false; // Position and limit will clip out empty space again
-            buffer.clear();  // Move position to the start and limit to the end
+            // We're done with this packet
+            out = null;
         }
 
         // Report that we wrote all of the data in out into the channel
@@ -0,0 +1,19 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.IOException;
+
+/**
+ * Finds out when HTTPDownloader.doDownloadAsync(..) is done reading the body
+ * of a response.
+ */
+interface BodyObserver {
+
+    /**
+     * Called on the NIODispatcher thread when the body has been read, so this
+     * must not block.
+     *
+     * @param failure null if the download worked, or the exception
+     *  HTTPDownloader.doDownload() would have thrown
+     */
+    void bodyFinished(IOException failure);
+}
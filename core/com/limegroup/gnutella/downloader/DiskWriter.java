@@ -0,0 +1,415 @@
+package com.limegroup.gnutella.downloader;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.limegroup.gnutella.ErrorService;
+import com.limegroup.gnutella.util.FileUtils;
+import com.limegroup.gnutella.util.ManagedThread;
+
+/**
+ * Writes downloaded blocks to disk for VerifyingFiles, and verifies the
+ * chunks they complete.  There is one DiskWriter for each file system root,
+ * which on Windows means one for each drive, so a slow disk doesn't hold up
+ * downloads going to another one.<p>
+ *
+ * Blocks are not written as soon as they arrive.  The writer thread takes
+ * every block that is waiting, sorts them by file and offset, and writes
+ * each run of adjacent blocks with a single gathering write.  Downloads read
+ * 1 KB at a time, so a fast download turns 128 writes and seeks into a few.
+ * After a batch, each file that was written to verifies any chunks that
+ * are now complete.<p>
+ *
+ * Tasks added with invokeLater(..) run on the writer thread between batches,
+ * so they never run at the same time as a write or verification of the same
+ * file.  Like ProcessingQueue, the thread exits after it has been idle a
+ * few seconds, and is started again when more work comes in.
+ */
+final class DiskWriter implements Runnable {
+
+    private static final Log LOG = LogFactory.getLog(DiskWriter.class);
+
+    /** How long the writer thread waits for more work before exiting. */
+    private static final int IDLE_TIME = 5 * 1000;
+
+    /**
+     * The largest run buffer a writer keeps between batches.  Longer runs
+     * get a buffer of their own.
+     */
+    private static final int MAX_RUN_BUFFER = 256 * 1024;
+
+    /** Orders writes by the path of their file, then by offset. */
+    private static final Comparator BY_FILE_AND_OFFSET = new Comparator() {
+        public int compare(Object a, Object b) {
+            Write wa = (Write)a;
+            Write wb = (Write)b;
+            if(wa.file != wb.file) {
+                int c = wa.file.getPath().compareTo(wb.file.getPath());
+                if(c != 0)
+                    return c;
+            }
+            return wa.intvl.low - wb.intvl.low;
+        }
+    };
+
+    /**
+     * The DiskWriter for each file system root, keyed by the root's path.
+     * LOCKING: obtain WRITERS
+     */
+    private static final Map WRITERS = new HashMap();
+
+    /**
+     * Total statistics across all writers.
+     * LOCKING: obtain STATS_LOCK
+     */
+    private static final Object STATS_LOCK = new Object();
+    private static long _blocksWritten;
+    private static long _bytesWritten;
+    private static long _bytesCoalesced;
+    private static long _runsWritten;
+    private static int _maxQueueDepth;
+
+    /** The name of the writer thread. */
+    private final String NAME;
+
+    /**
+     * The blocks waiting to be written.
+     * LOCKING: obtain this
+     */
+    private List _writes = new ArrayList();
+
+    /**
+     * The tasks waiting to run.
+     * LOCKING: obtain this
+     */
+    private List _tasks = new ArrayList();
+
+    /**
+     * The thread that writes, or null if it isn't running.
+     * LOCKING: obtain this
+     */
+    private Thread _runner;
+
+    /**
+     * Buffers for reading back chunks to verify, keyed by size.  Only the
+     * writer thread touches this.
+     */
+    private final Map CHUNK_CACHE = new HashMap(20);
+
+    /**
+     * The buffer a run of several blocks is copied into, so it can be
+     * written with one positional write.  Only the writer thread touches
+     * this.
+     */
+    private ByteBuffer _runBuffer;
+
+    private DiskWriter(String name) {
+        NAME = name;
+    }
+
+    /**
+     * Returns the DiskWriter for the file system root the given file is on.
+     */
+    static DiskWriter forFile(File file) {
+        String root = FileUtils.getRoot(file);
+        synchronized(WRITERS) {
+            DiskWriter writer = (DiskWriter)WRITERS.get(root);
+            if(writer == null) {
+                writer = new DiskWriter("DiskWriter " + root);
+                WRITERS.put(root, writer);
+            }
+            return writer;
+        }
+    }
+
+    /**
+     * Queues a block to be written.
+     *
+     * @param file the file to write to
+     * @param intvl the range of the file the block covers
+     * @param buf the data, which belongs to the writer until file gets it
+     *  back in VerifyingFile.runWritten(..)
+     */
+    void write(VerifyingFile file, Interval intvl, byte[] buf) {
+        int depth;
+        synchronized(this) {
+            _writes.add(new Write(file, intvl, buf));
+            depth = _writes.size();
+            notify();
+            if(_runner == null)
+                startRunner();
+        }
+        synchronized(STATS_LOCK) {
+            if(depth > _maxQueueDepth)
+                _maxQueueDepth = depth;
+        }
+    }
+
+    /**
+     * Runs the given task on the writer thread, after the blocks that are
+     * already waiting have been written.
+     */
+    synchronized void invokeLater(Runnable task) {
+        _tasks.add(task);
+        notify();
+        if(_runner == null)
+            startRunner();
+    }
+
+    /**
+     * Returns a byte array of the specified size, using a cached one if
+     * possible.  Only call this from the writer thread.
+     */
+    byte[] getChunkBuf(int size) {
+        // cache only chunks size powers of two
+        // others are very unlikely to be reused
+        int exp;
+        for (exp = 1 ; exp < size ; exp*=2);
+        if (exp > size)
+            return new byte[size];
+
+        Integer i = new Integer(size);
+        byte [] ret = (byte []) CHUNK_CACHE.get(i);
+        if (ret == null) {
+            ret = new byte[size];
+            CHUNK_CACHE.put(i,ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Drops the cached verification buffers of every writer.
+     */
+    static void clearChunkCaches() {
+        List writers;
+        synchronized(WRITERS) {
+            writers = new ArrayList(WRITERS.values());
+        }
+        for(int i = 0; i < writers.size(); i++) {
+            final DiskWriter writer = (DiskWriter)writers.get(i);
+            writer.invokeLater(new Runnable() {
+                public void run() {
+                    writer.CHUNK_CACHE.clear();
+                }
+            });
+        }
+    }
+
+    /**
+     * Returns the number of blocks waiting to be written, across all the
+     * writers.
+     */
+    static int getQueueDepth() {
+        List writers;
+        synchronized(WRITERS) {
+            writers = new ArrayList(WRITERS.values());
+        }
+        int ret = 0;
+        for(int i = 0; i < writers.size(); i++) {
+            DiskWriter writer = (DiskWriter)writers.get(i);
+            synchronized(writer) {
+                ret += writer._writes.size();
+            }
+        }
+        return ret;
+    }
+
+    /** Returns the most blocks that have ever waited for one writer. */
+    static int getMaxQueueDepth() {
+        synchronized(STATS_LOCK) {
+            return _maxQueueDepth;
+        }
+    }
+
+    /** Returns the number of blocks written. */
+    static long getBlocksWritten() {
+        synchronized(STATS_LOCK) {
+            return _blocksWritten;
+        }
+    }
+
+    /** Returns the number of bytes written. */
+    static long getBytesWritten() {
+        synchronized(STATS_LOCK) {
+            return _bytesWritten;
+        }
+    }
+
+    /**
+     * Returns the number of bytes written as part of a run of more than one
+     * block.
+     */
+    static long getBytesCoalesced() {
+        synchronized(STATS_LOCK) {
+            return _bytesCoalesced;
+        }
+    }
+
+    /** Returns the number of writes made to disk. */
+    static long getRunsWritten() {
+        synchronized(STATS_LOCK) {
+            return _runsWritten;
+        }
+    }
+
+    private synchronized void startRunner() {
+        _runner = new ManagedThread(this, NAME);
+        // a little higher priority than normal
+        _runner.setPriority(Thread.NORM_PRIORITY+1);
+        _runner.setDaemon(true);
+        _runner.start();
+    }
+
+    /**
+     * Writes batches of blocks and runs tasks until there has been nothing
+     * to do for IDLE_TIME.
+     */
+    public void run() {
+        try {
+            while(true) {
+                List writes;
+                List tasks;
+                synchronized(this) {
+                    if(_writes.isEmpty() && _tasks.isEmpty()) {
+                        try {
+                            wait(IDLE_TIME);
+                        } catch(InterruptedException ignored) {}
+                        if(_writes.isEmpty() && _tasks.isEmpty())
+                            break;
+                    }
+                    writes = _writes;
+                    tasks = _tasks;
+                    _writes = new ArrayList();
+                    _tasks = new ArrayList();
+                }
+
+                if(!writes.isEmpty())
+                    writeBatch(writes);
+                for(int i = 0; i < tasks.size(); i++)
+                    ((Runnable)tasks.get(i)).run();
+            }
+        } finally {
+            // restart if something was added after we decided to exit, or
+            // if an exception is killing this thread.
+            synchronized(this) {
+                if(!_writes.isEmpty() || !_tasks.isEmpty())
+                    startRunner();
+                else
+                    _runner = null;
+            }
+        }
+    }
+
+    /**
+     * Sorts a batch of blocks by file and offset, writes each run of
+     * adjacent blocks at once, and then verifies the files written to.
+     */
+    private void writeBatch(List writes) {
+        Collections.sort(writes, BY_FILE_AND_OFFSET);
+        if(LOG.isTraceEnabled())
+            LOG.trace("writing batch of " + writes.size() + " blocks");
+
+        List files = new ArrayList();
+        int blocks = writes.size();
+        long bytes = 0;
+        long coalesced = 0;
+        int runs = 0;
+
+        int start = 0;
+        while(start < writes.size()) {
+            Write first = (Write)writes.get(start);
+            int end = start + 1;
+            while(end < writes.size()) {
+                Write prev = (Write)writes.get(end - 1);
+                Write next = (Write)writes.get(end);
+                if(next.file != first.file || next.intvl.low != prev.intvl.high + 1)
+                    break;
+                end++;
+            }
+
+            List run = writes.subList(start, end);
+            Write last = (Write)run.get(run.size() - 1);
+            int length = last.intvl.high - first.intvl.low + 1;
+
+            // Whatever goes wrong, the file has to get its buffers back and
+            // stop waiting for these blocks.
+            IOException failure = null;
+            try {
+                first.file.writeRun(first.intvl.low, getRunBuffer(run, length));
+            } catch(IOException diskIO) {
+                failure = diskIO;
+            } catch(Throwable t) {
+                ErrorService.error(t);
+                failure = (IOException)new IOException(t.getMessage()).initCause(t);
+            }
+            first.file.runWritten(run, failure);
+
+            if(files.isEmpty() || files.get(files.size() - 1) != first.file)
+                files.add(first.file);
+            bytes += length;
+            if(run.size() > 1)
+                coalesced += length;
+            runs++;
+            start = end;
+        }
+
+        synchronized(STATS_LOCK) {
+            _blocksWritten += blocks;
+            _bytesWritten += bytes;
+            _bytesCoalesced += coalesced;
+            _runsWritten += runs;
+        }
+
+        for(int i = 0; i < files.size(); i++)
+            ((VerifyingFile)files.get(i)).batchWritten(this);
+    }
+
+    /**
+     * Returns a buffer holding the data of a run of adjacent blocks.  A run
+     * of one block is just wrapped.  A longer one is copied into
+     * _runBuffer, or a new buffer if it won't fit.
+     */
+    private ByteBuffer getRunBuffer(List run, int length) {
+        if(run.size() == 1)
+            return ByteBuffer.wrap(((Write)run.get(0)).buf, 0, length);
+
+        ByteBuffer dst = _runBuffer;
+        if(dst == null || dst.capacity() < length) {
+            dst = ByteBuffer.allocate(length);
+            if(length <= MAX_RUN_BUFFER)
+                _runBuffer = dst;
+        }
+        dst.clear();
+        for(int i = 0; i < run.size(); i++) {
+            Write w = (Write)run.get(i);
+            dst.put(w.buf, 0, w.intvl.high - w.intvl.low + 1);
+        }
+        dst.flip();
+        return dst;
+    }
+
+    /**
+     * A block waiting to be written.
+     */
+    static final class Write {
+        final VerifyingFile file;
+        final Interval intvl;
+        final byte[] buf;
+
+        Write(VerifyingFile file, Interval intvl, byte[] buf) {
+            this.file = file;
+            this.intvl = intvl;
+            this.buf = buf;
+        }
+    }
+}
@@ -22,11 +22,16 @@ import com.limegroup.gnutella.settings.DownloadSettings;
 import com.limegroup.gnutella.statistics.DownloadStat;
 import com.limegroup.gnutella.tigertree.HashTree;
 import com.limegroup.gnutella.util.IntervalSet;
+import com.limegroup.gnutella.util.ManagedThread;
 
 /**
  * Class that performs the logic of downloading a file from a single host.
+ * 
+ * A worker runs on the WorkerPool.  It gives its thread back while it reads
+ * a body over NIO or waits in an uploader's queue, and when it's run again
+ * it picks up where it left off.
  */
-public class DownloadWorker implements Runnable {
+public class DownloadWorker implements Runnable, BodyObserver {
     /*
       
       Each potential downloader thats working in parallel does these steps
@@ -76,6 +81,13 @@ public class DownloadWorker implements Runnable {
       Note: The establishConnection thread waits for a limited amount of time 
       (about 9 seconds) and then checks the map for the socket anyway, if 
       there is no entry, it assumes the push failed and terminates.
+      
+      Between steps 2 and 3, and during step 3, the worker may not have a 
+      thread.  While it waits in a queue the timer will run it again, and 
+      while HTTPDownloader.doDownloadAsync reads the body the NIODispatcher 
+      will.  _step says where connectAndDownload picks up.  A source we 
+      can't read over NIO gets a thread of its own for step 3, so it doesn't 
+      hold up the pool.
 
     */
     private static final Log LOG = LogFactory.getLog(DownloadWorker.class);
@@ -139,16 +151,31 @@ public class DownloadWorker implements Runnable {
      * a method that will work under the circumstances.
      */
     private static final int RETRY_AFTER_SOME_ACTIVE = 60 * 10; // 10 minutes
+    
+    /** Values of _step, where connectAndDownload picks up when run. */
+    private static final int STEP_CONNECT = 0;   // step 1
+    private static final int STEP_REQUEST = 1;   // step 2
+    private static final int STEP_QUEUED = 2;    // step 2, done waiting in a queue
+    private static final int STEP_BODY = 3;      // step 3 on this thread
+    private static final int STEP_BODY_DONE = 4; // step 3 finished by doDownloadAsync
 
     private final ManagedDownloader _manager;
     private final RemoteFileDesc _rfd;
     private final VerifyingFile _commonOutFile;
     
     /**
-     * The thread Object of this worker
+     * The thread Object of this worker, or null while it has given its
+     * thread back.
+     * LOCKING: set and interrupt it holding THREAD_LOCK
      */
     private volatile Thread _myThread;
     
+    /**
+     * Held while setting _myThread and interrupting it, so interrupt() can't
+     * hit a thread this worker has already given back.
+     */
+    private final Object THREAD_LOCK = new Object();
+    
     /**
      * Whether I was interrupted before starting
      */
@@ -176,6 +203,30 @@ public class DownloadWorker implements Runnable {
      */
     private volatile boolean _shouldRelease;
     
+    /**
+     * Where connectAndDownload picks up the next time we're run.
+     */
+    private volatile int _step = STEP_CONNECT;
+    
+    /**
+     * Whether we think the host supports HTTP 1.1, as of the start of
+     * step 2.  See the note in connectAndDownload.
+     */
+    private volatile boolean _http11;
+    
+    /**
+     * The exception doDownloadAsync finished with, or null.
+     */
+    private volatile IOException _bodyFailure;
+    
+    /**
+     * Whether we're waiting in a queue, and how many times we have, so that
+     * waking up from an old wait does nothing.
+     * LOCKING: this
+     */
+    private boolean _queued;
+    private int _queueWaits;
+    
     DownloadWorker(ManagedDownloader manager, RemoteFileDesc rfd, 
             VerifyingFile vf, Object lock){
         _manager = manager;
@@ -190,20 +241,24 @@ public class DownloadWorker implements Runnable {
     public void run() {
         
         // first get a handle of our thread object
-        _myThread = Thread.currentThread();
+        Thread me = Thread.currentThread();
+        synchronized(THREAD_LOCK) {
+            _myThread = me;
+        }
         
         // if we'll be debugging, we want to distinguish the different workers
         if (LOG.isDebugEnabled()) {
-            _myThread.setName("DownloadWorker for "+_manager.getSaveFile().getName() +
-                    " #"+ _myThread.hashCode() );
+            me.setName("DownloadWorker for "+_manager.getSaveFile().getName() +
+                    " #"+ me.hashCode() );
         }
         
+        boolean finished = true;
         try {
             // if I was interrupted before being started, don't do anything.
-            if (_interrupted)
+            if (_interrupted && _step == STEP_CONNECT)
                 throw new InterruptedException();
             
-            connectAndDownload();
+            finished = connectAndDownload();
         }
         // Ignore InterruptedException -- the JVM throws
         // them for some reason at odd times, even though
@@ -219,10 +274,28 @@ public class DownloadWorker implements Runnable {
             //error in the GUI for debugging purposes.
             ErrorService.error(e);
         } finally {
-            _manager.workerFinished(this);
+            // we may already be running on another thread, which keeps it
+            synchronized(THREAD_LOCK) {
+                if (_myThread == me)
+                    _myThread = null;
+            }
+            // an interrupt() meant for us mustn't follow the thread back
+            // to the pool
+            Thread.interrupted();
+            if (finished)
+                _manager.workerFinished(this);
         }
     }
     
+    /**
+     * Called on the NIODispatcher thread when doDownloadAsync has read the
+     * body.  Has the WorkerPool run us again to finish step 3.
+     */
+    public void bodyFinished(IOException failure) {
+        _bodyFailure = failure;
+        WorkerPool.add(this);
+    }
+    
     /**
      * Top level method of the thread. Calls three methods 
      * a. Establish a TCP Connection.
@@ -230,10 +303,54 @@ public class DownloadWorker implements Runnable {
      * c. get the file.
      * Each of these steps can run into errors, which have to be dealt with
      * differently.
-     * @return true if this worker thread should notify, false otherwise.
-     * currently this method returns false iff NSEEx is  thrown. 
+     * Picks up at _step if this worker gave its thread back earlier.
+     * @return true if this worker is done, false if it will be run again
+     */
+    private boolean connectAndDownload() {
+        if(_step == STEP_QUEUED && _interrupted) {
+            if(LOG.isWarnEnabled())
+                LOG.warn("worker: interrupted while asleep in "+
+                  "queue" + _downloader);
+            _manager.removeQueuedWorker(this);
+            _downloader.stop(); //close connection
+            return true;
+        }
+        if(_step == STEP_CONNECT && !establish())
+            return true;
+        
+        while(true) {
+            if(_step == STEP_BODY || _step == STEP_BODY_DONE) {
+                // Step 3, or the rest of it if doDownloadAsync did the 
+                // download.  If the download failed, don't keep trying 
+                // to download.
+                boolean downloaded = false;
+                try {
+                    downloaded = doDownload(_http11);
+                }finally {
+                    _step = STEP_REQUEST;
+                    try {
+                        releaseRanges();
+                    } catch (AssertFailure bad) {
+                        throw new AssertFailure("downloaded "+downloaded+" worker failed "+getInfo()+
+                                " all workers: "+_manager.getWorkersInfo(),bad);
+                    }
+                }
+                if(!downloaded || !_http11)
+                    return true;
+            }
+            
+            if(!requestAndStartDownload())
+                return false;
+            if(_step == STEP_REQUEST)
+                return true;
+        }
+    }
+    
+    /**
+     * Step 1 of connectAndDownload.
+     * @return true if we have a downloader to continue with
      */
-    private void connectAndDownload() {
+    private boolean establish() {
         if(LOG.isTraceEnabled())
             LOG.trace("connectAndDownload for: " + _rfd);
         
@@ -247,7 +364,7 @@ public class DownloadWorker implements Runnable {
         // if we have a downloader at this point, it must be good to proceed or
         // it must be properly stopped.
         if(_downloader == null)
-            return;
+            return false;
         
         //initilaize the newly created HTTPDownloader with whatever AltLocs we
         //have discovered so far. These will be cleared out after the first
@@ -267,121 +384,140 @@ public class DownloadWorker implements Runnable {
             _downloader.addFailedAltLoc(current);
         }
         
+        _step = STEP_REQUEST;
+        return true;
+    }
+    
+    /**
+     * Step 2 of connectAndDownload, and the start of step 3.
+     * @return false if this worker gave its thread back and will be run
+     *  again, true otherwise.  If _step is still STEP_REQUEST, the worker is
+     *  done; otherwise, step 3 goes on with _step on this thread.
+     */
+    private boolean requestAndStartDownload() {
         //Note: http11 is true or false depending on what we think thevalue
         //should be for rfd is at the start, before connecting. We may later
         //find that the we are wrong, in which case we update the rfd's http11
         //value. But while we are in connectAndDownload we continue to use this
-        //local variable because the code is incapable of handling a change in
+        //value because the code is incapable of handling a change in
         //http11 status while inside connectAndDownload.
-        boolean http11 = true;//must enter the loop
         
-        while(http11) {
-            //Step 2. OK. We have established TCP Connection. This 
-            //downloader should choose a part of the file to download
-            //and send the appropriate HTTP hearders
-            //Note: 0=disconnected,1=tcp-connected,2=http-connected            
-            ConnectionStatus status;
-            http11 = _rfd.isHTTP11();
-            while(true) { 
-                //while queued, connect and sleep if we queued
+        //Step 2. OK. We have established TCP Connection. This 
+        //downloader should choose a part of the file to download
+        //and send the appropriate HTTP hearders
+        //Note: 0=disconnected,1=tcp-connected,2=http-connected            
+        ConnectionStatus status;
+        if(_step == STEP_REQUEST)
+            _http11 = _rfd.isHTTP11();
+        _step = STEP_REQUEST;
+        while(true) { 
+            //while queued, connect and sleep if we queued
 
-                // request thex
-                status = requestTHEXIfNeeded();
-                
-                // before requesting the next range,
-                // consume the prior request's body
-                // if there was any.
-                _downloader.consumeBodyIfNecessary();
-                _downloader.forgetRanges();
-                
-                // if we didn't get queued doing the tree request,
-                // request another file.
-                if (status == null || !status.isQueued()) {
-                        try {
-                            status = assignAndRequest(http11);
-                            
-                            // add any locations we may have received
-                            _manager.addPossibleSources(_downloader.getLocationsReceived());
-                        } finally {
-                            // clear ranges did not connect
-                        	try {
-                        		if( status == null || !status.isConnected() )
-                        			releaseRanges();
-                        	} catch (AssertFailure bad) {
-                        		throw new AssertFailure("status "+status+" worker failed "+getInfo()+
-                        				" all workers: "+_manager.getWorkersInfo(),bad);
-                        	}
-                        }
-                }
-                
-                if(status.isPartialData()) {
-                    // loop again if they had partial ranges.
-                    continue;
-                } else if(status.isNoFile() || status.isNoData()) {
-                    //if they didn't have the file or we didn't need data,
-                    //break out of the loop.
-                    break;
-                }
-                
-                // must be queued or connected.
-                Assert.that(status.isQueued() || status.isConnected());
-                boolean addQueued = _manager.killQueuedIfNecessary(this, 
-                        !status.isQueued()  ? -1 : status.getQueuePosition());
-                
-                // we should have been told to stay alive if we're connected
-                // but it's possible that we are above our swarm capacity
-                // and nothing else was queued, in which case we really should
-                // kill ourselves, but there's no reason to not accept the
-                // extra host.
-                if(status.isConnected())
-                    break;
-                
-                Assert.that(status.isQueued());
-                // if we didn't want to stay queued
-                // or we got interrupted while sleeping,
-                // then try other sources
-                if(!addQueued || handleQueued(status))
-                    return;
-            }
+            // request thex
+            status = requestTHEXIfNeeded();
             
+            // before requesting the next range,
+            // consume the prior request's body
+            // if there was any.
+            _downloader.consumeBodyIfNecessary();
+            _downloader.forgetRanges();
             
-            //we have been given a slot remove this thread from queuedThreads
-            _manager.removeQueuedWorker(this);
-
-            switch(status.getType()) {
-            case ConnectionStatus.TYPE_NO_FILE:
-                // close the connection for now.            
-                _downloader.stop();
-                return;            
-            case ConnectionStatus.TYPE_NO_DATA:
-                // close the connection since we're finished.
-                _downloader.stop();
-                return;
-            case ConnectionStatus.TYPE_CONNECTED:
+            // if we didn't get queued doing the tree request,
+            // request another file.
+            if (status == null || !status.isQueued()) {
+                    try {
+                        status = assignAndRequest(_http11);
+                        
+                        // add any locations we may have received
+                        _manager.addPossibleSources(_downloader.getLocationsReceived());
+                    } finally {
+                        // clear ranges did not connect
+                    	try {
+                    		if( status == null || !status.isConnected() )
+                    			releaseRanges();
+                    	} catch (AssertFailure bad) {
+                    		throw new AssertFailure("status "+status+" worker failed "+getInfo()+
+                    				" all workers: "+_manager.getWorkersInfo(),bad);
+                    	}
+                    }
+            }
+            
+            if(status.isPartialData()) {
+                // loop again if they had partial ranges.
+                continue;
+            } else if(status.isNoFile() || status.isNoData()) {
+                //if they didn't have the file or we didn't need data,
+                //break out of the loop.
                 break;
-            default:
-                throw new IllegalStateException("illegal status: " + 
-                                                status.getType());
             }
+            
+            // must be queued or connected.
+            Assert.that(status.isQueued() || status.isConnected());
+            boolean addQueued = _manager.killQueuedIfNecessary(this, 
+                    !status.isQueued()  ? -1 : status.getQueuePosition());
+            
+            // we should have been told to stay alive if we're connected
+            // but it's possible that we are above our swarm capacity
+            // and nothing else was queued, in which case we really should
+            // kill ourselves, but there's no reason to not accept the
+            // extra host.
+            if(status.isConnected())
+                break;
+            
+            Assert.that(status.isQueued());
+            // if we didn't want to stay queued
+            // then try other sources
+            if(!addQueued)
+                return true;
+            waitInQueue(status);
+            return false;
+        }
+        
+        
+        //we have been given a slot remove this thread from queuedThreads
+        _manager.removeQueuedWorker(this);
 
-            Assert.that(status.isConnected());
-            //Step 3. OK, we have successfully connected, start saving the
-            // file to disk
-            // If the download failed, don't keep trying to download.
-            boolean downloaded = false;
+        switch(status.getType()) {
+        case ConnectionStatus.TYPE_NO_FILE:
+            // close the connection for now.            
+            _downloader.stop();
+            return true;            
+        case ConnectionStatus.TYPE_NO_DATA:
+            // close the connection since we're finished.
+            _downloader.stop();
+            return true;
+        case ConnectionStatus.TYPE_CONNECTED:
+            break;
+        default:
+            throw new IllegalStateException("illegal status: " + 
+                                            status.getType());
+        }
+
+        Assert.that(status.isConnected());
+        //Step 3. OK, we have successfully connected, start saving the
+        // file to disk
+        if(_downloader.canDownloadAsync()) {
+            // have the NIODispatcher read the body, and give our thread back
+            _step = STEP_BODY_DONE;
+            _bodyFailure = null;
             try {
-                downloaded = doDownload(http11);
-                if(!downloaded)
-                    break;
-            }finally {
-                try {
-                    releaseRanges();
-                } catch (AssertFailure bad) {
-                    throw new AssertFailure("downloaded "+downloaded+" worker failed "+getInfo()+
-                            " all workers: "+_manager.getWorkersInfo(),bad);
-                }
+                _downloader.doDownloadAsync(this);
+                return false;
+            } catch(IOException closed) {
+                _bodyFailure = closed;
+                return true;
             }
-        } // end of while(http11)
+        }
+        
+        _step = STEP_BODY;
+        if(WorkerPool.isPoolThread()) {
+            // don't hold up the pool while we read the body
+            Thread bodyThread = new ManagedThread(this, "DownloadWorker");
+            bodyThread.setDaemon(true);
+            bodyThread.start();
+            return false;
+        }
+        return true;
     }
     
     private ConnectionStatus requestTHEXIfNeeded() {
@@ -450,35 +586,43 @@ public class DownloadWorker implements Runnable {
     }
     
     /**
-     * Handles a queued downloader with the given ConnectionStatus.
-     * BLOCKING (while sleeping).
-     *
-     * @return true if we need to tell the manager to churn another
-     *         connection and let this one die, false if we are
-     *         going to try this connection again.
+     * Handles a queued downloader with the given ConnectionStatus.  Has the
+     * timer wake us up when it's time to poll the uploader again, rather than
+     * holding a thread while we wait.
      */
-    private boolean handleQueued(ConnectionStatus status) {
-        try {
-            // make sure that we're not in _downloaders if we're
-            // sleeping/queued.  this would ONLY be possible
-            // if some uploader was misbehaved and queued
-            // us after we succesfully managed to download some
-            // information.  despite the rarity of the situation,
-            // we should be prepared.
-            _manager.removeActiveWorker(this);
-            
-            Thread.sleep(status.getQueuePollTime());//value from QueuedException
-            return false;
-        } catch (InterruptedException ix) {
-            if(LOG.isWarnEnabled())
-                LOG.warn("worker: interrupted while asleep in "+
-                  "queue" + _downloader);
-            _manager.removeQueuedWorker(this);
-            _downloader.stop(); //close connection
-            // notifying will make no diff, coz the next 
-            //iteration will throw interrupted exception.
-            return true;
+    private void waitInQueue(ConnectionStatus status) {
+        // make sure that we're not in _downloaders if we're
+        // sleeping/queued.  this would ONLY be possible
+        // if some uploader was misbehaved and queued
+        // us after we succesfully managed to download some
+        // information.  despite the rarity of the situation,
+        // we should be prepared.
+        _manager.removeActiveWorker(this);
+        
+        final int wait;
+        synchronized(this) {
+            _step = STEP_QUEUED;
+            _queued = true;
+            wait = ++_queueWaits;
+        }
+        RouterService.schedule(new Runnable() {
+            public void run() {
+                wakeFromQueue(wait);
+            }
+        }, status.getQueuePollTime(), 0);//value from QueuedException
+    }
+    
+    /**
+     * Has the WorkerPool run us again, if we're still in the queue wait
+     * with the given number.
+     */
+    private void wakeFromQueue(int wait) {
+        synchronized(this) {
+            if(!_queued || wait != _queueWaits)
+                return;
+            _queued = false;
         }
+        WorkerPool.add(this);
     }
     
     /** 
@@ -702,7 +846,13 @@ public class DownloadWorker implements Runnable {
             LOG.trace("WORKER: about to start downloading "+_downloader);
         boolean problem = false;
         try {
-            _downloader.doDownload();
+            if(_step == STEP_BODY_DONE) {
+                // doDownloadAsync already read the body
+                if(_bodyFailure != null)
+                    throw _bodyFailure;
+            } else {
+                _downloader.doDownload();
+            }
             _rfd.resetFailedCount();
             if(http11)
                 DownloadStat.SUCCESSFUL_HTTP11.incrementStat();
@@ -1272,8 +1422,16 @@ public class DownloadWorker implements Runnable {
         _interrupted = true;
         if (_downloader != null)
             _downloader.stop();
-        if (_myThread != null)
-            _myThread.interrupt();
+        synchronized(THREAD_LOCK) {
+            if (_myThread != null)
+                _myThread.interrupt();
+        }
+        // don't leave the manager waiting for a queue poll
+        int wait;
+        synchronized(this) {
+            wait = _queueWaits;
+        }
+        wakeFromQueue(wait);
     }
 
     
@@ -28,6 +28,7 @@ import com.limegroup.gnutella.BandwidthTrackerImpl;
 import com.limegroup.gnutella.ByteReader;
 import com.limegroup.gnutella.Constants;
 import com.limegroup.gnutella.CreationTimeCache;
+import com.limegroup.gnutella.ErrorService;
 import com.limegroup.gnutella.InsufficientDataException;
 import com.limegroup.gnutella.PushEndpoint;
 import com.limegroup.gnutella.PushEndpointForSelf;
@@ -44,6 +45,8 @@ import com.limegroup.gnutella.http.HTTPHeaderName;
 import com.limegroup.gnutella.http.HTTPHeaderValueCollection;
 import com.limegroup.gnutella.http.HTTPUtils;
 import com.limegroup.gnutella.http.ProblemReadingHeaderException;
+import com.limegroup.gnutella.io.NIODispatcher;
+import com.limegroup.gnutella.io.NIOSocket;
 import com.limegroup.gnutella.settings.ChatSettings;
 import com.limegroup.gnutella.settings.ConnectionSettings;
 import com.limegroup.gnutella.settings.DownloadSettings;
@@ -116,6 +119,18 @@ public class HTTPDownloader implements BandwidthTracker {
     private static final BandwidthThrottle THROTTLE =
         new BandwidthThrottle(Float.MAX_VALUE, false);
         
+    /**
+     * How long doDownloadAsync(..) waits for data before giving up, like
+     * the socket timeout doDownload() uses.
+     */
+    private static final int STALL_TIME = 1*60*1000;
+    
+    /**
+     * How long doDownloadAsync(..) waits before trying again when the
+     * VerifyingFile has too many blocks waiting to be written.
+     */
+    private static final int DISK_RETRY_TIME = 50;
+    
     /**
      * The throttle to use for UDP downloads.
      */
@@ -1679,6 +1694,245 @@ public class HTTPDownloader implements BandwidthTracker {
 	}
 
 
+    /**
+     * Determines if doDownloadAsync(..) can be used on this connection,
+     * which it can if it's over an NIOSocket.
+     */
+    public boolean canDownloadAsync() {
+        return _socket instanceof NIOSocket &&
+            DownloadSettings.NIO_DOWNLOADS.getValue();
+    }
+    
+    /**
+     * Downloads the content from the server like doDownload(), but without
+     * blocking.  The NIODispatcher thread reads the body as it arrives,
+     * without a thread waiting on it, and calls observer.bodyFinished(..)
+     * when it's done.
+     * 
+     * @requires canDownloadAsync(), and the same as doDownload()
+     * @exception IOException the socket was already closed, in which case
+     *  the observer won't be called
+     */
+    public void doDownloadAsync(BodyObserver observer) throws IOException {
+        BodyReader reader = new BodyReader(observer);
+        ((NIOSocket)_socket).setReadListener(reader);
+        RouterService.schedule(reader.STALL_CHECK, STALL_TIME, 0);
+    }
+    
+    /**
+     * Reads the body for doDownloadAsync(..).  The socket runs this on the
+     * NIODispatcher thread each time data arrives.  It reads what it can
+     * without blocking, writes it to the VerifyingFile, and returns.  When
+     * the throttle or the VerifyingFile say to wait, it has the timer run it
+     * again later.  The bookkeeping is the same as the loop in doDownload().
+     */
+    private class BodyReader implements Runnable {
+        
+        private final BodyObserver _observer;
+        
+        private final byte[] _buf = new byte[BUF_LENGTH];
+        
+        /** The position in the file of the next byte we read. */
+        private long _currPos = _initialReadingPoint;
+        
+        /**
+         * The number of bytes in _buf, starting at _pendingOffset, that we
+         * read but the VerifyingFile couldn't take yet.
+         */
+        private int _pending;
+        private int _pendingOffset;
+        
+        /** Whether the timer is going to run this again. */
+        private boolean _retrying;
+        
+        /** Whether we've told the observer we're finished. */
+        private boolean _done;
+        
+        /** The bytes read so far, and as of the last stall check. */
+        private long _progress;
+        private long _lastProgress;
+        
+        /**
+         * Runs on the timer every STALL_TIME, and checks that some data
+         * arrived since the last time.
+         */
+        final Runnable STALL_CHECK = new Runnable() {
+            public void run() {
+                NIODispatcher.instance().invokeLater(_socket.getChannel(), 
+                  new Runnable() {
+                    public void run() {
+                        checkStall();
+                    }
+                });
+            }
+        };
+        
+        BodyReader(BodyObserver observer) {
+            _observer = observer;
+        }
+        
+        public void run() {
+            if (_done)
+                return;
+            try {
+                readAvailable();
+            } catch (IOException e) {
+                finish(e);
+            } catch (RuntimeException e) {
+                // doDownload() would have thrown this up to its worker
+                ErrorService.error(e);
+                finish(new IOException(e.getMessage()));
+            }
+        }
+        
+        /**
+         * Reads and writes until we run out of data, bandwidth or buffers,
+         * or we've read everything.
+         */
+        private void readAvailable() throws IOException {
+            while (true) {
+                // first write anything the VerifyingFile couldn't take before
+                if (_pending > 0 && !writePending()) {
+                    retryLater(DISK_RETRY_TIME);
+                    return;
+                }
+                
+                // see how much we have left to read, if any
+                int left;
+                synchronized(HTTPDownloader.this) {
+                    if (!_isActive || _amountRead >= _amountToRead) {
+                        finish(null);
+                        return;
+                    }
+                    left = _amountToRead - _amountRead;
+                }
+                
+                if (_socket.isClosed())
+                    throw new IOException("socket closed");
+                int available = _input.available();
+                if (available == 0) {
+                    // at the end of the stream, or the socket will call us
+                    // again when more data arrives
+                    if (((NIOSocket)_socket).isInputFinished())
+                        finish(null);
+                    return;
+                }
+                
+                int toRead = THROTTLE.requestNow(
+                    Math.min(Math.min(BUF_LENGTH, left), available));
+                if (toRead == 0) {
+                    retryLater(THROTTLE.getMillisUntilNextTick());
+                    return;
+                }
+                int c = _input.read(_buf, 0, toRead);
+                if (c == -1) {
+                    finish(null);
+                    return;
+                }
+                _progress += c;
+                
+                if (_inNetwork)
+                    BandwidthStat.HTTP_BODY_DOWNSTREAM_INNETWORK_BANDWIDTH.addData(c);
+                else
+                    BandwidthStat.HTTP_BODY_DOWNSTREAM_BANDWIDTH.addData(c);
+                
+                synchronized(HTTPDownloader.this) {
+                    // skip until we reach the initial writing point
+                    int skipped = 0;
+                    while (_initialWritingPoint > _currPos && c > 0) {
+                        skipped++;
+                        _currPos++;
+                        c--;
+                        _amountRead++;
+                    }
+                    _pending = c;
+                    _pendingOffset = skipped;
+                }
+            }
+        }
+        
+        /**
+         * Writes the bytes we've read to the VerifyingFile, trimmed to what
+         * we still want.
+         * @return false if the VerifyingFile couldn't take them yet
+         */
+        private boolean writePending() {
+            synchronized(HTTPDownloader.this) {
+                int c = Math.min(_pending, _amountToRead - _amountRead);
+                if (_isActive && c > 0) {
+                    if (_pendingOffset > 0) {
+                        System.arraycopy(_buf, _pendingOffset, _buf, 0, c);
+                        _pendingOffset = 0;
+                    }
+                    if (!_incompleteFile.writeBlockNow(_currPos, c, _buf))
+                        return false;
+                    _amountRead += c;
+                    _currPos += c;
+                }
+                _pending = 0;
+                return true;
+            }
+        }
+        
+        /**
+         * Has the timer run this again after the given delay.
+         */
+        private void retryLater(long delay) {
+            if (_retrying)
+                return;
+            _retrying = true;
+            RouterService.schedule(new Runnable() {
+                public void run() {
+                    NIODispatcher.instance().invokeLater(_socket.getChannel(), 
+                      new Runnable() {
+                        public void run() {
+                            _retrying = false;
+                            BodyReader.this.run();
+                        }
+                    });
+                }
+            }, Math.max(delay, 1), 0);
+        }
+        
+        /**
+         * Fails the download if no data arrived since the last check, and
+         * otherwise schedules the next check.
+         */
+        private void checkStall() {
+            if (_done)
+                return;
+            if (_progress == _lastProgress && !_retrying) {
+                finish(new IOException("download stalled"));
+                return;
+            }
+            _lastProgress = _progress;
+            RouterService.schedule(STALL_CHECK, STALL_TIME, 0);
+        }
+        
+        /**
+         * Stops listening to the socket, and tells the observer how it went.
+         */
+        private void finish(IOException failure) {
+            if (_done)
+                return;
+            _done = true;
+            try {
+                ((NIOSocket)_socket).setReadListener(null);
+            } catch (IOException closed) {}
+            
+            synchronized(HTTPDownloader.this) {
+                if (failure == null && _amountRead < _amountToRead)
+                    failure = new FileIncompleteException();
+                _isActive = false;
+            }
+            _bodyConsumed = true;
+            if (!isHTTP11() || _disconnect)
+                failure = new IOException("stolen from");
+            
+            _observer.bodyFinished(failure);
+        }
+    }
+
     /** 
      * Stops this immediately.  This method is always safe to call.
      *     @modifies this
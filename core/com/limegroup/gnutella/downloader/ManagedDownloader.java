@@ -2278,20 +2278,17 @@ public class ManagedDownloader implements Downloader, MeshHandler, AltLocListene
     }
     
     /**
-     * Starts a new Worker thread for the given RFD.
+     * Starts a new Worker for the given RFD on the WorkerPool.
      */
     private void startWorker(final RemoteFileDesc rfd) {
         DownloadWorker worker = new DownloadWorker(this,rfd,commonOutFile,stealLock);
-        Thread connectCreator = new ManagedThread(worker);
-        
-        connectCreator.setName("DownloadWorker");
         
         synchronized(this) {
             _workers.add(worker);
             currentRFDs.add(rfd);
         }
 
-        connectCreator.start();
+        WorkerPool.add(worker);
     }        
     
     /**
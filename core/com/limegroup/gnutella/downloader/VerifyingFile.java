@@ -1,13 +1,15 @@
 package com.limegroup.gnutella.downloader;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
 import java.util.NoSuchElementException;
 import java.util.Stack;
 
@@ -16,10 +18,10 @@ import org.apache.commons.logging.LogFactory;
 
 import com.limegroup.gnutella.Assert;
 import com.limegroup.gnutella.RouterService;
+import com.limegroup.gnutella.settings.DownloadSettings;
 import com.limegroup.gnutella.tigertree.HashTree;
 import com.limegroup.gnutella.util.FileUtils;
 import com.limegroup.gnutella.util.IntervalSet;
-import com.limegroup.gnutella.util.ProcessingQueue;
 
 /**
  * A control point for all access to the file being downloaded to, also does 
@@ -39,18 +41,14 @@ import com.limegroup.gnutella.util.ProcessingQueue;
  *   Lease a block - find an area which is available for download and claim it
  *   Write a block - report that the specified block has been read from the network.
  *   Release a block - report that the specified block will not be downloaded.
+ * 
+ * Written blocks are handed to the DiskWriter for the disk the file is on,
+ * which writes them in batches and verifies the chunks they complete.
  */
 public class VerifyingFile {
     
     private static final Log LOG = LogFactory.getLog(VerifyingFile.class);
     
-    /**
-     * The thread that does the actual verification & writing
-     */
-    private static final ProcessingQueue QUEUE = new ProcessingQueue("BlockingVF", 
-            true, // managed 
-            Thread.NORM_PRIORITY+1); // a little higher priority than normal
-    
     /**
      * Do not queue up more than this many chunks otherwise the queue grows unbounded
      */
@@ -82,13 +80,33 @@ public class VerifyingFile {
      */
     private static int numCreated;
     
-    /** a bunch of cached byte[]s for verifyable chunks */
-    private static final Map CHUNK_CACHE = new HashMap(20);
-    
     /**
      * The file we're writing to / reading from.
      */
     private volatile RandomAccessFile fos;
+
+    /**
+     * The path of the file, which DiskWriter sorts blocks by.
+     */
+    private volatile String path = "";
+    
+    /**
+     * The channel of fos.  Only the DiskWriter thread writes to it, and all
+     * reads and writes give their own position, so nothing locks it.
+     */
+    private volatile FileChannel channel;
+    
+    /**
+     * The whole file mapped into memory, or null if we write through the
+     * channel.  Mapping grows the file to its completed size right away.
+     * See DownloadSettings.MAX_MAPPED_INCOMPLETE_SIZE.
+     */
+    private volatile MappedByteBuffer map;
+    
+    /**
+     * The thread that does the actual verification & writing
+     */
+    private volatile DiskWriter writer;
     
     /**
      * Whether this file is open for writing
@@ -206,6 +224,21 @@ public class VerifyingFile {
         }
         FileUtils.setWriteable(file);
         this.fos =  new RandomAccessFile(file,"rw");
+        this.path = file.getPath();
+        FileChannel fc = fos.getChannel();
+        MappedByteBuffer mapped = null;
+        if (completedSize > 0 && 
+            completedSize <= DownloadSettings.MAX_MAPPED_INCOMPLETE_SIZE.getValue()) {
+            try {
+                mapped = fc.map(FileChannel.MapMode.READ_WRITE, 0, completedSize);
+            } catch(IOException iox) {
+                // write through the channel instead
+                LOG.debug("unable to map " + file, iox);
+            }
+        }
+        this.channel = fc;
+        this.map = mapped;
+        this.writer = DiskWriter.forFile(file);
         SelectionStrategy myStrategy = SelectionStrategyFactory.getStrategyFor(
                 FileUtils.getFileExtension(file), completedSize);
         
@@ -215,6 +248,12 @@ public class VerifyingFile {
             // Figure out which SelectionStrategy to use
             blockChooser = myStrategy;
             isOpen = true;
+            
+            // if we got a tree before we were opened, verify what we have
+            if (hashTree != null && 
+                pendingBlocks.getSize() == 0 && 
+                partialBlocks.getSize() > 0)
+                writer.invokeLater(new EmptyVerifier(writer));
         }
     }
 
@@ -240,23 +279,50 @@ public class VerifyingFile {
      * @throws InterruptedException if the downloader gets killed during the process
      */
     public void writeBlock(long currPos, int length, byte[] buf) 
+    throws InterruptedException {
+        writeBlock(currPos, length, buf, true);
+    }
+    
+    /**
+     * Writes bytes to the underlying file, unless that would mean waiting
+     * for the blocks already queued to be written.  For callers that can't
+     * block, like the NIODispatcher thread.
+     * @return false if nothing was written and the caller should try again
+     *  later, true otherwise
+     */
+    public boolean writeBlockNow(long currPos, int length, byte[] buf) {
+        try {
+            return writeBlock(currPos, length, buf, false);
+        } catch(InterruptedException impossible) {
+            throw new IllegalStateException("interrupted without waiting");
+        }
+    }
+    
+    /**
+     * Writes bytes to the underlying file.
+     * @param block whether to wait for a free buffer if all are in use
+     * @return false if block is false and there was no free buffer
+     */
+    private boolean writeBlock(long currPos, int length, byte[] buf, boolean block)
     throws InterruptedException {
         
         if (LOG.isTraceEnabled())
             LOG.trace(" trying to write block at offset "+currPos+" with size "+length);
         
         if(buf.length==0) //nothing to write? return
-            return;
+            return true;
         if(fos == null)
             throw new IllegalStateException("no fos!");
         
         if (!isOpen())
-            return;
+            return true;
 		
 		Interval intvl = new Interval(currPos,currPos+length-1);
 		
         
-        byte [] temp = getBuffer();
+        byte [] temp = getBuffer(block);
+        if (temp == null)
+            return false;
         Assert.that(temp.length >= length);
         
         synchronized(this) {
@@ -277,11 +343,16 @@ public class VerifyingFile {
         }
         
         System.arraycopy(buf,0,temp,0,length);
-        QUEUE.add(new ChunkHandler(temp,intvl));
-        
+        writer.write(this, intvl, temp);
+        return true;
     }
     
-    private static byte [] getBuffer() throws InterruptedException {
+    /**
+     * Returns a buffer from the cache, or a new one if we haven't made too
+     * many.  Otherwise waits for one to be returned, or returns null if
+     * block is false.
+     */
+    private static byte [] getBuffer(boolean block) throws InterruptedException {
         byte [] temp = null;
         synchronized(CACHE) {
             while (true) {
@@ -291,7 +362,9 @@ public class VerifyingFile {
                     temp = new byte[HTTPDownloader.BUF_LENGTH];
                     numCreated++;
                     return temp;
-                } else 
+                } else if (!block)
+                    return null;
+                else 
                     CACHE.wait();   
             }
         }
@@ -430,8 +503,34 @@ public class VerifyingFile {
         return pendingBlocks.getSize();
     }
     
+    /**
+     * Returns the number of blocks waiting to be written, for all files.
+     */
     public static int getNumPendingItems() {
-        return QUEUE.size();
+        return DiskWriter.getQueueDepth();
+    }
+    
+    /**
+     * Returns the most blocks that have ever waited to be written to one
+     * disk.
+     */
+    public static int getMaxPendingItems() {
+        return DiskWriter.getMaxQueueDepth();
+    }
+    
+    /**
+     * Returns the number of bytes that were written together with the
+     * blocks next to them, rather than with a write of their own.
+     */
+    public static long getBytesCoalesced() {
+        return DiskWriter.getBytesCoalesced();
+    }
+    
+    /**
+     * Returns the number of bytes written to disk, for all files.
+     */
+    public static long getBytesWritten() {
+        return DiskWriter.getBytesWritten();
     }
     
     /**
@@ -510,6 +609,10 @@ public class VerifyingFile {
         isOpen = false;
         if(fos==null)
             return;
+        MappedByteBuffer mapped = map;
+        map = null;
+        if (mapped != null)
+            mapped.force();
         try { 
             fos.close();
         } catch (IOException ioe) {}
@@ -602,8 +705,9 @@ public class VerifyingFile {
         if (previoius == null && 
             tree != null &&
             pendingBlocks.getSize() == 0 && 
-            partialBlocks.getSize() > 0) 
-            QUEUE.add(new EmptyVerifier());
+            partialBlocks.getSize() > 0 &&
+            writer != null) 
+            writer.invokeLater(new EmptyVerifier(writer));
     }
     
     /**
@@ -627,17 +731,85 @@ public class VerifyingFile {
     
 
     
+    /**
+     * Returns the path of the file, or "" if it hasn't been opened.
+     */
+    String getPath() {
+        return path;
+    }
+
+    /**
+     * Writes a run of adjacent blocks starting at pos, with positional
+     * writes that leave the channel's position alone.  Only the DiskWriter
+     * calls this, from its thread.
+     */
+    void writeRun(long pos, ByteBuffer src) throws IOException {
+        MappedByteBuffer mapped = map;
+        if (mapped != null) {
+            ByteBuffer dst = mapped.duplicate();
+            dst.position((int)pos);
+            dst.put(src);
+            return;
+        }
+        
+        FileChannel fc = channel;
+        int start = src.position();
+        while (src.hasRemaining())
+            fc.write(src, pos + src.position() - start);
+    }
+    
+    /**
+     * Records that a run of blocks the DiskWriter took from writeBlock(..)
+     * has been written, or failed to be, and takes back their buffers.
+     * 
+     * @param run the DiskWriter.Writes of the blocks
+     * @param failure the exception writing them threw, or null
+     */
+    void runWritten(List run, IOException failure) {
+        if (LOG.isTraceEnabled())
+            LOG.trace("Wrote " + run.size() + " blocks, failure: " + failure);
+        
+        synchronized(this) {
+            for (int i = 0; i < run.size(); i++) {
+                Interval intvl = ((DiskWriter.Write)run.get(i)).intvl;
+                pendingBlocks.delete(intvl);
+                if (failure == null)
+                    partialBlocks.add(intvl);
+            }
+            if (failure != null)
+                storedException = failure;
+        }
+        
+        // return the buffers to the cache
+        synchronized(CACHE) {
+            for (int i = 0; i < run.size(); i++)
+                CACHE.push(((DiskWriter.Write)run.get(i)).buf);
+            CACHE.notifyAll();
+        }
+    }
+    
+    /**
+     * Verifies any chunks the DiskWriter's last batch completed, and wakes
+     * up a thread in waitForPendingIfNeeded().
+     */
+    void batchWritten(DiskWriter diskWriter) {
+        verifyChunks(diskWriter);
+        synchronized(this) {
+            notify();
+        }
+    }
+    
 	/**
 	 * Schedules those chunks that can be verified against the hash tree
 	 * for verification.
 	 */
-	private void verifyChunks() {
+	private void verifyChunks(DiskWriter diskWriter) {
 	    HashTree tree = getHashTree(); // capture the tree.
 	    if(tree != null) {
             // if we have a tree, see if there is a completed chunk in the partial list
             for (Iterator iter = findVerifyableBlocks().iterator(); iter.hasNext();)  {
                 Interval i = (Interval)iter.next();
-                boolean good = verifyChunk(i, tree);
+                boolean good = verifyChunk(i, tree, diskWriter);
                 
                 synchronized(this) {
                     partialBlocks.delete(i);
@@ -656,18 +828,15 @@ public class VerifyingFile {
     /**
      * @return whether this chunk is corrupt according to the given hash tree
      */
-    private boolean verifyChunk(Interval i, HashTree tree) {
+    private boolean verifyChunk(Interval i, HashTree tree, DiskWriter diskWriter) {
         if (LOG.isDebugEnabled())
             LOG.debug("verifying interval "+i);
         
         
-        byte []b = getChunkBuf(i.high - i.low+1);
+        byte []b = diskWriter.getChunkBuf(i.high - i.low+1);
         // read the interval from the file
         try {
-			synchronized(fos) {
-				fos.seek(i.low);
-				fos.readFully(b);
-			}
+            readFully(i.low, b);
         } catch (IOException bad) {
             // we failed reading back from the file - assume block is corrupt
             // and it will have to be re-downloaded
@@ -683,26 +852,23 @@ public class VerifyingFile {
     }
     
     /**
-     * @return a byte array of the specified size, using cached one
-     * if possible.
+     * Reads b.length bytes starting at pos from the file into b.
      */
-	private static byte [] getChunkBuf(int size) {
-
-		// cache only chunks size powers of two
-		// others are very unlikely to be reused
-		int exp;
-		for (exp = 1 ; exp < size ; exp*=2);
-		if (exp > size) 
-			return new byte[size];
-		
-		Integer i = new Integer(size);
-		byte [] ret = (byte []) CHUNK_CACHE.get(i);
-		if (ret == null) {
-			ret = new byte[size];
-			CHUNK_CACHE.put(i,ret);
-		} 
-		return ret;
-	}
+    private void readFully(long pos, byte[] b) throws IOException {
+        MappedByteBuffer mapped = map;
+        if (mapped != null) {
+            ByteBuffer src = mapped.duplicate();
+            src.position((int)pos);
+            src.get(b);
+            return;
+        }
+        
+        ByteBuffer dst = ByteBuffer.wrap(b);
+        while (dst.hasRemaining()) {
+            if (channel.read(dst, pos + dst.position()) == -1)
+                throw new EOFException();
+        }
+    }
 	
     /**
      * iterates through the pending blocks and checks if the recent write has created
@@ -748,63 +914,15 @@ public class VerifyingFile {
         return verifyable;
     }
     
-    /**
-     * Runnable that writes chunks to disk & verifies partial blocks.
-     */
-    private class ChunkHandler implements Runnable {
-        /** The buffer we are about to write to the file */
-        private final byte[] buf;
-        
-        /** The interval that we are about to write */
-        private final Interval intvl;
+    private class EmptyVerifier implements Runnable {
+        private final DiskWriter diskWriter;
         
-        public ChunkHandler(byte[] buf, Interval intvl) {
-            this.buf = buf;
-            this.intvl = intvl;
+        EmptyVerifier(DiskWriter diskWriter) {
+            this.diskWriter = diskWriter;
         }
         
         public void run() {
-            boolean freedPending = false;
-    		try {
-    		    if(LOG.isTraceEnabled())
-    		        LOG.trace("Writing intvl: " + intvl);
-                
-    			synchronized(fos) {
-    				fos.seek(intvl.low);
-    				fos.write(buf, 0, intvl.high - intvl.low + 1);
-    			}
-    			
-    			synchronized(VerifyingFile.this) {
-    			    pendingBlocks.delete(intvl);
-    			    partialBlocks.add(intvl);
-                    freedPending = true;
-    			}
-    			
-    			verifyChunks();
-            } catch(IOException diskIO) {
-                synchronized(VerifyingFile.this) {
-                    pendingBlocks.delete(intvl);
-                    storedException = diskIO;
-                }
-            } finally {
-                // return the buffer to the cache
-                synchronized(CACHE) {
-                    CACHE.push(buf);
-                    CACHE.notifyAll();
-                }
-                
-                synchronized(VerifyingFile.this) {
-                    if (!freedPending)
-                        pendingBlocks.delete(intvl);
-                    VerifyingFile.this.notify(); 
-                }
-            }
-        }
-	}
-    
-    private class EmptyVerifier implements Runnable {
-        public void run() {
-            verifyChunks();
+            verifyChunks(diskWriter);
             synchronized(VerifyingFile.this) {
                 VerifyingFile.this.notify();
             }
@@ -820,13 +938,7 @@ public class VerifyingFile {
                 numCreated -= size;
                 CACHE.notifyAll();
             }
-            QUEUE.add(new ChunkCacheCleaner());
+            DiskWriter.clearChunkCaches();
         }
     }
-    
-    private static class ChunkCacheCleaner implements Runnable {
-    	public void run() {
-    		CHUNK_CACHE.clear();
-    	}
-    }
 }
@@ -0,0 +1,138 @@
+package com.limegroup.gnutella.downloader;
+
+import java.util.LinkedList;
+import java.util.List;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import com.limegroup.gnutella.ErrorService;
+import com.limegroup.gnutella.settings.DownloadSettings;
+import com.limegroup.gnutella.util.ManagedThread;
+
+/**
+ * The threads DownloadWorkers run on.  There are at most
+ * DownloadSettings.DOWNLOAD_WORKER_THREADS of them for all downloads
+ * together, however many sources there are.<p>
+ *
+ * A worker uses a thread to connect and exchange headers, which is quick.
+ * It doesn't hold one while it's reading a body over NIO or waiting in an
+ * uploader's queue.  It returns instead, and adds itself back here when
+ * there's more to do.  Threads that have nothing to do for IDLE_TIME exit,
+ * and are started again when needed.
+ */
+final class WorkerPool {
+
+    private static final Log LOG = LogFactory.getLog(WorkerPool.class);
+
+    /** How long a thread waits for work before exiting. */
+    private static final int IDLE_TIME = 60 * 1000;
+
+    /**
+     * The Runnables waiting for a thread.
+     * LOCKING: obtain QUEUE
+     */
+    private static final List QUEUE = new LinkedList();
+
+    /**
+     * The number of threads running, and how many of them are waiting for
+     * work.
+     * LOCKING: obtain QUEUE
+     */
+    private static int _threads;
+    private static int _idle;
+
+    private WorkerPool() {}
+
+    /**
+     * Runs the given Runnable on one of the pool's threads, as soon as one
+     * is free.
+     */
+    static void add(Runnable r) {
+        synchronized(QUEUE) {
+            QUEUE.add(r);
+            if(_idle > 0)
+                QUEUE.notify();
+            else if(_threads < DownloadSettings.DOWNLOAD_WORKER_THREADS.getValue())
+                startThread();
+        }
+    }
+
+    /**
+     * Determines if the calling thread is one of the pool's.
+     */
+    static boolean isPoolThread() {
+        return Thread.currentThread() instanceof PoolThread;
+    }
+
+    /**
+     * Returns the number of threads in the pool right now.
+     */
+    static int getThreadCount() {
+        synchronized(QUEUE) {
+            return _threads;
+        }
+    }
+
+    /**
+     * Returns the number of Runnables waiting for a thread.
+     */
+    static int getQueueSize() {
+        synchronized(QUEUE) {
+            return QUEUE.size();
+        }
+    }
+
+    /** Starts a new thread.  Hold QUEUE when calling this. */
+    private static void startThread() {
+        _threads++;
+        Thread t = new PoolThread();
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /** A thread of the pool, so isPoolThread() can tell. */
+    private static class PoolThread extends ManagedThread {
+        PoolThread() {
+            super(new Runner(), "DownloadWorker");
+        }
+    }
+
+    /**
+     * Takes Runnables off the queue and runs them until there's been
+     * nothing to run for IDLE_TIME.
+     */
+    private static class Runner implements Runnable {
+        public void run() {
+            while(true) {
+                Runnable next;
+                synchronized(QUEUE) {
+                    if(QUEUE.isEmpty()) {
+                        _idle++;
+                        try {
+                            QUEUE.wait(IDLE_TIME);
+                        } catch(InterruptedException ignored) {
+                        } finally {
+                            _idle--;
+                        }
+                    }
+                    if(QUEUE.isEmpty()) {
+                        _threads--;
+                        return;
+                    }
+                    next = (Runnable)QUEUE.remove(0);
+                }
+
+                // a worker that was interrupted while it ran here
+                // shouldn't pass that on to the next one.
+                Thread.interrupted();
+                try {
+                    next.run();
+                } catch(Throwable t) {
+                    LOG.debug("worker threw", t);
+                    ErrorService.error(t);
+                }
+            }
+        }
+    }
+}
@@ -1,14 +1,11 @@
 package com.limegroup.gnutella.filters;
 
-import java.util.HashSet;
 import java.util.Set;
 
-import com.limegroup.gnutella.GUID;
+import com.limegroup.gnutella.Assert;
 import com.limegroup.gnutella.messages.Message;
 import com.limegroup.gnutella.messages.PingRequest;
 import com.limegroup.gnutella.messages.QueryRequest;
-import com.limegroup.gnutella.util.Buffer;
-import com.limegroup.gnutella.xml.LimeXMLDocument;
 
 /**
  * A spam filter that tries to eliminate duplicate packets from
@@ -28,21 +25,15 @@ import com.limegroup.gnutella.xml.LimeXMLDocument;
  */
 public class DuplicateFilter extends SpamFilter {  
     /**
-     * The number of old pings to keep in memory.  If this is too small, we
-     * won't be filtering properly.  If this is too large, lookup becomes
-     * expensive.  Assuming 10 messages arrive per second, this allows for 1
-     * second worth of history. 
-     *
-     * INVARIANT: BUF_SIZE>1 
+     * The number of recent pings and queries whose GUIDs we remember at
+     * first.  This only has to cover GUID_LAG milliseconds of messages, so
+     * it's enough for 256 messages a second.  If they come faster, the ring
+     * grows to keep GUID_LAG of them, up to MAX_GUID_CAPACITY, which bounds
+     * the memory each connection's filter uses.
      */
-
-    private static final int BUF_SIZE=20;
-    /** a list of the GUIDs of the last pings we saw and
-     * their timestamps. 
-     *
-     * INVARIANT: the youngest entries have largest timestamps
-     */
-    private Buffer /* of GUIDPair */ guids=new Buffer(BUF_SIZE);
+    private static final int GUID_CAPACITY=128;
+    /** The most pings and queries whose GUIDs we remember. */
+    private static final int MAX_GUID_CAPACITY=4096;
     /** The time, in milliseconds, allowed between similar messages. */
     private static final int GUID_LAG=500;
     /** 
@@ -52,42 +43,46 @@ public class DuplicateFilter extends SpamFilter {
      * message will not be allowed thro'
      */
     private static final int TOLERANCE=2;
+    /**
+     * The GUID is split into TOLERANCE+1 bands of bytes, which are indexed
+     * separately.  If two GUIDs differ in at most TOLERANCE bytes, at least
+     * one of their bands is the same, so we only have to compare against the
+     * GUIDs that share a band with this one.  BANDS[i] is the first byte of
+     * band i, and BANDS[TOLERANCE+1] is the end of the GUID.
+     */
+    private static final int[] BANDS=bands(16, TOLERANCE+1);
+
+    /**
+     * The GUIDs of the last pings and queries we saw, indexed by band.  The
+     * data of each slot is the 16 bytes of the message's GUID, then its hops.
+     */
+    private final RecentIndex guids=new RecentIndex(
+        GUID_CAPACITY, MAX_GUID_CAPACITY, GUID_LAG, TOLERANCE+1, 17);
 
 
 
     /**
-     * To efficiently look up queries, we maintain a hash set of query/hops
-     * pairs.  (A balanced tree didn't work as well.)  The only problem is that
-     * we must expire entries from this set that are more than a few seconds
-     * old.  We approximate this FIFO behavior by maintaining two sets of
-     * queries and swapping them around.<p>
-     *
-     * For the moment assume a constant stream of queries.  Every Q=QUERY_LAG
-     * milliseconds, a query triggers the "promotion" of newQueries" to
-     * oldQueries.  Hence youngQueries consists of queries that are up to Q
-     * seconds old, and oldQueries consists of queries that are up to 2*Q
-     * seconds old.  At the time of the promotion, entries in youngQueries have
-     * an average age of Q/2.  So the time-averaged filter window time N
-     * described above is (Q/2+(Q+Q/2))/2=Q.  But for any given query, N may be
-     * as large as 2*Q and as small as Q.
-     *
-     * Things get more complicated if we don't have a steady stream of queries.
-     * One error would be two simply promote youngQueries when receiving the
-     * first query after the last promotion.  This would mean, for example, that
-     * very slow queries exclusively for "X" would always be blocked.  Hence if
-     * more than 2*Q seconds has elapsed since the last promotion, we simply
-     * clear both sets.  This means that the maximum window size N can actually
-     * be as high as 3*Q if there is little traffic.  
+     * A query is a duplicate if we allowed a query with the same hash within
+     * the last QUERY_LAG milliseconds.  The hash covers the query string, the
+     * hops, the rich query, the URNs, and the meta flags, which is what made
+     * two queries equal before.  We keep the hashes in a ring instead of
+     * swapping two sets of query objects, so nothing is allocated per query
+     * and the window is the same for every query.  Queries we block aren't
+     * added, so a steady stream of repeats can't hold the window open.
      */
     private static final int QUERY_LAG=1500;
-    /** The system time when we will promote youngQueries. */
-    private long querySwapTime=0;
-    /** The system time when we will clear both sets. 
-     *  INVARIANT: queryClearTime=querySwapTime+QUERY_LAG. */
-    private long queryClearTime=QUERY_LAG;
-    /** INVARIANT: youngQueries and oldQueries are disjoint. */
-    private Set /* of QueryPair */ youngQueries=new HashSet();
-    private Set /* of QueryPair */ oldQueries=new HashSet();
+    /**
+     * The number of recent queries we remember at first.  This only has to
+     * cover QUERY_LAG milliseconds of queries, so it's enough for about 170
+     * a second.  If they come faster, the ring grows to keep QUERY_LAG of
+     * them, up to MAX_QUERY_CAPACITY.
+     */
+    private static final int QUERY_CAPACITY=256;
+    /** The most queries we remember. */
+    private static final int MAX_QUERY_CAPACITY=4096;
+    /** The hashes of the last queries we allowed. */
+    private final RecentIndex queries=new RecentIndex(
+        QUERY_CAPACITY, MAX_QUERY_CAPACITY, QUERY_LAG, 1, 0);
     
 
     /** Returns the approximate system time in milliseconds. */
@@ -116,149 +111,121 @@ public class DuplicateFilter extends SpamFilter {
         if (! ((m instanceof QueryRequest) || (m instanceof PingRequest)))
             return true;
 
-        GUIDPair me=new GUIDPair(m.getGUID(), getTime(), m.getHops());
-
-        //Consider all messages that came in within GUID_LAG milliseconds 
-        //of this...
-        int z = guids.getSize();
-        for(int j=0; j<z ; j++){             
-            GUIDPair other=(GUIDPair)guids.get(j);
-            //The following assertion fails for mysterious reasons on the
-            //Macintosh.  Also, it can fail if the user adjusts the clock, e.g.,
-            //for daylight savings time.  Luckily it need not hold for the code
-            //to work correctly.  
-            //  Assert.that(me.time>=other.time,"Unexpected clock behavior");
-            if ((me.time-other.time) > GUID_LAG)
-                //All remaining pings have smaller timestamps.
-                break;
-            //If different hops, keep looking
-            if (other.hops != me.hops)
-                continue;
-            //Are the GUIDs similar?.  TODO3: can optimize
-            int misses=0;
-            for (int i=0; i<me.guid.length&&misses<=TOLERANCE; i++) {
-                if (me.guid[i]!=other.guid[i])
-                    misses++;
-            }
-            if (misses<=TOLERANCE) {//really close GUIDS
-                guids.add(me);
-                return false;
-            }
-        }
-        guids.add(me);
-        return true;        
-    }
-       
-    public boolean allowQuery(QueryRequest qr) {
-        //Update sets as needed.
+        byte[] guid=m.getGUID();
+        byte hops=m.getHops();
         long time=getTime();
-        if (time > querySwapTime) {
-            if (time <= queryClearTime) {
-                //A little time has passed.  Promote youngQueries.
-                Set tmp=oldQueries;
-                oldQueries=youngQueries;
-                youngQueries=tmp;
-                youngQueries.clear();
-            } else {          
-                //A lot of time has passed.  Clear both.
-                youngQueries.clear();
-                oldQueries.clear();
+        //The following needn't hold, e.g. if the user adjusts the clock for
+        //daylight savings time; an entry from the future is just treated as
+        //recent.
+        long since=time-GUID_LAG;
+
+        //Consider all messages that came in within GUID_LAG milliseconds
+        //of this and share a band with it...
+        boolean similar=false;
+        for (int band=0; band<TOLERANCE+1 && !similar; band++) {
+            long key=bandKey(guid, hops, band);
+            for (int slot=guids.find(band, key, since);
+                 slot!=-1;
+                 slot=guids.findNext(band, slot, since)) {
+                if (isSimilar(guid, hops, slot)) {//really close GUIDS
+                    similar=true;
+                    break;
+                }
             }
-            querySwapTime=time+QUERY_LAG;
-            queryClearTime=querySwapTime+QUERY_LAG;
         }
 
-        //Look up query in both sets.  Add it to new set if not already there.
-        QueryPair qp=new QueryPair(qr.getQuery(),
-                                   qr.getHops(),
-                                   qr.getRichQuery(),
-                                   qr.getQueryUrns(),
-                                   qr.getMetaMask() );
-        if (oldQueries.contains(qp)) {
-            return false;
-        } else {
-            boolean added=youngQueries.add(qp);
-            return added;     //allow if wasn't already in young set
-        }
+        int slot=guids.add(time);
+        byte[] data=guids.getData();
+        int offset=slot*guids.getDataSize();
+        System.arraycopy(guid, 0, data, offset, 16);
+        data[offset+16]=hops;
+        for (int band=0; band<TOLERANCE+1; band++)
+            guids.setKey(band, slot, bandKey(guid, hops, band));
+        return !similar;
     }
-}
-
-final class GUIDPair {
-    byte[] guid;
-    long time;
-    int hops;
 
-    GUIDPair(byte[] guid, long time, int hops) {
-        this.guid=guid;
-        this.time=time;
-        this.hops=hops;
+    /**
+     * Returns the first byte of each of count bands that split length bytes
+     * as evenly as they can, and then length.  A band's bytes go under the
+     * hops in its key, so no band may be wider than 6 bytes.
+     */
+    private static int[] bands(int length, int count) {
+        int[] bands=new int[count+1];
+        for (int i=0; i<=count; i++)
+            bands[i]=i*length/count;
+        for (int i=0; i<count; i++)
+            Assert.that(bands[i+1]-bands[i] <= 6,
+                        "bands too wide for TOLERANCE "+TOLERANCE);
+        return bands;
     }
 
-    public String toString() {
-        return "["+(new GUID(guid)).toString()+", "+time+"]";
+    /**
+     * Returns the key for one band of a GUID: the band's bytes, with the
+     * hops count above them.
+     */
+    private static long bandKey(byte[] guid, byte hops, int band) {
+        long key=0;
+        for (int i=BANDS[band]; i<BANDS[band+1]; i++)
+            key=(key<<8) | (guid[i] & 0xFF);
+        return key | ((long)(hops & 0xFF) << 48);
     }
-}
 
-final class QueryPair {
-    String query;
-    int hops;
-    LimeXMLDocument xml;
-    Set URNs;
-    int cachedHash = 0;
-    int metaMask;
-    
-    QueryPair(String query, int hops, LimeXMLDocument xml,
-              Set URNs, int metaMask) {
-        this.query=query;
-        this.hops=hops;
-        this.xml = xml;
-        this.URNs = URNs;
-        this.metaMask = metaMask;
+    /**
+     * Returns true if guid differs from the GUID in slot of guids in at most
+     * TOLERANCE bytes, and the two messages have the same hops.
+     */
+    private boolean isSimilar(byte[] guid, byte hops, int slot) {
+        byte[] data=guids.getData();
+        int offset=slot*guids.getDataSize();
+        if (data[offset+16] != hops)
+            return false;
+        int misses=0;
+        for (int i=0; i<guid.length&&misses<=TOLERANCE; i++) {
+            if (guid[i]!=data[offset+i])
+                misses++;
+        }
+        return misses<=TOLERANCE;
     }
-
-    /*
-    public int compareTo(Object o) {
-        QueryPair other=(QueryPair)o;
-        //Primary key: hops
-        //Secondary key: query
-        //(This may make the tree less balanced, but it results in fewer string
-        //comparisons.)
-        
-        int ret=this.hops-other.hops;
-        if (ret==0)
-            return this.query.compareTo(other.query);
-        else
-            return ret;
-    } */
-
-    public boolean equals(Object o) {
-        if ( o == this ) return true;
-        
-        if (!(o instanceof QueryPair))
+       
+    public boolean allowQuery(QueryRequest qr) {
+        long time=getTime();
+        long hash=queryHash(qr);
+        if (queries.find(0, hash, time-QUERY_LAG) != -1)
             return false;
-            
-        QueryPair other=(QueryPair)o;
-        return this.hops==other.hops && 
-               this.metaMask == other.metaMask && 
-               this.URNs.equals(other.URNs) &&
-               this.query.equals(other.query) &&
-               (xml == null ? other.xml == null : xml.equals(other.xml));
-    }                
+        queries.setKey(0, queries.add(time), hash);
+        return true;
+    }
+
+    /**
+     * Returns a 64-bit FNV-1a hash of the parts of qr that make two queries
+     * the same, without allocating anything.
+     */
+    private static long queryHash(QueryRequest qr) {
+        long hash=0xCBF29CE484222325L;
+        hash=hash(hash, qr.getQuery());
+        hash=hash(hash, qr.getHops());
+        String xml=qr.getRichQueryText();
+        if (xml != null)
+            hash=hash(hash, xml);
+        Set urns=qr.getQueryUrns();
+        if (!urns.isEmpty())
+            hash=hash(hash, urns.hashCode());
+        hash=hash(hash, qr.getMetaMask());
+        return hash;
+    }
 
-    public int hashCode() {
-        if ( cachedHash == 0 ) {
-            cachedHash = 17;
-    		cachedHash = (37*cachedHash) + query.hashCode();
-    		if( xml != null )
-    		    cachedHash = (37*cachedHash) + xml.hashCode();
-    		cachedHash = (37*cachedHash) + URNs.hashCode();
-    		cachedHash = (37*cachedHash) + hops;
-    		cachedHash = (37*cachedHash) + metaMask;
-        }    		
-		return cachedHash;
+    /** Folds the characters of s, and then its length, into hash. */
+    private static long hash(long hash, String s) {
+        int n=s.length();
+        for (int i=0; i<n; i++)
+            hash=(hash ^ s.charAt(i)) * 0x100000001B3L;
+        return hash(hash, n);
     }
-    
-    public String toString() {
-        return "[\""+query+"\", "+hops+"]";
+
+    /** Folds the four bytes of i into hash. */
+    private static long hash(long hash, int i) {
+        for (int shift=0; shift<32; shift+=8)
+            hash=(hash ^ ((i>>>shift) & 0xFF)) * 0x100000001B3L;
+        return hash;
     }
 }
@@ -176,6 +176,16 @@ public class IP {
         return mask;
     }
 
+    /** Returns the address, with the bits outside the mask as given. */
+    int getAddress() {
+        return addr;
+    }
+
+    /** Returns the mask, with ones for the bits of the address that count. */
+    int getMask() {
+        return mask;
+    }
+
     /**
      * Returns if ip is contained in this.
      * @param ip a singleton IP set, e.g., one representing a single address
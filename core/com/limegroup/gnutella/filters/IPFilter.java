@@ -8,14 +8,19 @@ import com.limegroup.gnutella.messages.PingReply;
 import com.limegroup.gnutella.messages.PushRequest;
 import com.limegroup.gnutella.messages.QueryReply;
 import com.limegroup.gnutella.settings.FilterSettings;
+import com.limegroup.gnutella.statistics.IPFilterStat;
 
 /**
  * Blocks messages and hosts based on IP address.  Formerly know as
  * BlackListFilter.  Immutable.  
+ *
+ * The lists are fully built before an IPFilter is put in use, so
+ * refreshIPFilter() swaps in the new lists all at once, and lookups never
+ * lock or see a half-loaded list.
  */
 public final class IPFilter extends SpamFilter {
     
-    private static IPFilter _instance;
+    private static volatile IPFilter _instance;
     
     private final IPList badHosts = new IPList();
     private final IPList goodHosts = new IPList();
@@ -30,6 +35,9 @@ public final class IPFilter extends SpamFilter {
         allHosts = FilterSettings.WHITE_LISTED_IP_ADDRESSES.getValue();
         for (int i=0; i<allHosts.length; i++)
             goodHosts.add(allHosts[i]);        
+
+        badHosts.merge();
+        goodHosts.merge();
     }
     
     /**
@@ -48,6 +56,13 @@ public final class IPFilter extends SpamFilter {
         _instance = new IPFilter();
     }
 
+    /**
+     * Returns the approximate number of bytes the lists of this filter use.
+     */
+    public int getMemoryFootprint() {
+        return badHosts.getMemoryFootprint() + goodHosts.getMemoryFootprint();
+    }
+
     /** 
      * Checks if a given host is banned.  This method will be
      * called when accepting an incoming or outgoing connection.
@@ -73,7 +88,7 @@ public final class IPFilter extends SpamFilter {
                 return false;
             }
         }        
-        return goodHosts.contains(ip) || !badHosts.contains(ip);
+        return allow(ip);
     }
     
     /**
@@ -87,7 +102,18 @@ public final class IPFilter extends SpamFilter {
         } catch(IllegalArgumentException badHost) {
             return false;
         }
-        return goodHosts.contains(ip) || !badHosts.contains(ip);
+        return allow(ip);
+    }
+
+    /**
+     * Checks ip against the lists, and counts the lookup.
+     */
+    private boolean allow(IP ip) {
+        IPFilterStat.LOOKUPS.incrementStat();
+        if (goodHosts.contains(ip) || !badHosts.contains(ip))
+            return true;
+        IPFilterStat.BLOCKED.incrementStat();
+        return false;
     }
 
     /** 
@@ -1,37 +1,80 @@
 package com.limegroup.gnutella.filters;
 
-import java.util.Iterator;
-import java.util.LinkedList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
  * A mutable list of IP addresses.  More specifically, a list of sets of
  * addresses, like "18.239.0.*".  Provides fast operations to find if an address
- * is in the list.  Used to implement IPFilter.  Not synchronized.
+ * is in the list.  Used to implement IPFilter.<p>
  *
- * @author Gregorio Roper 
+ * Patterns whose mask is a prefix, like "18.239.0.*" or "18.239.0.0/16", are
+ * ranges of addresses.  The ranges are kept sorted, with overlapping and
+ * adjacent ones merged, in two int arrays, so contains(..) is a binary search
+ * no matter how many patterns there are.  Patterns with holes in their mask,
+ * like "18.*.0.*", are rare and are checked one by one.<p>
+ *
+ * add(..) only collects patterns; they are sorted and merged in one pass the
+ * next time the list is read, so loading a large blocklist is O(n log n).
+ * contains(..) reads an immutable snapshot of the merged ranges, so it may be
+ * called from any thread without locking once the list is built.
+ *
+ * @author Gregorio Roper
  */
 public class IPList {
-    /** The list of IP's. */
-    private List /* of IP */ ips = new LinkedList();
+    /**
+     * Flipping the sign bit of an address makes signed comparison of the
+     * result order addresses like unsigned numbers.
+     */
+    private static final int SIGN = 0x80000000;
+
+    /** A list with nothing in it. */
+    private static final Ranges EMPTY = new Ranges(new int[0], new int[0], 0, new IP[0]);
+
+    /**
+     * The ranges added since the last merge, each packed into a long by
+     * pack(..).  LOCKING: this.
+     */
+    private long[] pending = new long[16];
+    /** The number of ranges in pending.  LOCKING: this. */
+    private int numPending;
+    /** The patterns added since the last merge that aren't ranges. LOCKING: this. */
+    private List /* of IP */ pendingSparse = new ArrayList();
+
+    /** The ranges of the last merge, which pending is merged into.  LOCKING: this. */
+    private Ranges last = EMPTY;
+
+    /** The merged ranges, or null if something was added since. */
+    private volatile Ranges ranges = EMPTY;
 
     public IPList () {}
 
-    /** 
+    /**
      * Adds a certain IP to the IPList.
      * @param ip_str a String containing the IP, see IP.java for formatting
      */
-    public void add(String ip_str) {
+    public synchronized void add(String ip_str) {
 	    IP ip;
         try {
             ip = new IP(ip_str);
         } catch (IllegalArgumentException e) {
             return;
         }
-        
-        if (!ips.contains(ip)) {// don't add the same IP more than once
-            ips.add(ip);
+
+        int mask = ip.getMask();
+        if (isPrefix(mask)) {
+            int start = ip.getAddress() & mask;
+            if (numPending == pending.length) {
+                long[] grown = new long[pending.length * 2];
+                System.arraycopy(pending, 0, grown, 0, numPending);
+                pending = grown;
+            }
+            pending[numPending++] = pack(start ^ SIGN, (start | ~mask) ^ SIGN);
+        } else if (!pendingSparse.contains(ip)) {
+            pendingSparse.add(ip);
         }
+        ranges = null;
     }
 
     /**
@@ -39,11 +82,163 @@ public class IPList {
      * @returns true if ip_address is contained somewhere in the list of IPs
      */
     public boolean contains (IP ip) {
-        for (Iterator iter=ips.iterator(); iter.hasNext(); ) {
-            IP pattern=(IP)iter.next();
-            if (pattern.contains(ip))
+        Ranges r = getRanges();
+        int mask = ip.getMask();
+        int start = ip.getAddress() & mask;
+        // If ip has holes in its mask, checking the smallest range around it
+        // is stricter than checking each address.
+        if (r.contains(start ^ SIGN, (start | ~mask) ^ SIGN))
+            return true;
+        for (int i = 0; i < r.sparse.length; i++) {
+            if (r.sparse[i].contains(ip))
                 return true;
         }
         return false;
     }
+
+    /**
+     * Returns the number of merged ranges and patterns in this list.
+     */
+    public int size() {
+        Ranges r = getRanges();
+        return r.count + r.sparse.length;
+    }
+
+    /**
+     * Returns the approximate number of bytes this list's lookup tables use.
+     */
+    public int getMemoryFootprint() {
+        Ranges r = getRanges();
+        // 4 bytes per array entry, about 24 bytes per IP object
+        return r.starts.length * 8 + r.sparse.length * 28;
+    }
+
+    /**
+     * Sorts and merges everything added since the last merge, so the next
+     * lookup doesn't have to.  IPFilter calls this before it's put in use.
+     */
+    void merge() {
+        getRanges();
+    }
+
+    /**
+     * Returns the current ranges, merging the pending ones into them first
+     * if there are any.
+     */
+    private Ranges getRanges() {
+        Ranges r = ranges;
+        if (r != null)
+            return r;
+        synchronized (this) {
+            if (ranges == null)
+                ranges = last = merge(last);
+            return ranges;
+        }
+    }
+
+    /**
+     * Sorts the ranges in previous and pending together, and merges the ones
+     * that overlap or touch.  LOCKING: this.
+     */
+    private Ranges merge(Ranges previous) {
+        int n = previous.count + numPending;
+        long[] all = new long[n];
+        for (int i = 0; i < previous.count; i++)
+            all[i] = pack(previous.starts[i], previous.ends[i]);
+        System.arraycopy(pending, 0, all, previous.count, numPending);
+        Arrays.sort(all);
+
+        int[] starts = new int[n];
+        int[] ends = new int[n];
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            int start = (int)(all[i] >> 32);
+            int end = (int)all[i];
+            // ranges are sorted by start, so this one can only extend the last
+            if (count > 0 && (long)start <= (long)ends[count - 1] + 1) {
+                if (end > ends[count - 1])
+                    ends[count - 1] = end;
+            } else {
+                starts[count] = start;
+                ends[count] = end;
+                count++;
+            }
+        }
+        if (count < n) {
+            int[] s = new int[count];
+            int[] e = new int[count];
+            System.arraycopy(starts, 0, s, 0, count);
+            System.arraycopy(ends, 0, e, 0, count);
+            starts = s;
+            ends = e;
+        }
+
+        IP[] sparse = new IP[previous.sparse.length + pendingSparse.size()];
+        System.arraycopy(previous.sparse, 0, sparse, 0, previous.sparse.length);
+        for (int i = previous.sparse.length; i < sparse.length; i++)
+            sparse[i] = (IP)pendingSparse.get(i - previous.sparse.length);
+
+        pending = new long[16];
+        numPending = 0;
+        pendingSparse.clear();
+        return new Ranges(starts, ends, count, sparse);
+    }
+
+    /**
+     * Packs a range into a long that sorts by start, then end.  Both are
+     * addresses with their sign bit flipped.
+     */
+    private static long pack(int start, int end) {
+        return ((long)start << 32) | (end & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Returns true if mask is some ones followed by zeroes, so the pattern
+     * it belongs to is one range of addresses.
+     */
+    private static boolean isPrefix(int mask) {
+        int hosts = ~mask;
+        return (hosts & (hosts + 1)) == 0;
+    }
+
+    /**
+     * An immutable snapshot of the merged ranges.  Addresses are stored with
+     * their sign bit flipped.
+     */
+    private static final class Ranges {
+        /** The first address of each range, in increasing order. */
+        final int[] starts;
+        /** The last address of each range. */
+        final int[] ends;
+        /** The number of ranges. */
+        final int count;
+        /** The patterns that aren't ranges. */
+        final IP[] sparse;
+
+        Ranges(int[] starts, int[] ends, int count, IP[] sparse) {
+            this.starts = starts;
+            this.ends = ends;
+            this.count = count;
+            this.sparse = sparse;
+        }
+
+        /**
+         * Returns true if one range holds all the addresses from start to
+         * end.  Since touching ranges were merged, that's the same as the
+         * union of the ranges holding them.
+         */
+        boolean contains(int start, int end) {
+            // find the last range that starts at or before start
+            int low = 0;
+            int high = count - 1;
+            while (low <= high) {
+                int mid = (low + high) >>> 1;
+                if (starts[mid] <= start)
+                    low = mid + 1;
+                else
+                    high = mid - 1;
+            }
+            return high >= 0 && end <= ends[high];
+        }
+    }
 }
@@ -13,20 +13,32 @@ import com.limegroup.gnutella.messages.QueryRequest;
 /** 
  * A spam filter that removes certain "bad" keywords. 
  * If <i>any</i> words in a query are in the banned set, the
- * query is disallowed.
+ * query is disallowed.<p>
+ *
+ * The banned phrases are compiled into a KeywordMatcher the first time a
+ * message is checked, which finds all of them in one pass over the text.
+ * Filters with the same phrases share the same KeywordMatcher.
  */
 public class KeywordFilter extends SpamFilter {
-    /** INVARIANT: strings in ban contain only lowercase */
+    /** INVARIANT: strings in ban are folded by KeywordMatcher.fold */
     private List /* of String */ ban=new ArrayList();
 
+    /** The compiled phrases in ban, or null if ban changed since. */
+    private volatile KeywordMatcher matcher;
+
     /** 
      * @modifies this
      * @effects bans the given phrase.  Capitalization does not matter.
      */
-    public void disallow(String phrase) { 
-        String canonical = phrase.toLowerCase();
-        if (!ban.contains(canonical))
-            ban.add(canonical);
+    public synchronized void disallow(String phrase) { 
+        StringBuffer canonical = new StringBuffer(phrase.length());
+        for (int i=0; i<phrase.length(); i++)
+            canonical.append(KeywordMatcher.fold(phrase.charAt(i)));
+        String folded = canonical.toString();
+        if (!ban.contains(folded)) {
+            ban.add(folded);
+            matcher = null;
+        }
     }
 
     /** 
@@ -127,15 +139,19 @@ public class KeywordFilter extends SpamFilter {
      * Returns true if phrase matches any of the entries in ban.
      */
     protected boolean matches(String phrase) {
-        String canonical=phrase.toLowerCase();
-        for (int i=0; i<ban.size(); i++) {
-            String badWord=(String)ban.get(i);
-            //phrase contains badWord?
-            //Hopefully indexOf uses some reasonably efficient 
-            //algorithm, such as Knuth-Morris-Pratt.
-            if (canonical.indexOf(badWord)!=-1)
-                return true;
-        }
-        return false;
+        KeywordMatcher m=matcher;
+        if (m==null)
+            m=compile();
+        return m.matches(phrase);
+    }
+
+    /**
+     * Compiles ban, or gets the KeywordMatcher another filter compiled for
+     * the same phrases.
+     */
+    private synchronized KeywordMatcher compile() {
+        if (matcher==null)
+            matcher=KeywordMatcher.compile(ban);
+        return matcher;
     }
 }
@@ -0,0 +1,203 @@
+package com.limegroup.gnutella.filters;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An Aho-Corasick automaton that finds if a string contains any of a set of
+ * phrases, in one pass over the string no matter how many phrases there
+ * are.  Used to implement KeywordFilter.  Immutable once built.<p>
+ *
+ * Characters are folded to lower case one at a time, both when the phrases
+ * are compiled and when a string is matched, so matching doesn't allocate a
+ * lowercase copy of the string.  Transitions on ASCII characters are
+ * resolved into a full table when the automaton is built; transitions on
+ * other characters follow failure links when a string is matched.<p>
+ *
+ * Every connection gets its own KeywordFilter, usually with the same
+ * phrases, so compile(..) keeps the automatons it built and hands the same
+ * one to every filter with the same phrases.
+ */
+final class KeywordMatcher {
+    /** The characters with a full transition table. */
+    private static final int ASCII = 128;
+
+    /** Don't keep more automatons than this in COMPILED. */
+    private static final int MAX_COMPILED = 16;
+
+    /**
+     * The automatons built so far, keyed by their List of phrases.
+     * LOCKING: obtain COMPILED.
+     */
+    private static final Map /* List -> KeywordMatcher */ COMPILED = new HashMap();
+
+    /** NEXT[state*ASCII+c] is the state after reading ASCII character c. */
+    private final int[] NEXT;
+
+    /**
+     * KEYS[state] are the other characters state has an edge for, and
+     * TARGETS[state] the states they lead to.
+     */
+    private final char[][] KEYS;
+    private final int[][] TARGETS;
+
+    /**
+     * FAIL[state] is the state for the longest proper suffix of state's
+     * text that is a prefix of some phrase.
+     */
+    private final int[] FAIL;
+
+    /** MATCH[state] is true if state's text ends with a phrase. */
+    private final boolean[] MATCH;
+
+    /**
+     * Returns an automaton for the given lowercase phrases, building it if
+     * one for the same phrases hasn't been built yet.
+     */
+    static KeywordMatcher compile(List /* of String */ phrases) {
+        synchronized (COMPILED) {
+            KeywordMatcher matcher = (KeywordMatcher)COMPILED.get(phrases);
+            if (matcher == null) {
+                if (COMPILED.size() >= MAX_COMPILED)
+                    COMPILED.clear();
+                List key = new ArrayList(phrases);
+                matcher = new KeywordMatcher(key);
+                COMPILED.put(key, matcher);
+            }
+            return matcher;
+        }
+    }
+
+    /**
+     * Folds one character the way phrases and strings are compared.
+     */
+    static char fold(char c) {
+        return Character.toLowerCase(c);
+    }
+
+    private KeywordMatcher(List /* of String */ phrases) {
+        // Build the trie.  Each state has a Map from Character to the
+        // Integer of its child.
+        List /* of Map */ children = new ArrayList();
+        List /* of Boolean */ ends = new ArrayList();
+        children.add(new HashMap());
+        ends.add(Boolean.FALSE);
+        for (Iterator iter = phrases.iterator(); iter.hasNext(); ) {
+            String phrase = (String)iter.next();
+            int state = 0;
+            for (int i = 0; i < phrase.length(); i++) {
+                Map edges = (Map)children.get(state);
+                Character c = new Character(fold(phrase.charAt(i)));
+                Integer child = (Integer)edges.get(c);
+                if (child == null) {
+                    child = new Integer(children.size());
+                    edges.put(c, child);
+                    children.add(new HashMap());
+                    ends.add(Boolean.FALSE);
+                }
+                state = child.intValue();
+            }
+            ends.set(state, Boolean.TRUE);
+        }
+
+        int n = children.size();
+        NEXT = new int[n * ASCII];
+        KEYS = new char[n][];
+        TARGETS = new int[n][];
+        FAIL = new int[n];
+        MATCH = new boolean[n];
+        for (int s = 0; s < n; s++) {
+            MATCH[s] = ((Boolean)ends.get(s)).booleanValue();
+            Map edges = (Map)children.get(s);
+            int others = 0;
+            for (Iterator iter = edges.keySet().iterator(); iter.hasNext(); ) {
+                if (((Character)iter.next()).charValue() >= ASCII)
+                    others++;
+            }
+            KEYS[s] = new char[others];
+            TARGETS[s] = new int[others];
+            others = 0;
+            for (Iterator iter = edges.entrySet().iterator(); iter.hasNext(); ) {
+                Map.Entry edge = (Map.Entry)iter.next();
+                char c = ((Character)edge.getKey()).charValue();
+                if (c >= ASCII) {
+                    KEYS[s][others] = c;
+                    TARGETS[s][others] = ((Integer)edge.getValue()).intValue();
+                    others++;
+                }
+            }
+        }
+
+        // Visit the states breadth first, so a state's failure state, which
+        // is shallower, is finished before it.
+        int[] queue = new int[n];
+        int head = 0;
+        int tail = 0;
+        queue[tail++] = 0;
+        while (head < tail) {
+            int s = queue[head++];
+            Map edges = (Map)children.get(s);
+            for (char c = 0; c < ASCII; c++) {
+                Integer child = (Integer)edges.get(new Character(c));
+                if (child != null) {
+                    int t = child.intValue();
+                    FAIL[t] = s == 0 ? 0 : NEXT[FAIL[s] * ASCII + c];
+                    NEXT[s * ASCII + c] = t;
+                    queue[tail++] = t;
+                } else {
+                    NEXT[s * ASCII + c] = s == 0 ? 0 : NEXT[FAIL[s] * ASCII + c];
+                }
+            }
+            for (int i = 0; i < KEYS[s].length; i++) {
+                int t = TARGETS[s][i];
+                FAIL[t] = s == 0 ? 0 : step(FAIL[s], KEYS[s][i]);
+                queue[tail++] = t;
+            }
+        }
+        // A state matches if its failure state does.  The queue is in
+        // breadth first order, so FAIL[s] is already done.
+        for (int i = 1; i < n; i++) {
+            int s = queue[i];
+            MATCH[s] |= MATCH[FAIL[s]];
+        }
+    }
+
+    /**
+     * Returns true if text contains any of the phrases, ignoring case.
+     */
+    boolean matches(String text) {
+        int state = 0;
+        if (MATCH[state])
+            return true; // an empty phrase is in everything
+        int length = text.length();
+        for (int i = 0; i < length; i++) {
+            char c = fold(text.charAt(i));
+            if (c < ASCII)
+                state = NEXT[state * ASCII + c];
+            else
+                state = step(state, c);
+            if (MATCH[state])
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns the state after reading the non-ASCII character c in state.
+     */
+    private int step(int state, char c) {
+        while (true) {
+            char[] keys = KEYS[state];
+            for (int i = 0; i < keys.length; i++) {
+                if (keys[i] == c)
+                    return TARGETS[state][i];
+            }
+            if (state == 0)
+                return 0;
+            state = FAIL[state];
+        }
+    }
+}
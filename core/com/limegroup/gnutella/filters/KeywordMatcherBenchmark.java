@@ -0,0 +1,157 @@
+package com.limegroup.gnutella.filters;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Checks KeywordFilter against the loop it replaced, and measures both over
+ * realistic query hit names.  Run it with
+ *
+ * <pre>
+ * java com.limegroup.gnutella.filters.KeywordMatcherBenchmark [checks [lookups]]
+ * </pre>
+ *
+ * The filter bans the adult words, the .vbs, .htm, .asf and .wmv
+ * extensions, and a few user phrases with non-ASCII characters, like a
+ * filter with every box ticked.  First it matches checks random mixed-case
+ * strings, with non-ASCII characters, both ways and stops at the first one
+ * they disagree on.  Then it times lookups names through each, three times,
+ * and prints nanoseconds a name.  The old loop lowercased the name and ran
+ * indexOf(..) once for each phrase.
+ */
+public class KeywordMatcherBenchmark {
+
+    /** Names like the ones in query hits, a few of which are banned. */
+    private static final String[] NAMES = {
+        "Artist - Some Song Title (Remastered 2004).mp3",
+        "The Band - Live at the Arena - 03 - Track Name.ogg",
+        "ubuntu-4.10-install-i386.iso",
+        "My Holiday Photos 2005 - Beach 012.jpg",
+        "Great Movie (2004) DVDRip XviD-GROUP.avi",
+        "documentation_manual_v2.pdf",
+        "Classical - Beethoven Symphony No 9 - Movement IV.mp3",
+        "Some Podcast Episode 42 - Interview.mp3",
+        "Bj\u00F6rk - J\u00F3ga.mp3",
+        "Sigur R\u00F3s - Hopp\u00EDpolla.flac",
+        "funny cat video.wmv",
+        "readme.htm",
+        "Mix Tape Vol 2 - Track 11 - Untitled.mp3",
+        "Linux Kernel Development 2nd Edition.chm",
+        "Season 3 Episode 07 - The One Where.avi",
+        "setup_v1.2.3.exe"
+    };
+
+    /** User phrases, besides the ones KeywordFilter has buttons for. */
+    private static final String[] USER_PHRASES = {
+        "\u00DFuper", "\u00C9t\u00E9", "spam"
+    };
+
+    /** Characters random strings are made of. */
+    private static final String ALPHABET =
+        "abcdeEfhknoprstuvwxyz\u00E9\u00C9\u00DF\u00DC\u00FC. ANXSUC";
+
+    /** The phrases given to the filter, folded. */
+    private final List /* of String */ PHRASES = new ArrayList();
+
+    /** The filter, which records each phrase it's given in PHRASES. */
+    private final KeywordFilter FILTER = new KeywordFilter() {
+        public void disallow(String phrase) {
+            super.disallow(phrase);
+            String folded = phrase.toLowerCase();
+            if (!PHRASES.contains(folded))
+                PHRASES.add(folded);
+        }
+    };
+
+    public static void main(String[] args) {
+        int checks = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2000000;
+
+        KeywordMatcherBenchmark bench = new KeywordMatcherBenchmark();
+        String mismatch = bench.check(checks);
+        if (mismatch != null) {
+            System.out.println("MISMATCH: " + mismatch);
+            System.exit(1);
+        }
+        System.out.println(checks + " random strings agree");
+
+        for (int i = 0; i < 3; i++) {
+            System.out.println("old: " + bench.timeOld(lookups) + "ns" +
+                               "  new: " + bench.timeNew(lookups) + "ns");
+        }
+    }
+
+    KeywordMatcherBenchmark() {
+        FILTER.disallowAdult();
+        FILTER.disallowVbs();
+        FILTER.disallowHtml();
+        FILTER.disallowWMVASF();
+        for (int i = 0; i < USER_PHRASES.length; i++)
+            FILTER.disallow(USER_PHRASES[i]);
+    }
+
+    /**
+     * Matches count random strings both ways, and returns the first one
+     * they disagree on, or null.
+     */
+    String check(int count) {
+        Random random = new Random(1);
+        StringBuffer buf = new StringBuffer();
+        for (int k = 0; k < count; k++) {
+            buf.setLength(0);
+            int length = random.nextInt(30);
+            for (int i = 0; i < length; i++)
+                buf.append(ALPHABET.charAt(random.nextInt(ALPHABET.length())));
+            String text = buf.toString();
+            if (FILTER.matches(text) != matchesOld(text))
+                return text;
+        }
+        for (int i = 0; i < NAMES.length; i++) {
+            if (FILTER.matches(NAMES[i]) != matchesOld(NAMES[i]))
+                return NAMES[i];
+        }
+        return null;
+    }
+
+    /** Returns the nanoseconds a name took the old way. */
+    long timeOld(int count) {
+        int hits = 0;
+        long start = System.currentTimeMillis();
+        for (int k = 0; k < count; k++) {
+            if (matchesOld(NAMES[k % NAMES.length]))
+                hits++;
+        }
+        return nanos(start, count, hits);
+    }
+
+    /** Returns the nanoseconds a name took through the filter. */
+    long timeNew(int count) {
+        int hits = 0;
+        long start = System.currentTimeMillis();
+        for (int k = 0; k < count; k++) {
+            if (FILTER.matches(NAMES[k % NAMES.length]))
+                hits++;
+        }
+        return nanos(start, count, hits);
+    }
+
+    /**
+     * Returns the nanoseconds each of count lookups took since start.  hits
+     * is used so the lookups can't be optimized away.
+     */
+    private static long nanos(long start, int count, int hits) {
+        long millis = System.currentTimeMillis() - start;
+        return millis * 1000000 / count + (hits < 0 ? 1 : 0);
+    }
+
+    /** The loop KeywordFilter.matches(..) used to run. */
+    private boolean matchesOld(String text) {
+        String lower = text.toLowerCase();
+        for (int i = 0; i < PHRASES.size(); i++) {
+            if (lower.indexOf((String)PHRASES.get(i)) != -1)
+                return true;
+        }
+        return false;
+    }
+}
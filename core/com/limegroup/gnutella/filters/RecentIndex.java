@@ -0,0 +1,217 @@
+package com.limegroup.gnutella.filters;
+
+/**
+ * A ring of recent entries, indexed by one or more long keys, for finding
+ * entries added within the last few seconds without allocating anything per
+ * entry.<p>
+ *
+ * Each entry has a time and one key per index.  add(..) writes an entry over
+ * the oldest slot of the ring and puts it at the head of a hash chain in each
+ * index.  The chains run from newest to oldest, so a lookup stops at the
+ * first entry older than the time it's given.  Entries that were overwritten
+ * are detected by their sequence numbers and end the chain too, so nothing
+ * ever has to be removed.<p>
+ *
+ * The ring covers a window of time given to the constructor.  If the oldest
+ * slot still holds an entry from inside the window when add(..) needs it,
+ * entries are arriving faster than the ring can remember them, so it doubles
+ * in size, up to a limit.  The ring never shrinks.<p>
+ *
+ * Each entry can also keep a few bytes of the caller's in getData(), at
+ * slot times getDataSize().  They move with the entry when the ring grows.
+ * This class is not synchronized.
+ */
+final class RecentIndex {
+
+    /** The number of milliseconds of entries the ring should cover. */
+    private final long WINDOW;
+
+    /** The largest number of slots the ring grows to. */
+    private final int MAX_CAPACITY;
+
+    /** The number of bytes of the caller's data for each entry. */
+    private final int DATA_SIZE;
+
+    /** The number of slots, a power of two. */
+    private int _capacity;
+
+    /** _capacity-1, to turn a sequence number or hash into a slot or bucket. */
+    private int _mask;
+
+    /** The time of the entry in each slot. */
+    private long[] _times;
+
+    /** The sequence number of the entry in each slot, 0 if empty. */
+    private int[] _seqs;
+
+    /** _keys[index][slot] is the key of the entry in slot for that index. */
+    private long[][] _keys;
+
+    /**
+     * _next[index][slot] is the sequence number of the next older entry in
+     * the same bucket, or 0.
+     */
+    private int[][] _next;
+
+    /**
+     * _heads[index][bucket] is the sequence number of the newest entry in
+     * the bucket, or 0.
+     */
+    private int[][] _heads;
+
+    /** The caller's data for each slot. */
+    private byte[] _data;
+
+    /** The sequence number of the last entry added. */
+    private int _seq;
+
+    /**
+     * Creates a ring of at least capacity slots, with the given number of
+     * indexes, that grows up to maxCapacity slots to remember every entry of
+     * the last window milliseconds.
+     *
+     * @param dataSize the number of bytes of the caller's data per entry
+     */
+    RecentIndex(int capacity, int maxCapacity, long window, int indexes,
+                int dataSize) {
+        WINDOW = window;
+        MAX_CAPACITY = maxCapacity;
+        DATA_SIZE = dataSize;
+        int size = 1;
+        while(size < capacity)
+            size <<= 1;
+        _keys = new long[indexes][];
+        _next = new int[indexes][];
+        _heads = new int[indexes][];
+        allocate(size);
+    }
+
+    /**
+     * Adds an entry with the given time, overwriting the oldest one, and
+     * returns its slot.  Give it its keys with setKey(..) before the next
+     * add(..).
+     */
+    int add(long time) {
+        int slot = (_seq + 1) & _mask;
+        if(_seqs[slot] != 0 && _times[slot] >= time - WINDOW &&
+           _capacity < MAX_CAPACITY)
+            grow();
+
+        if(++_seq == 0)
+            _seq = 1;
+        slot = _seq & _mask;
+        _seqs[slot] = _seq;
+        _times[slot] = time;
+        return slot;
+    }
+
+    /**
+     * Sets the key of the entry just added for one index.
+     */
+    void setKey(int index, int slot, long key) {
+        int bucket = bucket(key);
+        _keys[index][slot] = key;
+        _next[index][slot] = _heads[index][bucket];
+        _heads[index][bucket] = _seqs[slot];
+    }
+
+    /**
+     * Returns the slot of the newest entry with key in the given index that
+     * was added at or after since, or -1 if there isn't one.
+     */
+    int find(int index, long key, long since) {
+        return walk(index, _heads[index][bucket(key)], key, since);
+    }
+
+    /**
+     * Returns the slot of the next older entry after slot with the same key,
+     * added at or after since, or -1 if there isn't one.
+     */
+    int findNext(int index, int slot, long since) {
+        return walk(index, _next[index][slot], _keys[index][slot], since);
+    }
+
+    /** Returns the number of slots. */
+    int getCapacity() {
+        return _capacity;
+    }
+
+    /**
+     * Returns the caller's data for every slot.  The array is replaced when
+     * the ring grows, so get it again after each add(..).
+     */
+    byte[] getData() {
+        return _data;
+    }
+
+    /** Returns the number of bytes of data for each slot. */
+    int getDataSize() {
+        return DATA_SIZE;
+    }
+
+    /**
+     * Follows a chain from the entry with sequence number seq.
+     */
+    private int walk(int index, int seq, long key, long since) {
+        while(seq != 0) {
+            int slot = seq & _mask;
+            // overwritten, or too old: everything after it is older still
+            if(_seqs[slot] != seq || _times[slot] < since)
+                return -1;
+            if(_keys[index][slot] == key)
+                return slot;
+            seq = _next[index][slot];
+        }
+        return -1;
+    }
+
+    /**
+     * Doubles the ring, moving every entry to the slot for its sequence
+     * number and putting them back in the chains from oldest to newest.
+     */
+    private void grow() {
+        int oldMask = _mask;
+        long[] times = _times;
+        int[] seqs = _seqs;
+        long[][] keys = (long[][])_keys.clone();
+        byte[] data = _data;
+        allocate(_capacity << 1);
+
+        for(int i = oldMask; i >= 0; i--) {
+            int seq = _seq - i;
+            int from = seq & oldMask;
+            if(seq == 0 || seqs[from] != seq)
+                continue;
+            int to = seq & _mask;
+            _seqs[to] = seq;
+            _times[to] = times[from];
+            System.arraycopy(data, from * DATA_SIZE, _data, to * DATA_SIZE,
+                             DATA_SIZE);
+            for(int index = 0; index < _keys.length; index++)
+                setKey(index, to, keys[index][from]);
+        }
+    }
+
+    /** Replaces the arrays with empty ones of size slots. */
+    private void allocate(int size) {
+        _capacity = size;
+        _mask = size - 1;
+        _times = new long[size];
+        _seqs = new int[size];
+        _data = new byte[size * DATA_SIZE];
+        for(int index = 0; index < _keys.length; index++) {
+            _keys[index] = new long[size];
+            _next[index] = new int[size];
+            _heads[index] = new int[size];
+        }
+    }
+
+    /** Spreads the bits of key over a bucket number. */
+    private int bucket(long key) {
+        int h = (int)(key ^ (key >>> 32));
+        h ^= (h >>> 16);
+        h *= 0x85EBCA6B;
+        h ^= (h >>> 13);
+        return h & _mask;
+    }
+}
@@ -0,0 +1,118 @@
+package com.limegroup.gnutella.filters;
+
+import java.util.Random;
+
+/**
+ * Checks RecentIndex against a scan of every entry, and measures it, as
+ * messages come faster and faster.  Run it with
+ *
+ * <pre>
+ * java com.limegroup.gnutella.filters.RecentIndexBenchmark
+ * </pre>
+ *
+ * The index is set up like DuplicateFilter's query ring: 256 slots growing
+ * to 4096, a window of 1.5 seconds, and two indexes.  Entries are added on
+ * a simulated clock at 100, 1000, 5000 and then 20,000 a second, with keys
+ * drawn from 3000.  Before each add, find(..) is compared with a scan of
+ * every entry added in the window, and the data of the slot it returns with
+ * the key it was stored with.  For each rate it prints the number of
+ * lookups that disagreed, the ring's capacity, and the nanoseconds an add
+ * and a find took, timed in a second pass without the scan.  Lookups should
+ * only disagree once the ring has reached its cap and the window holds
+ * more entries than it.
+ */
+public class RecentIndexBenchmark {
+
+    /** The entries added at each rate. */
+    private static final int ENTRIES = 50000;
+
+    /** The rates, in entries a second. */
+    private static final int[] RATES = { 100, 1000, 5000, 20000 };
+
+    /** The window, in milliseconds. */
+    private static final long WINDOW = 1500;
+
+    /** The number of different keys. */
+    private static final int KEYS = 3000;
+
+    public static void main(String[] args) {
+        RecentIndex index = new RecentIndex(256, 4096, WINDOW, 2, 1);
+        long[] times = new long[ENTRIES * RATES.length];
+        long[] keys = new long[times.length];
+        int count = 0;
+        Random random = new Random(3);
+        long time = 0;
+
+        for (int r = 0; r < RATES.length; r++) {
+            int mismatches = 0;
+            for (int i = 0; i < ENTRIES; i++) {
+                time = timeOf(count, r);
+                long key = random.nextInt(KEYS);
+                long since = time - WINDOW;
+
+                boolean expected = false;
+                for (int j = count - 1; j >= 0 && times[j] >= since; j--) {
+                    if (keys[j] == key) {
+                        expected = true;
+                        break;
+                    }
+                }
+                int found = index.find(0, key, since);
+                if ((found != -1) != expected)
+                    mismatches++;
+                else if (found != -1 && index.getData()[found] != (byte)key)
+                    mismatches++;
+
+                int slot = index.add(time);
+                index.setKey(0, slot, key);
+                index.setKey(1, slot, key * 7);
+                index.getData()[slot] = (byte)key;
+                times[count] = time;
+                keys[count] = key;
+                count++;
+            }
+            System.out.println(RATES[r] + "/s: " + mismatches + " of " +
+                               ENTRIES + " lookups disagree, capacity " +
+                               index.getCapacity() + ", " + time(r) +
+                               "ns an add and find");
+        }
+    }
+
+    /**
+     * Returns the simulated time of the count'th entry, which is the r'th
+     * rate's.
+     */
+    private static long timeOf(int count, int r) {
+        long time = 0;
+        for (int i = 0; i < r; i++)
+            time += ENTRIES * 1000L / RATES[i];
+        return time + (count - r * ENTRIES) * 1000L / RATES[r];
+    }
+
+    /**
+     * Returns the nanoseconds an add and a find took at the r'th rate, in a
+     * fresh index that has grown to that rate first.
+     */
+    private static long time(int r) {
+        RecentIndex index = new RecentIndex(256, 4096, WINDOW, 2, 1);
+        Random random = new Random(4);
+        int rounds = 20;
+        int found = 0;
+        long start = 0;
+        for (int round = 0; round <= rounds; round++) {
+            if (round == 1)
+                start = System.currentTimeMillis();
+            for (int i = 0; i < ENTRIES; i++) {
+                long time = (round * ENTRIES + i) * 1000L / RATES[r];
+                long key = random.nextInt(KEYS);
+                if (index.find(0, key, time - WINDOW) != -1)
+                    found++;
+                int slot = index.add(time);
+                index.setKey(0, slot, key);
+                index.setKey(1, slot, key * 7);
+            }
+        }
+        long millis = System.currentTimeMillis() - start;
+        return millis * 1000000 / ((long)rounds * ENTRIES) + (found < 0 ? 1 : 0);
+    }
+}
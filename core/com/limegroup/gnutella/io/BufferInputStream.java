@@ -57,6 +57,13 @@ class BufferInputStream extends InputStream implements Shutdownable {
         finished = true;
     }
     
+    /** Determines if the remote side has closed the stream and we've read everything it sent. */
+    boolean isFinished() {
+        synchronized(LOCK) {
+            return finished && buffer.position() == 0;
+        }
+    }
+    
     /** Reads a single byte from the buffer. */
     public int read() throws IOException {
         synchronized(LOCK) {
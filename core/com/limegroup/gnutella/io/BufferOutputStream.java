@@ -6,7 +6,9 @@ package com.limegroup.gnutella.io;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SelectableChannel;
+import java.nio.channels.WritableByteChannel;
 
 import org.apache.commons.logging.LogFactory;
 import org.apache.commons.logging.Log;
@@ -54,6 +56,19 @@ class BufferOutputStream extends OutputStream implements Shutdownable {
     /** True after shutdown() has been called. */
     private boolean shutdown = false;
 
+    /*
+     * transferFrom() leaves a range of a file here for NIOOutputStream.handleWrite() to send.
+     * transferFile is null when there's no range waiting.
+     * Only touch these while synchronized on LOCK.
+     */
+
+    /** The file transferFrom() is sending, or null if it isn't sending one right now. */
+    private FileChannel transferFile;
+    /** The distance into transferFile of the next byte to send. */
+    private long transferPosition;
+    /** The number of bytes of transferFile we still have to send. */
+    private long transferRemaining;
+
     /**
      * Make a BufferOutputStream for a NIOOutputStream.
      * Only one place in the code makes a new BufferOutputStream, the NIOOutputStream init() method.
@@ -149,6 +164,81 @@ class BufferOutputStream extends OutputStream implements Shutdownable {
         }
     }
 
+    /**
+     * Send part of a file to the remote computer without copying it through the buffer.
+     * 
+     * Instead of reading the file into a byte array and writing that to us, call this method.
+     * The NIODispatcher thread will move the data from the file to the channel with FileChannel.transferTo().
+     * On most operating systems, that's a sendfile() call, and the file's bytes never come into Java at all.
+     * 
+     * Data you wrote before calling this goes out first, because NIOOutputStream.handleWrite() empties the buffer before it looks at the file.
+     * Like write(b), this call blocks until the whole range has been sent.
+     * 
+     * @param file     The FileChannel to read from
+     * @param position The distance into the file to start at
+     * @param count    The number of bytes to send
+     */
+    void transferFrom(FileChannel file, long position, long count) throws IOException {
+
+        // Only let one thread at a time access the buffer, which is also used in the NIOOutputStream object that made this one
+        synchronized (LOCK) {
+
+            // Calling this after shutdown() is an error
+            if (shutdown) throw new IOException("socket closed");
+
+            // Leave the range where NIOOutputStream.handleWrite() will find it, and tell the channel we have data for it
+            transferFile      = file;
+            transferPosition  = position;
+            transferRemaining = count;
+            NIODispatcher.instance().interestWrite(channel, true);
+
+            // Wait until transferTo() below has sent all of it, and sets transferFile back to null
+            while (transferFile != null) {
+                if (shutdown) throw new IOException("socket closed");
+                try {
+                    LOCK.wait();
+                } catch (InterruptedException ix) {
+                    throw new InterruptedIOException(ix);
+                }
+            }
+        }
+    }
+
+    /**
+     * Move data from the file range transferFrom() left us into the channel.
+     * 
+     * NIOOutputStream.handleWrite() calls this once it's emptied the buffer, holding LOCK.
+     * When the whole range has gone out, wakes up the thread waiting in transferFrom().
+     * 
+     * @param out The channel to write to
+     * @return    True if there's still some of the range left to send, and we're still interested in writing
+     */
+    boolean transferTo(WritableByteChannel out) throws IOException {
+
+        // transferFrom() hasn't given us anything to send
+        if (transferFile == null) return false;
+
+        // Have the operating system send as much of the range as the socket will take
+        while (transferRemaining > 0) {
+            long sent = transferFile.transferTo(transferPosition, transferRemaining, out);
+            if (sent <= 0) {
+
+                // transferTo() sends nothing past the end of the file, so the file got shorter after the upload started
+                if (transferPosition >= transferFile.size()) throw new IOException("file truncated");
+
+                // The socket's send buffer is full, NIO will call handleWrite() again when it has room
+                return true;
+            }
+            transferPosition  += sent;
+            transferRemaining -= sent;
+        }
+
+        // We sent it all, wake up the thread waiting in transferFrom()
+        transferFile = null;
+        LOCK.notify();
+        return false;
+    }
+
     /**
      * Forces all the data we wrote into the buffer to be sent away into the channel.
      * 
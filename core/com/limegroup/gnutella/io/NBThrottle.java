@@ -2,6 +2,8 @@ package com.limegroup.gnutella.io;
 
 import java.util.Set;
 import java.util.HashSet;
+import java.util.List;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
@@ -66,6 +68,13 @@ import org.apache.commons.logging.Log;
  *
  * Note that due to the nature of Throttle & NIODispatcher, ready parties may be told to handleWrite
  * twice during each selection event.  The latter will always return 0 to a request.
+ *
+ * NIODispatcher may run several selector threads, and each one ticks the throttle and
+ * hands it its own selected keys.  The throttle's state is guarded by this.  selectableKeys
+ * picks the ready parties while holding the lock, but lets them write after releasing it,
+ * because a party's handleWrite may wait on another selector thread's locks.  Before each
+ * party writes, its thread is granted the bandwidth that request() will return, so
+ * selector threads writing at the same time can't take each other's share.
  */
 public class NBThrottle implements Throttle {
     
@@ -124,8 +133,13 @@ public class NBThrottle implements Throttle {
      */
     private Map /* of Object (ThrottleListener.getAttachment()) */ _ready = new HashMap();
     
-    /** Whether or not we're currently active in the selectableKeys portion. */
-    private boolean _active = false;
+    /**
+     * The selector threads currently processing a ready party in selectableKeys ->
+     * the Integer amount that party's request() will get.
+     *
+     * Only a thread with a grant may request bandwidth.
+     */
+    private Map /* of Thread -> Integer */ _granted = new HashMap();
     
     /**
      * Constructs a throttle using the default values for latency & availability.
@@ -174,7 +188,12 @@ public class NBThrottle implements Throttle {
      * Notification from the NIODispatcher that a bunch of keys are now selectable.
      */
     void selectableKeys(Collection /* of SelectionKey */ keys) {
-        if(_available >= MINIMUM_TO_GIVE && !_interested.isEmpty()) {
+        List /* of Object (ThrottleListener.getAttachment()) */ attachments;
+        List /* of SelectionKey */ ready;
+        synchronized(this) {
+            if(_available < MINIMUM_TO_GIVE || _interested.isEmpty())
+                return;
+            
             for(Iterator i = keys.iterator(); i.hasNext(); ) {
                 SelectionKey key = (SelectionKey)i.next();
                 try {
@@ -190,7 +209,9 @@ public class NBThrottle implements Throttle {
             
             //LOG.trace("Interested: " + _interested.size() + ", ready: " + _ready.size());
             
-            _active = true;
+            // Collect the ready parties in FIFO order, leaving them interested until they write.
+            attachments = new ArrayList(_ready.size());
+            ready = new ArrayList(_ready.size());
             for(Iterator i = _interested.entrySet().iterator(); !_ready.isEmpty() && i.hasNext(); ) {
                 Map.Entry next = (Map.Entry)i.next();
                 ThrottleListener listener = (ThrottleListener)next.getValue();
@@ -200,13 +221,35 @@ public class NBThrottle implements Throttle {
                     //LOG.trace("Removing closed but interested party: " + next.getKey());
                     i.remove();
                 } else if(key != null) {
-                    NIODispatcher.instance().process(key, key.attachment(), _processOp);
-                    i.remove();
-                    if(_available < MINIMUM_TO_GIVE)
-                        break;
+                    attachments.add(attachment);
+                    ready.add(key);
+                }
+            }
+            _ready.clear();
+        }
+        
+        // Process outside the lock, granting each party its share first.
+        Thread current = Thread.currentThread();
+        for(int i = 0; i < ready.size(); i++) {
+            synchronized(this) {
+                if(_available < MINIMUM_TO_GIVE)
+                    break;
+                if(_interested.remove(attachments.get(i)) == null)
+                    continue; // another thread already processed it.
+                int grant = Math.min(_available, MAXIMUM_TO_GIVE);
+                _available -= grant;
+                _granted.put(current, new Integer(grant));
+            }
+            try {
+                SelectionKey key = (SelectionKey)ready.get(i);
+                NIODispatcher.instance().process(key, key.attachment(), _processOp);
+            } finally {
+                synchronized(this) {
+                    Integer unused = (Integer)_granted.remove(current);
+                    if(unused != null)
+                        _available += unused.intValue();
                 }
             }
-            _active = false;
         }
     }
     
@@ -222,12 +265,12 @@ public class NBThrottle implements Throttle {
     /**
      * Requests some bytes to write.
      */
-    public int request() {
-        if(!_active) // this is gonna happen from NIODispatcher's processing
+    public synchronized int request() {
+        Integer grant = (Integer)_granted.remove(Thread.currentThread());
+        if(grant == null) // this is gonna happen from NIODispatcher's processing
             return 0;
         
-        int ret = Math.min(_available, MAXIMUM_TO_GIVE);
-        _available -= ret;
+        int ret = grant.intValue();
         //LOG.trace("GAVE: " + ret + ", REMAINING: " + _available + ", TO: " + attachment);
         return ret; 
     }
@@ -235,7 +278,7 @@ public class NBThrottle implements Throttle {
     /**
      * Releases some unwritten bytes back to the available pool.
      */
-    public void release(int amount) {
+    public synchronized void release(int amount) {
         _available += amount;
         //LOG.trace("RETR: " + amount + ", REMAINING: " + _available + ", ALL: " + wroteAll + ", FROM: " + attachment);
     }
@@ -246,7 +289,7 @@ public class NBThrottle implements Throttle {
      * Returns true if all requests were satisifed.  Returns false if there are
      * still some requests that require further tick notifications.
      */
-    void tick(long currentTime) {
+    synchronized void tick(long currentTime) {
         if(currentTime >= _nextTickTime) {
             float elapsedTicks = 1 + ((float)(currentTime - _nextTickTime)) / MILLIS_PER_TICK;
             elapsedTicks = Math.min(elapsedTicks, 2);
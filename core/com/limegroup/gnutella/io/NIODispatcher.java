@@ -18,8 +18,11 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.LinkedList;
 import java.util.ArrayList;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import com.limegroup.gnutella.ErrorService;
+import com.limegroup.gnutella.settings.ConnectionSettings;
 import com.limegroup.gnutella.util.CommonUtils;
 import com.limegroup.gnutella.util.ManagedThread;
 
@@ -68,6 +71,21 @@ import org.apache.commons.logging.Log;
  * 
  * When LimeWire runs, it makes the one NIODispatcher object.
  * 
+ * Several selectors
+ * 
+ * One selector and one thread can only use one processor.
+ * On an ultrapeer with hundreds of leaves, that one thread would be busy all the time while the other processors sit idle.
+ * So, NIODispatcher is really a small pool of SelectorLoop objects.
+ * Each SelectorLoop has its own selector and its own thread, and loops in its own process() method.
+ * ConnectionSettings.NIO_DISPATCHERS picks how many there are, 0 makes one for each processor.
+ * 
+ * The public methods like registerRead(), interestWrite(), and invokeLater() look the same as before.
+ * When a channel gets registered for the first time, loopFor() picks the SelectorLoop it will stay with.
+ * It picks the one with the fewest channels, or if ConnectionSettings.NIO_DISPATCH_BY_HASH is true, one based on the channel's hash code.
+ * loopFor() writes the choice in OWNERS right away, before the loop's thread gets around to the registration.
+ * After that, ownerOf() reads OWNERS to find the channel's loop, and calls like interestRead() and invokeLater(channel, runner) go to that loop.
+ * Each SelectorLoop notices its own spinning and swaps its own selector, and ticks the NBThrottle objects with its own keys.
+ * 
  * Spinning
  * 
  * The selector can break, and start spinning.
@@ -125,7 +143,7 @@ import org.apache.commons.logging.Log;
  * will be shutdown and will no longer receive events.  If any IOExceptions occur while handling
  * events for an Observer, handleIOException is called on that Observer.
  */
-public class NIODispatcher implements Runnable {
+public class NIODispatcher {
 
     /** We can save lines of text to this debugging log to record how the program acts when running. */
     private static final Log LOG = LogFactory.getLog(NIODispatcher.class);
@@ -137,40 +155,52 @@ public class NIODispatcher implements Runnable {
     public static final NIODispatcher instance() { return INSTANCE; }
 
     /**
-     * Makes the sole NIODispatcher object and starts its thread.
+     * The SelectorLoop objects that do the work, each one has its own selector and thread.
+     * LOOPS[0] runs on the thread named "NIODispatcher", the others are named "NIODispatcher-1", "NIODispatcher-2", and so on.
+     */
+    private final SelectorLoop[] LOOPS;
+
+    /** True to pick the loop for a new channel by its hash code, false to pick the loop with the fewest channels. */
+    private final boolean BY_HASH;
+
+    /**
+     * The SelectorLoop each channel belongs to.
+     * loopFor() puts a channel here the first time it's registered, so the channel has a loop even while its registration is waiting in that loop's REGISTER list.
+     * A WeakHashMap, so a channel leaves the map once the program is done with it.
      * 
-     * Creates the NIO selector object which will keep track of all the channels and keys.
-     * Starts a new thread named "NIODispatcher" on the run() method here.
+     * LOCKING: obtain OWNERS.
+     */
+    private final Map /* SelectableChannel -> SelectorLoop */ OWNERS = new WeakHashMap();
+
+    /**
+     * Makes the sole NIODispatcher object and starts the threads of its SelectorLoop objects.
+     * 
+     * Reads ConnectionSettings.NIO_DISPATCHERS to find out how many selectors to make.
+     * If it's 0, makes one for each processor the computer has.
      * 
      * This constructor is marked private so no one else can make an NIODispatcher object.
      * The only one is INSTANCE, and the instance() method is the only way to get it.
      */
     private NIODispatcher() {
 
-        // We'll set failed to true if creating our selector causes an exception
-        boolean failed = false;
-
-        try {
-
-            // Create the NIO selector object which will keep track of all the channels and keys
-            selector = Selector.open();
-
-        // Catch an IOException, and don't throw it, just set failed to true
-        } catch (IOException iox) { failed = true; }
-
-        // We made our NIO selector without getting an exception
-        if (!failed) {
-
-            // Create a new thread named "NIODispatcher", and have it run the run() method in this class
-            dispatchThread = new ManagedThread(this, "NIODispatcher");
-            dispatchThread.start();
-
-        // Creating the NIO selector caused an IOException
-        } else {
-
-            // Set dispatchThread to null to indicate that we have no thread
-            dispatchThread = null;
+        // Find out how many selectors and threads to make
+        int count = ConnectionSettings.NIO_DISPATCHERS.getValue();
+        if (count <= 0) count = Runtime.getRuntime().availableProcessors(); // 0 means one for each processor
+        BY_HASH = ConnectionSettings.NIO_DISPATCH_BY_HASH.getValue();
+
+        // Make the loops, keeping the ones that were able to open a selector
+        List running = new ArrayList();
+        SelectorLoop first = null;
+        for (int i = 0; i < count; i++) {
+            SelectorLoop loop = new SelectorLoop(i == 0 ? "NIODispatcher" : "NIODispatcher-" + i);
+            if (first == null) first = loop;
+            if (loop.isRunning()) running.add(loop);
         }
+
+        // If no loop could open a selector, keep the first one anyway so isRunning() will return false
+        if (running.isEmpty()) running.add(first);
+        LOOPS = (SelectorLoop[])running.toArray(new SelectorLoop[running.size()]);
+        if (LOG.isDebugEnabled()) LOG.debug("Dispatching with " + LOOPS.length + " selectors");
     }
 
     /** 10000, If an attachment gets hit more than 10 thousand times in a row, we'll consider it suspect, and close it. (do) */
@@ -188,107 +218,146 @@ public class NIODispatcher implements Runnable {
      */
     private static final int MAX_IGNORES = 5;
 
-    /** The thread named "NIODispatch" that starts in run() when the program starts. */
-    private final Thread dispatchThread;
-
-    /** The NIO selector object that keeps track of all the channels and keys. */
-    private Selector selector = null;
-
     /**
-     * The number of times we've called select() to get a collection of keys.
-     * 
-     * The NIODispatch thread loops forever in process().
-     * Each time through the loop, it does the following 3 things:
-     * 
-     * Call select to get a collection of keys.
-     * Call the other process() method on each one of the keys.
-     * Increment the iteration number.
+     * THROTTLE is a list of every NBThrottle object the program has made.
+     * Every time the NBThrottle constructor makes a new one, it calls addThrottle() to add it to this list.
      * 
-     * The iteration number is the number of times we've called select().
-     * The first time the keys are processed, iteration is 0.
-     * The next time all the keys are processed, iteration is 1.
+     * Each SelectorLoop's addPendingItems() loops through all the throttles and calls tick() on them, giving them the current time.
+     * Each SelectorLoop's readyThrottles() gives each throttle the collection of keys its selector selected.
+     * process() calls both of these methods in the select() loop.
      */
-    private long iteration = 0;
+    private volatile List THROTTLE = new ArrayList(); // We'll keep NBThrottle objects in this array list
 
-	/** Synchronize on this object before accessing the REGISTER, LATER, and THROTTLE lists. */
-	private final Object Q_LOCK = new Object();
+    /** Synchronize on this object before replacing the THROTTLE list. */
+    private final Object THROTTLE_LOCK = new Object();
 
     /**
-     * A linked list of RegisterOp objects.
+     * Returns true if the NIODispatcher is merrily chugging along.
+     * We made and started the first SelectorLoop's thread, and have a handle to it.
      * 
-     * Only the NIODispatch thread can call registerImpl().
-     * If an outside thread calls register(), we'll wrap all the information we need to do the registration in a RegisterOp object.
-     * We'll put the RegisterOp method in this REGISTER linked list.
-     * Later, the NIODispatch thread will call addPendingItems(), which will grab the registration information and do it.
+     * @return True if the dispatch thread is running, false if we couldn't make the selector
      */
-    private final Collection REGISTER = new LinkedList(); // We'll keep RegisterOp objects in this linked list
+    public boolean isRunning() {
+
+        // Return true if the first loop has a thread
+        return LOOPS[0].isRunning();
+    }
 
 	/**
-     * LATER is the list invokeLater() keeps the object the NIODispatch thread will call run() on.
+     * Call this, and it will determine if you are one of the NIODispatch threads.
      * 
-     * Call invokeLater(object) to have the NIODispatch thread call run() on the object.
-     * The calling thread will put the object in the LATER list.
-     * A little later, the NIODispatch thread will take it from the list and call run() on it.
+     * @return True if you are the thread of one of our SelectorLoop objects, false if you are some other thread
      */
-    private final Collection LATER = new LinkedList(); // We'll keep Runnable objects in this linked list
+	public boolean isDispatchThread() {
+
+        // Loop through our selectors, looking for the one that runs on this thread
+        return currentLoop() != null;
+	}
 
     /**
-     * THROTTLE is a list of every NBThrottle object the program has made.
-     * Every time the NBThrottle constructor makes a new one, it calls addThrottle() to add it to this list.
+     * Find out how many selectors and threads we're spreading channels across.
      * 
-     * addPendingItems() loops through all the throttles and calls tick() on them, giving them the current time.
-     * readyThrottles() gives each throttle the entire collection of selected keys.
-     * process() calls both of these methods in the select() loop.
+     * @return The number of SelectorLoop objects
      */
-    private volatile List THROTTLE = new ArrayList(); // We'll keep NBThrottle objects in this array list
+    public int getSelectorCount() {
+
+        // Each SelectorLoop has one selector and one thread
+        return LOOPS.length;
+    }
 
     /**
-     * The addPendingItems() method moves all the objects from REGISTER and LATER into this list.
-     * It does this quickly in a synchronized block, then leaves the block to register channels and call run() methods.
+     * Find out how many channels each selector has.
      * 
-     * Temporary list used where REGISTER & LATER are combined, so that
-     * handling IOException or running arbitrary code can't deadlock.
-     * Otherwise, it could be possible that one thread locked some arbitrary
-     * Object and then tried to acquire Q_LOCK by registering or invokeLatering.
-     * Meanwhile, the NIODispatch thread may be running pending items and holding
-     * Q_LOCK.  If while running those items it tries to lock that arbitrary
-     * Object, deadlock would occur.
+     * @return An array with the number of channels registered with each SelectorLoop
+     */
+    public int[] getSelectorLoads() {
+
+        // Read the load of each loop
+        int[] loads = new int[LOOPS.length];
+        for (int i = 0; i < LOOPS.length; i++) loads[i] = LOOPS[i].load();
+        return loads;
+    }
+
+    /**
+     * Get the SelectorLoop whose thread is running this code.
      * 
-     * Interaction with UNLOCKED doesn't need to hold a lock, because it's only used
-     * in the NIODispatch thread.
-     *
-     * Throttle is not moved to UNLOCKED because it is not cleared, and because the
-     * actions are all within this package, so we can guarantee that it doesn't
-     * deadlock.
+     * @return The SelectorLoop, or null if the calling thread isn't a NIODispatch thread
      */
-    private final ArrayList UNLOCKED = new ArrayList();
+    private SelectorLoop currentLoop() {
+
+        // Loop through our selectors, looking for the one that runs on this thread
+        for (int i = 0; i < LOOPS.length; i++) {
+            if (LOOPS[i].isDispatchThread()) return LOOPS[i];
+        }
+        return null;
+    }
 
     /**
-     * Returns true if the NIODispatcher is merrily chugging along.
-     * We made and started the dispatchThread, and have a handle to it.
+     * Get the SelectorLoop a channel belongs to.
      * 
-     * @return True if the dispatchThred is running, false if we couldn't make the selector or it
+     * @param channel A channel
+     * @return        The SelectorLoop loopFor() gave the channel to, or null if the channel was never registered
      */
-    public boolean isRunning() {
+    private SelectorLoop ownerOf(SelectableChannel channel) {
+
+        // If we only have one selector, every channel is there
+        if (LOOPS.length == 1) return LOOPS[0];
 
-        // Return true if the dispatchThread exists
-        return dispatchThread != null;
+        // Look up the loop loopFor() picked
+        synchronized (OWNERS) {
+            return (SelectorLoop)OWNERS.get(channel);
+        }
     }
 
-	/**
-     * Call this, and it will determine if you are the NIODispatch thread.
+    /**
+     * Pick the SelectorLoop a channel should be registered with.
+     * If the channel already has a loop, returns it.
+     * Otherwise, picks a loop by the channel's hash code or by which loop has the fewest channels, and records it in OWNERS.
+     * 
+     * Picking and recording happen together while we hold the OWNERS lock.
+     * This way, two threads registering the same channel at the same time get the same loop, and the channel never ends up in two selectors.
      * 
-     * @return True if you are the NIODispatch thread, false if you are some other thread
+     * @param channel A channel we're about to register
+     * @return        The SelectorLoop that should have it
      */
-	public boolean isDispatchThread() {
+    private SelectorLoop loopFor(SelectableChannel channel) {
+
+        // If we only have one selector, there's nothing to pick
+        if (LOOPS.length == 1) return LOOPS[0];
+
+        synchronized (OWNERS) {
+
+            // If the channel already has a loop, keep it with the same selector
+            SelectorLoop owner = (SelectorLoop)OWNERS.get(channel);
+            if (owner != null) return owner;
+
+            // Spread channels by their hash code
+            if (BY_HASH) {
+                owner = LOOPS[(System.identityHashCode(channel) & 0x7fffffff) % LOOPS.length];
+
+            // Find the loop with the fewest channels
+            } else {
+                owner = LOOPS[0];
+                int leastLoad = owner.load();
+                for (int i = 1; i < LOOPS.length; i++) {
+                    int load = LOOPS[i].load();
+                    if (load < leastLoad) {
+                        owner = LOOPS[i];
+                        leastLoad = load;
+                    }
+                }
+            }
 
-        // When we created the NIODispatch thread, we saved a reference to it in dispatchThread, see if it matches
-	    return Thread.currentThread() == dispatchThread;
-	}
+            // Record the choice now, before the loop's thread registers the channel
+            OWNERS.put(channel, owner);
+            return owner;
+        }
+    }
 
 	/**
      * Adds a Throttle into the throttle requesting loop. (do)
      * Only the NBThrottle constructor calls this.
+     * Every SelectorLoop will tick the throttle and give it its selected keys.
      * 
      * @param t The NBThrottle object to add to the list where addPendingItems() will pick it up
      */
@@ -296,14 +365,13 @@ public class NIODispatcher implements Runnable {
 
         // TODO: have some way to remove Throttles, or make these use WeakReferences
 
-        // Protect the lists from being accessed by more than one thread at a time
-        synchronized (Q_LOCK) {
+        // Make sure only one thread adds a throttle at a time
+        synchronized (THROTTLE_LOCK) {
 
             // Add the given NBThrottle object to the THROTTLE List
             ArrayList throttle = new ArrayList(THROTTLE); // Make a new ArrayList named throttle with all the elements in the THROTTLE List
             throttle.add(t);                              // Add the given NBThrottle to it
-            THROTTLE = throttle;                          // Save in in place of the THROTTLE List
-            // TODO:kfaaborg Why not just make THROTTLE an ArrayList and not copy and replace it
+            THROTTLE = throttle;                          // Save in in place of the THROTTLE List, the loops read it without locking
         }
     }
 
@@ -368,7 +436,7 @@ public class NIODispatcher implements Runnable {
     }
 
     /**
-     * Register a given channel with the NIO selector.
+     * Register a given channel with the NIO selector of the SelectorLoop that should have it.
      * 
      * @param channel A SelectableChannel connected to a remote computer
      * @param handler The object we can call handleIOException(e) on to give it an exception
@@ -376,34 +444,8 @@ public class NIODispatcher implements Runnable {
      */
     private void register(SelectableChannel channel, IOErrorObserver handler, int op) {
 
-        // The thread running this is the "NIODispatch" thread that started in run() here
-		if (Thread.currentThread() == dispatchThread) {
-
-            // Register the given channel with the NIO selector
-		    registerImpl(selector, channel, op, handler);
-
-        // The thread running this isn't the "NIODispatch" thread
-		} else {
-
-            /*
-             * Only the NIODispatch thread can call registerImpl() directly.
-             * But, this thread still has a channel it wants to register.
-             * 
-             * This thread can't call registerImpl() directly, so it does this instead.
-             * It wraps all the information necessary to do the register operation in a new RegisterOp object.
-             * It adds this RegisterOp object to the REGISTER Collection.
-             * 
-             * Later, the NIODispatch thread will call addPendingItems().
-             * That method will get the RegisterOp object and call registerImpl() to perform the registration.
-             */
-
-            // Protect the lists from being accessed by more than one thread at a time
-	        synchronized (Q_LOCK) {
-
-                // Wrap the given channel, IOErrorObserver, and bit flag of operations in a RegisterOp object, and put it on the REGISTER collection
-				REGISTER.add(new RegisterOp(channel, handler, op)); // The addPendingItems() method will pick it up from here
-			}
-        }
+        // Pick the loop that has the channel already, or the one that should get it, and have it do the registration
+        loopFor(channel).register(channel, handler, op);
     }
 
     /**
@@ -440,6 +482,7 @@ public class NIODispatcher implements Runnable {
 
     /**
      * Have NIO start or stop telling us about a particular operation on a channel.
+     * If the channel was never registered with any of our selectors, does nothing.
      * 
      * @param channel The channel we want to give a new operation interest set
      * @param op      The operation to add or remove from the interest set
@@ -447,49 +490,9 @@ public class NIODispatcher implements Runnable {
      */
     private void interest(SelectableChannel channel, int op, boolean on) {
 
-        try {
-
-            // Get the SelectionKey object that connects the channel to the selector
-			SelectionKey sk = channel.keyFor(selector);
-
-            // Only do something if we got a valid key
-			if (sk != null && sk.isValid()) {
-
-                /*
-                 * We must synchronize on something unique to each key,
-                 * (but not the key itself, because that'll interfere with Selector.select)
-                 * so that multiple threads calling interest(..) will be atomic with
-                 * respect to each other.  Otherwise, one thread can preempt another's
-                 * interest setting, and one of the interested operation may be lost.
-                 */
-
-                // Synchronize on the channel
-			    synchronized (channel.blockingLock()) {
-
-                    // Add op to the interest set
-    				if (on) {
-
-                        // Get the interest operation set, "or" those bits with op, and make that the new operation set
-                        sk.interestOps(sk.interestOps() | op);
-
-                    // Remove op from the interest set
-                    } else {
-
-                        // Reverse all the bits in op, "and" them with the current bits, and make that the new operation set 
-                        sk.interestOps(sk.interestOps() & ~op);
-                    }
-                }
-			}
-
-        // The interestOps() method threw an exception because the key is closed
-        } catch (CancelledKeyException ignored) {
-
-            /*
-             * Because closing can happen in any thread, the key may be cancelled
-             * between the time we check isValid & the time that interestOps are
-             * set or gotten.
-             */
-        }
+        // Find the loop that has the channel, and have it change the interest set
+        SelectorLoop loop = ownerOf(channel);
+        if (loop != null) loop.interest(channel, op, on);
     }
 
     /**
@@ -506,31 +509,36 @@ public class NIODispatcher implements Runnable {
     }
 
     /**
-     * Has the NIODispatch thread call run() on the given object.
-     * If the NIODispatch thread calls this method, it will call run() right now.
-     * If another thread calls this method, we'll put the object in the LATER list.
-     * The NIODispatch thread will run it from there later.
+     * Has a NIODispatch thread call run() on the given object.
+     * If a NIODispatch thread calls this method, it will call run() right now.
+     * If another thread calls this method, the thread of the first SelectorLoop will run it a little later.
+     * 
+     * If the code touches a channel, use invokeLater(SelectableChannel, Runnable) instead.
      * 
      * @param runner An object we can call run() on
      */
     public void invokeLater(Runnable runner) {
 
-        // We're the NIODispatch thread calling this method
-        if (Thread.currentThread() == dispatchThread) {
-
-            // Call run() on the given object
-            runner.run();
-
-        // We're some other thread calling this method
-        } else {
+        // If we're already one of the dispatch threads, run it now, otherwise have the first loop run it
+        SelectorLoop loop = currentLoop();
+        if (loop == null) loop = LOOPS[0];
+        loop.invokeLater(runner);
+    }
 
-            // Protect the lists from being accessed by more than one thread at a time
-            synchronized (Q_LOCK) {
+    /**
+     * Has the NIODispatch thread that handles a channel call run() on the given object.
+     * The code will run on the same thread that calls handleRead() and handleWrite() for the channel.
+     * If the channel isn't registered yet, this is the same as invokeLater(runner).
+     * 
+     * @param channel The channel the code works with
+     * @param runner  An object we can call run() on
+     */
+    public void invokeLater(SelectableChannel channel, Runnable runner) {
 
-                // Add the given object to the LATER list so the NIODispatch thread can run it later
-                LATER.add(runner);
-            }
-        }
+        // Have the loop that has the channel run it, or fall back to the first loop
+        SelectorLoop loop = ownerOf(channel);
+        if (loop == null) invokeLater(runner);
+        else loop.invokeLater(runner);
     }
 
     /**
@@ -559,663 +567,1001 @@ public class NIODispatcher implements Runnable {
     }
 
     /**
-     * Cancel the selection key and shut down the corresponding object we've been calling handleRead() and handleWrite() on.
+     * Calls methods like handleRead() and handleWrite() on the object that goes with a channel that NIO selected.
+     * NBThrottle.selectableKeys() calls this with keys a SelectorLoop gave it.
+     * The Attachment remembers which SelectorLoop registered the channel, so we hand the key back to that loop.
      * 
-     * @param sk      A selection key we don't want anymore
-     * @param handler The object we've been calling handleRead() and handleWrite() on for this channel
+     * @param sk              A key from the collection that select() returned
+     * @param proxyAttachment The Object reference we registered the channel with that NIO has been keeping for us
+     * @param allowedOps      The operations to look for
      */
-    private void cancel(SelectionKey sk, Shutdownable handler) {
-
-        // Cancel the key so the selector won't return it in the selected key set anymore
-        sk.cancel();
+    void process(SelectionKey sk, Object proxyAttachment, int allowedOps) {
 
-        // Call shutdown() on the object we've been calling handleRead() and handleWrite() on for this channel
-        if (handler != null) handler.shutdown();
+        // Have the loop that registered the channel process the key
+        ((Attachment)proxyAttachment).loop.process(sk, proxyAttachment, allowedOps);
     }
 
     /**
-     * A remote computer has connected to our listening socket.
-     * The selector has returned a key that indicates its channel is ready for the accept operation.
-     * This channel is attached to our listening socket.
-     * We'll get a new connection channel from it, and use that channel to talk to the remote computer.
-     * Calls handleAccept() on the object that was registered with the channel.
+     * A SelectorLoop is one selector and the thread that loops on it.
      * 
-     * @param sk      The selection key the selector returned that indicates the channel is ready for the accept operation
-     * @param handler The object we can call handleAccept() on, we saved a reference to it when we registered the channel
+     * This is what NIODispatcher was when it only had one selector.
+     * NIODispatcher makes several of them and gives each channel to one.
+     * All the channel's events are handled by that loop's thread, so a channel never sees two threads at once.
+     * 
+     * The loop has its own REGISTER and LATER lists, its own spin detection, and its own swapSelector().
+     * It shares the THROTTLE list with the other loops.
      */
-    private void processAccept(SelectionKey sk, AcceptObserver handler) throws IOException {
-
-        // Make a note that this happened in the debugging log
-        if (LOG.isDebugEnabled()) LOG.debug("Handling accept: " + handler);
-
-        // Get the ServerSocketChannel from the key, this is the listening channel
-        ServerSocketChannel ssc = (ServerSocketChannel)sk.channel();
+    private final class SelectorLoop implements Runnable {
+        /**
+         * Makes a SelectorLoop and starts its thread.
+         * 
+         * Creates the NIO selector object which will keep track of the channels and keys this loop has.
+         * Starts a new thread with the given name on the run() method here.
+         * 
+         * @param name The name for the thread, like "NIODispatcher"
+         */
+        SelectorLoop(String name) {
 
-        // Call accept() on the listening channel to have it give us the new connection channel for the remote computer that just connected to us
-        SocketChannel channel = ssc.accept();
-        if (channel == null) return; // NIO said this channel was ready for accepting, but now it doesn't have a connection channel for us, just leave
+            // We'll set failed to true if creating our selector causes an exception
+            boolean failed = false;
 
-        // The connection channel is open because the remote computer has connected to us
-        if (channel.isOpen()) {
+            try {
 
-            // Configure it to not block
-            channel.configureBlocking(false);
+                // Create the NIO selector object which will keep track of the channels and keys
+                selector = Selector.open();
 
-            // Call handleAccept() on the object we registered the channel with
-            handler.handleAccept(channel);
+            // Catch an IOException, and don't throw it, just set failed to true
+            } catch (IOException iox) { failed = true; }
 
-        // NIO was supposed to give us an open connection channel to the remote computer, this is an error
-        } else {
+            // We made our NIO selector without getting an exception
+            if (!failed) {
 
-            try {
+                // Create a new thread with the given name, and have it run the run() method in this class
+                dispatchThread = new ManagedThread(this, name);
+                dispatchThread.start();
 
-                // Close the connection channel that NIO just gave us
-                channel.close();
+            // Creating the NIO selector caused an IOException
+            } else {
 
-            // Exceptions don't matter because we're closing the channel anyway
-            } catch (IOException err) { LOG.error("SocketChannel.close()", err); }
+                // Set dispatchThread to null to indicate that we have no thread
+                dispatchThread = null;
+            }
         }
-    }
 
-    /**
-     * We made a NIOSocket object with a socket and channel, and registered the channel with NIO.
-     * We had an IP address and port number, and tried to use the channel to initiate a new connection to the remote computer there.
-     * Now, NIO is telling us our connection worked, or failed.
-     * 
-     * Process a connected channel.
-     * 
-     * @param  sk          The selection key the selector returned that indicates the channel is ready for the connect operation
-     * @param  handler     The object we can call handleConnect() on, we saved a reference to it when we registered the channel
-     * @throws IOException If the channel didn't connect, it failed to connect
-     */
-    private void processConnect(SelectionKey sk, ConnectObserver handler) throws IOException {
+        /** The thread named like "NIODispatcher" that starts in run() when the program starts. */
+        private final Thread dispatchThread;
 
-        // Make a note that this happened in the debugging log
-        if (LOG.isDebugEnabled()) LOG.debug("Handling connect: " + handler);
+        /**
+         * The NIO selector object that keeps track of this loop's channels and keys.
+         * Other threads read it in NIODispatcher.ownerOf(), and swapSelector() can replace it, so it's volatile.
+         */
+        private volatile Selector selector = null;
+
+        /** About how many keys our selector has, process() updates this each time through the loop. */
+        private volatile int keyCount = 0;
 
-        // Get the channel from the key, this is the channel that we connected to the remote computer
-        SocketChannel channel = (SocketChannel)sk.channel();
+        /** The number of RegisterOp objects waiting in REGISTER, only change it while holding Q_LOCK. */
+        private volatile int pending = 0;
 
-        /*
-         * We did an non-blocking connection operation.
-         * We placed a channel in non-blocking mode, and called connect() on it.
+        /**
+         * The number of times we've called select() to get a collection of keys.
          * 
-         * Now, the connection has been established, or the attempt has failed.
-         * The channel has become connectable and NIO returned it in the set of selected keys.
+         * The NIODispatch thread loops forever in process().
+         * Each time through the loop, it does the following 3 things:
          * 
-         * Call channel.finishConnect() to complete the connection sequence.
-         * If the connection operation failed, finishConnect() will throw an IOException. (ask)
+         * Call select to get a collection of keys.
+         * Call the other process() method on each one of the keys.
+         * Increment the iteration number.
+         * 
+         * The iteration number is the number of times we've called select().
+         * The first time the keys are processed, iteration is 0.
+         * The next time all the keys are processed, iteration is 1.
          */
+        private long iteration = 0;
 
-        // Find out if our connection attempt ended because we connected or if it ended because we weren't able to connect
-        boolean finished = channel.finishConnect();
+    	/** Synchronize on this object before accessing the REGISTER and LATER lists. */
+    	private final Object Q_LOCK = new Object();
 
-        // Our connection attempt worked, the channel is now connected to the remote computer
-        if (finished) {
+        /**
+         * A linked list of RegisterOp objects.
+         * 
+         * Only the NIODispatch thread can call registerImpl().
+         * If an outside thread calls register(), we'll wrap all the information we need to do the registration in a RegisterOp object.
+         * We'll put the RegisterOp method in this REGISTER linked list.
+         * Later, the NIODispatch thread will call addPendingItems(), which will grab the registration information and do it.
+         */
+        private final Collection REGISTER = new LinkedList(); // We'll keep RegisterOp objects in this linked list
 
-            // Set the bit mask of interested operations to all 0s, we're not interested in any operations yet
-            sk.interestOps(0);
+    	/**
+         * LATER is the list invokeLater() keeps the object the NIODispatch thread will call run() on.
+         * 
+         * Call invokeLater(object) to have the NIODispatch thread call run() on the object.
+         * The calling thread will put the object in the LATER list.
+         * A little later, the NIODispatch thread will take it from the list and call run() on it.
+         */
+        private final Collection LATER = new LinkedList(); // We'll keep Runnable objects in this linked list
 
-            // Call handleConnect() on the object we saved when we registered the channel
-            handler.handleConnect();
+        /**
+         * The addPendingItems() method moves all the objects from REGISTER and LATER into this list.
+         * It does this quickly in a synchronized block, then leaves the block to register channels and call run() methods.
+         * 
+         * Temporary list used where REGISTER & LATER are combined, so that
+         * handling IOException or running arbitrary code can't deadlock.
+         * Otherwise, it could be possible that one thread locked some arbitrary
+         * Object and then tried to acquire Q_LOCK by registering or invokeLatering.
+         * Meanwhile, the NIODispatch thread may be running pending items and holding
+         * Q_LOCK.  If while running those items it tries to lock that arbitrary
+         * Object, deadlock would occur.
+         * 
+         * Interaction with UNLOCKED doesn't need to hold a lock, because it's only used
+         * in the NIODispatch thread.
+         *
+         * Throttle is not moved to UNLOCKED because it is not cleared.  It's ticked
+         * after Q_LOCK is released, because the throttles are shared by every loop,
+         * and another loop may be holding a throttle while it invokeLaters onto us.
+         */
+        private final ArrayList UNLOCKED = new ArrayList();
 
-        // The finishConnect() method returned false (do)
-        } else {
+        /**
+         * Returns true if the NIODispatcher is merrily chugging along.
+         * We made and started the dispatchThread, and have a handle to it.
+         * 
+         * @return True if the dispatchThred is running, false if we couldn't make the selector or it
+         */
+        public boolean isRunning() {
 
-            // Cancel the key, and call shutdown() on the object we've been calling handleRead() and handleWrite() on
-            cancel(sk, handler);
+            // Return true if the dispatchThread exists
+            return dispatchThread != null;
         }
-    }
 
-    /**
-     * Registers a given channel with the NIO selector.
-     * 
-     * @param selector   The NIO selector object that ties everything together
-     * @param channel    A SelectableChannel that connects us to a remote computer
-     * @param op         An ingeger with bits set for the operations, like reading and writing, that we want NIO to tell us about
-     * @param attachment The object NIO can keep a reference to, we'll give exceptions to it
-     */
-    private void registerImpl(Selector selector, SelectableChannel channel, int op, IOErrorObserver attachment) {
-
-        try {
+    	/**
+         * Call this, and it will determine if you are the NIODispatch thread.
+         * 
+         * @return True if you are the NIODispatch thread, false if you are some other thread
+         */
+    	public boolean isDispatchThread() {
 
-            // Register the channel with the selector
-            channel.register(
-                selector,                    // Our one NIO selector object that ties everything together
-                op,                          // An integer with bits set for the operations, like reading and writing, we want NIO to tell us about
-                new Attachment(attachment)); // A reference to an Object we can use for whatever we want, wrap the IOErrorObserver in an Attachment and save it there
+            // When we created the NIODispatch thread, we saved a reference to it in dispatchThread, see if it matches
+    	    return Thread.currentThread() == dispatchThread;
+    	}
 
-            /*
-             * channel.register() returns the SelectionKey object that NIO makes to associate this channel with the selector.
-             * We don't need to keep the key here.
-             */
+        /**
+         * Register a given channel with the NIO selector.
+         * 
+         * @param channel A SelectableChannel connected to a remote computer
+         * @param handler The object we can call handleIOException(e) on to give it an exception
+         * @param op      An integer with bits set for the operations, like reading and writing, we want NIO to tell us about
+         */
+        void register(SelectableChannel channel, IOErrorObserver handler, int op) {
 
-        // Registering the channel with the selector caused an exception
-        } catch (IOException iox) {
+            // The thread running this is the "NIODispatch" thread that started in run() here
+    		if (Thread.currentThread() == dispatchThread) {
 
-            // Have the given IOErrorObserver handle it
-            attachment.handleIOException(iox);
-        }
-    }
+                // Register the given channel with the NIO selector
+    		    registerImpl(selector, channel, op, handler);
 
-    /**
-     * The NIODispatch thread does the actions that other threads called register() and invokeLater() to have it do.
-     * 
-     * Other threads called register(), putting RegisterOp objects in the REGISTER list.
-     * Now, the NIODispatch thread will do the channel registrations.
-     * 
-     * Other threads called invokeLater(), putting Runnable objects in the LATER list
-     * Now, the NIODispatch thread will call run() on them.
-     */
-    private void addPendingItems() {
+            // The thread running this isn't the "NIODispatch" thread
+    		} else {
 
-        // Protect the lists from being accessed by more than one thread at a time
-        synchronized (Q_LOCK) {
+                /*
+                 * Only the NIODispatch thread can call registerImpl() directly.
+                 * But, this thread still has a channel it wants to register.
+                 * 
+                 * This thread can't call registerImpl() directly, so it does this instead.
+                 * It wraps all the information necessary to do the register operation in a new RegisterOp object.
+                 * It adds this RegisterOp object to the REGISTER Collection.
+                 * 
+                 * Later, the NIODispatch thread will call addPendingItems().
+                 * That method will get the RegisterOp object and call registerImpl() to perform the registration.
+                 */
 
-            // Loop for each NBThrottle object the program has made
-            long now = System.currentTimeMillis(); // Get the time right now
-            for (int i = 0; i < THROTTLE.size(); i++) {
+                // Protect the lists from being accessed by more than one thread at a time
+    	        synchronized (Q_LOCK) {
 
-                // Tell this NBThrottle object what time it is now by calling tick(now) on it
-                ((NBThrottle)THROTTLE.get(i)).tick(now);
+                    // Wrap the given channel, IOErrorObserver, and bit flag of operations in a RegisterOp object, and put it on the REGISTER collection
+    				REGISTER.add(new RegisterOp(channel, handler, op)); // The addPendingItems() method will pick it up from here
+    				pending++; // Count it so NIODispatcher.loopFor() sees this loop as busier
+    			}
             }
-
-            // Move everything from the REGISTER and LATER lists into the UNLOCKED list
-            UNLOCKED.ensureCapacity(REGISTER.size() + LATER.size()); // Make sure the UNLOCKED list is big enough to hold the REGISTER and LATER lists combined
-            UNLOCKED.addAll(REGISTER); // Add the contents of the REGISTER and LATER lists
-            UNLOCKED.addAll(LATER);
-            REGISTER.clear(); // Clear the REGISTER and LATER lists
-            LATER.clear();
         }
 
-        /*
-         * It wouldn't be safe to call run() on all these objects inside the synchronized block.
-         * One of the run() methods might call something that eventually dose some thread synchronization itself.
-         * This could cause a deadlock.
+        /**
+         * Have NIO start or stop telling us about a particular operation on a channel registered with this loop's selector.
+         * 
+         * If the channel's registration is still waiting in the REGISTER list, changes the operations it will be registered with.
+         * If our thread is registering it right now, has our thread change the interest once it's done.
+         * 
+         * @param channel The channel we want to give a new operation interest set
+         * @param op      The operation to add or remove from the interest set
+         * @param on      True to add this operation to the interest set, false to remove it
          */
+        void interest(final SelectableChannel channel, final int op, final boolean on) {
+
+            try {
 
-        // Loop through the UNLOCKED list, pointing item at each object
-        if (!UNLOCKED.isEmpty()) {
-            for (Iterator i = UNLOCKED.iterator(); i.hasNext(); ) {
-                Object item = i.next();
+                // Get the SelectionKey object that connects the channel to the selector
+    			SelectionKey sk = channel.keyFor(selector);
+
+                // The channel isn't registered with our selector yet
+                if (sk == null) {
+                    synchronized (Q_LOCK) {
+
+                        // If its registration is waiting in REGISTER, change the operations it will be registered with
+                        for (Iterator i = REGISTER.iterator(); i.hasNext(); ) {
+                            RegisterOp next = (RegisterOp)i.next();
+                            if (next.channel == channel) {
+                                if (on) next.op |= op;
+                                else    next.op &= ~op;
+                                return;
+                            }
+                        }
+
+                        // Otherwise, our thread may be registering it right now, have it try again after that
+                        if (!isDispatchThread()) {
+                            LATER.add(new Runnable() {
+                                public void run() {
+                                    interest(channel, op, on);
+                                }
+                            });
+                        }
+                    }
+                    return;
+                }
 
-                try {
+                // Only do something if we got a valid key
+    			if (sk != null && sk.isValid()) {
+
+                    /*
+                     * We must synchronize on something unique to each key,
+                     * (but not the key itself, because that'll interfere with Selector.select)
+                     * so that multiple threads calling interest(..) will be atomic with
+                     * respect to each other.  Otherwise, one thread can preempt another's
+                     * interest setting, and one of the interested operation may be lost.
+                     */
 
-                    // This is a RegisterOp object from the REGISTER list
-                    if (item instanceof RegisterOp) {
+                    // Synchronize on the channel
+    			    synchronized (channel.blockingLock()) {
 
-                        // Register the channel
-                        RegisterOp next = (RegisterOp)item;
-                        registerImpl(selector, next.channel, next.op, next.handler);
+                        // Add op to the interest set
+        				if (on) {
 
-                    // This is a Runnable object from the LATER list
-                    } else if (item instanceof Runnable) {
+                            // Get the interest operation set, "or" those bits with op, and make that the new operation set
+                            sk.interestOps(sk.interestOps() | op);
 
-                        // Call run() on it
-                        ((Runnable)item).run();
+                        // Remove op from the interest set
+                        } else {
+
+                            // Reverse all the bits in op, "and" them with the current bits, and make that the new operation set 
+                            sk.interestOps(sk.interestOps() & ~op);
+                        }
                     }
+    			}
 
-                } catch (Throwable t) {
+            // The interestOps() method threw an exception because the key is closed
+            } catch (CancelledKeyException ignored) {
 
-                    // Catch errors and record them, but just keep going
-                    LOG.error(t);
-                    ErrorService.error(t);
-                }
+                /*
+                 * Because closing can happen in any thread, the key may be cancelled
+                 * between the time we check isValid & the time that interestOps are
+                 * set or gotten.
+                 */
             }
-
-            // Now that we've looped through all the objects, empty the list
-            UNLOCKED.clear();
         }
-    }
 
-    /**
-     * Give every NBThrottle the entire key collection. (do)
-     * 
-     * Every time the NBThrottle constructor made a NBThrottle object, it added it to the THROTTLE list here.
-     * process() calls this after getting the key collection, but before calling handleRead() and handleWrite() for each key.
-     * This method loops through all the NBThrottle objects in our list, and gives each one the key collection by calling selectableKeys(keys).
-     */
-    private void readyThrottles(Collection keys) {
+        /**
+         * Has the NIODispatch thread call run() on the given object.
+         * If the NIODispatch thread calls this method, it will call run() right now.
+         * If another thread calls this method, we'll put the object in the LATER list.
+         * The NIODispatch thread will run it from there later.
+         * 
+         * @param runner An object we can call run() on
+         */
+        void invokeLater(Runnable runner) {
 
-        // Loop for each NBThrottle object the program has
-        List throttle = THROTTLE; // They're all in this list
-        for (int i = 0; i < throttle.size(); i++) {
+            // We're the NIODispatch thread calling this method
+            if (Thread.currentThread() == dispatchThread) {
 
-            // Give this NBThrottle object the entire selected key collection (do)
-            ((NBThrottle)throttle.get(i)).selectableKeys(keys);
+                // Call run() on the given object
+                runner.run();
+
+            // We're some other thread calling this method
+            } else {
+
+                // Protect the lists from being accessed by more than one thread at a time
+                synchronized (Q_LOCK) {
+
+                    // Add the given object to the LATER list so the NIODispatch thread can run it later
+                    LATER.add(runner);
+                }
+            }
         }
-    }
 
-    /**
-     * The NIODispatch thread loops forever here, calling select() and then iterating through the collection of selected keys.
-     * This is the actual NIO run loop.
-     * 
-     * The NIODispatch thread starts in run() and then loops forever in this process() message.
-     * If this method throws an exception, run() catches it, handles it, and the thread comes back here.
-     * 
-     * Sometimes, the selector will return really quickly with no keys.
-     * This is called a spin.
-     * The selector can break, and spin over and over again without ever giving us any keys.
-     * This method has code that will notice if this happens.
-     * 
-     * @throws ProcessingException If the select() call caused an IOException
-     * @throws SpinningException   If the selector keeps returning quickly with nothing
-     */
-    private void process() throws ProcessingException, SpinningException {
+        /**
+         * Cancel the selection key and shut down the corresponding object we've been calling handleRead() and handleWrite() on.
+         * 
+         * @param sk      A selection key we don't want anymore
+         * @param handler The object we've been calling handleRead() and handleWrite() on for this channel
+         */
+        private void cancel(SelectionKey sk, Shutdownable handler) {
+
+            // Cancel the key so the selector won't return it in the selected key set anymore
+            sk.cancel();
 
-        /*
-         * The call selector.select(100) is supposed to return a set of keys, or wait a tenth of a second before returning with nothing.
-         * Sometimes, the call returns really quickly without giving us any keys.
-         * If the selector is broken, it will start doing this over and over.
-         * This is called spinning.
+            // Call shutdown() on the object we've been calling handleRead() and handleWrite() on for this channel
+            if (handler != null) handler.shutdown();
+        }
+
+        /**
+         * A remote computer has connected to our listening socket.
+         * The selector has returned a key that indicates its channel is ready for the accept operation.
+         * This channel is attached to our listening socket.
+         * We'll get a new connection channel from it, and use that channel to talk to the remote computer.
+         * Calls handleAccept() on the object that was registered with the channel.
          * 
-         * This method looks for this behavior, and throws a SpinningException if it happens.
+         * @param sk      The selection key the selector returned that indicates the channel is ready for the accept operation
+         * @param handler The object we can call handleAccept() on, we saved a reference to it when we registered the channel
+         */
+        private void processAccept(SelectionKey sk, AcceptObserver handler) throws IOException {
+
+            // Make a note that this happened in the debugging log
+            if (LOG.isDebugEnabled()) LOG.debug("Handling accept: " + handler);
+
+            // Get the ServerSocketChannel from the key, this is the listening channel
+            ServerSocketChannel ssc = (ServerSocketChannel)sk.channel();
+
+            // Call accept() on the listening channel to have it give us the new connection channel for the remote computer that just connected to us
+            SocketChannel channel = ssc.accept();
+            if (channel == null) return; // NIO said this channel was ready for accepting, but now it doesn't have a connection channel for us, just leave
+
+            // The connection channel is open because the remote computer has connected to us
+            if (channel.isOpen()) {
+
+                // Configure it to not block
+                channel.configureBlocking(false);
+
+                // Call handleAccept() on the object we registered the channel with
+                handler.handleAccept(channel);
+
+            // NIO was supposed to give us an open connection channel to the remote computer, this is an error
+            } else {
+
+                try {
+
+                    // Close the connection channel that NIO just gave us
+                    channel.close();
+
+                // Exceptions don't matter because we're closing the channel anyway
+                } catch (IOException err) { LOG.error("SocketChannel.close()", err); }
+            }
+        }
+
+        /**
+         * We made a NIOSocket object with a socket and channel, and registered the channel with NIO.
+         * We had an IP address and port number, and tried to use the channel to initiate a new connection to the remote computer there.
+         * Now, NIO is telling us our connection worked, or failed.
          * 
-         * The method uses 4 variables to detect spinning.
-         * checkTime is a boolean and startSelect is a time.
-         * The first time the selector returns nothing, we'll set checkTime to true.
-         * The next time we call select(), we'll set startSelect beforehand to see how long select() blocks.
-         * If select() returns really quickly without giving us any keys, that's a spin.
-         * This spin of returning zero keys is counted by the zeroes integer.
+         * Process a connected channel.
          * 
-         * While spinning, the selector may return some keys sometimes.
-         * If it's been spinning a lot, we don't want it to return some keys, convince us that it's OK, and then just start spinning again.
-         * This is what the ignores count is for.
-         * If the selector has been spinning, and gives us some keys, we won't take it off the watch list yet.
-         * We'll just count that as an ignore.
-         * When it returns 5 good keysets, then we'll decide it's not spinning anymore.
+         * @param  sk          The selection key the selector returned that indicates the channel is ready for the connect operation
+         * @param  handler     The object we can call handleConnect() on, we saved a reference to it when we registered the channel
+         * @throws IOException If the channel didn't connect, it failed to connect
          */
+        private void processConnect(SelectionKey sk, ConnectObserver handler) throws IOException {
 
-        // Initialize the variables we'll use to detect spinning
-        boolean checkTime   = false; // If the selector gives us no keys, we'll set checkTime to true to start looking for spins
-        long    startSelect = -1;    // When we're looking for spins, startSelect will tell us how long selector.select() takes before returning
-        int     zeroes      = 0;     // When we're looking for spins, zeroes will count how many times the selector gave us nothing
-        int     ignores     = 0;     // When we're looking for spins, ignores will count how many times the selector gave us some keys
+            // Make a note that this happened in the debugging log
+            if (LOG.isDebugEnabled()) LOG.debug("Handling connect: " + handler);
 
-        while (true) {
+            // Get the channel from the key, this is the channel that we connected to the remote computer
+            SocketChannel channel = (SocketChannel)sk.channel();
 
             /*
-             * This sleep is technically not necessary, however occasionally selector
-             * begins to wakeup with nothing selected.  This happens very frequently on Linux,
-             * and sometimes on Windows (bugs, etc..).  The sleep prevents busy-looping.
-             * It also allows pending registrations & network events to queue up so that
-             * selection can handle more things in one round.
-             * This is unrelated to the wakeup()-causing-busy-looping.  There's other bugs
-             * that cause this.
+             * We did an non-blocking connection operation.
+             * We placed a channel in non-blocking mode, and called connect() on it.
+             * 
+             * Now, the connection has been established, or the attempt has failed.
+             * The channel has become connectable and NIO returned it in the set of selected keys.
+             * 
+             * Call channel.finishConnect() to complete the connection sequence.
+             * If the connection operation failed, finishConnect() will throw an IOException. (ask)
              */
 
-            // If the selector isn't spinning or the program isn't running on Windows
-            if (!checkTime || !CommonUtils.isWindows()) {
+            // Find out if our connection attempt ended because we connected or if it ended because we weren't able to connect
+            boolean finished = channel.finishConnect();
 
-                try {
+            // Our connection attempt worked, the channel is now connected to the remote computer
+            if (finished) {
 
-                    // Pause the NIODispatch thread here for 1/20th of a second
-                    Thread.sleep(50);
+                // Set the bit mask of interested operations to all 0s, we're not interested in any operations yet
+                sk.interestOps(0);
 
-                // If another thread calls interrupt(), just write it into the log and keep going
-                } catch (InterruptedException ix) { LOG.warn("Selector interrupted", ix); }
-            }
+                // Call handleConnect() on the object we saved when we registered the channel
+                handler.handleConnect();
 
-            // Register all the channels and call run() on all the objects that other threads gave us
-            addPendingItems();
+            // The finishConnect() method returned false (do)
+            } else {
 
-            try {
+                // Cancel the key, and call shutdown() on the object we've been calling handleRead() and handleWrite() on
+                cancel(sk, handler);
+            }
+        }
 
-                // Wait for one or more channels to become ready for an operation like reading or writing
-                if (checkTime) startSelect = System.currentTimeMillis(); // If the selector is spinning, we need to know how long selector.select() will take
-                selector.select(100); // This is supposed to returns when a channel is selected, or 1/10th of a second passes
+        /**
+         * Registers a given channel with the NIO selector.
+         * 
+         * @param selector   The NIO selector object that ties everything together
+         * @param channel    A SelectableChannel that connects us to a remote computer
+         * @param op         An ingeger with bits set for the operations, like reading and writing, that we want NIO to tell us about
+         * @param attachment The object NIO can keep a reference to, we'll give exceptions to it
+         */
+        private void registerImpl(Selector selector, SelectableChannel channel, int op, IOErrorObserver attachment) {
 
-            // Make a note about this exception in the debugging log, and go back to the start of the loop
-            } catch (NullPointerException err) {
+            try {
 
-                LOG.warn("npe", err);
-                continue;
+                // If another loop already has this channel, let it do the registration so the channel stays with one selector
+                SelectorLoop owner = ownerOf(channel);
+                if (owner != null && owner != this) {
+                    owner.register(channel, attachment, op);
+                    return;
+                }
 
-            // Make a note about this exception in the debugging log, and go back to the start of the loop
-            } catch (CancelledKeyException err) {
+                // Register the channel with the selector
+                channel.register(
+                    selector,                    // Our one NIO selector object that ties everything together
+                    op,                          // An integer with bits set for the operations, like reading and writing, we want NIO to tell us about
+                    new Attachment(attachment, this)); // A reference to an Object we can use for whatever we want, wrap the IOErrorObserver in an Attachment and save it there
 
-                LOG.warn("cancelled", err);
-                continue;
+                /*
+                 * channel.register() returns the SelectionKey object that NIO makes to associate this channel with the selector.
+                 * We don't need to keep the key here.
+                 */
 
-            // An IOException is serious, wrap it in a ProcessingException and throw it
+            // Registering the channel with the selector caused an exception
             } catch (IOException iox) {
 
-                throw new ProcessingException(iox);
+                // Have the given IOErrorObserver handle it
+                attachment.handleIOException(iox);
             }
+        }
 
-            // Get the collection of keys that we can perform an operation on
-            Collection keys = selector.selectedKeys();
+        /**
+         * The NIODispatch thread does the actions that other threads called register() and invokeLater() to have it do.
+         * 
+         * Other threads called register(), putting RegisterOp objects in the REGISTER list.
+         * Now, the NIODispatch thread will do the channel registrations.
+         * 
+         * Other threads called invokeLater(), putting Runnable objects in the LATER list
+         * Now, the NIODispatch thread will call run() on them.
+         */
+        private void addPendingItems() {
 
-            // The selector gave us nothing
-            if (keys.size() == 0) {
+            // Protect the lists from being accessed by more than one thread at a time
+            synchronized (Q_LOCK) {
 
-                // It hasn't been spinning until now
-                if (startSelect == -1) {
+                // Move everything from the REGISTER and LATER lists into the UNLOCKED list
+                UNLOCKED.ensureCapacity(REGISTER.size() + LATER.size()); // Make sure the UNLOCKED list is big enough to hold the REGISTER and LATER lists combined
+                UNLOCKED.addAll(REGISTER); // Add the contents of the REGISTER and LATER lists
+                UNLOCKED.addAll(LATER);
+                REGISTER.clear(); // Clear the REGISTER and LATER lists
+                LATER.clear();
+                pending = 0;
+            }
 
-                    LOG.warn("No keys selected, starting spin check.");
-                    checkTime = true;
+            /*
+             * It wouldn't be safe to call run() on all these objects inside the synchronized block.
+             * One of the run() methods might call something that eventually dose some thread synchronization itself.
+             * This could cause a deadlock.
+             * 
+             * The same goes for ticking the throttles.
+             * A throttle is shared by all the loops, and another loop may hold its lock while it waits for our Q_LOCK.
+             */
 
-                // It has been spinning, and it returned with nothing in less than 0.03 seconds
-                } else if (startSelect + 30 >= System.currentTimeMillis()) {
-                    
-                    /*
-                     * This is a spin, and shouldn't happen.
-                     */
+            // Loop for each NBThrottle object the program has made
+            List throttle = THROTTLE; // Read it once, addThrottle() may replace it
+            long now = System.currentTimeMillis(); // Get the time right now
+            for (int i = 0; i < throttle.size(); i++) {
 
-                    // This is a spin, and shouldn't happen
-                    if (LOG.isWarnEnabled()) LOG.warn("Spinning detected, current spins: " + zeroes); // Write in the log about it
-                    if (zeroes++ > SPIN_AMOUNT) throw new SpinningException(); // If it's happened more than 5000 times, throw an exception
+                // Tell this NBThrottle object what time it is now by calling tick(now) on it
+                ((NBThrottle)throttle.get(i)).tick(now);
+            }
 
-                // It has been spinning, but it blocked for more than 0.03 seconds before returning nothing 
-                } else {
-                    
-                    /*
-                     * There are two ways the selector can convince us it's not spinning anymore.
-                     * It can return some keys 5 times.
-                     * Or, it can return nothing, but take longer than 0.03 seconds to do that.
-                     */
+            // Loop through the UNLOCKED list, pointing item at each object
+            if (!UNLOCKED.isEmpty()) {
+                for (Iterator i = UNLOCKED.iterator(); i.hasNext(); ) {
+                    Object item = i.next();
 
-                    // The selector returned nothing, but not right away, we'll stop accusing it of spinning
-                    checkTime   = false; // We're not watching the selector for spinning anymore
-                    startSelect = -1;
-                    zeroes      = 0;
-                    ignores     = 0;
-                }
+                    try {
+
+                        // This is a RegisterOp object from the REGISTER list
+                        if (item instanceof RegisterOp) {
 
-                // Go back to the top of the loop, we don't need to iterate through the keys and don't want to count this trip through the loop
-                continue;
+                            // Register the channel
+                            RegisterOp next = (RegisterOp)item;
+                            registerImpl(selector, next.channel, next.op, next.handler);
 
-            // The selector has been spinning, but now it gave us some keys
-            } else if (checkTime) {
+                        // This is a Runnable object from the LATER list
+                        } else if (item instanceof Runnable) {
 
-                // This is good, but we don't trust it quite yet, record this good behavior
-                ignores++;
+                            // Call run() on it
+                            ((Runnable)item).run();
+                        }
 
-                // It's returned keys more than 5 times since spinning, it's not spinning anymore
-                if (ignores > MAX_IGNORES) {
+                    } catch (Throwable t) {
 
-                    // Reset the spinning detection variables
-                    checkTime   = false; // We're not watching the selector for spinning anymore
-                    zeroes      = 0;
-                    startSelect = -1;
-                    ignores     = 0;
+                        // Catch errors and record them, but just keep going
+                        LOG.error(t);
+                        ErrorService.error(t);
+                    }
                 }
-            }
 
-            // Record how many keys the selector returned in the log
-            if (LOG.isDebugEnabled()) LOG.debug("Selected (" + keys.size() + ") keys.");
+                // Now that we've looped through all the objects, empty the list
+                UNLOCKED.clear();
+            }
+        }
 
-            // Give every NBThrottle object the entire collection of selected keys (do)
-            readyThrottles(keys);
+        /**
+         * Give every NBThrottle the entire key collection. (do)
+         * 
+         * Every time the NBThrottle constructor made a NBThrottle object, it added it to the THROTTLE list here.
+         * process() calls this after getting the key collection, but before calling handleRead() and handleWrite() for each key.
+         * This method loops through all the NBThrottle objects in our list, and gives each one the key collection by calling selectableKeys(keys).
+         */
+        private void readyThrottles(Collection keys) {
 
-            // Loop for each key in the collection the selector gave us
-            for (Iterator it = keys.iterator(); it.hasNext(); /* Nothing here */) {
+            // Loop for each NBThrottle object the program has
+            List throttle = THROTTLE; // They're all in this list
+            for (int i = 0; i < throttle.size(); i++) {
 
-                // Get the next key in the collection, and if it's valid, process it
-                SelectionKey sk = (SelectionKey)it.next();
-				if (sk.isValid()) process(sk, sk.attachment(), 0xFFFF); // For allowed operations, pass a bit mask of all 1s
+                // Give this NBThrottle object the entire selected key collection (do)
+                ((NBThrottle)throttle.get(i)).selectableKeys(keys);
             }
-
-            // Empty the collection of keys
-            keys.clear();
-
-            // Count this loop
-            iteration++;
         }
-    }
-
-    /**
-     * Calls methods like handleRead() and handleWrite() on the object that goes with a channel that NIO selected.
-     * 
-     * The process() method above gets a collection of selected keys, and then calls this one for each key.
-     * NBThrottle.selectableKeys() also calls this method. (do)
-     * 
-     * @param sk A key from the collection that select() returned in process() above
-     * @param proxyAttachment The Object reference we registered the channel with that NIO has been keeping for us
-     * @param allowedOps      The operations to look for, process() calls this with all 1s
-     */
-    void process(SelectionKey sk, Object proxyAttachment, int allowedOps) {
 
-        /*
-         * We wrapped an IOErrorObserver in an Attachment object.
-         * We had NIO save a reference to it when we registered the channel.
-         * Now, NIO is giving us theat object reference back, it's proxyAttachment.
+        /**
+         * The NIODispatch thread loops forever here, calling select() and then iterating through the collection of selected keys.
+         * This is the actual NIO run loop.
+         * 
+         * The NIODispatch thread starts in run() and then loops forever in this process() message.
+         * If this method throws an exception, run() catches it, handles it, and the thread comes back here.
+         * 
+         * Sometimes, the selector will return really quickly with no keys.
+         * This is called a spin.
+         * The selector can break, and spin over and over again without ever giving us any keys.
+         * This method has code that will notice if this happens.
          * 
-         * Cast it back to an Attachment, and get the IOErrorObserver object inside it.
-         * This is the object we'll call handleRead() or handleWrite() on if the channel is selected for those operations.
+         * @throws ProcessingException If the select() call caused an IOException
+         * @throws SpinningException   If the selector keeps returning quickly with nothing
          */
+        private void process() throws ProcessingException, SpinningException {
 
-        // Get the IOErrorObserver we had NIO save when we registered the channel
-        Attachment proxy = (Attachment)proxyAttachment;
-        IOErrorObserver attachment = proxy.attachment;
+            /*
+             * The call selector.select(100) is supposed to return a set of keys, or wait a tenth of a second before returning with nothing.
+             * Sometimes, the call returns really quickly without giving us any keys.
+             * If the selector is broken, it will start doing this over and over.
+             * This is called spinning.
+             * 
+             * This method looks for this behavior, and throws a SpinningException if it happens.
+             * 
+             * The method uses 4 variables to detect spinning.
+             * checkTime is a boolean and startSelect is a time.
+             * The first time the selector returns nothing, we'll set checkTime to true.
+             * The next time we call select(), we'll set startSelect beforehand to see how long select() blocks.
+             * If select() returns really quickly without giving us any keys, that's a spin.
+             * This spin of returning zero keys is counted by the zeroes integer.
+             * 
+             * While spinning, the selector may return some keys sometimes.
+             * If it's been spinning a lot, we don't want it to return some keys, convince us that it's OK, and then just start spinning again.
+             * This is what the ignores count is for.
+             * If the selector has been spinning, and gives us some keys, we won't take it off the watch list yet.
+             * We'll just count that as an ignore.
+             * When it returns 5 good keysets, then we'll decide it's not spinning anymore.
+             */
 
-        // This is the first time we've seen this key in this set of them
-        if (proxy.lastMod == iteration) {
+            // Initialize the variables we'll use to detect spinning
+            boolean checkTime   = false; // If the selector gives us no keys, we'll set checkTime to true to start looking for spins
+            long    startSelect = -1;    // When we're looking for spins, startSelect will tell us how long selector.select() takes before returning
+            int     zeroes      = 0;     // When we're looking for spins, zeroes will count how many times the selector gave us nothing
+            int     ignores     = 0;     // When we're looking for spins, ignores will count how many times the selector gave us some keys
 
-            // Record that we are going to hit it now (do)
-            proxy.hits++;
+            while (true) {
 
-        // We last modified this key on a previous iteration (do)
-        } else if (proxy.lastMod < iteration) {
+                /*
+                 * This sleep is technically not necessary, however occasionally selector
+                 * begins to wakeup with nothing selected.  This happens very frequently on Linux,
+                 * and sometimes on Windows (bugs, etc..).  The sleep prevents busy-looping.
+                 * It also allows pending registrations & network events to queue up so that
+                 * selection can handle more things in one round.
+                 * This is unrelated to the wakeup()-causing-busy-looping.  There's other bugs
+                 * that cause this.
+                 */
 
-            /*
-             * do not count ones that we've already processed (such as throttled items)
-             */
+                // If the selector isn't spinning or the program isn't running on Windows
+                if (!checkTime || !CommonUtils.isWindows()) {
 
-            // Reset its hit count (do)
-            proxy.hits = 0;
-        }
+                    try {
 
-        // Set proxy.lastMod to one more than iteration so neither of the two cases above will enter on this iteration again (do)
-        proxy.lastMod = iteration + 1;
+                        // Pause the NIODispatch thread here for 1/20th of a second
+                        Thread.sleep(50);
 
-        // This key hasn't appeared more than 10,000 times in the same key collection (do)
-        if (proxy.hits < MAXIMUM_ATTACHMENT_HITS) {
+                    // If another thread calls interrupt(), just write it into the log and keep going
+                    } catch (InterruptedException ix) { LOG.warn("Selector interrupted", ix); }
+                }
 
-            try {
+                // Register all the channels and call run() on all the objects that other threads gave us
+                addPendingItems();
 
                 try {
 
-                    // If we're looking for the accept operation and this key says the channel is ready to accept
-                    if ((allowedOps & SelectionKey.OP_ACCEPT) != 0 && sk.isAcceptable()) {
+                    // Wait for one or more channels to become ready for an operation like reading or writing
+                    if (checkTime) startSelect = System.currentTimeMillis(); // If the selector is spinning, we need to know how long selector.select() will take
+                    selector.select(100); // This is supposed to returns when a channel is selected, or 1/10th of a second passes
+
+                // Make a note about this exception in the debugging log, and go back to the start of the loop
+                } catch (NullPointerException err) {
 
-                        // Call the handleAccept() method on the object we had NIO keep when we registered the channel
-                        processAccept(sk, (AcceptObserver)attachment);
+                    LOG.warn("npe", err);
+                    continue;
 
-                    // If we're looking for the connect operation and the key says the channel is ready to connect
-                    } else if ((allowedOps & SelectionKey.OP_CONNECT)!= 0 && sk.isConnectable()) {
+                // Make a note about this exception in the debugging log, and go back to the start of the loop
+                } catch (CancelledKeyException err) {
+
+                    LOG.warn("cancelled", err);
+                    continue;
 
-                        // Call the handleConnect() method on the object we had NIO keep when we registered the channel
-                        processConnect(sk, (ConnectObserver)attachment);
+                // An IOException is serious, wrap it in a ProcessingException and throw it
+                } catch (IOException iox) {
 
+                    throw new ProcessingException(iox);
+                }
+
+                // Get the collection of keys that we can perform an operation on
+                Collection keys = selector.selectedKeys();
+                keyCount = selector.keys().size(); // Note how many channels this loop has for NIODispatcher.loopFor()
+
+                // The selector gave us nothing
+                if (keys.size() == 0) {
+
+                    // It hasn't been spinning until now
+                    if (startSelect == -1) {
+
+                        LOG.warn("No keys selected, starting spin check.");
+                        checkTime = true;
+
+                    // It has been spinning, and it returned with nothing in less than 0.03 seconds
+                    } else if (startSelect + 30 >= System.currentTimeMillis()) {
+                    
+                        /*
+                         * This is a spin, and shouldn't happen.
+                         */
+
+                        // This is a spin, and shouldn't happen
+                        if (LOG.isWarnEnabled()) LOG.warn("Spinning detected, current spins: " + zeroes); // Write in the log about it
+                        if (zeroes++ > SPIN_AMOUNT) throw new SpinningException(); // If it's happened more than 5000 times, throw an exception
+
+                    // It has been spinning, but it blocked for more than 0.03 seconds before returning nothing 
                     } else {
+                    
+                        /*
+                         * There are two ways the selector can convince us it's not spinning anymore.
+                         * It can return some keys 5 times.
+                         * Or, it can return nothing, but take longer than 0.03 seconds to do that.
+                         */
+
+                        // The selector returned nothing, but not right away, we'll stop accusing it of spinning
+                        checkTime   = false; // We're not watching the selector for spinning anymore
+                        startSelect = -1;
+                        zeroes      = 0;
+                        ignores     = 0;
+                    }
+
+                    // Go back to the top of the loop, we don't need to iterate through the keys and don't want to count this trip through the loop
+                    continue;
 
-                        // If we're looking for the read or write operations and the channel is ready for them, call handleRead() and handleWrite()
-                        if ((allowedOps & SelectionKey.OP_READ)  != 0 && sk.isReadable()) ((ReadObserver)attachment).handleRead();
-                        if ((allowedOps & SelectionKey.OP_WRITE) != 0 && sk.isWritable()) ((WriteObserver)attachment).handleWrite();
+                // The selector has been spinning, but now it gave us some keys
+                } else if (checkTime) {
+
+                    // This is good, but we don't trust it quite yet, record this good behavior
+                    ignores++;
+
+                    // It's returned keys more than 5 times since spinning, it's not spinning anymore
+                    if (ignores > MAX_IGNORES) {
+
+                        // Reset the spinning detection variables
+                        checkTime   = false; // We're not watching the selector for spinning anymore
+                        zeroes      = 0;
+                        startSelect = -1;
+                        ignores     = 0;
                     }
+                }
 
-                // The key is cancelled
-                } catch (CancelledKeyException err) {
+                // Record how many keys the selector returned in the log
+                if (LOG.isDebugEnabled()) LOG.debug("Selected (" + keys.size() + ") keys.");
 
-                    // Log it and ignore it
-                    LOG.warn("Ignoring cancelled key", err);
+                // Give every NBThrottle object the collection of keys our selector selected (do)
+                readyThrottles(keys);
 
-                // NIO threw us an IOException
-                } catch (IOException iox) {
+                // Loop for each key in the collection the selector gave us
+                for (Iterator it = keys.iterator(); it.hasNext(); /* Nothing here */) {
 
-                    // Call handleIOException() on the same object we would be calling handleRead() or handleWrite() on
-                    LOG.warn("IOX processing", iox);
-                    attachment.handleIOException(iox);
+                    // Get the next key in the collection, and if it's valid, process it
+                    SelectionKey sk = (SelectionKey)it.next();
+    				if (sk.isValid()) process(sk, sk.attachment(), 0xFFFF); // For allowed operations, pass a bit mask of all 1s
                 }
 
-            // Some other exception happened
-            } catch (Throwable t) {
+                // Empty the collection of keys
+                keys.clear();
 
-                ErrorService.error(t, "Unhandled exception while dispatching");
-                safeCancel(sk, attachment);
+                // Count this loop
+                iteration++;
             }
+        }
 
-        // Somehow, this one key appeared more than 10,000 times in the same key collection (do)
-        } else {
+        /**
+         * Calls methods like handleRead() and handleWrite() on the object that goes with a channel that NIO selected.
+         * 
+         * The process() method above gets a collection of selected keys, and then calls this one for each key.
+         * NBThrottle.selectableKeys() also calls this method. (do)
+         * 
+         * @param sk A key from the collection that select() returned in process() above
+         * @param proxyAttachment The Object reference we registered the channel with that NIO has been keeping for us
+         * @param allowedOps      The operations to look for, process() calls this with all 1s
+         */
+        void process(SelectionKey sk, Object proxyAttachment, int allowedOps) {
 
             /*
-             * we've had too many hits in a row.  kill this attachment.
+             * We wrapped an IOErrorObserver in an Attachment object.
+             * We had NIO save a reference to it when we registered the channel.
+             * Now, NIO is giving us theat object reference back, it's proxyAttachment.
+             * 
+             * Cast it back to an Attachment, and get the IOErrorObserver object inside it.
+             * This is the object we'll call handleRead() or handleWrite() on if the channel is selected for those operations.
              */
 
-            // Cancel the key and close the channel
-            if (LOG.isErrorEnabled()) LOG.error("Too many hits in a row for: " + attachment);
-            safeCancel(sk, attachment);
-        }
-    }
+            // Get the IOErrorObserver we had NIO save when we registered the channel
+            Attachment proxy = (Attachment)proxyAttachment;
+            IOErrorObserver attachment = proxy.attachment;
 
-    /**
-     * Cancel a key and call shutdown() on the object we've been calling handleRead() and handleWrite() on.
-     * Only process() above calls this.
-     * 
-     * @param sk         A key that appeared more than 10,000 times in the same key set (do)
-     * @param attachment The Attachment object we had NIO keep a reference to when registering the channel
-     */
-    private void safeCancel(SelectionKey sk, Shutdownable attachment) {
+            // This is the first time we've seen this key in this set of them
+            if (proxy.lastMod == iteration) {
 
-        /*
-         * This is a very safe cancel.
-         * It ignores errors and only shuts down if possible.
-         */
+                // Record that we are going to hit it now (do)
+                proxy.hits++;
 
-        try {
+            // We last modified this key on a previous iteration (do)
+            } else if (proxy.lastMod < iteration) {
 
-            // Cancel the key, and call shutdown() on the object we've been calling handleRead() and handleWrite() on
-            cancel(sk, (Shutdownable)attachment);
+                /*
+                 * do not count ones that we've already processed (such as throttled items)
+                 */
 
-        // Ignore every exception, they don't matter because we're closing the connection anyway
-        } catch (Throwable ignored) {}
-    }
+                // Reset its hit count (do)
+                proxy.hits = 0;
+            }
 
-    /**
-     * Makes a new selector, registers all the channels to it, and replaces the old one with it.
-     * 
-     * When the selector breaks, the program can make a new one.
-     * run() does this when process() throws an exception from the loop that calls select() to get selected keys.
-     */
-    private void swapSelector() {
+            // Set proxy.lastMod to one more than iteration so neither of the two cases above will enter on this iteration again (do)
+            proxy.lastMod = iteration + 1;
 
-        // Save a reference to the current selector
-        Selector oldSelector = selector;
+            // This key hasn't appeared more than 10,000 times in the same key collection (do)
+            if (proxy.hits < MAXIMUM_ATTACHMENT_HITS) {
 
-        // Get all the keys currently registered with the selector
-        Collection oldKeys = Collections.EMPTY_SET;
-        try {
+                try {
 
-            // Call keys() on the java.nio.channels.Selector object to have it give us all the keys
-            if (oldSelector != null) oldKeys = oldSelector.keys();
+                    try {
 
-        // If there's an exception, just leave oldKeys empty
-        } catch (ClosedSelectorException ignored) { LOG.warn("error getting keys", ignored); }
+                        // If we're looking for the accept operation and this key says the channel is ready to accept
+                        if ((allowedOps & SelectionKey.OP_ACCEPT) != 0 && sk.isAcceptable()) {
 
-        try {
-            
-            // Make a new selector
-            selector = Selector.open();
-            
-        } catch (IOException iox) {
+                            // Call the handleAccept() method on the object we had NIO keep when we registered the channel
+                            processAccept(sk, (AcceptObserver)attachment);
 
-            // Throw a RuntimeException and not an IOException so run() will know an IOException came from Selector.open()
-            LOG.error("Can't make a new selector!!!", iox);
-            throw new RuntimeException(iox);
-        }
+                        // If we're looking for the connect operation and the key says the channel is ready to connect
+                        } else if ((allowedOps & SelectionKey.OP_CONNECT)!= 0 && sk.isConnectable()) {
 
-        // Loop through all the keys we got from the old selector
-        for (Iterator i = oldKeys.iterator(); i.hasNext(); ) {
+                            // Call the handleConnect() method on the object we had NIO keep when we registered the channel
+                            processConnect(sk, (ConnectObserver)attachment);
 
-            try {
+                        } else {
 
-                // Get an old key
-                SelectionKey key = (SelectionKey)i.next();
+                            // If we're looking for the read or write operations and the channel is ready for them, call handleRead() and handleWrite()
+                            if ((allowedOps & SelectionKey.OP_READ)  != 0 && sk.isReadable()) ((ReadObserver)attachment).handleRead();
+                            if ((allowedOps & SelectionKey.OP_WRITE) != 0 && sk.isWritable()) ((WriteObserver)attachment).handleWrite();
+                        }
 
-                // Get all the information we need to do the registration from the old key
-                SelectableChannel channel    = key.channel();     // The channel that goes with a socket
-                Object            attachment = key.attachment();  // The Attachment object that contains the object we'll call handleRead() and handleWrite() on
-                int               ops        = key.interestOps(); // The operation interest set of bits in an integer
+                    // The key is cancelled
+                    } catch (CancelledKeyException err) {
 
-                try {
+                        // Log it and ignore it
+                        LOG.warn("Ignoring cancelled key", err);
 
-                    // Register the channel with the new selector
-                    channel.register(selector, ops, attachment); // This creates and returns a new key, but we don't need to keep it
+                    // NIO threw us an IOException
+                    } catch (IOException iox) {
 
-                // This caused an exception
-                } catch (IOException iox) {
+                        // Call handleIOException() on the same object we would be calling handleRead() or handleWrite() on
+                        LOG.warn("IOX processing", iox);
+                        attachment.handleIOException(iox);
+                    }
+
+                // Some other exception happened
+                } catch (Throwable t) {
 
-                    // Have the given object handle it
-                    ((Attachment)attachment).attachment.handleIOException(iox);
+                    ErrorService.error(t, "Unhandled exception while dispatching");
+                    safeCancel(sk, attachment);
                 }
 
-            // If a key is cancelled, ignore it and just keep going
-            } catch (CancelledKeyException ignored) { LOG.warn("key cancelled while swapping", ignored); }
+            // Somehow, this one key appeared more than 10,000 times in the same key collection (do)
+            } else {
+
+                /*
+                 * we've had too many hits in a row.  kill this attachment.
+                 */
+
+                // Cancel the key and close the channel
+                if (LOG.isErrorEnabled()) LOG.error("Too many hits in a row for: " + attachment);
+                safeCancel(sk, attachment);
+            }
         }
 
-        try {
+        /**
+         * Cancel a key and call shutdown() on the object we've been calling handleRead() and handleWrite() on.
+         * Only process() above calls this.
+         * 
+         * @param sk         A key that appeared more than 10,000 times in the same key set (do)
+         * @param attachment The Attachment object we had NIO keep a reference to when registering the channel
+         */
+        private void safeCancel(SelectionKey sk, Shutdownable attachment) {
 
-            // Close the old selector
-            if (oldSelector != null) oldSelector.close();
+            /*
+             * This is a very safe cancel.
+             * It ignores errors and only shuts down if possible.
+             */
 
-        } catch (IOException ignored) { LOG.warn("error closing old selector", ignored); }
-    }
+            try {
 
-    /**
-     * The NIODispatch thread runs this run() method, and loops here the whole time.
-     * 
-     * When the NIODispatch thread is created, it calls this method named run().
-     * This method calls process(), which calls selector.select() in a loop, and throws an exception if the selector breaks.
-     * This method catches the exceptions process() throws, makes a new selector, and keeps going.
-     */
-    public void run() {
+                // Cancel the key, and call shutdown() on the object we've been calling handleRead() and handleWrite() on
+                cancel(sk, (Shutdownable)attachment);
+
+            // Ignore every exception, they don't matter because we're closing the connection anyway
+            } catch (Throwable ignored) {}
+        }
+
+        /**
+         * Makes a new selector, registers all the channels to it, and replaces the old one with it.
+         * 
+         * When the selector breaks, the program can make a new one.
+         * run() does this when process() throws an exception from the loop that calls select() to get selected keys.
+         */
+        private void swapSelector() {
 
-        // The NIODispatch thread runs here forever
-        while (true) {
+            // Save a reference to the current selector
+            Selector oldSelector = selector;
 
+            // Get all the keys currently registered with the selector
+            Collection oldKeys = Collections.EMPTY_SET;
             try {
 
-                // If we don't have a selector, make a new one
-                if (selector == null) selector = Selector.open();
+                // Call keys() on the java.nio.channels.Selector object to have it give us all the keys
+                if (oldSelector != null) oldKeys = oldSelector.keys();
+
+            // If there's an exception, just leave oldKeys empty
+            } catch (ClosedSelectorException ignored) { LOG.warn("error getting keys", ignored); }
+
+            try {
+            
+                // Make a new selector
+                selector = Selector.open();
+            
+            } catch (IOException iox) {
+
+                // Throw a RuntimeException and not an IOException so run() will know an IOException came from Selector.open()
+                LOG.error("Can't make a new selector!!!", iox);
+                throw new RuntimeException(iox);
+            }
 
-                // Call selector.select() and iterate through the collection of selected keys
-                process();
+            // Loop through all the keys we got from the old selector
+            for (Iterator i = oldKeys.iterator(); i.hasNext(); ) {
 
-            // The selector.select() started repeatedly returning really fast with no keys
-            } catch (SpinningException spin) {
+                try {
 
-                // Make a new selector, and move all the channels from the old one to it
-                LOG.warn("selector is spinning!", spin);
-                swapSelector();
+                    // Get an old key
+                    SelectionKey key = (SelectionKey)i.next();
 
-            // The selector.select() call caused an IOException
-            } catch (ProcessingException uhoh) {
+                    // Get all the information we need to do the registration from the old key
+                    SelectableChannel channel    = key.channel();     // The channel that goes with a socket
+                    Object            attachment = key.attachment();  // The Attachment object that contains the object we'll call handleRead() and handleWrite() on
+                    int               ops        = key.interestOps(); // The operation interest set of bits in an integer
 
-                // Make a new selector, and move all the channels from the old one to it
-                LOG.warn("unknown exception while selecting", uhoh);
-                swapSelector();
+                    try {
 
-            // The Selector.open() call above threw an IOException
-            } catch (IOException iox) { // process() doesn't throw IOException, so we know this came from Selector.open()
+                        // Register the channel with the new selector
+                        channel.register(selector, ops, attachment); // This creates and returns a new key, but we don't need to keep it
 
-                // Wrap it as a RuntimeException and throw it
-                LOG.error("Unable to create a new Selector!!!", iox);
-                throw new RuntimeException(iox);
+                    // This caused an exception
+                    } catch (IOException iox) {
 
-            // Something else threw some other kind of exception
-            } catch (Throwable err) {
+                        // Have the given object handle it
+                        ((Attachment)attachment).attachment.handleIOException(iox);
+                    }
 
-                // Record it, and replace the selector
-                LOG.error("Error in Selector!", err);
-                ErrorService.error(err);
-                swapSelector();
+                // If a key is cancelled, ignore it and just keep going
+                } catch (CancelledKeyException ignored) { LOG.warn("key cancelled while swapping", ignored); }
             }
+
+            try {
+
+                // Close the old selector
+                if (oldSelector != null) oldSelector.close();
+
+            } catch (IOException ignored) { LOG.warn("error closing old selector", ignored); }
+        }
+
+        /**
+         * The NIODispatch thread runs this run() method, and loops here the whole time.
+         * 
+         * When the NIODispatch thread is created, it calls this method named run().
+         * This method calls process(), which calls selector.select() in a loop, and throws an exception if the selector breaks.
+         * This method catches the exceptions process() throws, makes a new selector, and keeps going.
+         */
+        public void run() {
+
+            // The NIODispatch thread runs here forever
+            while (true) {
+
+                try {
+
+                    // If we don't have a selector, make a new one
+                    if (selector == null) selector = Selector.open();
+
+                    // Call selector.select() and iterate through the collection of selected keys
+                    process();
+
+                // The selector.select() started repeatedly returning really fast with no keys
+                } catch (SpinningException spin) {
+
+                    // Make a new selector, and move all the channels from the old one to it
+                    LOG.warn("selector is spinning!", spin);
+                    swapSelector();
+
+                // The selector.select() call caused an IOException
+                } catch (ProcessingException uhoh) {
+
+                    // Make a new selector, and move all the channels from the old one to it
+                    LOG.warn("unknown exception while selecting", uhoh);
+                    swapSelector();
+
+                // The Selector.open() call above threw an IOException
+                } catch (IOException iox) { // process() doesn't throw IOException, so we know this came from Selector.open()
+
+                    // Wrap it as a RuntimeException and throw it
+                    LOG.error("Unable to create a new Selector!!!", iox);
+                    throw new RuntimeException(iox);
+
+                // Something else threw some other kind of exception
+                } catch (Throwable err) {
+
+                    // Record it, and replace the selector
+                    LOG.error("Error in Selector!", err);
+                    ErrorService.error(err);
+                    swapSelector();
+                }
+            }
+        }
+
+        /**
+         * Find out about how many channels this loop has.
+         * NIODispatcher.loopFor() uses this to give a new channel to the loop with the fewest.
+         * 
+         * @return The number of keys the selector had the last time we looked, plus the registrations waiting in REGISTER
+         */
+        int load() {
+
+            // Both counts are only written by our own thread or with Q_LOCK, and it's fine if they're a little old
+            return keyCount + pending;
         }
     }
 
     /*
-     * There are 4 nested classes defined in NIODispatcher.
+     * There are 5 nested classes defined in NIODispatcher.
+     * 
+     * SelectorLoop, above, is one selector and the thread that loops on it.
      * 
      * RegisterOp bundles together the channel, IOErrorObserver, and bit flag integer we use to register a channel with the selector.
      * 
@@ -1243,7 +1589,7 @@ public class NIODispatcher implements Runnable {
         // Member variables to hold the given objects
         private final SelectableChannel channel;
         private final IOErrorObserver handler;
-        private final int op;
+        private int op; // SelectorLoop.interest() can change it while the RegisterOp waits in REGISTER, only while holding Q_LOCK
 
         /**
          * Make a new RegisterOp object that will hold everything the NIODispatch thread needs to do a channel registration.
@@ -1276,6 +1622,9 @@ public class NIODispatcher implements Runnable {
         /** The object that we can call handleIOException(e) on. */
         private final IOErrorObserver attachment;
 
+        /** The SelectorLoop that registered the channel, NIODispatcher.process() hands keys back to it. */
+        private final SelectorLoop loop;
+
         /** Counts how many times we've modified (do) */
         private long lastMod;
 
@@ -1286,11 +1635,13 @@ public class NIODispatcher implements Runnable {
          * Make a new Attachment object.
          * 
          * @param attachment If NIO gives us an exception for this channel, we'll call handleIOException(e) on this object
+         * @param loop       The SelectorLoop registering the channel
          */
-        Attachment(IOErrorObserver attachment) {
+        Attachment(IOErrorObserver attachment, SelectorLoop loop) {
 
             // Save a reference to the given IOErrorObserver object in the member variable named attachment
             this.attachment = attachment; // Attachment is the name of this class, while attachment is a member variable that points to an IOErrorObserver
+            this.loop = loop;
         }
     }
 
@@ -46,6 +46,9 @@ class NIOInputStream implements ReadObserver, ReadableByteChannel {
     private ByteBuffer buffer;
     private boolean shutdown;
     
+    /** The object handleRead() calls after it reads, or null if nobody is listening. */
+    private volatile Runnable listener;
+    
     /**
      * Constructs a new pipe to allow SocketChannel's reading to funnel
      * to a blocking InputStream.
@@ -138,10 +141,35 @@ class NIOInputStream implements ReadObserver, ReadableByteChannel {
         return source;
     }
     
+    /**
+     * Sets the object to call after each read from the channel, or null for none.
+     * This lets a caller read the stream without blocking, only when it has data.
+     */
+    void setListener(Runnable listener) {
+        this.listener = listener;
+    }
+    
+    /** Determines if the remote side has closed the stream and everything it sent has been read. */
+    synchronized boolean isFinished() {
+        return source != null && source.isFinished();
+    }
+
     /**
      * Notification that a read can happen on the SocketChannel.
      */
     public void handleRead() throws IOException {
+        try {
+            handleReadImpl();
+        } finally {
+            // Tell the listener, if any, after we've let go of the buffer lock
+            Runnable l = listener;
+            if(l != null)
+                l.run();
+        }
+    }
+    
+    /** Moves data from the channel into the buffer. */
+    private void handleReadImpl() throws IOException {
         synchronized(bufferLock) {
             int read = 0;
 
@@ -180,6 +208,10 @@ class NIOInputStream implements ReadObserver, ReadableByteChannel {
         // If this NIOInputStream object has a BufferInputStream source, tell it to shut itself down
         if (source != null) source.shutdown();
 
+        // Let the listener find out it's closed, on the NIODispatcher thread like every other call it gets
+        Runnable l = listener;
+        if (l != null) NIODispatcher.instance().invokeLater(channel, l);
+
         // Mark this object as being shut down
         shutdown = true;
 
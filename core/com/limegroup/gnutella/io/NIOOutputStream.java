@@ -240,6 +240,9 @@ class NIOOutputStream implements WriteObserver {
              * Otherwise, we are interested.
              */
 
+            // The buffer is empty, send any part of a file BufferOutputStream.transferFrom() left for us
+            if (buffer.position() == 0 && sink.transferTo(channel)) return true; // The socket filled before we sent all of it
+
             // We emptied the entire buffer into the channel
             if (buffer.position() == 0) {
 
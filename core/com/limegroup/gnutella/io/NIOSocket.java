@@ -6,6 +6,7 @@ package com.limegroup.gnutella.io;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SocketChannel;
 import java.nio.channels.ReadableByteChannel;
 import java.net.InetAddress;
@@ -275,8 +276,8 @@ public class NIOSocket extends Socket implements ConnectObserver, NIOMultiplexor
          * When the right thread calls invokeLater(), it calls run() here.
          */
 
-        // Define a new Runnable class right here, and have the NIODispatcher thread call its run() method later.
-        NIODispatcher.instance().invokeLater(new Runnable() { public void run() {
+        // Define a new Runnable class right here, and have the NIODispatcher thread that handles our channel call its run() method later.
+        NIODispatcher.instance().invokeLater(channel, new Runnable() { public void run() {
 
             // Point oldReader and reader at this NIOSocket object's NIOInputStream
             ReadObserver oldReader = reader; // Point oldReader at the NIOInputStream
@@ -342,8 +343,8 @@ public class NIOSocket extends Socket implements ConnectObserver, NIOMultiplexor
      */
     public void setWriteObserver(final ChannelWriter newWriter) {
 
-        // Define a new Runnable class right here, and have the NIODispatcher call its run() method from a different thread later.
-        NIODispatcher.instance().invokeLater(new Runnable() { public void run() {
+        // Define a new Runnable class right here, and have the NIODispatcher thread that handles our channel call its run() method later.
+        NIODispatcher.instance().invokeLater(channel, new Runnable() { public void run() {
 
             try {
                 
@@ -723,6 +724,57 @@ public class NIOSocket extends Socket implements ConnectObserver, NIOMultiplexor
         else throw new IllegalStateException("writer not NIOOutputStream!");
     }
 
+    /**
+     * Have the NIODispatcher thread call listener.run() each time data arrives for the stream getInputStream() returns.
+     * The listener can then read what's in the stream without blocking, using available() to see how much there is.
+     * It also gets called once right away, in case data is already waiting, and once when the socket is closed.
+     * 
+     * @param listener The object to call, or null to stop calling one
+     */
+    public void setReadListener(Runnable listener) throws IOException {
+
+        // Make sure the socket is open
+        if (isClosed()) throw new IOException("Socket closed.");
+        if (!(reader instanceof NIOInputStream)) throw new IllegalStateException("reader not NIOInputStream!");
+
+        // Make sure the stream is set up and interested in reading, and give it the listener
+        NIOInputStream in = (NIOInputStream)reader;
+        in.getInputStream();
+        in.setListener(listener);
+        if (listener != null) NIODispatcher.instance().invokeLater(channel, listener);
+    }
+
+    /**
+     * Determine if the remote computer closed its side of the connection, and we've read everything it sent.
+     * Unlike reading from the stream, this never blocks.
+     * 
+     * @return True if the stream getInputStream() returns is at its end
+     */
+    public boolean isInputFinished() {
+
+        // Ask the NIOInputStream
+        return reader instanceof NIOInputStream && ((NIOInputStream)reader).isFinished();
+    }
+
+    /**
+     * Send part of a file to the remote computer straight from the disk, with FileChannel.transferTo().
+     * The data doesn't get copied into Java, through the stream getOutputStream() returns, or into its 8 KB buffer.
+     * Blocks like a write to that stream, and anything you wrote there first goes out first.
+     * 
+     * @param file     The FileChannel to read from
+     * @param position The distance into the file to start at
+     * @param count    The number of bytes to send
+     */
+    public void transferFrom(FileChannel file, long position, long count) throws IOException {
+
+        // Make sure the socket is open
+        if (isClosed()) throw new IOException("Socket closed.");
+
+        // Have the BufferOutputStream the NIOOutputStream made leave the range for its handleWrite() method
+        if (writer instanceof NIOOutputStream) ((BufferOutputStream)((NIOOutputStream)writer).getOutputStream()).transferFrom(file, position, count);
+        else throw new IllegalStateException("writer not NIOOutputStream!");
+    }
+
     /*
      * LimeWire's NIOSocket class extends Socket, so it is a socket.
      * It also has a member object of type Socket named socket, so it contains a socket.
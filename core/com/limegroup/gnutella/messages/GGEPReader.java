@@ -0,0 +1,380 @@
+// Commented for the Learning branch
+
+package com.limegroup.gnutella.messages;
+
+import java.io.IOException;
+
+import com.limegroup.gnutella.ByteOrder;
+import com.limegroup.gnutella.util.COBSUtil;
+import com.limegroup.gnutella.util.IOUtils;
+
+/**
+ * A GGEPReader object reads a GGEP block right where it is in a packet's bytes, without copying anything out of it.
+ *
+ * The GGEP constructor that parses a block copies every extension into a TreeMap of String names and byte array values.
+ * It also COBS decodes and decompresses every value, even the ones nobody will ever ask for.
+ * That's a lot of objects for a pong or query hit that we look at once and then forward or drop.
+ *
+ * A GGEPReader just keeps a reference to the packet's byte array, and where the GGEP block starts and ends in it.
+ * The constructor walks the block once to make sure it's well formed and find where it ends, but doesn't keep anything.
+ * When you ask for an extension, it walks the block again and compares the names right in the array.
+ * getValueOffset(key) and getValueLength(key) tell you where the raw value is, so you can read it in place.
+ * getInt(key) and getLong(key) read the number right from the array, unless the value is COBS encoded or compressed.
+ * getBytes(key) copies the value into a new array, and only then COBS decodes or decompresses it.
+ *
+ * The methods that read values have the same names and exceptions as the ones in GGEP, so code that reads a GGEP object can read a GGEPReader instead.
+ * PingReply, QueryReply, and QueryRequest use this class to read the GGEP blocks of packets we get from the network.
+ * Use toGGEP() if you need a GGEP object you can edit and write.
+ *
+ * The byte array must not change while you use a GGEPReader on it.
+ * A GGEP block only has a few extensions, so walking it for each key is quicker than building a map.
+ *
+ * If a block has the same extension twice, we use the last one, like the GGEP constructor does when it puts them in its TreeMap.
+ * If merge(other) added the extensions of another block, its extensions win over ours, like GGEP.merge().
+ */
+public final class GGEPReader {
+
+    /** The byte array with the GGEP block in it, like the payload of a packet. */
+    private final byte[] _bytes;
+
+    /** The index in _bytes of the 0xC3 byte that starts the GGEP block. */
+    private final int _begin;
+
+    /** The index in _bytes right after the value of the last extension in the GGEP block. */
+    private final int _end;
+
+    /** Another GGEP block in the same byte array that merge() added to this one, or null if there isn't one. */
+    private GGEPReader _next;
+
+    /**
+     * Make a new GGEPReader to read the GGEP block at beginOffset in the given byte array.
+     * Walks through the block once to make sure it's well formed, and find where it ends.
+     * Doesn't COBS decode or decompress any of the values, so a bad value won't be found until you ask for it.
+     *
+     * @param  bytes                 A byte array with a GGEP block in it
+     * @param  beginOffset           The index in bytes of the 0xC3 byte that starts the GGEP block
+     * @throws BadGGEPBlockException The block isn't well formed, or goes beyond the end of the array
+     */
+    public GGEPReader(byte[] bytes, int beginOffset) throws BadGGEPBlockException {
+
+        // Make sure the block starts with the byte 0xC3, and has room for at least 1 extension
+        if (bytes.length < 4 || beginOffset < 0 || beginOffset >= bytes.length) throw new BadGGEPBlockException();
+        if (bytes[beginOffset] != GGEP.GGEP_PREFIX_MAGIC_NUMBER) throw new BadGGEPBlockException();
+
+        // Save the array and where the block starts
+        _bytes = bytes;
+        _begin = beginOffset;
+
+        // Walk the extensions until we get to the one marked last
+        int index = beginOffset + 1; // Start on the flags byte of the first extension
+        while (true) {
+
+            // Make sure the flags byte is there and valid, and the value ends inside the array
+            checkFlags(index);
+            int valueEnd = getValueOffset(index) + getValueLength(index);
+            if (valueEnd > bytes.length) throw new BadGGEPBlockException();
+
+            // If this is the last extension, the block ends where its value does
+            boolean last = (bytes[index] & 0x80) != 0; // The 8th bit marks the last extension
+            index = valueEnd; // Move to the next extension's flags byte
+            if (last) break;
+        }
+
+        // Save where the block ends
+        _end = index;
+    }
+
+    /**
+     * The index in the byte array right after this GGEP block.
+     * This is where the next extension in a HUGE extended area starts.
+     *
+     * @return The index after the value of the last extension in the block
+     */
+    public int getEndOffset() {
+
+        // The constructor found it
+        return _end;
+    }
+
+    /**
+     * Add the extensions of another GGEP block in the same byte array to this one.
+     * Like GGEP.merge(), if both blocks have an extension, we'll read the value from the other one.
+     *
+     * @param other A GGEPReader on another GGEP block in the same byte array
+     */
+    public void merge(GGEPReader other) {
+
+        // Both blocks have to be in the same array, because find() returns an index in it
+        if (other._bytes != _bytes) throw new IllegalArgumentException("different arrays");
+
+        // Add other to the end of the chain of blocks
+        GGEPReader last = this;
+        while (last._next != null) last = last._next;
+        last._next = other;
+    }
+
+    /**
+     * Determine if this GGEP block has the given extension.
+     *
+     * @param key The name of an extension, like "DU"
+     * @return    True if the block has it, even if it doesn't have a value
+     */
+    public boolean hasKey(String key) {
+
+        // Look for it
+        return find(key) != -1;
+    }
+
+    /**
+     * Find out where the raw value of the given extension is in the byte array.
+     * If the extension is COBS encoded or compressed, this is the value before decoding it.
+     *
+     * @param key The name of an extension, like "IPP"
+     * @return    The index in the byte array where its value starts, or -1 if the block doesn't have it
+     */
+    public int getValueOffset(String key) {
+
+        // Find the flags byte, and move past the name and length bytes
+        int index = find(key);
+        return index == -1 ? -1 : getValueOffset(index);
+    }
+
+    /**
+     * Find out how long the raw value of the given extension is.
+     * If the extension is COBS encoded or compressed, this is the length before decoding it.
+     *
+     * @param key The name of an extension, like "IPP"
+     * @return    The number of bytes in the value, or -1 if the block doesn't have it
+     */
+    public int getValueLength(String key) {
+
+        // Find the flags byte, and read the length bytes after the name
+        int index = find(key);
+        return index == -1 ? -1 : getValueLength(index);
+    }
+
+    /**
+     * Determine if the value of the given extension is COBS encoded or compressed.
+     * If so, you have to call getBytes(key) instead of reading it in place.
+     *
+     * @param key The name of an extension, like "PUSH"
+     * @return    True if it's encoded or compressed, false if it isn't or the block doesn't have it
+     */
+    public boolean isEncoded(String key) {
+
+        // The 7th bit of the flags byte means COBS, and the 6th means deflate
+        int index = find(key);
+        return index != -1 && (_bytes[index] & 0x60) != 0;
+    }
+
+    /**
+     * Get the value of the given extension.
+     * Copies it out of the byte array, and COBS decodes and decompresses it if its flags say to.
+     *
+     * @param  key                      The name of an extension, like "PUSH"
+     * @return                          A new byte array with the value
+     * @throws BadGGEPPropertyException The block doesn't have the extension, its value is empty, or we couldn't decode it
+     */
+    public byte[] getBytes(String key) throws BadGGEPPropertyException {
+
+        // Find it, GGEP.getBytes() throws on an empty value too
+        int index = find(key);
+        if (index == -1) throw new BadGGEPPropertyException();
+        int length = getValueLength(index);
+        if (length == 0) throw new BadGGEPPropertyException();
+
+        // Copy the value
+        byte[] data = new byte[length];
+        System.arraycopy(_bytes, getValueOffset(index), data, 0, length);
+
+        // If the flags say so, COBS decode and then decompress it
+        if ((_bytes[index] & 0x40) != 0) {
+            try {
+                data = COBSUtil.cobsDecode(data);
+            } catch (IOException badCobsEncoding) { throw new BadGGEPPropertyException("Bad COBS Encoding"); }
+        }
+        if ((_bytes[index] & 0x20) != 0) {
+            try {
+                data = IOUtils.inflate(data);
+            } catch (IOException badData) { throw new BadGGEPPropertyException("Bad compressed data"); }
+        }
+
+        // Return the value
+        return data;
+    }
+
+    /**
+     * Get the value of the given extension as a String.
+     *
+     * @param  key                      The name of an extension, like "UDPHC"
+     * @return                          The value as text
+     * @throws BadGGEPPropertyException The block doesn't have the extension, or we couldn't read its value
+     */
+    public String getString(String key) throws BadGGEPPropertyException {
+
+        // Only a plain value can be read in place
+        if (!isEncoded(key)) {
+            int index = find(key);
+            if (index == -1 || getValueLength(index) == 0) throw new BadGGEPPropertyException();
+            return new String(_bytes, getValueOffset(index), getValueLength(index));
+        }
+
+        // Decode it first
+        return new String(getBytes(key));
+    }
+
+    /**
+     * Get the value of the given extension as a number.
+     * The value is 1 to 4 bytes in little endian order.
+     * Reads it right from the byte array, unless it's COBS encoded or compressed.
+     *
+     * @param  key                      The name of an extension, like "DU"
+     * @return                          The number
+     * @throws BadGGEPPropertyException The block doesn't have the extension, or its value isn't 1 to 4 bytes
+     */
+    public int getInt(String key) throws BadGGEPPropertyException {
+
+        // Decode the value if we have to, and read it
+        if (isEncoded(key)) {
+            byte[] bytes = getBytes(key);
+            if (bytes.length > 4) throw new BadGGEPPropertyException("Integer too big");
+            return ByteOrder.leb2int(bytes, 0, bytes.length);
+        }
+
+        // Read it in place
+        int index = find(key);
+        if (index == -1) throw new BadGGEPPropertyException();
+        int length = getValueLength(index);
+        if (length < 1) throw new BadGGEPPropertyException("No bytes");
+        if (length > 4) throw new BadGGEPPropertyException("Integer too big");
+        return ByteOrder.leb2int(_bytes, getValueOffset(index), length);
+    }
+
+    /**
+     * Get the value of the given extension as a number.
+     * The value is 1 to 8 bytes in little endian order.
+     * Reads it right from the byte array, unless it's COBS encoded or compressed.
+     *
+     * @param  key                      The name of an extension, like "CT"
+     * @return                          The number
+     * @throws BadGGEPPropertyException The block doesn't have the extension, or its value isn't 1 to 8 bytes
+     */
+    public long getLong(String key) throws BadGGEPPropertyException {
+
+        // Decode the value if we have to, and read it
+        if (isEncoded(key)) {
+            byte[] bytes = getBytes(key);
+            if (bytes.length > 8) throw new BadGGEPPropertyException("Integer too big");
+            return ByteOrder.leb2long(bytes, 0, bytes.length);
+        }
+
+        // Read it in place
+        int index = find(key);
+        if (index == -1) throw new BadGGEPPropertyException();
+        int length = getValueLength(index);
+        if (length < 1) throw new BadGGEPPropertyException("No bytes");
+        if (length > 8) throw new BadGGEPPropertyException("Integer too big");
+        return ByteOrder.leb2long(_bytes, getValueOffset(index), length);
+    }
+
+    /**
+     * Parse this GGEP block, and the ones merged into it, into a GGEP object.
+     * This makes all the objects GGEPReader avoids, so only do it when you need to edit or write the block.
+     *
+     * @return                       A new GGEP object with all the extensions
+     * @throws BadGGEPBlockException A value couldn't be COBS decoded or decompressed
+     */
+    public GGEP toGGEP() throws BadGGEPBlockException {
+
+        // Parse each block in the chain, and merge them together in order
+        GGEP ggep = new GGEP(_bytes, _begin, null);
+        for (GGEPReader block = _next; block != null; block = block._next) ggep.merge(new GGEP(_bytes, block._begin, null));
+        return ggep;
+    }
+
+    /**
+     * Find the given extension in this GGEP block and the ones merged into it.
+     *
+     * @param key The name of an extension, like "LOC"
+     * @return    The index in the byte array of the extension's flags byte, or -1 if no block has it
+     */
+    private int find(String key) {
+
+        // Loop through the blocks, and the extensions in each one
+        int found = -1;
+        int keyLength = key.length();
+        for (GGEPReader block = this; block != null; block = block._next) {
+            int index = block._begin + 1; // The flags byte of the first extension
+            while (index < block._end) {
+
+                // Compare the name right in the array, and keep looking after a match so the last one wins
+                int nameLength = _bytes[index] & 0x0F;
+                if (nameLength == keyLength) {
+                    int i = 0;
+                    while (i < keyLength && _bytes[index + 1 + i] == (byte)key.charAt(i)) i++;
+                    if (i == keyLength) found = index;
+                }
+
+                // Move to the next extension
+                index = getValueOffset(index) + getValueLength(index);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Make sure the flags byte of an extension is valid.
+     *
+     * @param  index                 The index in the byte array of the flags byte
+     * @throws BadGGEPBlockException It's beyond the end, the 5th bit is set, or the name length is 0
+     */
+    private void checkFlags(int index) throws BadGGEPBlockException {
+
+        // Check the same things the GGEP constructor does
+        if (index >= _bytes.length) throw new BadGGEPBlockException();
+        if ((_bytes[index] & 0x10) != 0) throw new BadGGEPBlockException(); // The 5th bit is reserved
+        if ((_bytes[index] & 0x0F) == 0) throw new BadGGEPBlockException(); // The name is 1 to 15 bytes
+
+        // Make sure the length bytes are there, and stop after 3 like GGEP.deriveDataLength()
+        int lengthIndex = index + 1 + (_bytes[index] & 0x0F);
+        for (int i = 0; ; i++) {
+            if (i == 3 || lengthIndex + i >= _bytes.length) throw new BadGGEPBlockException();
+            if ((_bytes[lengthIndex + i] & 0x40) != 0) break; // The 7th bit marks the last length byte
+        }
+    }
+
+    /**
+     * Find where the value of an extension starts.
+     * The constructor already checked the flags and length bytes.
+     *
+     * @param index The index in the byte array of the extension's flags byte
+     * @return      The index right after its length bytes
+     */
+    private int getValueOffset(int index) {
+
+        // Move past the flags byte, the name, and the length bytes
+        index += 1 + (_bytes[index] & 0x0F);
+        while ((_bytes[index] & 0x40) == 0) index++;
+        return index + 1;
+    }
+
+    /**
+     * Read the length of an extension's raw value.
+     * It's in 1 to 3 bytes after the name, 6 bits in each, with the 7th bit set in the last one.
+     *
+     * @param index The index in the byte array of the extension's flags byte
+     * @return      The length of its value
+     */
+    private int getValueLength(int index) {
+
+        // Move past the flags byte and the name, and read 6 bits from each length byte
+        index += 1 + (_bytes[index] & 0x0F);
+        int length = 0;
+        byte b;
+        do {
+            b = _bytes[index++];
+            length = (length << 6) | (b & 0x3F);
+        } while ((b & 0x40) == 0);
+        return length;
+    }
+}
@@ -60,8 +60,14 @@ import com.limegroup.gnutella.UrnType;
 public class HUGEExtension {
 
     /**
-     * The GGEP block.
-     * If more than one extension is a GGEP block, we'll add all the extensions to this single GGEP object.
+     * A GGEPReader on the GGEP block, which reads it right where it is in the extended area.
+     * If more than one extension is a GGEP block, we'll merge them all into this single GGEPReader object.
+     */
+    private GGEPReader _ggepReader = null;
+
+    /**
+     * The GGEP block parsed into a GGEP object.
+     * getGGEP() makes it from _ggepReader the first time something asks for it.
      */
     private GGEP _ggep = null;
 
@@ -91,14 +97,38 @@ public class HUGEExtension {
      * The GGEP block.
      * If this HUGE extended area had more than one GGEP block, we added the extensions from all of them to this GGEP object.
      * 
+     * Parses the block the first time you call this.
+     * If you just need to read some values, getGGEPReader() is faster.
+     * 
      * @return A GGEP object with all the GGEP extensions from the GGEP block extensions in the HUGE extended area
      */
-    public GGEP getGGEP() {
+    public synchronized GGEP getGGEP() {
+
+        // If we haven't parsed the GGEP block into a GGEP object yet, do it now
+        if (_ggep == null && _ggepReader != null) {
+            try {
+                _ggep = _ggepReader.toGGEP();
+            } catch (BadGGEPBlockException ignored) {
+                _ggepReader = null; // A value couldn't be decoded, act like we didn't find a GGEP block, like we did before we read them lazily
+            }
+        }
 
-        // Return the reference we saved when we parsed an extension into a GGEP object
+        // Return the GGEP object, or null if we didn't find a GGEP block
         return _ggep;
     }
 
+    /**
+     * The GGEP block, as a GGEPReader that reads it in place without copying the extensions out of it.
+     * If this HUGE extended area had more than one GGEP block, the GGEPReader reads all of them.
+     * 
+     * @return A GGEPReader on the GGEP block extensions in the HUGE extended area, or null if we didn't find one
+     */
+    public GGEPReader getGGEPReader() {
+
+        // Return the reference we saved when we found a GGEP block
+        return _ggepReader;
+    }
+
     /**
      * The HUGE URN extensions, like "urn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ", that we found in this HUGE extended area.
      * This is how a query hit sends the SHA1 hash of a file.
@@ -154,8 +184,8 @@ public class HUGEExtension {
      * XML, which starts "<" or "{".
      * 
      * This constructor parses through the bytes, identifying each extension.
-     * It turns the bytes of a GGEP block into a GGEP object, and saves it under _ggep.
-     * If it finds a second GGEP block, it adds its extensions into that one.
+     * It points a GGEPReader at a GGEP block, and saves it under _ggepReader.
+     * If it finds a second GGEP block, it merges it into that one.
      * The constructor sorts each text extension into 1 of 3 lists:
      * 
      * _urns is a list of URN objects that represent URNs with hashes like "urn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ".
@@ -178,24 +208,24 @@ public class HUGEExtension {
             // The extension at currIndex is a GGEP block
             if (extsBytes[currIndex] == GGEP.GGEP_PREFIX_MAGIC_NUMBER) { // GGEP block start with their identifying byte 0xC3
 
-                // Prepare a byte array that the GGEP constructor can write the block length in to
-                int[] endIndex = new int[1];
-                endIndex[0] = currIndex + 1; // The GGEP constructor doesn't read the value endIndex[0], not sure why we're setting it (do)
+                // If the block isn't well formed, we'll just move past the 0xC3 byte
+                int endIndex = currIndex + 1;
 
                 try {
 
-                    // Turn the data of this extension into a GGEP object
-                    GGEP ggep = new GGEP(extsBytes, currIndex, endIndex); // Writes the index beyond the GGEP block in endIndex[0]
+                    // Point a GGEPReader at this extension, the constructor finds where the block ends without copying anything
+                    GGEPReader ggep = new GGEPReader(extsBytes, currIndex);
+                    endIndex = ggep.getEndOffset();
 
-                    // Save the GGEP object in this HUGEExtension one
-                    if (_ggep == null) _ggep = ggep; // If this HUGEExtension object doesn't have a GGEP block yet, this is it
-                    else _ggep.merge(ggep);          // We already have one, add this one's extensions into it
+                    // Save the GGEPReader in this HUGEExtension object
+                    if (_ggepReader == null) _ggepReader = ggep; // If this HUGEExtension object doesn't have a GGEP block yet, this is it
+                    else _ggepReader.merge(ggep);                // We already have one, add this one's extensions onto it
 
-                // There was a problem parsing the data into a GGEP object, move on to the next extension
+                // The GGEP block isn't well formed, move on to the next extension
                 } catch (BadGGEPBlockException ignored) {}
 
                 // Move currIndex beyond the end of the GGEP block
-                currIndex = endIndex[0]; // Now, it should either be at the end of the data, or on a 0x1C separator
+                currIndex = endIndex; // Now, it should either be at the end of the data, or on a 0x1C separator
 
                 /*
                  * TODO:kfaaborg If there is a GGEP block before a text extension, currIndex will get stuck in front of the 0x1C separator.
@@ -9,6 +9,7 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
 import java.util.Iterator;
 
 import com.limegroup.gnutella.Assert;
@@ -20,6 +21,7 @@ import com.limegroup.gnutella.settings.ConnectionSettings;
 import com.limegroup.gnutella.settings.MessageSettings;
 import com.limegroup.gnutella.statistics.ReceivedErrorStat;
 import com.limegroup.gnutella.udpconnect.UDPConnectionMessage;
+import com.limegroup.gnutella.util.BufferByteArrayOutputStream;
 import com.limegroup.gnutella.util.DataUtils;
 
 /**
@@ -190,6 +192,31 @@ public abstract class Message implements Serializable, Comparable {
      */
     private int priority = 0;
 
+    /**
+     * The header and payload of this packet, encoded the way writeQuickly() writes them, or null if we haven't encoded it yet.
+     * getEncoded() makes this the first time a connection sends the packet.
+     * Every connection we forward the packet to shares these bytes, instead of writing the packet again itself.
+     * 
+     * Changing the TTL, hops, GUID, or length sets this back to null.
+     * Marked transient because a ByteBuffer can't be serialized, we'll just encode the packet again.
+     */
+    private transient ByteBuffer encoded;
+
+    /**
+     * The payload array, if createPooledMessage() got it from PayloadPool, or null if it didn't.
+     * release() gives it back.
+     */
+    private transient byte[] pooledPayload;
+
+    /**
+     * An OutputStream that throws away what you write to it.
+     * getEncoded() writes the payload here when it reuses the bytes, so the statistics writePayload() records still count every send.
+     */
+    private static final OutputStream DISCARD = new OutputStream() {
+        public void write(int b) {}
+        public void write(byte[] b, int off, int len) {}
+    };
+
     /**
      * The time we made this Gnutella message.
      * This time is not written to the network.
@@ -396,7 +423,7 @@ public abstract class Message implements Serializable, Comparable {
 
     /**
      * Read one Gnutella packet from a given InputStream, and return a packet object like a PingReply that represents it.
-     * UDPService.handleRead() and MulticastService.run() use this read() method.
+     * MulticastService.run() uses this read() method.
      * 
      * @param in                  The InputStream object we can call read() on to get data from a remote computer sending us Gnutella messages.
      * @param network             The Internet protocol this Gnutella packet traveled to us on, like 1 N_TCP or 2 N_UDP.
@@ -421,7 +448,7 @@ public abstract class Message implements Serializable, Comparable {
 
     /**
      * Read one Gnutella packet from a given InputStream, and return a packet object like a PingReply that represents it.
-     * Calls from UDPService.handleRead() reach this method.
+     * Calls from MulticastService.run() reach this method.
      * 
      * @param  in                 The InputStream object we can call read() on to get data from a remote computer sending us Gnutella messages.
      * @param  buf                An already allocated 23-byte buffer we can use to hold a Gnutella packet header.
@@ -521,8 +548,8 @@ public abstract class Message implements Serializable, Comparable {
         // This Gnutella message has a payload
         if (length != 0) {
 
-            // Allocate a new byte array long enough to hold the message payload
-            payload = new byte[length];
+            // Get a byte array exactly long enough to hold the message payload, one a dropped packet gave back if we can
+            payload = PayloadPool.get(length);
 
             // Loop until we've read all the bytes of the message payload
             for (int i = 0; i < length; ) { // The index i extends over the data in payload, stop when i reaches length
@@ -553,7 +580,91 @@ public abstract class Message implements Serializable, Comparable {
         }
 
         // Make a new type-specific object for this message, like a PingRequest, and return it
-        return createMessage(buf, payload, softMax, network);
+        return createPooledMessage(buf, payload, softMax, network);
+    }
+
+    /**
+     * Read one Gnutella packet from a ByteBuffer holding a UDP datagram, and return a packet object like a PingReply that represents it.
+     * UDPService.receive() calls this on each datagram it gets.
+     * 
+     * This is like read(InputStream), but without the stream.
+     * It takes the header and payload straight from the buffer, so UDPService doesn't have to wrap each datagram in a new ByteArrayInputStream.
+     * The payload still gets its own array, from PayloadPool, because the Message object keeps it after the buffer is used for the next datagram.
+     * 
+     * @param  buffer             A ByteBuffer with the datagram between its position and limit, this moves the position past the packet
+     * @param  network            The Internet protocol this Gnutella packet traveled to us on, like 2 N_UDP
+     * @param  header             An already allocated 23-byte buffer we can use to hold the Gnutella packet header
+     * @return                    A new object that represents the packet, like a PingRequest object
+     * @throws BadPacketException The datagram is too short, its length is impossible, or information in the packet is invalid
+     * @throws IOException        createMessage() couldn't parse the payload
+     */
+    public static Message read(ByteBuffer buffer, int network, byte[] header) throws BadPacketException, IOException {
+
+        // The datagram has to hold at least the 23-byte header
+        if (buffer.remaining() < 23) throw new BadPacketException("Datagram too short: " + buffer.remaining());
+        buffer.get(header, 0, 23);
+
+        // 19 bytes into the header, read the 4 bytes there as an int, this is the payload length
+        int length = ByteOrder.leb2int(header, 19); // The least significant byte is first
+
+        // The length is negative, bigger than we allow, or more than the datagram has left
+        if (length < 0 || length > MessageSettings.MAX_LENGTH.getValue()) {
+            ReceivedErrorStat.INVALID_LENGTH.incrementStat();
+            throw new BadPacketException("Unreasonable message length: " + length);
+        }
+        if (length > buffer.remaining()) throw new BadPacketException("Datagram shorter than its payload: " + length);
+
+        // Copy the payload into an array from PayloadPool, or point at the empty array if there isn't one
+        byte[] payload = DataUtils.EMPTY_BYTE_ARRAY;
+        if (length != 0) {
+            payload = PayloadPool.get(length);
+            buffer.get(payload);
+        }
+
+        // Make a new type-specific object for this message, like a PingRequest, and return it
+        return createPooledMessage(header, payload, SOFT_MAX, network);
+    }
+
+    /**
+     * Make an object that represents the Gnutella packet, with a payload array that came from PayloadPool.get().
+     * If the program drops the packet, calling release() on it will give the array back.
+     * If the packet is bad, gives the array back now.
+     * 
+     * MessageReader and the read() methods call this.
+     * 
+     * @param header  A byte array with the 23-byte Gnutella packet header
+     * @param payload The payload, in an array from PayloadPool.get(), or an empty array
+     * @param softMax The maximum hops + TTL we'll allow for this packet
+     * @param network The Internet protocol we got it on, like 1 N_TCP or 2 N_UDP
+     * @return        A new object that extends Message, like a PingRequest
+     */
+    public static Message createPooledMessage(byte[] header, byte[] payload, byte softMax, int network) throws BadPacketException, IOException {
+
+        // Make the object, and have it remember where the payload array came from
+        Message m;
+        try {
+            m = createMessage(header, payload, softMax, network);
+        } catch (BadPacketException e) {
+            PayloadPool.release(payload); // No Message has the array, we can use it again right away
+            throw e;
+        }
+        m.pooledPayload = payload;
+        return m;
+    }
+
+    /**
+     * Tell this packet the program has dropped it.
+     * If its payload array came from PayloadPool, gives it back so the next packet can use it.
+     * 
+     * Only call this when nothing will look at this Message again, like when MessageRouter finds it's a duplicate.
+     * Don't call it on a packet we're sending, keeping, or have given to anything else.
+     */
+    public void release() {
+
+        // Give back the payload array, and make sure we only do this once
+        byte[] payload = pooledPayload;
+        pooledPayload = null;
+        if (payload != null) PayloadPool.release(payload);
     }
 
     /**
@@ -840,6 +951,59 @@ public abstract class Message implements Serializable, Comparable {
         writePayload(out);
     }
 
+    /**
+     * Get the bytes of this Gnutella packet, the 23-byte header followed by the payload.
+     * Encodes the packet the first time, and shares the same bytes after that.
+     * 
+     * MessageWriter calls this to send a packet.
+     * When we broadcast a query to 30 connections, it's only encoded once.
+     * 
+     * @return A new read-only ByteBuffer with position at the start of the packet and limit at the end.
+     *         The caller can move its position and limit without affecting anyone else's.
+     */
+    public synchronized ByteBuffer getEncoded() {
+
+        // If we haven't encoded this packet since it was made or last changed, do it now
+        if (encoded == null) {
+
+            // Write the packet into a buffer that's exactly the right size
+            BufferByteArrayOutputStream out = new BufferByteArrayOutputStream(getTotalLength());
+            try {
+                writeQuickly(out);
+            } catch (IOException impossible) {
+                throw new RuntimeException(impossible.getMessage()); // Writing into memory doesn't throw
+            }
+
+            // Clip position and limit around the data, and keep a read-only view of it
+            ByteBuffer buffer = out.buffer();
+            buffer.flip();
+            encoded = buffer.asReadOnlyBuffer();
+
+        // We already have the bytes
+        } else {
+
+            // Most payloads just write an array they already have, so this is fast, and it records this send in the statistics
+            try {
+                writePayload(DISCARD);
+            } catch (IOException impossible) {
+                throw new RuntimeException(impossible.getMessage());
+            }
+        }
+
+        // Give the caller its own position and limit over the shared bytes
+        return encoded.duplicate();
+    }
+
+    /**
+     * Throw away the bytes getEncoded() made, because the header or payload is changing.
+     * Connections that already got a buffer from getEncoded() will still send the packet as it was.
+     */
+    protected synchronized void clearEncoded() {
+
+        // getEncoded() will write the packet again the next time it's called
+        encoded = null;
+    }
+
     /**
      * Write 23-byts of 0s to the given OutputStream.
      * This is the size of a Gnutella packet header.
@@ -1101,6 +1265,7 @@ public abstract class Message implements Serializable, Comparable {
 
         // Save the TTL number in this object
         this.ttl = ttl;
+        clearEncoded(); // The header changed
     }
 
     /**
@@ -1115,6 +1280,7 @@ public abstract class Message implements Serializable, Comparable {
 
         // Save the new GUID value in this object
         this.guid = guid.bytes();
+        clearEncoded(); // The header changed
     }
 
     /**
@@ -1135,6 +1301,7 @@ public abstract class Message implements Serializable, Comparable {
 
         // Save the hops count in this object
         this.hops = hops;
+        clearEncoded(); // The header changed
     }
 
     /**
@@ -1176,6 +1343,7 @@ public abstract class Message implements Serializable, Comparable {
 
         // Change the payload length to the given value
         length = l;
+        clearEncoded(); // The payload changed
     }
 
     /**
@@ -1205,6 +1373,7 @@ public abstract class Message implements Serializable, Comparable {
 
         // Record this packet has traveled another hop across the Internet
         hops++;
+        clearEncoded(); // The header is changing
 
         // This packet had enough life to survive that hop
         if (ttl > 0) {
@@ -0,0 +1,115 @@
+// Commented for the Learning branch
+
+package com.limegroup.gnutella.messages;
+
+import java.util.ArrayList;
+
+/**
+ * PayloadPool keeps the byte arrays of Gnutella packet payloads we're done with, so we can read the next packets into them instead of allocating new ones.
+ *
+ * MessageReader and Message.read() call get(length) to get an array to read a payload into.
+ * The Message object they make keeps that array, and remembers that it came from here.
+ * When the program drops the packet without sending it anywhere, like a duplicate query or a ping we're too busy for, it calls Message.release().
+ * That gives the array back here with release(array), and the next packet of the same length gets it.
+ *
+ * Packets we keep or forward are never released, so nothing else can be using an array when it comes back here.
+ * Their arrays just become garbage like before.
+ * Code that keeps a packet after routing doesn't have to copy anything out of it.
+ *
+ * The classes that extend Message write their whole payload array to the network, so an array has to be exactly the right length.
+ * So, the size classes here are exact lengths, one for each length up to MAX_LENGTH.
+ * That covers pings, pongs, and almost all queries.
+ * The pool holds at most MAX_BYTES bytes altogether.
+ *
+ * The statistics count the arrays and bytes we allocated and reused, so you can measure how much allocation the pool saves.
+ */
+public final class PayloadPool {
+
+    /** We don't keep arrays longer than 1 KB, get(length) just allocates those. */
+    private static final int MAX_LENGTH = 1024;
+
+    /** We keep at most 1 MB of arrays, release(array) lets the garbage collector have the rest. */
+    private static final int MAX_BYTES = 1024 * 1024;
+
+    /**
+     * The arrays we're keeping.
+     * FREE[length] is an ArrayList of the free arrays that are length bytes long, or null if we haven't needed that length yet.
+     */
+    private static final ArrayList[] FREE = new ArrayList[MAX_LENGTH + 1];
+
+    /** The number of bytes in all the arrays in FREE. */
+    private static int _freeBytes;
+
+    /** The number of arrays, and bytes in them, get(length) had to allocate. */
+    private static long _arraysAllocated;
+    private static long _bytesAllocated;
+
+    /** The number of arrays, and bytes in them, get(length) took from the pool instead. */
+    private static long _arraysReused;
+    private static long _bytesReused;
+
+    /** Don't let anyone make a PayloadPool object, all the methods are static. */
+    private PayloadPool() {}
+
+    /**
+     * Get an array to read a payload into.
+     *
+     * @param length The payload length, from the packet header
+     * @return       A byte array exactly that long, which may have data from an earlier packet in it
+     */
+    public static synchronized byte[] get(int length) {
+
+        // If we have a free array this long, use it
+        if (length <= MAX_LENGTH) {
+            ArrayList free = FREE[length];
+            if (free != null && !free.isEmpty()) {
+                _freeBytes -= length;
+                _arraysReused++;
+                _bytesReused += length;
+                return (byte[])free.remove(free.size() - 1); // Removing from the end doesn't shift the list
+            }
+        }
+
+        // Make a new one
+        _arraysAllocated++;
+        _bytesAllocated += length;
+        return new byte[length];
+    }
+
+    /**
+     * Give back an array that get(length) returned, once nothing is using it.
+     *
+     * @param payload A payload array that no Message will read again
+     */
+    public static synchronized void release(byte[] payload) {
+
+        // Only keep arrays we have a size class for, and don't let the pool grow too large
+        int length = payload.length;
+        if (length == 0 || length > MAX_LENGTH || _freeBytes + length > MAX_BYTES) return;
+
+        // Add it to the list of free arrays of its length
+        if (FREE[length] == null) FREE[length] = new ArrayList();
+        FREE[length].add(payload);
+        _freeBytes += length;
+    }
+
+    /** @return The number of payload arrays we've had to allocate */
+    public static synchronized long getArraysAllocated() {
+        return _arraysAllocated;
+    }
+
+    /** @return The number of bytes in the payload arrays we've had to allocate */
+    public static synchronized long getBytesAllocated() {
+        return _bytesAllocated;
+    }
+
+    /** @return The number of payload arrays we reused instead of allocating */
+    public static synchronized long getArraysReused() {
+        return _arraysReused;
+    }
+
+    /** @return The number of bytes in the payload arrays we reused instead of allocating */
+    public static synchronized long getBytesReused() {
+        return _bytesReused;
+    }
+}
@@ -740,15 +740,15 @@ public class PingReply extends Message implements Serializable, IpPort {
         // If we have a GGEP block, write it in after that
         if (extensions != null) System.arraycopy(extensions, 0, payload, STANDARD_PAYLOAD_SIZE, extensions.length);
 
-        // Make a new PingReply object with the GUID, TTL, 0 hops, the payload we just serialized, the GGEP block we serialized, and the given IP address
-        return new PingReply(guid, ttl, (byte)0, payload, ggep, ip);
+        // Make a new PingReply object with the GUID, TTL, 0 hops, the payload we just serialized, a GGEPReader on the block we serialized, and the given IP address
+        return new PingReply(guid, ttl, (byte)0, payload, parseGGEP(payload), ip);
     }
 
     /**
      * Make a new PingReply object to hold a pong we received from the Gnutella network.
      * 
      * Saves the given information from the packet header in the Message parts of this PingReply object, like guid, func, ttl, and hops.
-     * Turns the payload data into a parsed GGEP object.
+     * Points a GGEPReader at the GGEP block in the payload data.
      * Sets the values of member variables like DAILY_UPTIME and SUPPORTS_UNICAST.
      * 
      * @param  guid               The message GUID we read from the packet header
@@ -790,8 +790,8 @@ public class PingReply extends Message implements Serializable, IpPort {
         // The IP address of the computer this pong is from, and contains information about
         InetAddress ip = null;
 
-        // Have the GGEP constructor parse the pong payload into a new GGEP object
-        GGEP ggep = parseGGEP(payload); // Looks beyond the standard pong payload, returns null if there is no GGEP block
+        // Point a GGEPReader at the GGEP block in the pong payload, this doesn't copy anything out of it
+        GGEPReader ggep = parseGGEP(payload); // Looks beyond the standard pong payload, returns null if there is no GGEP block
         if (ggep != null) { // There is a GGEP block
 
             /*
@@ -895,14 +895,14 @@ public class PingReply extends Message implements Serializable, IpPort {
             ttl,
             hops,
             payload, // The given payload
-            ggep,    // We parsed the payload and made this GGEP object from it
+            ggep,    // The GGEPReader we pointed at the payload's GGEP block
             ip);     // The IP address from the standard payload, or the GGEP "UDPHC" tag if present
     }
 
     /**
      * Make a new PingReply object to represent a pong packet with the given GUID, ttl and hops, payload, and GGEP block.
      * 
-     * One of the arguments is a GGEP object named ggep.
+     * One of the arguments is a GGEPReader object named ggep, which reads the GGEP block inside payload.
      * This constructor reads values from it to set member variables here like DAILY_UPTIME and SUPPORTS_UNICAST.
      * Another argument is a byte array named payload.
      * This constructor just points PAYLOAD at it, it doesn't look at what's inside.
@@ -912,10 +912,10 @@ public class PingReply extends Message implements Serializable, IpPort {
      * @param ttl     The TTL, the number of times this packet can still travel across the Internet
      * @param hops    Hops count, the number of times this packet has already traveled across the Internet
      * @param payload A byte array with the message payload, which includes the standard pong payload and the serialized GGEP block
-     * @param ggep    The GGEP block as a GGEP object
+     * @param ggep    A GGEPReader on the GGEP block in payload, or null if it doesn't have one
      * @param ip      The IP address of the computer this pong packet describes
      */
-    private PingReply(byte[] guid, byte ttl, byte hops, byte[] payload, GGEP ggep, InetAddress ip) {
+    private PingReply(byte[] guid, byte ttl, byte hops, byte[] payload, GGEPReader ggep, InetAddress ip) {
 
         // Call the Message constructor to set the GUID, packet type byte, TTL and hops counts, and payload length in this new PingReply object
         super(guid, Message.F_PING_REPLY, ttl, hops, payload.length);
@@ -1598,7 +1598,7 @@ public class PingReply extends Message implements Serializable, IpPort {
 
     /**
      * Determine if this pong packet has a GGEP block.
-     * Returns true if the parseGGEP() method found data beyond the standard pong payload, and the GGEP constructor turned it into a GGEP block.
+     * Returns true if the parseGGEP() method found a well formed GGEP block beyond the standard pong payload.
      * 
      * @return True if this pong has a GGEP block, false if it's just the Gnutella header and standard pong payload
      */
@@ -1609,15 +1609,16 @@ public class PingReply extends Message implements Serializable, IpPort {
     }
 
     /**
-     * Take a pong payload and parse it into a GGEP object.
+     * Point a GGEPReader at the GGEP block in a pong payload.
+     * The GGEPReader reads the extensions right from the payload when we ask for them, instead of copying them all into a new GGEP object.
      * 
      * TODO: Change this to look for multiple GGEP blocks in the payload.
      * 
      * @param PAYLOAD The pong's payload, which includes the standard 14 byte payload and possibly a GGEP block after that.
-     * @return        A new GGEP object with the information from the payload parsed and organized.
+     * @return        A new GGEPReader on the GGEP block in the payload.
      *                null if the payload doesn't have a GGEP block, or there's an error parsing the GGEP block.
      */
-    private static GGEP parseGGEP(final byte[] PAYLOAD) {
+    private static GGEPReader parseGGEP(final byte[] PAYLOAD) {
 
         /*
          * Return if this is a plain pong without space for GGEP.  If
@@ -1627,15 +1628,15 @@ public class PingReply extends Message implements Serializable, IpPort {
          * variable.
          */
 
-        // If the payload is only 14 bytes, there is no GGEP block here, return null instead of a new GGEP object
+        // If the payload is only 14 bytes, there is no GGEP block here, return null instead of a new GGEPReader object
         if (PAYLOAD.length <= STANDARD_PAYLOAD_SIZE) return null;
 
         try {
 
-            // Have the GGEP constructor parse the payload data, and return the new GGEP object
-            return new GGEP(PAYLOAD, STANDARD_PAYLOAD_SIZE, null);
+            // Have the GGEPReader constructor check the block and find where it ends, and return the new GGEPReader object
+            return new GGEPReader(PAYLOAD, STANDARD_PAYLOAD_SIZE);
 
-        // The GGEP constructor couldn't understand the data, return null instead of a new GGEP object
+        // The block isn't well formed, return null instead of a new GGEPReader object
         } catch (BadGGEPBlockException e) { return null; }
     }
 
@@ -800,6 +800,7 @@ public class QueryReply extends Message implements Serializable{
 
         // Write the 2 bytes of the port number 1 byte into the payload
 		ByteOrder.short2leb((short)port, _payload, 1); // The port is 1 byte into the payload, just beyond the number of results byte
+        clearEncoded(); // The payload changed
 	}
 
     /**
@@ -1412,8 +1413,8 @@ public class QueryReply extends Message implements Serializable{
 
                     try {
 
-                        // Parse the data into a new GGEP object
-                        GGEP ggep = new GGEP(_payload, magicIndex, null);
+                        // Point a GGEPReader at the block, it reads the extensions we ask for right from _payload
+                        GGEPReader ggep = new GGEPReader(_payload, magicIndex);
 
                         // Look for the presence of the "BH" extension, indicating the sharing computer supports browse host
                         supportsBrowseHostT = ggep.hasKey(GGEP.GGEP_HEADER_BROWSE_HOST);
@@ -1997,10 +1998,10 @@ public class QueryReply extends Message implements Serializable{
          * Read the GGEP "PUSH" extension value, and parse it into an IpPortSet of IPPortCombo objects.
          * The "PUSH" value is a byte array of 6 byte chunks, each of which has an IP address followed by a port number.
          * 
-         * @param  A GGEP block with the "PUSH" extension
+         * @param  A GGEPReader on a GGEP block with the "PUSH" extension
          * @return A IpPortSet of IPPortCombo objects made from the IP addresses and port numbers from the "PUSH" extension value
          */
-        public Set getPushProxies(GGEP ggep) {
+        public Set getPushProxies(GGEPReader ggep) {
 
             // We'll point proxies at the IpPortSet we make
             Set proxies = null;
@@ -27,6 +27,7 @@ import com.limegroup.gnutella.UDPService;
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.UrnType;
 import com.limegroup.gnutella.guess.QueryKey;
+import com.limegroup.gnutella.routing.HashFunction;
 import com.limegroup.gnutella.settings.SearchSettings;
 import com.limegroup.gnutella.statistics.DroppedSentMessageStatHandler;
 import com.limegroup.gnutella.statistics.ReceivedErrorStat;
@@ -163,12 +164,31 @@ public class QueryRequest extends Message implements Serializable {
     
     /**
      * The XML rich query.
-     * XML_DOC is a LimeXMLDocument object.
+     * _xmlDoc is a LimeXMLDocument object.
      * 
      * One kind of extension is text that starts "<?xml".
-     * We parsed it into a LimeXMLDocument object and saved it here.
+     * Parsing it into a LimeXMLDocument object is slow, and most of the queries we get are dropped or forwarded without anything looking at it.
+     * So, the packet parser just keeps the text in _richQuery, and getRichQuery() parses it and saves it here the first time it's called.
+     * 
+     * Null if there's no XML, if it couldn't be parsed, or if we haven't parsed it yet.
+     */
+    private LimeXMLDocument _xmlDoc;
+
+    /**
+     * The XML text from the packet, which getRichQuery() will parse into _xmlDoc.
+     * Null if there's no XML.
+     */
+    private String _richQuery;
+
+    /** True once getRichQuery() has tried to parse _richQuery. */
+    private boolean _xmlParsed;
+
+    /**
+     * The hashes of the keywords in the search text, for QRP.
+     * getKeywordHashes(bits) computes them the first time, and saves them at _keywordHashes[bits].
+     * This way, we only hash a query's words once for each table size, not once for each leaf we check it against.
      */
-    private final LimeXMLDocument XML_DOC;
+    private int[][] _keywordHashes;
 
     /**
      * The feature that this query is.
@@ -1277,18 +1297,8 @@ public class QueryRequest extends Message implements Serializable {
 		if (query == null) this.QUERY = ""; // Turn null into blank
 		else               this.QUERY = query;
 
-        // Save the XML, parsing it into a LimeXMLDocument object
-		if (richQuery == null || richQuery.equals("") ) {
-			this.XML_DOC = null;
-		} else {
-		    LimeXMLDocument doc = null;
-		    try {
-		        doc = new LimeXMLDocument(richQuery);
-            } catch(SAXException ignored) {
-            } catch(SchemaNotFoundException ignored) {
-            } catch(IOException ignored) {}
-            this.XML_DOC = doc;
-		}
+        // Save the XML, getRichQuery() will parse it into a LimeXMLDocument object
+		if (richQuery != null && !richQuery.equals("")) this._richQuery = richQuery;
 
         // Copy the references in the given Set objects, and point to empty sets instead of null
 		Set tempRequestedUrnTypes = null;
@@ -1358,7 +1368,7 @@ public class QueryRequest extends Message implements Serializable {
 
             // Add the rich query XML text
             byte[] richQueryBytes = null;
-            if (XML_DOC != null) richQueryBytes = richQuery.getBytes("UTF-8");
+            if (getRichQuery() != null) richQueryBytes = richQuery.getBytes("UTF-8");
             addDelimiterBefore = writeGemExtension(baos, addDelimiterBefore, richQueryBytes); // Won't write 0x1C before, and returns true if there was XML to write
 
             // Add the URNs like "urn:sha1:3I42H3S6NNFQ2MSVX7XZKYAYSCX5QBYJ", indicating a search for exactly that file
@@ -1482,8 +1492,8 @@ public class QueryRequest extends Message implements Serializable {
             byte[] extsBytes = super.readNullTerminatedBytes(bais); // Read the bytes and the 0 from bais, but return just the bytes up to the 0
             HUGEExtension huge = new HUGEExtension(extsBytes);      // Have the HUGEExtension constructor find and parse them
 
-            // Get the GGEP object the HUGEExtension constructor found and parsed
-            GGEP ggep = huge.getGGEP();
+            // Get a GGEPReader on the GGEP block the HUGEExtension constructor found, it reads the values we ask for in place
+            GGEPReader ggep = huge.getGGEPReader();
             if (ggep != null) {
 
                 try {
@@ -1540,14 +1550,8 @@ public class QueryRequest extends Message implements Serializable {
         // Save the search text in this QueryRequest object
         QUERY = tempQuery;
 
-        // Parse the XML text into a XML document, and save it as XML_DOC
-	    LimeXMLDocument tempDoc = null;                   // If we didn't find XML or there is an error parsing it, tempDoc will remain null
-	    try {
-	        tempDoc = new LimeXMLDocument(tempRichQuery); // Parse the XML text into a new LimeXMLDocument
-        } catch(SAXException ignored) {                   // Ignore parsing exceptions, and leave tempDoc null
-        } catch(SchemaNotFoundException ignored) {
-        } catch(IOException ignored) {}
-        this.XML_DOC = tempDoc;                           // Save the LimeXMLDocument in this QueryRequest object
+        // Save the XML text, getRichQuery() will parse it into a XML document if something asks for it
+        if (tempRichQuery.length() > 0) this._richQuery = tempRichQuery;
 
         // Save the speed byte, which is actually a group of flags
 		MIN_SPEED = tempMinSpeed;
@@ -1667,12 +1671,74 @@ public class QueryRequest extends Message implements Serializable {
      * Get the XML rich query.
      * This XML exists as a text extension in the extended area, along with hash URNs and the GGEP block.
 	 * 
-	 * @return The XML as a LimeXMLDocument
+	 * The first time this is called, parses the XML text from the packet.
+	 * 
+	 * @return The XML as a LimeXMLDocument, or null if there isn't any or it's not valid
 	 */
-    public LimeXMLDocument getRichQuery() {
+    public synchronized LimeXMLDocument getRichQuery() {
+
+        // If we haven't parsed the XML text yet, do it now
+        if (!_xmlParsed && _richQuery != null) {
+            try {
+                _xmlDoc = new LimeXMLDocument(_richQuery); // Parse the XML text into a new LimeXMLDocument
+            } catch (SAXException ignored) {               // Ignore parsing exceptions, and leave _xmlDoc null
+            } catch (SchemaNotFoundException ignored) {
+            } catch (IOException ignored) {}
+        }
+        _xmlParsed = true; // Only try once
 
         // Return the LimeXMLDocument we parsed
-        return XML_DOC;
+        return _xmlDoc;
+    }
+
+    /**
+     * Get the XML rich query as it was written in the packet, without parsing it.
+     * DuplicateFilter, hashCode() and equals() use this to compare queries quickly.
+     * 
+     * @return The XML text, or null if this query doesn't have any
+     */
+    public String getRichQueryText() {
+
+        // Return the text we read from the packet or were given
+        return _richQuery;
+    }
+
+    /**
+     * Get the hashes of the keywords in the search text, for a QRP table of the given size.
+     * QueryRouteTable.contains() and LeafRouteIndex.getLeaves() use these.
+     * The first time this is called for a size, hashes the words, after that returns the same array.
+     * 
+     * @param bits The number of bits a QRP table's slot numbers have, like 16 for a table of 65536 slots
+     * @return     An array with the hash of each keyword, in order, which the caller must not change
+     */
+    public synchronized int[] getKeywordHashes(byte bits) {
+
+        // Return the hashes we computed before, if we have them
+        if (_keywordHashes == null) _keywordHashes = new int[33][];
+        int[] hashes = _keywordHashes[bits];
+        if (hashes != null) return hashes;
+
+        // Count the keywords, and then hash each one
+        int count = 0;
+        for (int i = 0; ; ) {
+            int j = HashFunction.keywordStart(QUERY, i);
+            if (j < 0) break;
+            i = HashFunction.keywordEnd(QUERY, j) + 1;
+            count++;
+        }
+        hashes = new int[count];
+        count = 0;
+        for (int i = 0; ; ) {
+            int j = HashFunction.keywordStart(QUERY, i); // Clip j and k around the next keyword
+            if (j < 0) break;
+            int k = HashFunction.keywordEnd(QUERY, j);
+            hashes[count++] = HashFunction.hash(QUERY, j, k, bits);
+            i = k + 1;
+        }
+
+        // Save them for next time
+        _keywordHashes[bits] = hashes;
+        return hashes;
     }
 
     /**
@@ -1685,8 +1751,9 @@ public class QueryRequest extends Message implements Serializable {
     private String getRichQueryString() {
 
         // Return null, or the parsed XML written out again as a String
-        if (XML_DOC == null) return null;
-        else                 return XML_DOC.getXMLString();
+        LimeXMLDocument doc = getRichQuery();
+        if (doc == null) return null;
+        else             return doc.getXMLString();
     }
 
 	/**
@@ -2068,7 +2135,7 @@ public class QueryRequest extends Message implements Serializable {
             // Compute it
 			int result = 17;
 			result = (37 * result) + QUERY.hashCode();
-			if (XML_DOC != null) result = (37 * result) + XML_DOC.hashCode();
+			if (_richQuery != null) result = (37 * result) + _richQuery.hashCode(); // Hash the XML text, parsing it would be slow
 			result = (37 * result) + REQUESTED_URN_TYPES.hashCode();
 			result = (37 * result) + QUERY_URNS.hashCode();
 			if (QUERY_KEY != null) result = (37*result) + QUERY_KEY.hashCode();
@@ -2103,7 +2170,7 @@ public class QueryRequest extends Message implements Serializable {
 		return
             (MIN_SPEED == qr.MIN_SPEED &&
 			QUERY.equals(qr.QUERY) &&
-			(XML_DOC == null ? qr.XML_DOC == null : XML_DOC.equals(qr.XML_DOC)) &&
+			(_richQuery == null ? qr._richQuery == null : _richQuery.equals(qr._richQuery)) && // Compare the XML text without parsing it
 			REQUESTED_URN_TYPES.equals(qr.REQUESTED_URN_TYPES) &&
 			QUERY_URNS.equals(qr.QUERY_URNS) &&
 			Arrays.equals(getGUID(), qr.getGUID()) &&
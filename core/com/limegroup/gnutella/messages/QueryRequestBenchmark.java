@@ -0,0 +1,204 @@
+package com.limegroup.gnutella.messages;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.limegroup.gnutella.GUID;
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.routing.HashFunction;
+
+/**
+ * Measures how many inbound queries a second we can parse and route.  Run
+ * it with
+ *
+ * <pre>
+ * java com.limegroup.gnutella.messages.QueryRequestBenchmark millis [leaves]
+ * </pre>
+ *
+ * It makes a mix of queries like the ones we see, most with only keywords,
+ * some by SHA1 and some with XML, and writes them out as payloads.  Then
+ * each mode runs for the given time and prints queries a second:
+ *
+ * <ul>
+ * <li>lazy: createNetworkQuery(..) alone, which is what a query costs now
+ *     if the duplicate filter or TTL rules drop it.
+ * <li>eager: createNetworkQuery(..) and then getRichQuery(), which is what
+ *     every query cost when the constructor parsed its XML.
+ * <li>rehash: each keyword hashed once for each of the leaves, the way
+ *     QueryRouteTable.contains(..) used to.
+ * <li>cached: getKeywordHashes(..) for each of the leaves, the way it does
+ *     now.
+ * </ul>
+ *
+ * The XML is only parsed if the schemas can be found, so run it from a
+ * directory where LimeWire runs.  The number of queries whose XML parsed is
+ * printed with the eager line.
+ */
+public class QueryRequestBenchmark {
+
+    /** The number of distinct queries in the mix. */
+    private static final int QUERIES = 1000;
+
+    /** The number of bits of a leaf's QRP table. */
+    private static final byte BITS = 16;
+
+    /** Words to build search text out of. */
+    private static final String[] WORDS = {
+        "the", "beatles", "abbey", "road", "live", "remastered", "mp3",
+        "madonna", "like", "a", "prayer", "linux", "iso", "ubuntu",
+        "episode", "season", "1080p", "dvdrip", "xvid", "pink", "floyd",
+        "dark", "side", "of", "moon", "greatest", "hits", "vol", "2",
+        "acoustic", "mix", "remix", "bach", "cello", "suite", "no", "1",
+        "jazz", "miles", "davis", "kind", "blue", "so", "what", "ebook",
+        "pdf", "java", "programming", "tutorial", "video", "funny"
+    };
+
+    /** The queries written out as they arrive. */
+    private final byte[][] GUIDS = new byte[QUERIES][];
+    private final byte[][] PAYLOADS = new byte[QUERIES][];
+
+    /** The queries parsed, for the routing modes. */
+    private final QueryRequest[] PARSED = new QueryRequest[QUERIES];
+
+    /** Something to write results to, so the work isn't optimized away. */
+    private int _sink;
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1) {
+            System.err.println("usage: QueryRequestBenchmark millis [leaves]");
+            return;
+        }
+        long millis = Long.parseLong(args[0]);
+        int leaves = args.length > 1 ? Integer.parseInt(args[1]) : 30;
+
+        QueryRequestBenchmark bench = new QueryRequestBenchmark();
+        bench.run("lazy", millis, leaves); // warm up
+        System.out.println("lazy:   " + bench.run("lazy", millis, leaves) +
+                           " queries/s");
+        System.out.println("eager:  " + bench.run("eager", millis, leaves) +
+                           " queries/s, " + bench.countParsedXML() +
+                           " of " + bench.countXML() + " XML queries parsed");
+        System.out.println("rehash: " + bench.run("rehash", millis, leaves) +
+                           " queries/s over " + leaves + " leaves");
+        System.out.println("cached: " + bench.run("cached", millis, leaves) +
+                           " queries/s over " + leaves + " leaves");
+    }
+
+    QueryRequestBenchmark() throws IOException, BadPacketException {
+        Random random = new Random(42);
+        for(int i = 0; i < QUERIES; i++) {
+            QueryRequest qr;
+            int kind = random.nextInt(10);
+            if(kind == 0) {
+                qr = QueryRequest.createQuery(URN.createSHA1Urn(randomSHA1(random)));
+            } else if(kind <= 2) {
+                String artist = words(random, 2);
+                String title = words(random, 3);
+                qr = QueryRequest.createQuery(GUID.makeGuid(),
+                    artist + " " + title, audioXML(artist, title));
+            } else {
+                qr = QueryRequest.createQuery(GUID.makeGuid(),
+                    words(random, 1 + random.nextInt(4)), "");
+            }
+            GUIDS[i] = qr.getGUID();
+            PAYLOADS[i] = qr.getPayload();
+            PARSED[i] = parse(i);
+        }
+    }
+
+    /**
+     * Runs one mode over the queries for the given time, and returns how
+     * many it did a second.
+     */
+    long run(String mode, long millis, int leaves) throws BadPacketException {
+        long start = System.currentTimeMillis();
+        long end = start + millis;
+        long done = 0;
+        while(System.currentTimeMillis() < end) {
+            for(int i = 0; i < QUERIES; i++) {
+                if(mode.equals("lazy")) {
+                    _sink += parse(i).getQuery().length();
+                } else if(mode.equals("eager")) {
+                    QueryRequest qr = parse(i);
+                    if(qr.getRichQuery() != null)
+                        _sink++;
+                } else if(mode.equals("rehash")) {
+                    for(int leaf = 0; leaf < leaves; leaf++)
+                        _sink += rehash(PARSED[i].getQuery());
+                } else {
+                    for(int leaf = 0; leaf < leaves; leaf++) {
+                        int[] hashes = PARSED[i].getKeywordHashes(BITS);
+                        for(int j = 0; j < hashes.length; j++)
+                            _sink += hashes[j];
+                    }
+                }
+            }
+            done += QUERIES;
+        }
+        return done * 1000 / Math.max(1, System.currentTimeMillis() - start);
+    }
+
+    /** Parses the i'th query as if it came in over TCP. */
+    private QueryRequest parse(int i) throws BadPacketException {
+        return QueryRequest.createNetworkQuery(GUIDS[i], (byte)3, (byte)1,
+                                               PAYLOADS[i], Message.N_TCP);
+    }
+
+    /** Hashes each keyword of query, as contains(..) did for each leaf. */
+    private static int rehash(String query) {
+        int sum = 0;
+        for(int i = 0; ; ) {
+            int j = HashFunction.keywordStart(query, i);
+            if(j < 0)
+                break;
+            int k = HashFunction.keywordEnd(query, j);
+            sum += HashFunction.hash(query, j, k, BITS);
+            i = k + 1;
+        }
+        return sum;
+    }
+
+    /** Returns the number of queries with XML. */
+    private int countXML() {
+        int count = 0;
+        for(int i = 0; i < QUERIES; i++) {
+            if(PARSED[i].getRichQueryText() != null)
+                count++;
+        }
+        return count;
+    }
+
+    /** Returns the number of queries whose XML parsed. */
+    private int countParsedXML() {
+        int count = 0;
+        for(int i = 0; i < QUERIES; i++) {
+            if(PARSED[i].getRichQuery() != null)
+                count++;
+        }
+        return count;
+    }
+
+    private static String words(Random random, int count) {
+        StringBuffer buf = new StringBuffer();
+        for(int i = 0; i < count; i++) {
+            if(i > 0)
+                buf.append(' ');
+            buf.append(WORDS[random.nextInt(WORDS.length)]);
+        }
+        return buf.toString();
+    }
+
+    private static String audioXML(String artist, String title) {
+        return "<?xml version=\"1.0\"?><audios xsi:noNamespaceSchemaLocation=" +
+            "\"http://www.limewire.com/schemas/audio.xsd\"><audio artist=\"" +
+            artist + "\" title=\"" + title + "\"></audio></audios>";
+    }
+
+    private static String randomSHA1(Random random) {
+        String base32 = "ABCDEFGHIJKLMNOPQRSTUVWXYZ234567";
+        StringBuffer buf = new StringBuffer("urn:sha1:");
+        for(int i = 0; i < 32; i++)
+            buf.append(base32.charAt(random.nextInt(32)));
+        return buf.toString();
+    }
+}
@@ -0,0 +1,290 @@
+package com.limegroup.gnutella.routing;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.messages.QueryRequest;
+import com.limegroup.gnutella.util.BitSet;
+import com.limegroup.gnutella.util.Utilities;
+import com.limegroup.gnutella.xml.LimeXMLDocument;
+
+/**
+ * An inverted index of the QRP tables our leaves have sent us.
+ *
+ * An ultrapeer used to test every query against every leaf's QueryRouteTable, one leaf at a time.
+ * That's leaves times keywords BitSet lookups for each query we route.
+ * LeafRouteIndex turns the tables on their side.
+ * For each slot in a 65536 slot QRP table, it keeps a bitmask with one bit for each leaf.
+ * A bit is 1 if that leaf's QRP table lets searches for that slot through.
+ * To find the leaves a query should go to, we AND together the masks of the query's keyword hashes.
+ *
+ * A leaf joins the index with attach(), and leaves it with detach().
+ * After that, its QueryRouteTable keeps its column here up to date as reset and patch messages arrive.
+ * If the leaf's table is the same size as ours, the table sets and clears individual bits as it patches itself.
+ * If it's a different size, the table copies its resized bits here after each patch message.
+ *
+ * Leaves get columns 0, 1, 2 and so on, and a column is reused after its leaf detaches.
+ * When we run out of columns, the index makes each mask one long wider.
+ *
+ * This class is thread safe.
+ * Anything that touches the masks synchronizes on the LeafRouteIndex object.
+ * QueryRouteTable holds this lock while it patches a column, so that lock comes after the connection's QRP lock.
+ */
+public final class LeafRouteIndex {
+
+    /** The number of slots in the index, the same as a default QRP table. */
+    public static final int SIZE = QueryRouteTable.DEFAULT_TABLE_SIZE;
+
+    /** The number of bits hash values are for a table of SIZE, 16. */
+    private static final byte BITS = Utilities.log2(SIZE);
+
+    /** The number of longs in each slot's mask. */
+    private int _words = 1;
+
+    /**
+     * The masks of all the slots, one after the other.
+     * The mask for slot s is the _words longs starting at _masks[s * _words].
+     * Bit c of the mask is set if the leaf in column c lets searches for slot s through.
+     */
+    private long[] _masks = new long[SIZE];
+
+    /** The leaf in each column, or null if the column is free. */
+    private Object[] _leaves = new Object[64];
+
+    /** The QueryRouteTable of the leaf in each column. */
+    private QueryRouteTable[] _tables = new QueryRouteTable[64];
+
+    /** The number of leaves in the index. */
+    private int _count;
+
+    /**
+     * Add a leaf to the index, or update the table we have for it.
+     * Copies the table's bits into the leaf's column, and hooks the table up so its patches update the index.
+     * Call this with the leaf's QRP lock held, so a patch can't arrive in the middle.
+     *
+     * @param leaf The leaf, like its ManagedConnection object
+     * @param qrt  The QueryRouteTable we keep for it
+     */
+    public synchronized void attach(Object leaf, QueryRouteTable qrt) {
+
+        // If we already have this leaf with this table, it's keeping itself up to date
+        int column = columnOf(leaf);
+        if (column != -1 && _tables[column] == qrt) return;
+
+        // The leaf is new, give it the first free column
+        if (column == -1) {
+            column = columnOf(null);
+            if (column == -1) {
+                grow();
+                column = columnOf(null);
+            }
+            _leaves[column] = leaf;
+            _count++;
+
+        // The leaf has a new table, unhook the old one
+        } else {
+            _tables[column].setIndex(null, -1);
+        }
+
+        // Hook up the table and copy its bits in
+        _tables[column] = qrt;
+        qrt.setIndex(this, column);
+        fill(column, qrt.resize(SIZE));
+    }
+
+    /**
+     * Remove a leaf from the index.
+     * Does nothing if we don't have it.
+     *
+     * @param leaf The leaf, like its ManagedConnection object
+     */
+    public synchronized void detach(Object leaf) {
+
+        // Find the leaf's column
+        int column = columnOf(leaf);
+        if (column == -1) return;
+
+        // Unhook its table, clear its bits, and free the column
+        _tables[column].setIndex(null, -1);
+        clear(column);
+        _tables[column] = null;
+        _leaves[column] = null;
+        _count--;
+    }
+
+    /**
+     * Find the leaves whose QRP tables let a query through.
+     * Returns the same leaves as calling QueryRouteTable.contains(qr) on each one.
+     *
+     * For a plain search, ANDs together the masks of the keyword hashes, and that's the answer.
+     * For a search by hash, ORs together the masks of the URN hashes.
+     * For an XML search, the AND only narrows down the leaves, and we test each of them with contains().
+     * A leaf whose table isn't SIZE slots also gets tested with contains(), because we only have its resized copy.
+     *
+     * @param qr A query
+     * @return   A List of the leaf objects that might have a hit, in column order
+     */
+    public synchronized List getLeaves(QueryRequest qr) {
+
+        // Start out with every leaf we have
+        long[] match = new long[_words];
+        for (int c = 0; c < _leaves.length; c++) {
+            if (_leaves[c] != null) match[c >>> 6] |= 1L << (c & 63);
+        }
+
+        // The search doesn't have any text, XML, or URNs, so it can't match anything
+        String query = qr.getQuery();
+        if (query.length() == 0 && qr.getRichQueryText() == null && !qr.hasQueryUrns()) return new ArrayList(0);
+
+        // A search by hash goes to any leaf that has one of the URNs
+        if (qr.hasQueryUrns()) {
+            long[] any = new long[_words];
+            for (Iterator i = qr.getQueryUrns().iterator(); i.hasNext(); ) {
+                int hash = HashFunction.hash(((URN)i.next()).toString(), BITS);
+                int base = hash * _words;
+                for (int w = 0; w < _words; w++) any[w] |= _masks[base + w];
+            }
+            for (int w = 0; w < _words; w++) match[w] &= any[w];
+            return leaves(match, qr, false);
+        }
+
+        // All the keywords have to get through, AND their masks together
+        int[] hashes = qr.getKeywordHashes(BITS);
+        for (int i = 0; i < hashes.length; i++) {
+            if (!and(match, hashes[i])) return new ArrayList(0);
+        }
+
+        // Only parse the XML once the keywords have left some leaves, an XML search we can't parse only matches by its text
+        LimeXMLDocument richQuery = qr.getRichQuery();
+        if (richQuery == null) return query.length() > 0 ? leaves(match, qr, false) : new ArrayList(0);
+
+        // The XML schema has to get through too, and then each leaf does its own 2/3 test of the XML words
+        if (!and(match, HashFunction.hash(richQuery.getSchemaURI(), BITS))) return new ArrayList(0);
+        return leaves(match, qr, true);
+    }
+
+    /**
+     * Get the number of leaves in the index.
+     *
+     * @return The number of leaves we've attached and not detached
+     */
+    public synchronized int getLeafCount() {
+        return _count;
+    }
+
+    /**
+     * Set the bit for a column and slot.
+     * Only QueryRouteTable calls this, synchronized on this object.
+     *
+     * @param column A leaf's column
+     * @param slot   A slot in a table of SIZE
+     */
+    void set(int column, int slot) {
+        _masks[slot * _words + (column >>> 6)] |= 1L << (column & 63);
+    }
+
+    /**
+     * Clear the bit for a column and slot.
+     * Only QueryRouteTable calls this, synchronized on this object.
+     *
+     * @param column A leaf's column
+     * @param slot   A slot in a table of SIZE
+     */
+    void clear(int column, int slot) {
+        _masks[slot * _words + (column >>> 6)] &= ~(1L << (column & 63));
+    }
+
+    /**
+     * Clear all the bits in a column, making the leaf block everything.
+     * Synchronize on this object before calling this.
+     *
+     * @param column A leaf's column
+     */
+    void clear(int column) {
+        long keep = ~(1L << (column & 63));
+        for (int i = column >>> 6; i < _masks.length; i += _words) _masks[i] &= keep;
+    }
+
+    /**
+     * Replace the bits in a column with those in a BitSet.
+     * Synchronize on this object before calling this.
+     *
+     * @param column A leaf's column
+     * @param bits   The leaf's QRP table resized to SIZE
+     */
+    void fill(int column, BitSet bits) {
+        clear(column);
+        for (int s = bits.nextSetBit(0); s >= 0 && s < SIZE; s = bits.nextSetBit(s + 1)) set(column, s);
+    }
+
+    /**
+     * AND a slot's mask into a running match.
+     *
+     * @param match The leaves that still match
+     * @param slot  The slot a keyword hashed to
+     * @return      True if any leaves are left
+     */
+    private boolean and(long[] match, int slot) {
+        int base = slot * _words;
+        long left = 0;
+        for (int w = 0; w < _words; w++) {
+            match[w] &= _masks[base + w];
+            left |= match[w];
+        }
+        return left != 0;
+    }
+
+    /**
+     * Turn a mask of columns into a List of leaves.
+     * A leaf with a table of a different size only matched its resized copy, so we test its real table too.
+     *
+     * @param match  The columns that match
+     * @param qr     The query
+     * @param verify True to test every leaf's table with contains(qr)
+     * @return       A List of the leaf objects
+     */
+    private List leaves(long[] match, QueryRequest qr, boolean verify) {
+        List list = new ArrayList();
+        for (int c = 0; c < _leaves.length; c++) {
+            if ((match[c >>> 6] & (1L << (c & 63))) == 0) continue;
+            QueryRouteTable qrt = _tables[c];
+            if ((verify || qrt.getSize() != SIZE) && !qrt.contains(qr)) continue;
+            list.add(_leaves[c]);
+        }
+        return list;
+    }
+
+    /**
+     * Find the column a leaf is in.
+     *
+     * @param leaf A leaf, or null to find a free column
+     * @return     The column, or -1 if not found
+     */
+    private int columnOf(Object leaf) {
+        for (int c = 0; c < _leaves.length; c++) {
+            if (_leaves[c] == leaf) return c;
+        }
+        return -1;
+    }
+
+    /** Add 64 more columns, making each mask one long wider. */
+    private void grow() {
+
+        // Copy the masks into wider ones
+        int words = _words + 1;
+        long[] masks = new long[SIZE * words];
+        for (int s = 0; s < SIZE; s++) System.arraycopy(_masks, s * _words, masks, s * words, _words);
+        _words = words;
+        _masks = masks;
+
+        // Make room in the column arrays
+        Object[] leaves = new Object[words * 64];
+        QueryRouteTable[] tables = new QueryRouteTable[words * 64];
+        System.arraycopy(_leaves, 0, leaves, 0, _leaves.length);
+        System.arraycopy(_tables, 0, tables, 0, _tables.length);
+        _leaves = leaves;
+        _tables = tables;
+    }
+}
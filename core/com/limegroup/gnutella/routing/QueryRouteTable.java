@@ -300,6 +300,16 @@ public class QueryRouteTable {
      */
     private Inflater uncompressor;
 
+    /**
+     * The LeafRouteIndex this table keeps a column of up to date, or null if it's not in one.
+     * An ultrapeer puts the tables its leaves send it in a LeafRouteIndex.
+     * handlePatch() and initialize() change the column as they change this table.
+     */
+    private LeafRouteIndex index;
+
+    /** Our column in index. */
+    private int indexColumn;
+
     /*
      * /////////////////////////////// Basic Methods ///////////////////////////
      */
@@ -387,6 +397,27 @@ public class QueryRouteTable {
         this.keywordPresent = (byte)(1 - infinity); // -6, the number that indicates a keyword is present
         this.keywordAbsent = (byte)(infinity - 1);  // 6, the number that indicates a keyword is absent
         this.infinity = infinity;                   // 7, the infinity value this table is using
+
+        // If we're in a LeafRouteIndex, make our column there block everything too
+        if (index != null) {
+            synchronized (index) {
+                index.clear(indexColumn);
+            }
+        }
+    }
+
+    /**
+     * Hook this table up to a column in a LeafRouteIndex, or unhook it.
+     * Only LeafRouteIndex calls this, synchronized on the index.
+     * 
+     * @param index  The LeafRouteIndex, or null to unhook this table
+     * @param column Our column in it
+     */
+    void setIndex(LeafRouteIndex index, int column) {
+
+        // Save the index and our column in it
+        this.index = index;
+        this.indexColumn = column;
     }
 
     /**
@@ -467,14 +498,13 @@ public class QueryRouteTable {
          *    that HashFunction.hash() takes cares of the capitalization.
          */
 
-        // Get the search text, and the XML search, from the given search message
+        // Get the search text from the given search message, we'll only parse the XML search if the keywords get through
         String query = qr.getQuery(); // The search text the user typed into his or her Gnutella program
-        LimeXMLDocument richQuery = qr.getRichQuery(); // The XML search
 
         // Make sure the given search message is actually searching for something
-		if (query.length() == 0 && // There is no standard search text, and
-			richQuery == null &&   // There is no XML search, and
-			!qr.hasQueryUrns()) {  // The given search message doesn't even have URNs to search by hash
+		if (query.length() == 0 &&             // There is no standard search text, and
+			qr.getRichQueryText() == null &&   // There is no XML search, and
+			!qr.hasQueryUrns()) {              // The given search message doesn't even have URNs to search by hash
 
 			// This is a bad search message, say this QRP table blocks it by returning false
 			return false;
@@ -504,30 +534,12 @@ public class QueryRouteTable {
 			return false;
 		}
 
-		// Move i down the search text
-        for (int i = 0; ; ) {
-
-        	/*
-        	 * Find next keyword...
-        	 *     _ _ W O R D _ _ _ A B
-        	 *     i   j       k
-        	 */
-
-        	// Point j at the start of the first keyword at i
-        	int j = HashFunction.keywordStart(query, i);
-            if (j < 0) break; // We're out of keywords, leave the loop
-
-            // Point k at the end of the keyword that starts at j
-            int k = HashFunction.keywordEnd(query, j);
-
-            // Hash the keyword we found
-            int hash = HashFunction.hash(query, j, k, bits);
+        // The query hashed its keywords the first time a table this size asked, so checking many leaves doesn't hash them again
+        int[] hashes = qr.getKeywordHashes(bits);
+        for (int i = 0; i < hashes.length; i++) {
 
             // If our QRP table blocks this word, there's no way this search could produce a hit
-            if (!contains(hash)) return false; // All the search words have to match for a hit to be generated
-
-            // Move i beyond the keyword we just tested
-            i = k + 1;
+            if (!contains(hashes[i])) return false; // All the search words have to match for a hit to be generated
         }
 
         /*
@@ -536,8 +548,11 @@ public class QueryRouteTable {
          *    table.
          */
 
-        // All the search words found a 1 to pass through, and the search message doesn't have any additional XML to narrow the search further
-        if (richQuery == null) return true; // Yes, the given search passes through our table
+        // All the search words found a 1 to pass through, now it's worth parsing the XML search
+        LimeXMLDocument richQuery = qr.getRichQuery();
+
+        // The search message doesn't have any additional XML to narrow the search further
+        if (richQuery == null) return query.length() > 0; // It passes through our table, unless it had nothing but XML we couldn't parse
 
         /*
          * Normal case for matching query with no metadata.
@@ -760,12 +775,12 @@ public class QueryRouteTable {
      * Otherwise, returns a reference to the bitTable BitSet inside our cached resizedQRT QueryRouteTable object.
      * If that size didn't match, this method deleted resizedQRT and made a new one of the requested size.
      * 
-     * Only addAll() above calls this method.
+     * addAll() above and LeafRouteIndex call this method.
      * 
      * @param newSize The requested size, the number of bits that should make up the table
      * @return        A reference to a BitSet that has the striped pattern of this QRP table spread across the specified size
      */
-    private BitSet resize(int newSize) {
+    BitSet resize(int newSize) {
 
     	// If our BitTable is the requested size, return a reference to it
         if (bitTableLength == newSize) return bitTable;
@@ -973,6 +988,64 @@ public class QueryRouteTable {
          * 3. Add data[0...] to table[nextPatch...]
          */
 
+        // If we're in a LeafRouteIndex, hold its lock while we patch, and patch our column there bit by bit if it's the same size
+        LeafRouteIndex patchIndex = index;
+        if (patchIndex != null) {
+            synchronized (patchIndex) {
+                patchBits(data, LeafRouteIndex.SIZE == bitTableLength ? patchIndex : null);
+
+                // The index is a different size, copy all our bits into it resized
+                if (LeafRouteIndex.SIZE != bitTableLength) patchIndex.fill(indexColumn, resize(LeafRouteIndex.SIZE));
+            }
+
+        // We're not in an index, just patch ourselves
+        } else {
+            patchBits(data, null);
+        }
+
+        // Tell our BitSet we're done editing it
+        bitTable.compact(); // If it has 0s at the end, it will switch to a smaller array
+
+        /*
+         * 4. Update sequence numbers.
+         */
+
+        // Save the number of patch messages in this group
+        this.sequenceSize = m.getSequenceSize();
+
+        // This isn't the last patch message in its group
+        if (m.getSequenceNumber() != m.getSequenceSize()) {
+
+        	// Save it's number, the next message we get should have sequenceNumber + 1
+        	this.sequenceNumber = m.getSequenceNumber();
+
+        // This is the last patch message in the group, it's finishing the group
+        } else {
+
+        	// Reset member variables to indicate we're between groups of patch messages
+            this.sequenceNumber = -1;
+            this.sequenceSize = -1;
+            this.nextPatch = 0;
+
+            // We made an Inflater object to decompress the data in this group of patch messages
+            if (this.uncompressor != null) {
+
+            	// Free it
+                this.uncompressor.end();
+                this.uncompressor = null;
+            }
+        }
+    }
+
+    /**
+     * Add the uncompressed data of a patch message to our table, starting at nextPatch.
+     * Only handlePatch() above calls this method.
+     * 
+     * @param data       The data of a patch message, with compression and nibble packing removed
+     * @param patchIndex The LeafRouteIndex to set and clear our bits in as we go, or null if it's not the same size or we're not in one
+     */
+    private void patchBits(byte[] data, LeafRouteIndex patchIndex) throws BadPacketException {
+
         // Move i across all the bytes in data
         for (int i = 0; i < data.length; i++) {
 
@@ -989,6 +1062,7 @@ public class QueryRouteTable {
 
             	// Set the bit to 1
             	bitTable.set(nextPatch);
+                if (patchIndex != null) patchIndex.set(indexColumn, nextPatch); // Set our bit in the index too
                 resizedQRT = null; // Throw away our cached table of a different size, our table has changed so we'll have to remake it
 
             // The patch data has a positive value, set the bit in our table to 0
@@ -996,6 +1070,7 @@ public class QueryRouteTable {
 
             	// Set the bit to 0
             	bitTable.clear(nextPatch);
+                if (patchIndex != null) patchIndex.clear(indexColumn, nextPatch); // Clear our bit in the index too
                 resizedQRT = null; // Throw away our cached table of a different size, our table has changed so we'll have to remake it
             }
 
@@ -1011,39 +1086,6 @@ public class QueryRouteTable {
             // Increment nextPatch, which scans down the whole table across the patch messages in a group
             nextPatch++;
         }
-
-        // Tell our BitSet we're done editing it
-        bitTable.compact(); // If it has 0s at the end, it will switch to a smaller array
-
-        /*
-         * 4. Update sequence numbers.
-         */
-
-        // Save the number of patch messages in this group
-        this.sequenceSize = m.getSequenceSize();
-
-        // This isn't the last patch message in its group
-        if (m.getSequenceNumber() != m.getSequenceSize()) {
-
-        	// Save it's number, the next message we get should have sequenceNumber + 1
-        	this.sequenceNumber = m.getSequenceNumber();
-
-        // This is the last patch message in the group, it's finishing the group
-        } else {
-
-        	// Reset member variables to indicate we're between groups of patch messages
-            this.sequenceNumber = -1;
-            this.sequenceSize = -1;
-            this.nextPatch = 0;
-
-            // We made an Inflater object to decompress the data in this group of patch messages
-            if (this.uncompressor != null) {
-
-            	// Free it
-                this.uncompressor.end();
-                this.uncompressor = null;
-            }
-        }
     }
 
     /** Not used. */
@@ -13,17 +13,16 @@ import java.util.Map;
 import com.limegroup.gnutella.ErrorService;
 import com.limegroup.gnutella.GUID;
 import com.limegroup.gnutella.ReplyHandler;
-import com.limegroup.gnutella.util.ProcessingQueue;
+import com.limegroup.gnutella.util.TimingWheel;
 
 /**
- * The program's QueryDispatcher object keeps a list of QueryHandler searches, and has the "QueryDispatcher" thread call sendQuery() on them every 0.4 seconds.
+ * The program's QueryDispatcher object keeps a list of QueryHandler searches, and has the "TimingWheel: QueryDispatcher" thread call sendQuery() on them every 0.4 seconds.
  * 
  * The program makes one QueryDispatcher object.
  * It keeps a list called QUERIES of QueryHandler objects.
  * Give it one with addQuery(QueryHandler).
- * The QueryDispatcher has a ProcessingQueue that makes a thread named "QueryDispatcher".
- * It loops every 0.4 seconds.
- * For each loop, it calls calls queryHandler.sendQuery() and then queryHandler.hasEnoughResults() on each QueryHandler object in the list.
+ * While it has searches, the QueryDispatcher has a timer in the program's TimingWheel that runs every 0.4 seconds.
+ * Each time, it calls queryHandler.sendQuery() and then queryHandler.hasEnoughResults() on each QueryHandler object in the list.
  * queryHandler.sendQuery() sends out the next query packet if its time to do so.
  * queryHandler.hasEnoughResults() tells if we should stop or not.
  * If a QueryHandler has enough results, the search is done, and we remove it from the list.
@@ -56,7 +55,7 @@ public final class QueryDispatcher implements Runnable {
 	 * The list of new queries we need to add to the QUERIES list.
 	 * 
 	 * The addQuery(QueryHandler) method adds a given QueryHandler to the NEW_QUERIES list.
-	 * The "QueryDispatcher" thread moves it from that list to this one.
+	 * The "TimingWheel: QueryDispatcher" thread moves it from that list to this one.
      * 
      * NEW_QUERIES is a synchronized LinkedList of QueryHandler objects.
      * 
@@ -73,13 +72,14 @@ public final class QueryDispatcher implements Runnable {
 	private static final QueryDispatcher INSTANCE = new QueryDispatcher();
 
     /**
-     * The QueryDispatcher has a ProcessingQueue that makes a thread named "QueryDispatcher" and calls the run() method.
-     * A ProcessingQueue takes objects with run() methods, calls them one by one, and then exits.
-     * We only add one object to our ProcessingQueue, this QueryDispatcher object.
+     * The QueryDispatcher's timer in the program's TimingWheel, which has the "TimingWheel: QueryDispatcher" thread call the run() method every 0.4 seconds.
+     * We start it when we get a search, and cancel it when we don't have any more.
+     * 
+     * LOCKING: obtain NEW_QUERIES.
      */
-    private final ProcessingQueue PROCESSOR = new ProcessingQueue("QueryDispatcher");
+    private TimingWheel.Entry _timer;
 
-    /** True if the ProcessingQueue has this QueryDispatcher object listed in it, and has its "QueryDispatcher" thread executing the code in the run() method. */
+    /** True if our timer is scheduled, and the "TimingWheel: QueryDispatcher" thread will call the run() method. LOCKING: obtain NEW_QUERIES. */
     private boolean _active;
 
 	/**
@@ -101,7 +101,7 @@ public final class QueryDispatcher implements Runnable {
      * Add the given QueryHandler to our list of searches to run.
      * 
      * Calls handler.sendQuery() right away to have it send the first query packet.
-     * Adds handler to this QueryDispatcher ProcessingQueue to have the QueryDispatcher thread call sendQuery() later.
+     * Adds handler to our list, and starts our timer, to have the "TimingWheel: QueryDispatcher" thread call sendQuery() later.
 	 * 
 	 * @param handler The QueryHandler object that represents the search and contains its query packet
 	 */
@@ -116,13 +116,13 @@ public final class QueryDispatcher implements Runnable {
             // Add the given object to the list
 		    NEW_QUERIES.add(handler);
 
-            // Start the QueryDispatcher ProcessingQueue thread if its not running right now
+            // Start our timer if it's not running right now
 		    if (NEW_QUERIES.size() == 1 && // We didn't have any searches before the one we're just running
                 !_active) {                // The QueryDispatcher isn't active right now
 
-                // Mark the QueryDispatcher as active, and add the QueryDispatcher object to the ProcessingQueue that has a thread call its run() method
+                // Mark the QueryDispatcher as active, and have the "TimingWheel: QueryDispatcher" thread call run() every 0.4 seconds
 		        _active = true;
-		        PROCESSOR.add(this);
+		        _timer = TimingWheel.instance().schedule(this, 400, 400, "QueryDispatcher");
             }
 		}
 	}
@@ -261,53 +261,47 @@ public final class QueryDispatcher implements Runnable {
     }
 
 	/**
-     * Call sendQuery() on the QueryHandler objects in our list until they all have enough hits.
+     * Call sendQuery() on the QueryHandler objects in our list, and stop our timer once they all have enough hits.
      * 
-     * The PROCESSOR ProcessingQueue has its "QueryDispatcher" thread call this run method.
-     * Every 0.4 seconds, calls sendQuery() on each QueryHandler in our list.
+     * Our timer in the TimingWheel has the "TimingWheel: QueryDispatcher" thread call this run method every 0.4 seconds.
+     * Calls sendQuery() on each QueryHandler in our list.
      * Removes those that have enough hits and are done.
-     * Exits when we don't have any more.
+     * Cancels the timer when we don't have any more.
 	 */
     public void run() {
 
-        // Loop until the NEW_QUERIES list doesn't have any more QueryHandler objects because they all said handler.hasEnoughResults()
-        while (true) {
+        try {
 
-            // Pause here for 0.4 seconds
-            try { Thread.sleep(400); } catch (InterruptedException ignored) {}
+            // Call sendQuery() on each QueryHandler in our list, removing those that say they have enough hits.
+            if (!processQueries()) { // If we finished them all
 
-            try {
+                /*
+                 * If there are no new queries to add,
+                 * set active to false & stop the timer.
+                 */
 
-                // Call sendQuery() on each QueryHandler in our list, removing those that say they have enough hits.
-                if (!processQueries()) { // If we finished them all
+                // And addQuery() hasn't given us any new ones
+                synchronized (NEW_QUERIES) {
+                    if (NEW_QUERIES.isEmpty()) {
+
+                        // Mark the QueryDispatcher inactive, and cancel the timer so the TimingWheel doesn't call run() again
+                        _active = false;
+                        _timer.cancel();
+                        _timer = null;
+                    }
 
                     /*
-                     * If there are no new queries to add,
-                     * set active to false & leave.
+                     * Otherwise, leave the timer running to have processQueries() get the new search and do it in 0.4 seconds
                      */
-
-                    // And addQuery() hasn't given us any new ones
-                    synchronized (NEW_QUERIES) {
-                        if (NEW_QUERIES.isEmpty()) {
-
-                            // Mark the QueryDispatcher inactive, and return to close the "QueryDispatcher" thread
-                            _active = false;
-                            return;
-                        }
-
-                        /*
-                         * Otherwise, loop to have processQueries() get the new search and do it
-                         */
-                    }
                 }
+            }
 
-                /*
-                 * Keep looping to, after waiting 0.4 seconds, call sendQuery() on all our QueryHandler objects to keep the searches they represent going
-                 */
+            /*
+             * The timer will call run() again in 0.4 seconds to call sendQuery() on all our QueryHandler objects to keep the searches they represent going
+             */
 
-            // Give exceptions to the ErrorService
-            } catch (Throwable t) { ErrorService.error(t); }
-        }
+        // Give exceptions to the ErrorService, and keep the timer going
+        } catch (Throwable t) { ErrorService.error(t); }
     }
 
 	/**
@@ -323,7 +317,7 @@ public final class QueryDispatcher implements Runnable {
 	private boolean processQueries() {
 
         // Move all the QueryHandler objects addQuery() added to NEW_QUERIES from that list to the QUERIES map
-		synchronized (NEW_QUERIES) { // Make the "QueryDispatcher" thread wait here until other threads leave the NEW_QUERIES and QUERIES lists
+		synchronized (NEW_QUERIES) { // Make the "TimingWheel: QueryDispatcher" thread wait here until other threads leave the NEW_QUERIES and QUERIES lists
             synchronized (QUERIES) {
 
                 // Loop for each QueryHandler object that addQuery() added to the NEW_QUERIES list
@@ -42,7 +42,7 @@ import com.limegroup.gnutella.routing.QueryRouteTable;
  * 
  * Right after MesageRouter.sendDynamicQuery() and MessageRouter.handleQueryRequest() make QueryHandler objects, they give them to the QueryDispatcher.
  * The call that does this is QueryDispatcher.addQuery(QueryHandler).
- * The QueryDispatcher adds the given QueryHandler to its list, and has its "QueryDispatcher" thread call sendQuery() on it every 0.4 seconds.
+ * The QueryDispatcher adds the given QueryHandler to its list, and has the "TimingWheel: QueryDispatcher" thread call sendQuery() on it every 0.4 seconds.
  * 
  * sendQuery() runs repeatedly to perform the steps of the dynamic query.
  * It makes sure it's waited long enough since performing the last step before doing the next one.
@@ -411,7 +411,7 @@ public final class QueryHandler {
      * If we have already sent the probe query, calls SendQuery(List) to send query packets to the ultrapeers we're connected to.
      * 
      * The QueryDispatcher object keeps QueryHandler objects like this one in a list.
-     * It has a "QueryDispatcher" thread that calls sendQuery() on them every 0.4 seconds.
+     * It has the "TimingWheel: QueryDispatcher" thread call sendQuery() on them every 0.4 seconds.
      * This is how the program runs the searches.
      * 
      * QueryDispatcher.addQuery() and QueryDispatcher.processQueries() call sendQuery().
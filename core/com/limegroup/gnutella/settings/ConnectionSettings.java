@@ -139,6 +139,18 @@ public final class ConnectionSettings extends LimeProps {
     public static final BooleanSetting ACCEPT_DEFLATE = FACTORY.createBooleanSetting("ACCEPT_GNUTELLA_DEFLATE", true);
     /** True, we'll send compressed Gnutella packets to a remote computer. */
     public static final BooleanSetting ENCODE_DEFLATE = FACTORY.createBooleanSetting("ENCODE_GNUTELLA_DEFLATE", true);
+    /**
+     * 2, the number of threads that compress and decompress the data of Gnutella connections.
+     * 0 does it on the NIODispatcher thread, like before.
+     * Read once, when the first compressed connection starts.
+     */
+    public static final IntSetting COMPRESSION_THREADS = FACTORY.createIntSetting("COMPRESSION_THREADS", 2);
+    /**
+     * 10, if compressing 64 KB of what we send a remote computer saves less than 10 percent, we'll stop compressing it for a while.
+     * The data still goes out in the deflate format, just in blocks that aren't compressed.
+     * 0 always compresses.
+     */
+    public static final IntSetting DEFLATE_MIN_SAVINGS = FACTORY.createIntSetting("DEFLATE_MIN_SAVINGS", 10);
 
     /** 4, a Gnutella packet will hop 4 times across the Internet. (do) */
     public static final ByteSetting TTL = FACTORY.createByteSetting("TTL", (byte)4);
@@ -275,6 +287,26 @@ public final class ConnectionSettings extends LimeProps {
      */
     public static final StringArraySetting EVIL_HOSTS = FACTORY.createSettableStringArraySetting("EVIL_HOSTS", new String[0], "evil_hosts");
 
+    /**
+     * 0, the number of selectors and threads NIODispatcher spreads channels across.
+     * 0 makes one for each processor the computer has.
+     * Read once, when NIODispatcher starts.
+     */
+    public static final IntSetting NIO_DISPATCHERS = FACTORY.createIntSetting("NIO_DISPATCHERS", 0);
+
+    /**
+     * False, NIODispatcher gives a new channel to the selector with the fewest channels.
+     * True picks the selector from the channel's hash code instead.
+     */
+    public static final BooleanSetting NIO_DISPATCH_BY_HASH = FACTORY.createBooleanSetting("NIO_DISPATCH_BY_HASH", false);
+
+    /**
+     * 0, the number of threads that receive and decode UDP datagrams, each with its own selector on the UDP channel.
+     * 0 reads them on the NIODispatcher thread, like before.
+     * Read once, when UDPService starts.
+     */
+    public static final IntSetting UDP_RECEIVE_THREADS = FACTORY.createIntSetting("UDP_RECEIVE_THREADS", 0);
+
     /**
      * 1, if we're a leaf and the user leaves the computer for 30 minutes, we'll drop down from having 3 ultrapeer connections to just 1.
      */
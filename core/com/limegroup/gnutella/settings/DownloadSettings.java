@@ -87,4 +87,27 @@ public class DownloadSettings extends LimeProps {
         FACTORY.createSettableStringArraySetting("PREVIEWABLE_EXTENSIONS", 
                 defaultPreviewableExtensions,
                 "PREVIEWABLE_EXTENSIONS");
+    
+    /**
+     * Incomplete files up to this many bytes are written through a memory
+     * map instead of positional writes, or 0 to never map them.  A mapping
+     * can't be released until it is garbage collected, which on some systems
+     * keeps the finished file from being moved, so this is off by default.
+     */
+    public static final IntSetting MAX_MAPPED_INCOMPLETE_SIZE =
+        FACTORY.createIntSetting("MAX_MAPPED_INCOMPLETE_SIZE", 0);
+    
+    /**
+     * Whether or not to read download bodies on the NIODispatcher thread,
+     * instead of with a thread for each source.
+     */
+    public static final BooleanSetting NIO_DOWNLOADS =
+        FACTORY.createBooleanSetting("NIO_DOWNLOADS", true);
+    
+    /**
+     * The number of threads that connect to sources and exchange headers
+     * with them, for all downloads together.
+     */
+    public static final IntSetting DOWNLOAD_WORKER_THREADS =
+        FACTORY.createIntSetting("DOWNLOAD_WORKER_THREADS", 16);
 }
@@ -10,4 +10,56 @@ public class MessageSettings extends LimeProps {
      */
     public static final IntSetting MAX_LENGTH = 
         FACTORY.createIntSetting("MAX_LENGTH", 65536);
+
+    /**
+     * The number of threads that hand received messages to MessageRouter.
+     * Messages with the same GUID, and ordered messages like QRP patches
+     * from the same connection, always go to the same thread.  Read at
+     * startup.
+     */
+    public static final IntSetting DISPATCH_LANES =
+        FACTORY.createIntSetting("DISPATCH_LANES", 1);
+
+    /**
+     * The number of received messages waiting in a dispatch lane at which
+     * we stop reading from the connections sending more, and start dropping
+     * pings and pongs.  Queries are dropped at twice this.
+     */
+    public static final IntSetting DISPATCH_HIGH_WATER =
+        FACTORY.createIntSetting("DISPATCH_HIGH_WATER", 2000);
+
+    /**
+     * The number of milliseconds a received query can wait in a dispatch
+     * lane before it's dropped instead of routed.
+     */
+    public static final IntSetting DISPATCH_MAX_QUERY_WAIT =
+        FACTORY.createIntSetting("DISPATCH_MAX_QUERY_WAIT", 5000);
+
+    /**
+     * The number of datagrams each priority class of UDPService can have
+     * waiting to be sent.  More are dropped.  Read at startup.
+     */
+    public static final IntSetting UDP_SEND_QUEUE_LENGTH =
+        FACTORY.createIntSetting("UDP_SEND_QUEUE_LENGTH", 2000);
+
+    /**
+     * The number of bytes a second of out of band replies we send over UDP,
+     * or 0 for no limit.  Read at startup.
+     */
+    public static final IntSetting UDP_OOB_RATE =
+        FACTORY.createIntSetting("UDP_OOB_RATE", 128 * 1024);
+
+    /**
+     * The number of bytes a second of GUESS queries, pings, pongs and other
+     * messages we send over UDP, or 0 for no limit.  Read at startup.
+     */
+    public static final IntSetting UDP_PING_RATE =
+        FACTORY.createIntSetting("UDP_PING_RATE", 64 * 1024);
+
+    /**
+     * The number of bytes a second we send to any one host over UDP,
+     * besides reliable UDP messages, or 0 for no limit.  Read at startup.
+     */
+    public static final IntSetting UDP_HOST_RATE =
+        FACTORY.createIntSetting("UDP_HOST_RATE", 16 * 1024);
 }
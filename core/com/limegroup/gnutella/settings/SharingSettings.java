@@ -242,6 +242,23 @@ public class SharingSettings extends LimeProps {
     public static final BooleanSetting FRIENDLY_HASHING =
         FACTORY.createBooleanSetting("FRIENDLY_HASHING", true);	
 
+    /**
+     * The number of threads that hash shared files at once.
+     */
+    public static final IntSetting HASHING_THREADS =
+        FACTORY.createIntSetting("HASHING_THREADS",
+            Runtime.getRuntime().availableProcessors());
+
+    /**
+     * The number of files on the same disk that are hashed at once.  More
+     * than one makes a hard disk seek back and forth between them.  Disks
+     * are told apart by file system root, and every file on Unix is under
+     * "/", so there the default doesn't limit HASHING_THREADS.
+     */
+    public static final IntSetting HASHING_THREADS_PER_DISK =
+        FACTORY.createIntSetting("HASHING_THREADS_PER_DISK",
+            CommonUtils.isWindows() ? 1 : HASHING_THREADS.getValue());
+
 	/**
 	 * Returns the download directory file setting for a mediatype. The
 	 * settings are created lazily when they are requested for the first time.
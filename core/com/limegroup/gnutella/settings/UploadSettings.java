@@ -116,4 +116,11 @@ public final class UploadSettings extends LimeProps {
     public static final IntSetting THEX_UPLOAD_SPEED =
         FACTORY.createSettableIntSetting("THEX_UPLOAD_SPEED",512,
                 "THEXUploadState.ThexUploadSpeed",4*1024,256);
+    
+    /**
+     * Whether or not to send files over NIO sockets with
+     * FileChannel.transferTo, instead of copying them through a buffer.
+     */
+    public static final BooleanSetting ZERO_COPY_UPLOADS =
+        FACTORY.createBooleanSetting("ZERO_COPY_UPLOADS", true);
 }
@@ -0,0 +1,67 @@
+package com.limegroup.gnutella.statistics;
+
+/**
+ * This class contains a type-safe enumeration of statistics for messages
+ * we received but dropped without routing, because MessageDispatcher was
+ * too far behind, and for the times it stopped reading from a connection
+ * for the same reason.
+ */
+public class DroppedDispatchStat extends BasicStatistic {
+
+	/**
+	 * Make the constructor private so that only this class can construct
+	 * <tt>DroppedDispatchStat</tt> instances.
+	 */
+	private DroppedDispatchStat() {}
+
+	/**
+	 * Specialized class for accumulating all dropped messages.
+	 */
+	private static class DroppedStat extends DroppedDispatchStat {
+		public void incrementStat() {
+			super.incrementStat();
+			ALL_DROPPED.incrementStat();
+		}
+	}
+
+	/**
+	 * <tt>Statistic</tt> for all messages dropped before dispatch.
+	 */
+	public static final Statistic ALL_DROPPED =
+		new DroppedDispatchStat();
+
+	/**
+	 * <tt>Statistic</tt> for pings dropped because their dispatch lane was
+	 * past its high-water mark.
+	 */
+	public static final Statistic PING_REQUESTS =
+		new DroppedStat();
+
+	/**
+	 * <tt>Statistic</tt> for pongs dropped because their dispatch lane was
+	 * past its high-water mark.
+	 */
+	public static final Statistic PING_REPLIES =
+		new DroppedStat();
+
+	/**
+	 * <tt>Statistic</tt> for queries dropped because their dispatch lane
+	 * was twice past its high-water mark.
+	 */
+	public static final Statistic QUERY_REQUESTS_FULL =
+		new DroppedStat();
+
+	/**
+	 * <tt>Statistic</tt> for queries dropped because they waited in their
+	 * dispatch lane too long.
+	 */
+	public static final Statistic QUERY_REQUESTS_OLD =
+		new DroppedStat();
+
+	/**
+	 * <tt>Statistic</tt> for the times we stopped reading from a connection
+	 * because its messages' dispatch lane was past its high-water mark.
+	 */
+	public static final Statistic READS_PAUSED =
+		new DroppedDispatchStat();
+}
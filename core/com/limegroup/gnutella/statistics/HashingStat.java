@@ -0,0 +1,27 @@
+package com.limegroup.gnutella.statistics;
+
+/**
+ * This class contains a type-safe enumeration of statistics for the shared
+ * files FileHasher hashes.
+ */
+public class HashingStat extends BasicStatistic {
+
+	/**
+	 * Make the constructor private so that only this class can construct
+	 * <tt>HashingStat</tt> instances.
+	 */
+	private HashingStat() {}
+
+	/**
+	 * <tt>Statistic</tt> for files read to the end and hashed.
+	 */
+	public static final Statistic FILES_HASHED =
+		new HashingStat();
+
+	/**
+	 * <tt>Statistic</tt> for files whose hashing failed or was interrupted
+	 * before the end.
+	 */
+	public static final Statistic FILES_FAILED =
+		new HashingStat();
+}
@@ -0,0 +1,21 @@
+package com.limegroup.gnutella.statistics;
+
+/**
+ * This class contains a type-safe enumeration of statistics for the bytes
+ * of shared files FileHasher reads to hash.
+ */
+public class HashingStatBytes extends BasicKilobytesStatistic {
+
+	/**
+	 * Make the constructor private so that only this class can construct
+	 * <tt>HashingStatBytes</tt> instances.
+	 */
+	private HashingStatBytes() {}
+
+	/**
+	 * <tt>Statistic</tt> for all bytes read for hashing, including those of
+	 * files whose hashing failed.
+	 */
+	public static final Statistic BYTES_READ =
+		new HashingStatBytes();
+}
@@ -0,0 +1,26 @@
+package com.limegroup.gnutella.statistics;
+
+/**
+ * This class contains a type-safe enumeration of statistics for the
+ * addresses IPFilter checks against its lists.
+ */
+public class IPFilterStat extends BasicStatistic {
+
+	/**
+	 * Make the constructor private so that only this class can construct
+	 * <tt>IPFilterStat</tt> instances.
+	 */
+	private IPFilterStat() {}
+
+	/**
+	 * <tt>Statistic</tt> for all addresses looked up in the IP filter.
+	 */
+	public static final Statistic LOOKUPS =
+		new IPFilterStat();
+
+	/**
+	 * <tt>Statistic</tt> for the addresses the IP filter blocked.
+	 */
+	public static final Statistic BLOCKED =
+		new IPFilterStat();
+}
@@ -0,0 +1,34 @@
+package com.limegroup.gnutella.statistics;
+
+/**
+ * This class contains a type-safe enumeration of statistics for the UDP
+ * datagrams UDPService receives, decodes into messages, and drops.
+ */
+public class UDPReceiveStat extends BasicStatistic {
+
+	/**
+	 * Make the constructor private so that only this class can construct
+	 * <tt>UDPReceiveStat</tt> instances.
+	 */
+	private UDPReceiveStat() {}
+
+	/**
+	 * <tt>Statistic</tt> for all datagrams received on the UDP channel.
+	 */
+	public static final Statistic RECEIVED =
+		new UDPReceiveStat();
+
+	/**
+	 * <tt>Statistic</tt> for datagrams decoded into messages and passed
+	 * on to MessageDispatcher.
+	 */
+	public static final Statistic DECODED =
+		new UDPReceiveStat();
+
+	/**
+	 * <tt>Statistic</tt> for datagrams dropped because they came from an
+	 * invalid address or didn't hold a valid message.
+	 */
+	public static final Statistic DROPPED =
+		new UDPReceiveStat();
+}
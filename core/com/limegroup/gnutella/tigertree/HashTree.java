@@ -1,5 +1,7 @@
 package com.limegroup.gnutella.tigertree;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -16,7 +18,9 @@ import org.apache.commons.logging.LogFactory;
 
 import com.bitzi.util.Base32;
 import com.limegroup.gnutella.Assert;
+import com.limegroup.gnutella.AssertFailure;
 import com.limegroup.gnutella.FileDesc;
+import com.limegroup.gnutella.FileHasher;
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.downloader.Interval;
 import com.limegroup.gnutella.http.HTTPConstants;
@@ -107,22 +111,70 @@ public class HashTree implements HTTPHeaderValue, Serializable {
     }
     
     /**
-     * Creates a new HashTree for the given FileDesc.
+     * Creates a new HashTree for the given FileDesc.  Reads the file
+     * through FileHasher, with the same large blocks it hashes SHA1s with.
      */
     static HashTree createHashTree(FileDesc fd) throws IOException {
         if (LOG.isDebugEnabled())
             LOG.debug("creating hashtree for file " + fd);
-        InputStream in = null;
+        HashTreeBuilder builder = new HashTreeBuilder(fd.getFileSize());
         try {
-            in = fd.createInputStream();
-            return createHashTree(fd.getFileSize(), in, fd.getSHA1Urn());
-        } finally {
-            if(in != null) {
-                try {
-                    in.close();
-                } catch(IOException ignored) {}
-            }
-        }                
+            FileHasher.read(fd.getFile(), null, builder);
+        } catch (InterruptedException ie) {
+            throw new IOException("interrupted during hashing operation");
+        }
+        return builder.build(fd.getSHA1Urn());
+    }
+    
+    /**
+     * Creates a new HashTree from the leaf nodes HashTreeBuilder hashed.
+     */
+    static HashTree createHashTree(List nodes, URN sha1, long fileSize,
+                                   int nodeSize) {
+        List allNodes = createAllParentNodes(nodes);
+        return new HashTree(allNodes, sha1.toString(), fileSize, nodeSize);
+    }
+    
+    /**
+     * Writes the file size, node size and leaf nodes of this tree, which is
+     * all readLeaves(..) needs to make it again.  TigerTreeCache saves trees
+     * this way.
+     */
+    void writeLeaves(DataOutputStream out) throws IOException {
+        out.writeLong(FILE_SIZE);
+        out.writeInt(getNodeSize());
+        out.writeInt(NODES.size());
+        for (Iterator i = NODES.iterator(); i.hasNext(); ) {
+            byte[] node = (byte[])i.next();
+            out.writeByte(node.length);
+            out.write(node);
+        }
+    }
+    
+    /**
+     * Reads a tree writeLeaves(..) wrote, and hashes its parent nodes.
+     * 
+     * @exception IOException the data isn't a good tree
+     */
+    static HashTree readLeaves(DataInputStream in, URN sha1)
+      throws IOException {
+        long fileSize = in.readLong();
+        int nodeSize = in.readInt();
+        int count = in.readInt();
+        if (fileSize <= 0 || nodeSize <= 0 || count <= 0 ||
+            (long)count * nodeSize < fileSize)
+            throw new IOException("bad tree sizes");
+        List nodes = new ArrayList(count);
+        for (int i = 0; i < count; i++) {
+            byte[] node = new byte[in.readUnsignedByte()];
+            in.readFully(node);
+            nodes.add(node);
+        }
+        try {
+            return createHashTree(nodes, sha1, fileSize, nodeSize);
+        } catch (AssertFailure bad) {
+            throw new IOException("bad tree: " + bad.getMessage());
+        }
     }
     
     /**
@@ -169,23 +221,6 @@ public class HashTree implements HTTPHeaderValue, Serializable {
         return nodeSize;
     }
     
-    /**
-     * Creates a new HashTree for the given file size, input stream and SHA1.
-     *
-     * Exists as a hook for tests, to create a HashTree from a File
-     * when no FileDesc exists.
-     */
-    private static HashTree createHashTree(long fileSize, InputStream is,
-                                           URN sha1) throws IOException {
-        // do the actual hashing
-        int nodeSize = calculateNodeSize(fileSize,calculateDepth(fileSize));
-        List nodes = createTTNodes(nodeSize, fileSize, is);
-        
-        // calculate the intermediary nodes to get the root hash & others.
-        List allNodes = createAllParentNodes(nodes);
-        return new HashTree(allNodes, sha1.toString(), fileSize, nodeSize);
-    }
-
     /**
      * Reads a new HashTree from the network.  It is expected that the
      * data is in DIME format, the first record being an XML description
@@ -467,62 +502,5 @@ public class HashTree implements HTTPHeaderValue, Serializable {
             }
         }
         return ret;
-    }     
-
-    /*
-     * Create a generation of nodes. It is very important that nodeSize equals
-     * 2^n (n>=10) or we will not get the expected generation of nodes of a
-     * Merkle HashTree
-     */
-    private static List createTTNodes(int nodeSize, long fileSize,
-                                      InputStream is) throws IOException {
-        List ret = new ArrayList((int)Math.ceil((double)fileSize/nodeSize));
-        MessageDigest tt = new TigerTree();
-        byte[] block = new byte[BLOCK_SIZE * 128];
-        long offset = 0;
-        int read = 0;
-        while (offset < fileSize) {
-            int nodeOffset = 0;
-            long time = System.currentTimeMillis();
-            // reset our TigerTree instance
-            tt.reset();
-            // hashing nodes independently
-            while (nodeOffset < nodeSize && (read = is.read(block)) != -1) {
-                tt.update(block, 0, read);
-                // update offsets
-                nodeOffset += read;
-                offset += read;
-                try {
-                    long sleep = (System.currentTimeMillis() - time) * 2;
-                    if(sleep > 0)
-                        Thread.sleep(sleep);
-                } catch (InterruptedException ie) {
-                    throw new IOException("interrupted during hashing operation");
-                }
-                time = System.currentTimeMillis();
-            }
-            // node hashed, add the hash to our internal List.
-            ret.add(tt.digest());
-            
-            // verify sanity of the hashing.
-            if(offset == fileSize) {
-                // if read isn't already -1, the next read MUST be -1.
-                // it wouldn't already be -1 if the fileSize was a multiple
-                // of BLOCK_SIZE * 128
-                if(read != -1 && is.read() != -1) {
-                    LOG.warn("More data than fileSize!");
-                    throw new IOException("unknown file size.");
-                }
-            } else if(read == -1 && offset != fileSize) {
-                if(LOG.isWarnEnabled()) {
-                    LOG.warn("couldn't hash whole file. " +
-                             "read: " + read + 
-                           ", offset: " + offset +
-                           ", fileSize: " + fileSize);
-                }
-                throw new IOException("couldn't hash whole file.");
-            }
-        }
-        return ret;
     }
 }
@@ -0,0 +1,97 @@
+package com.limegroup.gnutella.tigertree;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.limegroup.gnutella.URN;
+import com.limegroup.gnutella.security.TigerTree;
+
+/**
+ * Builds the HashTree of a file from its bytes as they're read, so the same
+ * read of the file can feed the SHA1 digest too.  Give it the whole file,
+ * in order, with update(..), and then call build(..).<p>
+ *
+ * The tree has the same depth and node size HashTree.createHashTree(FileDesc)
+ * has always used, so it's the same tree.  This class is not synchronized.
+ */
+public final class HashTreeBuilder {
+
+    /** The size of the file. */
+    private final long FILE_SIZE;
+
+    /** The number of bytes each leaf node covers. */
+    private final int NODE_SIZE;
+
+    /** Hashes the current leaf node. */
+    private final MessageDigest TT = new TigerTree();
+
+    /** The hashes of the leaf nodes done so far. */
+    private final List NODES;
+
+    /** The number of bytes given to TT for the current node. */
+    private int _nodeOffset;
+
+    /** The number of bytes given to us so far. */
+    private long _offset;
+
+    /** Whether we were given more than FILE_SIZE bytes. */
+    private boolean _overflow;
+
+    /**
+     * Creates a builder for a file of the given size.
+     *
+     * @exception IOException the file is empty, which has no tree
+     */
+    public HashTreeBuilder(long fileSize) throws IOException {
+        if(fileSize <= 0)
+            throw new IOException("no tree for an empty file.");
+        FILE_SIZE = fileSize;
+        NODE_SIZE = HashTree.calculateNodeSize(fileSize,
+                                               HashTree.calculateDepth(fileSize));
+        NODES = new ArrayList((int)Math.ceil((double)fileSize/NODE_SIZE));
+    }
+
+    /**
+     * Hashes the next len bytes of the file.  If the file turns out to be
+     * longer than the size we were given, the rest is ignored and build(..)
+     * fails, so whatever else is reading the file can finish.
+     */
+    public void update(byte[] buf, int off, int len) {
+        if(_overflow || _offset + len > FILE_SIZE) {
+            _overflow = true;
+            return;
+        }
+        _offset += len;
+        while(len > 0) {
+            int n = Math.min(len, NODE_SIZE - _nodeOffset);
+            TT.update(buf, off, n);
+            off += n;
+            len -= n;
+            _nodeOffset += n;
+            // node hashed, digest() resets TT for the next one
+            if(_nodeOffset == NODE_SIZE) {
+                NODES.add(TT.digest());
+                _nodeOffset = 0;
+            }
+        }
+    }
+
+    /**
+     * Returns the tree, once the whole file has been given to update(..).
+     *
+     * @exception IOException we didn't get exactly the whole file
+     */
+    public HashTree build(URN sha1) throws IOException {
+        if(_overflow)
+            throw new IOException("unknown file size.");
+        if(_offset != FILE_SIZE)
+            throw new IOException("couldn't hash whole file.");
+        if(_nodeOffset > 0) {
+            NODES.add(TT.digest());
+            _nodeOffset = 0;
+        }
+        return HashTree.createHashTree(NODES, sha1, FILE_SIZE, NODE_SIZE);
+    }
+}
@@ -1,13 +1,14 @@
 package com.limegroup.gnutella.tigertree;
 
 import java.io.BufferedInputStream;
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
 import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
@@ -17,11 +18,12 @@ import org.apache.commons.logging.LogFactory;
 
 import com.limegroup.gnutella.ErrorService;
 import com.limegroup.gnutella.FileDesc;
+import com.limegroup.gnutella.FileHasher;
 import com.limegroup.gnutella.RouterService;
 import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.util.CommonUtils;
 import com.limegroup.gnutella.util.ConverterObjectInputStream;
-import com.limegroup.gnutella.util.ProcessingQueue;
+import com.limegroup.gnutella.util.JournalFile;
 
 /**
  * @author Gregorio Roper
@@ -35,12 +37,6 @@ public final class TigerTreeCache {
      */
     private static TigerTreeCache instance = null;
     
-    /**
-     * The ProcessingQueue to do the hashing.
-     */
-    private static final ProcessingQueue QUEUE = 
-        new ProcessingQueue("TreeHashTread");
-
     private static final Log LOG =
         LogFactory.getLog(TigerTreeCache.class);
 
@@ -50,15 +46,23 @@ public final class TigerTreeCache {
     private static final Object BUSH = new Object();
     
     /**
-     * TigerTreeCache container.
+     * TigerTreeCache container.  A tree read from disk stays encoded as a
+     * byte[] until it's first asked for.  LOCKING: obtain the instance.
      */
-    private static Map /* SHA1_URN -> HashTree */ TREE_MAP;
+    private static Map /* SHA1_URN -> HashTree, BUSH or byte[] */ TREE_MAP;
 
     /**
      * File where the Mapping SHA1->TIGERTREE is stored
      */
     private static final File CACHE_FILE =
         new File(CommonUtils.getUserSettingsDir(), "ttree.cache");
+    
+    /**
+     * Where the trees are stored now, ttree.dat and ttree.jnl.  The old
+     * file above is only read if these don't exist yet.
+     */
+    private static final JournalFile JOURNAL =
+        new JournalFile(CommonUtils.getUserSettingsDir(), "ttree");
         
     /**
      * Whether or not data dirtied since the last time we saved.
@@ -77,7 +81,7 @@ public final class TigerTreeCache {
     }
 
     /**
-     * If HashTree wasn't found, schedule file for hashing
+     * If HashTree wasn't found, schedule file for hashing on the FileHasher
      * 
      * @param fd
      *            the <tt>FileDesc</tt> for which we want to obtain the
@@ -88,10 +92,10 @@ public final class TigerTreeCache {
         Object obj = TREE_MAP.get(fd.getSHA1Urn());
         if (obj != null && obj.equals(BUSH))
             return null;
-        HashTree tree = (HashTree) obj;
+        HashTree tree = decode(fd.getSHA1Urn(), obj);
         if (tree == null) {
             TREE_MAP.put(fd.getSHA1Urn(), BUSH);
-            QUEUE.add(new HashRunner(fd));
+            FileHasher.invokeLater(fd.getFile(), new HashRunner(fd));
         }
         return tree;
     }
@@ -109,14 +113,39 @@ public final class TigerTreeCache {
         if (tree != null && tree.equals(BUSH))
             return null;
         
-        return (HashTree)tree;
+        return decode(sha1, tree);
+    }
+    
+    /**
+     * Returns the tree for a value of TREE_MAP, decoding it and putting it
+     * back if it hasn't been asked for since it was read from disk.  Returns
+     * null, and forgets the tree, if it can't be decoded.
+     */
+    private HashTree decode(URN sha1, Object value) {
+        if (!(value instanceof byte[]))
+            return (HashTree)value;
+        try {
+            HashTree tree = HashTree.readLeaves(new DataInputStream(
+                    new ByteArrayInputStream((byte[])value)), sha1);
+            TREE_MAP.put(sha1, tree);
+            return tree;
+        } catch (IOException bad) {
+            LOG.warn("Unable to decode tree", bad);
+            TREE_MAP.remove(sha1);
+            JOURNAL.remove(toBytes(sha1));
+            dirty = true;
+            return null;
+        }
     }
     
     /**
      * Purges the HashTree for this URN.
      */
     public synchronized void purgeTree(URN sha1) {
-        if(TREE_MAP.remove(sha1) != null)
+        Object tree = TREE_MAP.remove(sha1);
+        if(tree != null && tree != BUSH)
+            JOURNAL.remove(toBytes(sha1));
+        if(tree != null)
             dirty = true;
     }
 
@@ -128,9 +157,18 @@ public final class TigerTreeCache {
      * @param tree
      *            the <tt>HashTree</tt>
      */
-    public static synchronized void addHashTree(URN sha1, HashTree tree) {
+    public static void addHashTree(URN sha1, HashTree tree) {
+        instance().addTree(sha1, tree);
+    }
+    
+    /**
+     * Adds a hashtree under the same lock as everything else that touches
+     * TREE_MAP.
+     */
+    private synchronized void addTree(URN sha1, HashTree tree) {
         if (tree.isGoodDepth()) {
             TREE_MAP.put(sha1, tree);
+            JOURNAL.put(toBytes(sha1), encode(tree));
             dirty = true;
             if (LOG.isDebugEnabled())
                 LOG.debug("added hashtree for urn " +
@@ -143,15 +181,30 @@ public final class TigerTreeCache {
      * private constructor
      */
     private TigerTreeCache() {
+        dirty = !JOURNAL.exists();
         TREE_MAP = createMap();
     }
 
     /**
-     * Loads values from cache file, if available
+     * Loads values from the journal, or if we don't have one yet, from the
+     * old cache file.
      * 
-     * @return Map of SHA1->HashTree
+     * @return Map of SHA1->HashTree or its encoded byte[]
      */
     private static Map createMap() {
+        if (JOURNAL.exists()) {
+            final Map map = new HashMap();
+            JOURNAL.read(new JournalFile.Reader() {
+                public void put(byte[] key, byte[] value) throws IOException {
+                    map.put(URN.createSHA1Urn(new String(key, "UTF-8")), value);
+                }
+                public void remove(byte[] key) throws IOException {
+                    map.remove(URN.createSHA1Urn(new String(key, "UTF-8")));
+                }
+            });
+            return map;
+        }
+        
         ObjectInputStream ois = null;
         try {
             ois = new ConverterObjectInputStream(
@@ -195,7 +248,8 @@ public final class TigerTreeCache {
         Iterator iter = map.keySet().iterator();
         while (iter.hasNext()) {
             URN sha1 = (URN) iter.next();
-            if (map.get(sha1) != BUSH) {
+            Object tree = map.get(sha1);
+            if (tree != BUSH) {
                 if (RouterService.getFileManager().getFileDescForUrn(sha1) != null)
                     continue;
                 else if (RouterService.getDownloadManager()
@@ -208,12 +262,16 @@ public final class TigerTreeCache {
                     continue;
             }
             iter.remove();
+            if (tree != BUSH)
+                JOURNAL.remove(toBytes(sha1));
             dirty = true;
         }
     }
 
     /**
-     * Write cache so that we only have to calculate them once.
+     * Write cache so that we only have to calculate them once.  Appends what
+     * changed to the journal, or writes a new snapshot when it's time to
+     * compact.
      */
     public synchronized void persistCache() {
         if(!dirty)
@@ -224,24 +282,60 @@ public final class TigerTreeCache {
         //it's a problem in practice.
         removeOldEntries(TREE_MAP);
 
-        ObjectOutputStream oos = null;
         try {
-            oos = new ObjectOutputStream(
-                    new BufferedOutputStream(new FileOutputStream(CACHE_FILE)));
-            oos.writeObject(TREE_MAP);
+            if (JOURNAL.shouldCompact())
+                writeSnapshot();
+            else
+                JOURNAL.flush();
         } catch (IOException e) {
             ErrorService.error(e);
-        } finally {
-            if(oos != null) {
-                try {
-                    oos.close();
-                } catch(IOException ignored) {}
-            }
         }
         
         dirty = true;
     }
 
+    /**
+     * Writes all the trees in TREE_MAP to a new snapshot.  Trees that were
+     * never decoded are written as they are.
+     */
+    private static void writeSnapshot() throws IOException {
+        JournalFile.Snapshot snapshot = JOURNAL.newSnapshot();
+        try {
+            for (Iterator i = TREE_MAP.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry next = (Map.Entry)i.next();
+                Object tree = next.getValue();
+                if (tree == BUSH)
+                    continue;
+                byte[] value = tree instanceof byte[] ?
+                    (byte[])tree : encode((HashTree)tree);
+                snapshot.put(toBytes((URN)next.getKey()), value);
+            }
+            snapshot.commit();
+        } finally {
+            snapshot.abort();
+        }
+    }
+    
+    /** Encodes a URN for the journal. */
+    private static byte[] toBytes(URN sha1) {
+        try {
+            return sha1.toString().getBytes("UTF-8");
+        } catch (IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
+    
+    /** Encodes a tree for the journal. */
+    private static byte[] encode(HashTree tree) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            tree.writeLeaves(new DataOutputStream(bytes));
+            return bytes.toByteArray();
+        } catch (IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
+
     /**
      * Simple runnable that processes the hash of a FileDesc.
      */
@@ -11,33 +11,44 @@ import com.limegroup.gnutella.messages.BadPacketException;
  * A 23-byte Ack message has the following structure:
  * 
  * aa bc dd dd ee ee ff ff
- * gg gg gg gg gg gg gg gg
- * hh ii jj kk kk kk kk
+ * gg gg gg gg hh hh hh hh
+ * ii jj kk ll ll ll ll
  * 
  * a is the connection ID the remote computer assigned this connection.
  * b and c are 4-bit nibbles that fit together into a single byte.
  * b is the operation code, 1 identifies this as an Ack message.
- * c is the length of data in the GUID area, an Ack has 4 bytes there.
+ * c is the length of data in the GUID area, an Ack has 4 or 8 bytes there.
  * d is the sequence number, an Ack's sequence number is the same as the message it's acknowledging having received.
  * 
- * e through g are the 12 bytes in the GUID area we can start to put data, our 4 bytes of data fit into this area.
- * e through f are the 4 bytes of data specific to an Ack message.
+ * e through h are the 12 bytes in the GUID area we can start to put data, our 4 or 8 bytes of data fit into this area.
+ * e through g are the 8 bytes of data specific to an Ack message.
  * e is the window start, the sequence number of the lowest numbered message the sending computer is missing.
  * f is the window space, the number of 512-byte messages the sending computer has space to receive right now.
- * g is the extra area in the GUID we don't need.
+ * g is the selective ack bits, bit i is set if the sending computer has received message e + i.
+ * h is the extra area in the GUID we don't need.
  * 
- * h is the Gnutella packet type, 0x41 identifies this as a UDP connection message.
- * i and j are the TTL and hops, 1 and 0, and not really useful or used.
- * k is the length of the payload beyond this 23-byte header, 0, there is no payload because all our data fits in the 12-byte GUID area e through g.
+ * The selective ack bits are optional.
+ * An Ack without them has a length of 4 in c, and says nothing about the messages after e.
+ * Older programs send Acks without them, and read only the first 4 bytes of the ones we send.
+ * 
+ * i is the Gnutella packet type, 0x41 identifies this as a UDP connection message.
+ * j and k are the TTL and hops, 1 and 0, and not really useful or used.
+ * l is the length of the payload beyond this 23-byte header, 0, there is no payload because all our data fits in the 12-byte GUID area e through h.
  */
 public class AckMessage extends UDPConnectionMessage {
 
+    /** The number of messages after the window start the selective ack bits cover. */
+    public static final int SACK_BLOCKS = 32;
+
     /** The lowest numbered message the acknowledging computer is missing. */
     private long _windowStart;
 
     /** The number of messages the acknowledging computer has space to receive right now, 0 if its full. */
     private int _windowSpace;
 
+    /** Bit i is set if the acknowledging computer has received message _windowStart + i, 0 if it didn't say. */
+    private int _sackBits;
+
     /**
      * Make a new Ack message for us to send.
      * This is the message maker.
@@ -51,18 +62,36 @@ public class AckMessage extends UDPConnectionMessage {
      */
     public AckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace) throws BadPacketException {
 
+        // Make the Ack without selective ack bits
+        this(connectionID, sequenceNumber, windowStart, windowSpace, 0);
+    }
+
+    /**
+     * Make a new Ack message for us to send, telling which messages after the window start we already have.
+     * 
+     * Only UDPConnectionProcessor.safeSendAck() calls this.
+     * 
+     * @param connectionID   The connection ID the remote computer chose to identify this connection and the packets we send that are a part of it
+     * @param sequenceNumber The sequence number of the message we're acknowledging we've received
+     * @param windowStart    The lowest-numbered message we're missing
+     * @param windowSpace    The number of messages we can receive right now, 0 if we're full
+     * @param sackBits       Bit i set if we have message windowStart + i, or 0 to leave the bits out
+     */
+    public AckMessage(byte connectionID, long sequenceNumber, long windowStart, int windowSpace, int sackBits) throws BadPacketException {
+
         // Call the UDPConnectionMessage constructor to make the message
         super(
             connectionID,   // The connection ID the remote computer chose for this connection
             OP_ACK,         // 0x1, this is an Ack message
             sequenceNumber, // The sequence number
 
-            // 4 bytes of data, the lowest-numbered message we still need in the first 2 bytes, and the number of bytes of space we have in the 2 bytes after that
-            buildByteArray((int)windowStart & 0xffff, (windowSpace < 0 ? 0 : windowSpace)), 4); // Payload length 4, fits in the GUID area
+            // 4 or 8 bytes of data, the lowest-numbered message we still need in the first 2 bytes, the number of bytes of space we have in the 2 bytes after that, and the selective ack bits in the 4 bytes after that
+            buildAckData(windowStart, windowSpace, sackBits), sackBits == 0 ? 4 : 8); // Payload length 4 or 8, fits in the GUID area
 
         // Save the given information in this object also
         _windowStart = windowStart;
         _windowSpace = windowSpace;
+        _sackBits    = sackBits;
     }
 
     /**
@@ -82,19 +111,51 @@ public class AckMessage extends UDPConnectionMessage {
       	super(guid, ttl, hops, payload);
 
         /*
-         * An Ack message carries 4 bytes of data, like this:
+         * An Ack message carries 4 or 8 bytes of data, like this:
          * 
-         * aabb
+         * aabbcccc
          * 
          * a is 2 bytes with the window start, the message number the remote computer needs next.
          * b is 2 bytes with the window space, the number of messages the remote computer can receive right now, or 0 if it's full.
+         * c is 4 bytes with the selective ack bits, if the remote computer sent them.
          * 
-         * The 4 bytes of data fit into the area where the GUID should be.
+         * The data fits into the area where the GUID should be.
          */
 
         // Parse the window start and space numbers in the data the Ack message carries
         _windowStart = (long)getShortInt(guid[GUID_DATA_START], guid[GUID_DATA_START + 1]); // The data starts 4 bytes from the start
         _windowSpace = getShortInt(guid[GUID_DATA_START + 2], guid[GUID_DATA_START + 3]);
+
+        // If the Ack has selective ack bits, parse them too
+        if (_data1Length >= 8) {
+            _sackBits =
+                (getShortInt(guid[GUID_DATA_START + 4], guid[GUID_DATA_START + 5]) << 16) |
+                getShortInt(guid[GUID_DATA_START + 6], guid[GUID_DATA_START + 7]);
+        }
+    }
+
+    /**
+     * Put the window start, window space, and selective ack bits into an array of Ack data.
+     * 
+     * @param windowStart The lowest-numbered message we're missing
+     * @param windowSpace The number of messages we can receive right now
+     * @param sackBits    The selective ack bits, 0 to leave them out
+     * @return            A 4-byte array if sackBits is 0, an 8-byte array with the bits after that if not
+     */
+    private static byte[] buildAckData(long windowStart, int windowSpace, int sackBits) {
+
+        // Put the window start and space in the first 4 bytes
+        byte[] data = buildByteArray((int)windowStart & 0xffff, (windowSpace < 0 ? 0 : windowSpace));
+        if (sackBits == 0) return data;
+
+        // Copy them into an 8-byte array, and put the bits in the last 4 bytes
+        byte[] darray = new byte[8];
+        System.arraycopy(data, 0, darray, 0, 4);
+        darray[4] = (byte)(sackBits >>> 24);
+        darray[5] = (byte)(sackBits >>> 16);
+        darray[6] = (byte)(sackBits >>> 8);
+        darray[7] = (byte)sackBits;
+        return darray;
     }
 
     /**
@@ -141,6 +202,19 @@ public class AckMessage extends UDPConnectionMessage {
         return _windowSpace;
     }
 
+    /**
+     * Find out which messages after the window start the computer that made this Ack has already received.
+     * For instance, if a computer has received packets 1 2 4 6, it will send an Ack with a window start of 3, and bits 1 and 3 set for 4 and 6.
+     * The sender can resend just the messages whose bits aren't set.
+     * 
+     * @return Bit i set if the computer has message getWindowStart() + i, 0 if the Ack didn't say
+     */
+    public int getSackBits() {
+
+        // Return the value we parsed or saved
+        return _sackBits;
+    }
+
     /**
      * Express this Ack message as a String.
      * Composes text like "AckMessage DestID:1234 start:22 space:4 seq:" + getSequenceNumber();".
@@ -154,6 +228,7 @@ public class AckMessage extends UDPConnectionMessage {
             "AckMessage DestID:" + getConnectionID() +  // The connection ID the receiving computer assigned to the sending computer
             " start:"            + _windowStart      +  // The lowest numbered message the acknowledging computer is missing
             " space:"            + _windowSpace      +  // The number of messages the acknowledging computer has space to receive right now
+            " sack:"             + Integer.toHexString(_sackBits) + // The messages after the window start the acknowledging computer already has
             " seq:"              + getSequenceNumber(); // The sequence number this Ack packet is acknowledging we've received
 	}
 }
@@ -1,7 +1,5 @@
 package com.limegroup.gnutella.udpconnect;
 
-import java.util.HashMap;
-
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
@@ -13,6 +11,11 @@ import org.apache.commons.logging.LogFactory;
  *  received. For the writer, if the round trip time for acks of the older data 
  *  is greatly exceeded, the data can be resent to try and receive an ack.
  *
+ *  The records are kept in a ring indexed by sequence number modulo its
+ *  size, which is a power of two big enough for twice the window, so a 
+ *  lookup is an array index and a mask.  Each record knows its own sequence
+ *  number, so a stale record left in a slot is never mistaken for a new one.
+ *
  *  All methods in this class rely on external synchronization of access.
  * 
  *  TODO: DataMessage timing still requires work.
@@ -29,7 +32,8 @@ public class DataWindow
     private static final float RTT_GAIN            = 1.0f / 8.0f;
     private static final float DEVIATION_GAIN      = 1.0f / 4.0f;
 
-	private final HashMap window;
+	private final DataRecord[] window;
+	private final int     mask;
 	private long    windowStart;
 	private int     windowSize;
 	private long    averageRTT;
@@ -48,7 +52,12 @@ public class DataWindow
 
 		windowStart = start;
 		windowSize  = size;
-		window      = new HashMap(size + 2);
+		int capacity = 1;
+		// Readers accept data a few blocks past the window
+		while ( capacity < 2 * (size + 8) )
+			capacity <<= 1;
+		window      = new DataRecord[capacity];
+		mask        = capacity - 1;
 	}
 
     /*
@@ -59,7 +68,7 @@ public class DataWindow
 			LOG.debug("adding message seq "+msg.getSequenceNumber()+ " window start "+windowStart);
 
 		DataRecord d = new DataRecord(msg.getSequenceNumber(),msg);
-		window.put(d.pkey, d);
+		window[(int)d.seqNo & mask] = d;
 
         return d;
 	}
@@ -68,7 +77,19 @@ public class DataWindow
      *  Get the block based on the sequenceNumber.
      */
 	public DataRecord getBlock(long pnum) {
-		return (DataRecord) window.get(new Long(pnum));
+		DataRecord d = window[(int)pnum & mask];
+		if ( d != null && d.seqNo == pnum )
+			return d;
+		return null;
+	}
+
+    /** 
+     *  Remove the block with the sequenceNumber if it is present.
+     */
+	private void removeBlock(long pnum) {
+		int slot = (int)pnum & mask;
+		if ( window[slot] != null && window[slot].seqNo == pnum )
+			window[slot] = null;
 	}
 
     /** 
@@ -91,12 +112,10 @@ public class DataWindow
      */
     public int getUsedSpots() {
         DataRecord d;
-        Long     pkey;
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+3; i++) {
-            pkey = new Long(i);
             // Count the spots that are full and not written
-            if ( (d = (DataRecord) window.get(pkey)) != null &&
+            if ( (d = getBlock(i)) != null &&
                   (!d.written || i != windowStart))
                 count++;
         }
@@ -116,12 +135,10 @@ public class DataWindow
      */
 	public int calculateWaitTime(long time, int n) {
         DataRecord d;
-        Long     pkey;
         int        count = 0;
 		long       totalDelta = 0;
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            pkey = new Long(i);
-            d = (DataRecord) window.get(pkey);
+            d = getBlock(i);
             if ( d != null && d.acks == 0 ) {
                 count++;
 				totalDelta += time - d.sentTime;
@@ -141,13 +158,11 @@ public class DataWindow
      */
 	public int clearLowAckedBlocks() {
         DataRecord d;
-        Long     pkey;
         int        count = 0;
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            pkey = new Long(i);
-            d = (DataRecord) window.get(pkey);
+            d = getBlock(i);
             if ( d != null && d.acks > 0 ) {
-                window.remove(pkey);
+                removeBlock(i);
                 count++;
             } else {
                 break;
@@ -162,10 +177,8 @@ public class DataWindow
      *  i.e. sequenceNumber
      */
     public long getLowestUnsentBlock() {
-        Long pkey;
         for (long i = windowStart; i < windowStart+windowSize+1; i++) {
-            pkey = new Long(i);
-            if (window.get(pkey) == null)
+            if (getBlock(i) == null)
                 return(i);
         }
         return(-1);
@@ -179,11 +192,9 @@ public class DataWindow
      */
     public int countHigherAckBlocks() {
         DataRecord d;
-        Long     pkey;
         int        count = 0;
         for (long i = windowStart+1; i < windowStart+windowSize+1; i++) {
-            pkey = new Long(i);
-            d = (DataRecord) window.get(pkey);
+            d = getBlock(i);
             if ( d != null && d.acks > 0 ) {
                 count++;
             } 
@@ -241,11 +252,13 @@ public class DataWindow
 
     /** 
      *  Record that a block was acked and calculate the 
-     *  round trip time and averages from it.
+     *  round trip time and averages from it.  Return the round trip time
+     *  measured, or -1 if the ack was a duplicate or for a resent block.
      */
-	public void ackBlock(long pnum) {
+	public int ackBlock(long pnum) {
 		if (LOG.isDebugEnabled())
 			LOG.debug("entered ackBlock with # "+pnum);
+		int sample = -1;
 		DataRecord drec = getBlock(pnum);
 		if ( drec != null ) {
 			drec.acks++;
@@ -267,6 +280,7 @@ public class DataWindow
 			if ( drec.acks == 1 && drec.sends == 1 ) {
 				long  rtt    = (drec.ackTime-drec.sentTime);
                 float delta  = ((float) rtt) - srtt;
+				sample       = (int) rtt;
 				if ( rtt > 0 ) {
                     // Compute RTO
 					if ( srtt <= 0.1 )
@@ -303,7 +317,7 @@ public class DataWindow
 				}
 			}
 		}
-
+		return sample;
 	}
 
     /** 
@@ -328,6 +342,70 @@ public class DataWindow
 		}
 	}
 
+    /** 
+     *  Record acks for the blocks a receiver reported in the selective ack
+     *  bits of an ack.  Bit i is set if the receiver has block wStart+i.
+     *  Like pseudo acks, these don't count as round trip measurements.
+     *  Return the number of blocks newly acked.
+     */
+	public int selectiveAck(long wStart, int bits) {
+		int count = 0;
+		DataRecord drec;
+		for (int i = 0; i < AckMessage.SACK_BLOCKS && bits != 0; i++, bits >>>= 1) {
+			if ( (bits & 1) == 0 )
+				continue;
+			drec = getBlock(wStart + i);
+			if ( drec != null && drec.acks == 0 ) {
+				drec.acks++;
+				drec.ackTime = drec.sentTime + (int)rto;
+				count++;
+			}
+		}
+		return count;
+	}
+
+    /** 
+     *  Get the selective ack bits for the blocks a reader has received,
+     *  where bit i is set if block windowStart+i is here.
+     */
+	public int getReceivedBits() {
+		int bits = 0;
+		for (int i = 0; i < AckMessage.SACK_BLOCKS; i++) {
+			if ( getBlock(windowStart + i) != null )
+				bits |= (1 << i);
+		}
+		return bits;
+	}
+
+    /** 
+     *  Get the lowest unacked block that has at least minHigherAcks acked 
+     *  blocks above it and was last sent before time, so it was most
+     *  likely lost.  Return null if there isn't one.
+     */
+	public DataRecord getMissingBlock(long time, int minHigherAcks) {
+		int        higherAcks = 0;
+		DataRecord d;
+		for (long i = windowStart; i < windowStart+windowSize+1; i++) {
+			d = getBlock(i);
+			if ( d != null && d.acks > 0 )
+				higherAcks++;
+		}
+		for (long i = windowStart; i < windowStart+windowSize+1; i++) {
+			d = getBlock(i);
+			if ( d == null )
+				continue;
+			if ( d.acks > 0 ) {
+				higherAcks--;
+			} else if ( higherAcks >= minHigherAcks ) {
+				if ( d.sentTime < time )
+					return d;
+			} else {
+				break;
+			}
+		}
+		return null;
+	}
+
     /** 
      *  Get the oldest unacked block.
      */
@@ -385,7 +463,6 @@ public class DataWindow
      */
 	public int clearEarlyWrittenBlocks() {
         DataRecord d;
-        Long     pkey;
         int        count = 0;
 
 		long maxBlock      = windowStart+windowSize;
@@ -407,10 +484,9 @@ public class DataWindow
         // potential space.   
         //for (int i = windowStart; i < lastBlock - windowSize + 1; i++) {
         for (long i = windowStart; i < windowStart + windowSize + 1; i++) {
-            pkey = new Long(i);
-            d = (DataRecord) window.get(pkey);
+            d = getBlock(i);
             if ( d != null && d.written) {
-                window.remove(pkey);
+                removeBlock(i);
                 count++;
             } else {
                 break;
@@ -490,7 +566,7 @@ public class DataWindow
  *  round trip time and a calculation for timeout resends.
  */
 class DataRecord {
-	final Long 				pkey;     // sequence number as a Long
+	final long 				seqNo;    // sequence number
 	final UDPConnectionMessage              msg;      // the actual data message
         int                                     sends;    // count of the sends
 	boolean 		                written;  // whether the data was written
@@ -499,7 +575,7 @@ class DataRecord {
         long                                    ackTime;  // when it was acked
     
     DataRecord(long pnum, UDPConnectionMessage msg) {
-    	pkey = new Long(pnum);
+    	seqNo = pnum;
     	this.msg=msg;
     }
 }
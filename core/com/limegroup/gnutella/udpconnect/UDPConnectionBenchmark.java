@@ -0,0 +1,355 @@
+package com.limegroup.gnutella.udpconnect;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+import java.util.Random;
+
+/**
+ *  Measures the throughput of the reliable UDP data path over a simulated
+ *  link with a bandwidth limit, latency and loss.  Run it with
+ *
+ *  <pre>
+ *  java com.limegroup.gnutella.udpconnect.UDPConnectionBenchmark
+ *      KBPerSecond millis [latencyMillis [lossFraction]]
+ *  </pre>
+ *
+ *  Without a latency and loss it runs latencies of 1, 10 and 40 ms with
+ *  losses of 0, 1 and 5 percent, and prints one line of KB/s per run.
+ *
+ *  The sender and receiver each have a real DataWindow, and the sender a
+ *  real WriteRegulator.  The rest of UDPConnectionProcessor is modelled
+ *  here: writeData(), the ack and keepalive handling, fast resends and the
+ *  ack timeout.  Nothing goes through UDPService, so only the windowing and
+ *  congestion control are measured.  Datagrams wait behind each other for
+ *  the bandwidth limit, then for the latency, and a fraction of them in both
+ *  directions are dropped.  The clock is the real one, so a run takes as
+ *  long as it says.
+ */
+public class UDPConnectionBenchmark {
+
+    /** The size of the sender's and receiver's windows */
+    private static final int  WINDOW_SIZE         = 20;
+
+    /** The bytes of data in each message */
+    private static final int  MESSAGE_SIZE        = DataMessage.MAX_DATA;
+
+    /** Stand-ins for UDPConnectionProcessor's constants */
+    private static final int  SMALL_SEND_WINDOW   = 2;
+    private static final int  FAST_RESEND_ACKS    = 3;
+    private static final long NOTHING_TO_DO_DELAY = 1000;
+    private static final int  DEFAULT_RTO         = 400;
+    private static final int  MAX_WRITE_WITHOUT_SLEEP = 4;
+
+    /** A datagram on its way, sent over the link at a time */
+    private static final class Packet {
+        final long    at;
+        final boolean data;
+        long seqNo;       // -1 for a keepalive
+        long windowStart;
+        int  windowSpace;
+        int  sackBits;
+
+        Packet(long at, boolean data) {
+            this.at   = at;
+            this.data = data;
+        }
+    }
+
+    private final int    _latency;
+    private final double _loss;
+    private final double _bytesPerMilli;
+    private final Random _random = new Random(42);
+
+    /** Data on its way to the receiver, and acks on their way back */
+    private final LinkedList /* of Packet */ _toReceiver = new LinkedList();
+    private final LinkedList /* of Packet */ _toSender   = new LinkedList();
+
+    /** When the bandwidth limited link is free for the next datagram */
+    private double _linkFree;
+
+    private final DataWindow     _sendWindow    =
+      new DataWindow(WINDOW_SIZE, 1);
+    private final DataWindow     _receiveWindow =
+      new DataWindow(WINDOW_SIZE, 1);
+    private final WriteRegulator _writeRegulator =
+      new WriteRegulator(_sendWindow);
+
+    private long    _sequenceNumber      = 1;
+    private int     _receiverWindowSpace = WINDOW_SIZE;
+    private int     _chunkLimit          = WINDOW_SIZE;
+    private boolean _waitingForDataSpace;
+    private boolean _skipADataWrite;
+    private long    _nextWrite;
+    private long    _ackTimeout          = Long.MAX_VALUE;
+    private long    _lastSendTime;
+    private long    _lastDataSendTime;
+    private int     _ackResendCount;
+
+    private long    _delivered;
+    private long    _resends;
+
+    UDPConnectionBenchmark(int latency, double loss, double kbPerSecond) {
+        _latency       = latency;
+        _loss          = loss;
+        _bytesPerMilli = kbPerSecond * 1024 / 1000;
+    }
+
+    public static void main(String[] args) {
+        if ( args.length < 2 ) {
+            System.err.println("usage: UDPConnectionBenchmark "+
+              "KBPerSecond millis [latencyMillis [lossFraction]]");
+            return;
+        }
+        double rate   = Double.parseDouble(args[0]);
+        long   millis = Long.parseLong(args[1]);
+        int[]    latencies = args.length > 2 ?
+          new int[] { Integer.parseInt(args[2]) } : new int[] { 1, 10, 40 };
+        double[] losses    = args.length > 3 ?
+          new double[] { Double.parseDouble(args[3]) } :
+          new double[] { 0, 0.01, 0.05 };
+
+        for (int i = 0; i < latencies.length; i++) {
+            for (int j = 0; j < losses.length; j++) {
+                UDPConnectionBenchmark bench =
+                  new UDPConnectionBenchmark(latencies[i], losses[j], rate);
+                double kbs = bench.run(millis);
+                System.out.println("latency="+latencies[i]+"ms"+
+                  " loss="+(losses[j] * 100)+"%"+
+                  " -> "+((long)(kbs * 10)) / 10.0+" KB/s"+
+                  " resends="+bench._resends);
+            }
+        }
+    }
+
+    /**
+     *  Sends data as fast as the windows allow for the given time, and
+     *  returns how many KB a second the receiver got in order.
+     */
+    double run(long millis) {
+        long start = System.currentTimeMillis();
+        long end   = start + millis;
+        _nextWrite = start;
+        long now;
+        while ( (now = System.currentTimeMillis()) < end ) {
+            while ( isDue(_toReceiver, now) )
+                receive((Packet)_toReceiver.removeFirst(), now);
+            while ( isDue(_toSender, now) )
+                handleAck((Packet)_toSender.removeFirst(), now);
+            if ( now >= _ackTimeout )
+                validateAcks(now);
+            if ( now >= _nextWrite )
+                writeData(now);
+            Thread.yield();
+        }
+        return _delivered / 1024.0 / (millis / 1000.0);
+    }
+
+    private static boolean isDue(LinkedList queue, long now) {
+        return !queue.isEmpty() && ((Packet)queue.getFirst()).at <= now;
+    }
+
+    /** Adds a packet to a queue, keeping it in order of arrival */
+    private static void enqueue(LinkedList queue, Packet p) {
+        ListIterator iter = queue.listIterator(queue.size());
+        while ( iter.hasPrevious() ) {
+            if ( ((Packet)iter.previous()).at <= p.at ) {
+                iter.next();
+                break;
+            }
+        }
+        iter.add(p);
+    }
+
+    /** Sends a data message over the link, unless it's lost */
+    private void sendData(long seqNo, long now) {
+        _lastSendTime = now;
+        if ( _random.nextDouble() < _loss )
+            return;
+        double start = Math.max(now, _linkFree);
+        _linkFree = start + MESSAGE_SIZE / _bytesPerMilli;
+        Packet p = new Packet((long)Math.ceil(_linkFree) + _latency, true);
+        p.seqNo = seqNo;
+        enqueue(_toReceiver, p);
+    }
+
+    /** Sends an ack, or a keepalive if seqNo is -1, unless it's lost */
+    private void sendAck(long seqNo, long now) {
+        if ( _random.nextDouble() < _loss )
+            return;
+        Packet p = new Packet(now + _latency, false);
+        p.seqNo       = seqNo;
+        p.windowStart = _receiveWindow.getWindowStart();
+        p.windowSpace = _receiveWindow.getWindowSpace();
+        if ( seqNo != -1 )
+            p.sackBits = _receiveWindow.getReceivedBits();
+        enqueue(_toSender, p);
+    }
+
+    /** The receiver gets a data message, acks it and reads what it can */
+    private void receive(Packet p, long now) {
+        long baseSeqNo = _receiveWindow.getWindowStart();
+        if ( p.seqNo > baseSeqNo + WINDOW_SIZE + 5 )
+            return;
+        if ( p.seqNo >= baseSeqNo ) {
+            DataRecord drec = _receiveWindow.addData(newMessage(p.seqNo));
+            drec.ackTime = now;
+            drec.acks++;
+        }
+        sendAck(p.seqNo, now);
+
+        DataRecord drec;
+        while ( (drec = _receiveWindow.getWritableBlock()) != null ) {
+            drec.written = true;
+            _delivered  += MESSAGE_SIZE;
+            int priorSpace = _receiveWindow.getWindowSpace();
+            _receiveWindow.clearEarlyWrittenBlocks();
+            if ( priorSpace == 0 ||
+                 (priorSpace <= SMALL_SEND_WINDOW &&
+                  _receiveWindow.getWindowSpace() > SMALL_SEND_WINDOW) )
+                sendAck(-1, now);
+        }
+    }
+
+    /** The sender gets an ack or keepalive */
+    private void handleAck(Packet p, long now) {
+        int priorR = _receiverWindowSpace;
+        _receiverWindowSpace = p.windowSpace;
+        if ( _sequenceNumber > p.windowStart )
+            _receiverWindowSpace =
+              WINDOW_SIZE + (int)(p.windowStart - _sequenceNumber);
+
+        if ( (priorR == 0 || _waitingForDataSpace) &&
+             _receiverWindowSpace > 0 ) {
+            _waitingForDataSpace = false;
+            _nextWrite = now;
+        }
+
+        if ( p.seqNo == -1 ) {
+            _sendWindow.pseudoAckToReceiverWindow(p.windowStart);
+            return;
+        }
+
+        int rtt = _sendWindow.ackBlock(p.seqNo);
+        _writeRegulator.addMessageSuccess();
+        _writeRegulator.addRoundTripTime(rtt, now);
+        _sendWindow.pseudoAckToReceiverWindow(p.windowStart);
+        _sendWindow.selectiveAck(p.windowStart, p.sackBits);
+        resendMissingData(now);
+        _sendWindow.clearLowAckedBlocks();
+        _chunkLimit = _sendWindow.getWindowSpace();
+    }
+
+    /** As UDPConnectionProcessor.resendMissingData() */
+    private void resendMissingData(long now) {
+        long sentBefore = now - (long)_sendWindow.getSRTT();
+        DataRecord drec;
+        while ( (drec = _sendWindow.getMissingBlock(sentBefore,
+                  FAST_RESEND_ACKS)) != null ) {
+            sendData(drec.seqNo, now);
+            _resends++;
+            _writeRegulator.addMessageFailure();
+            _writeRegulator.hitResendTimeout();
+            drec.sentTime = _lastSendTime;
+            drec.sends++;
+        }
+    }
+
+    /** As UDPConnectionProcessor.writeData() */
+    private void writeData(long now) {
+        int noSleepCount = 0;
+        while (true) {
+            _waitingForDataSpace = false;
+            if ( _skipADataWrite ) {
+                _skipADataWrite = false;
+            } else {
+                boolean probe = _receiverWindowSpace == 0 &&
+                  _chunkLimit > 0 && _sendWindow.numNotAcked() == 0 &&
+                  now - _lastDataSendTime > Math.max(_sendWindow.getRTO(), 1);
+                if ( _sendWindow.numNotAcked() >=
+                       _writeRegulator.getCongestionWindow() && !probe ) {
+                    _nextWrite = now + NOTHING_TO_DO_DELAY;
+                    _waitingForDataSpace = true;
+                    return;
+                }
+                if ( Math.min(_chunkLimit, _receiverWindowSpace) > 0 ||
+                     probe ) {
+                    _lastDataSendTime = now;
+                    long seqNo = _sequenceNumber++;
+                    sendData(seqNo, now);
+                    DataRecord drec = _sendWindow.addData(newMessage(seqNo));
+                    drec.sentTime = _lastSendTime;
+                    drec.sends++;
+                    _chunkLimit = _sendWindow.getWindowSpace();
+                    if ( _ackTimeout == Long.MAX_VALUE )
+                        scheduleAckTimeout(now);
+                    if ( _receiverWindowSpace > 0 )
+                        _receiverWindowSpace--;
+                } else {
+                    _nextWrite = now + NOTHING_TO_DO_DELAY;
+                    _waitingForDataSpace = true;
+                }
+            }
+
+            long waitTime = _writeRegulator.getSleepTime(now,
+              _receiverWindowSpace);
+            if ( _receiverWindowSpace <= 1 )
+                _writeRegulator.hitZeroWindow();
+            if ( waitTime == 0 && _sequenceNumber < 10 )
+                waitTime = DEFAULT_RTO;
+            if ( noSleepCount >= MAX_WRITE_WITHOUT_SLEEP )
+                waitTime += 1;
+            if ( waitTime > 0 ) {
+                _nextWrite = now + waitTime;
+                return;
+            }
+            noSleepCount++;
+        }
+    }
+
+    /** As UDPConnectionProcessor.scheduleAckTimeoutEvent(..) */
+    private void scheduleAckTimeout(long now) {
+        DataRecord drec = _sendWindow.getOldestUnackedBlock();
+        if ( drec == null ) {
+            _ackTimeout = Long.MAX_VALUE;
+            return;
+        }
+        int rto = _sendWindow.getRTO();
+        if ( rto == 0 )
+            rto = DEFAULT_RTO;
+        long time = drec.sentTime + rto;
+        if ( _ackResendCount > 0 ) {
+            time = _lastSendTime + rto;
+            _ackResendCount = 0;
+        }
+        _ackTimeout = Math.max(time, now + 5);
+    }
+
+    /** As UDPConnectionProcessor.validateAckedData() */
+    private void validateAcks(long now) {
+        if ( _sendWindow.acksAppearToBeMissing(now, 1) ) {
+            int rto = _sendWindow.getRTO();
+            int numResent = 0;
+            DataRecord drec = _sendWindow.getOldestUnackedBlock();
+            int expRTO = rto * (int)Math.pow(2, drec.sends - 1);
+            if ( _sendWindow.countHigherAckBlocks() > 0 )
+                expRTO = (int)(expRTO * 0.75);
+            if ( drec.acks == 0 && now - drec.sentTime > expRTO ) {
+                sendData(drec.seqNo, now);
+                _resends++;
+                _writeRegulator.addMessageFailure();
+                _writeRegulator.hitResendTimeout();
+                drec.sentTime = _lastSendTime;
+                drec.sends++;
+                numResent++;
+            }
+            _ackResendCount = numResent;
+            if ( numResent > 0 )
+                _skipADataWrite = true;
+        }
+        scheduleAckTimeout(now);
+    }
+
+    private static UDPConnectionMessage newMessage(long seqNo) {
+        return new DataMessage((byte)0, seqNo, new byte[0], 0);
+    }
+}
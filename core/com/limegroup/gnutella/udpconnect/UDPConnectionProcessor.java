@@ -100,6 +100,9 @@ public class UDPConnectionProcessor {
     /** The maximum number of times to try and send a data message */
     private static final int MAX_SEND_TRIES = 8;
 
+    /** Resend a data message without waiting for its ack timeout once the receiver has this many messages after it */
+    private static final int FAST_RESEND_ACKS = 3;
+
     //done
 
     /*
@@ -441,7 +444,7 @@ public class UDPConnectionProcessor {
         /*
          * _multiplexor.register(this) does 3 things:
          * 
-         * Assigns this new UDPConnectinProcessor object its connection ID number 1 through 255, which no other UDP connection we have right now is using.
+         * Assigns this new UDPConnectinProcessor object its connection ID number 1 through 255, which no other UDP connection we have to the same IP address and port number is using.
          * 
          * Lists this new UDPConnectionProcessor in the UDPMultiplexor's list of our UDP connections.
          * 
@@ -452,7 +455,7 @@ public class UDPConnectionProcessor {
 
         // Have the UDPMultiplexor assign our connection ID, and list this UDPConnectionProcessor under it in the list it keeps
 		_myConnectionID = _multiplexor.register(this);
-		if (_myConnectionID == UDPMultiplexor.UNASSIGNED_SLOT) throw new IOException("no room for connection"); // We already have 255 UDP connections
+		if (_myConnectionID == UDPMultiplexor.UNASSIGNED_SLOT) throw new IOException("no room for connection"); // We already have 255 UDP connections to this IP address and port number
 
         /*
          * See if you can establish a pseudo connection
@@ -932,8 +935,9 @@ public class UDPConnectionProcessor {
             ack = new AckMessage(
                 _theirConnectionID,               // Begin it with the ID the remote computer chose for this connection
                 msg.getSequenceNumber(),          // The sequence number of the message we're acknowledging we received
-                _receiveWindow.getWindowStart(),  // The message we need next
-                _receiveWindow.getWindowSpace()); // The number of messages we have room to receive right now
+                _receiveWindow.getWindowStart(),   // The message we need next
+                _receiveWindow.getWindowSpace(),   // The number of messages we have room to receive right now
+                _receiveWindow.getReceivedBits()); // Which messages after that we already have, so the sender only resends the rest
           	if (LOG.isDebugEnabled()) LOG.debug("total data packets " + _totalDataPackets + " total acks skipped " + _skippedAcksTotal + " skipped this session " + _skippedAcks);
 
             // We're about to send an Ack, so restart our count of the number of Ack messages we've skipped sending this computer in a row
@@ -1147,6 +1151,52 @@ public class UDPConnectionProcessor {
         scheduleAckIfNeeded();
     }
 
+    /**
+     *  Return true if the receiver's window has been full for a round trip
+     *  with everything we sent acked.  The keepalive saying it opened may
+     *  have been lost, so one message can be sent to get a fresh ack.
+     */
+    private boolean isWindowProbeDue() {
+        long rto = (long)_sendWindow.getRTO();
+        if (rto == 0) 
+            rto = DEFAULT_RTO_WAIT_TIME;
+        return _receiverWindowSpace == 0 && _chunkLimit > 0 &&
+          _sendWindow.numNotAcked() == 0 &&
+          System.currentTimeMillis() - _lastDataSendTime > rto;
+    }
+
+    /**
+     *  Resend the data the receiver's selective acks show is missing without
+     *  waiting for the ack timeout.  A message is resent once the receiver has
+     *  FAST_RESEND_ACKS messages after it, and at most once a round trip.
+     */
+    private synchronized void resendMissingData() {
+        long currTime   = System.currentTimeMillis();
+        long sentBefore = currTime - (long)_sendWindow.getSRTT();
+
+        DataRecord drec;
+        while ( (drec = _sendWindow.getMissingBlock(sentBefore, 
+                  FAST_RESEND_ACKS)) != null ) {
+            // If too many sends then abort connection
+            if ( drec.sends > MAX_SEND_TRIES+1 ) {
+                closeAndCleanup(FinMessage.REASON_TOO_MANY_RESENDS);
+                return;
+            }
+
+            if(LOG.isDebugEnabled())  
+                LOG.debug("Fast resending message:"+
+                  drec.msg.getSequenceNumber());
+            safeSend(drec.msg);
+
+            // A message was lost, so slow down
+            _writeRegulator.addMessageFailure();
+            _writeRegulator.hitResendTimeout();
+
+            drec.sentTime = _lastSendTime;
+            drec.sends++;
+        }
+    }
+
     /**
      *  Close and cleanup by unregistering this connection and sending a Fin.
      */
@@ -1333,12 +1383,17 @@ public class UDPConnectionProcessor {
                     // A fin message has been acked on shutdown
                     _waitingForFinAck = false;
                 } else if (_connectionState == CONNECT_STATE) {
-                    // Record the ack
-                    _sendWindow.ackBlock(seqNo);
+                    // Record the ack, and let its round trip time adjust the congestion window
+                    int rtt = _sendWindow.ackBlock(seqNo);
                     _writeRegulator.addMessageSuccess();
+                    _writeRegulator.addRoundTripTime(rtt, System.currentTimeMillis());
 
                     // Ensure that all messages up to sent windowStart are acked
                     _sendWindow.pseudoAckToReceiverWindow(amsg.getWindowStart());
+
+                    // Ack the messages after windowStart the receiver says it has, and resend the ones it's missing
+                    _sendWindow.selectiveAck(amsg.getWindowStart(), amsg.getSackBits());
+                    resendMissingData();
                     
                     // Clear out the acked blocks at window start
                     _sendWindow.clearLowAckedBlocks();	
@@ -1525,9 +1580,25 @@ public class UDPConnectionProcessor {
                 _skipADataWrite = false;
             } else {  // Otherwise, it is safe to send some data
             
+                // Don't put more messages in flight than the congestion 
+                // window allows.  An ack will start writing again.
+                if ( _sendWindow.numNotAcked() >= 
+                       _writeRegulator.getCongestionWindow() &&
+                     !isWindowProbeDue() ) {
+                    scheduleWriteDataEvent(
+                      System.currentTimeMillis() + NOTHING_TO_DO_DELAY);
+                    _waitingForDataSpace = true;
+
+            		if(LOG.isDebugEnabled())  
+                		LOG.debug("Congestion window full cwnd:"+
+                          _writeRegulator.getCongestionWindow()+
+                          " inFlight:"+_sendWindow.numNotAcked());
+                    return;
+                }
+
                 // If there is room to send something then send data 
                 // if available
-                if ( getChunkLimit() > 0 ) {
+                if ( getChunkLimit() > 0 || isWindowProbeDue() ) {
                     // Get data and send it
                     Chunk chunk = _inputFromOutputStream.getChunk();
                     if ( chunk != null )
@@ -1,26 +1,30 @@
-
 // Commented for the Learning branch
 
 package com.limegroup.gnutella.udpconnect;
 
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
 /**
- * The program's single UDPMultiplexor object keeps a list of our up to 255 UDP connections, represented by UDPConnectionProcessor objects.
- * 
- * The UDPMultiplexor has an array named _connections.
- * Indices 1 through 255 in the array lead to UDPConnectionProcessor objects.
- * To find the UDPConnectionProcessor object register() assigned the connection ID 5, look in _connections[5].
- * 
+ * The program's single UDPMultiplexor object keeps the table of our UDP connections, represented by UDPConnectionProcessor objects.
+ *
+ * The table is keyed by the remote computer's IP address and port number, and the connection ID we assigned the connection.
+ * To find the UDPConnectionProcessor object register() assigned the connection ID 5 for a connection to 1.2.3.4:6346, look up 1.2.3.4, 6346, and 5.
+ *
  * When the program makes a new UDPConnectionProcessor object to initiate a new UDP connection to a remote computer, it calls register().
  * register() assigns it a connection ID number, 1 through 255.
- * 
+ * The connection ID is still one byte in the messages, so the wire format doesn't change.
+ * It only has to be unique among our connections to the same IP address and port number, though.
+ * So, we can have 255 connections to each remote computer, and as many remote computers as we like.
+ *
  * When the program gets a UDP connection message, the UDPMultiplexor tells it which UDPConnectionProcessor object it belongs to.
  * routeMessage() looks at the connection ID in the message's first byte, and the IP address and port number it came from.
+ * It finds the connection with one lookup in a hash table, instead of looking through all of them.
  */
 public class UDPMultiplexor {
 
@@ -34,32 +38,26 @@ public class UDPMultiplexor {
 	public static final byte UNASSIGNED_SLOT = 0;
 
 	/**
-     * The list of our current UDP connections.
-     * 
-     * The _connections array has 256 references, indexed from 0 through 255.
-     * We don't use the 0 spot, and only use 1 through 255.
-     * The array index matches the connection ID number.
-     * _connections[5] leads to the UDP connection we assigned the ID 5.
-     * 
-     * _connections is an array of references to Java WeakReference objects.
-     * Each WeakReference object points to a UDPConnectionProcessor object that represents a UDP connection to a remote coputer.
-     * Call weakReference.get() to get UDPConnectionProcessor object from the WeakReference object.
-     * 
+     * The table of our current UDP connections.
+     *
+     * The SessionTable object is never changed after we make it.
+     * register() and unregister() make a new one with the change, and point _sessions at it.
+     * So, routeMessage() and isConnectedTo() can read it without waiting for a lock.
+     *
+     * The table holds Java WeakReference objects that point to UDPConnectionProcessor objects.
      * A weak reference to an object won't prevent the garbage collector from deleting it.
-     * Suppose that the garbage collector determines that a UDPConnectionProcessor object is only reachable through its WeakReference object in our _connections array.
-     * It will null the reference in the WeakReference object, and delete the UDPConnectionProcessor.
-     * When we next call weakReferece.get(), it will return null.
+     * If the garbage collector deletes a UDPConnectionProcessor nobody unregistered, its WeakReference will return null.
+     * We treat its place in the table as empty, and leave it out the next time we make a new table.
      */
-	private volatile WeakReference[] _connections;
+	private volatile SessionTable _sessions;
 
 	/**
      * The last connection ID number the register() method assigned a new connection.
-     * 
-     * The register() method loops from _lastConnectionID + 1 onwards, returning the first unused ID it finds.
+     *
+     * The register() method loops from _lastConnectionID + 1 onwards, returning the first ID the remote computer isn't using with us.
      * _lastConnectionID is initialized to 0, making 1 the first connection ID register() will assign.
      * It assigns the connection IDs 1, 2, 3, 4, all the way up to 255, and then loops back to 1 again.
-     * If it finds a UDPConnectionProcessor in _connections at a given ID, it tries the next one.
-     * 
+     *
      * Keep track of the last assigned connection id so that we can use a
 	 * circular assignment algorithm.  This should cut down on message
 	 * collisions after the connection is shut down.
@@ -68,7 +66,7 @@ public class UDPMultiplexor {
 
     /**
      * Access the program's single UDPMultiplexor object that keeps the list of our UDP connections.
-     * 
+     *
      * @return The UDPMultiplexor object
      */
     public static UDPMultiplexor instance() {
@@ -82,8 +80,8 @@ public class UDPMultiplexor {
      */
     private UDPMultiplexor() {
 
-        // Make _connections, an array of 256 weak references
-		_connections = new WeakReference[256];
+        // Start with an empty table
+		_sessions = new SessionTable(0);
 
         // Start _lastConnectionID at 0 so the first connection ID we'll assign will be 1
 		_lastConnectionID = 0;
@@ -91,155 +89,118 @@ public class UDPMultiplexor {
 
     /**
      * Determine if the program has a UDP connection to the given IP address.
-     * 
+     *
      * @param host An IP address as a Java InetAddress object
      * @return     True if we're connected to that remote coputer with a UDP connection, false if we're not
      */
     public boolean isConnectedTo(InetAddress host) {
 
-        // Point array at _connections, the UDPMultiplexor's array of 256 weak references to UDPConnectionProcessor objects that represent our current UDP connections
-        WeakReference[] array = _connections;
-
-        // If we have never assigned a connection ID, we're not connected to anything yet, return no
-        if (_lastConnectionID == 0) return false;
-
-        // Loop through all the UDPConnectionProcessor objects weakly referenced by the 256 places in the array
-        for (int i = 0; i < array.length; i++) {
-            WeakReference conRef = array[i];                                       // Look up the WeakReference object at i in the _connections array
-            if (conRef != null) {                                                  // If there is a WeakReference there, not null
-                UDPConnectionProcessor con = (UDPConnectionProcessor)conRef.get(); // Get the object the WeakReference points to, if it still exists
-
-                // If i leads to a UDPConnectionProcessor, and the remote computer it connects us to have the IP address we're looking for
-                if (con != null && host.equals(con.getInetAddress())) {
+        // The table keeps a count of connections for each IP address
+        return _sessions.ADDRESSES.containsKey(host);
+    }
 
-                    // We do have a connection to the given IP address
-                    return true;
-                }
-            }
-        }
+    /**
+     * Get the number of UDP connections we have.
+     *
+     * @return The number of UDPConnectionProcessor objects in the table, including any the garbage collector deleted but nobody unregistered
+     */
+    public int getConnectionCount() {
 
-        // Not found
-        return false;
+        // Return the size of the current table
+        return _sessions.size;
     }
 
     /**
-     * Add a new UDPConnectionProcessor object to the list of them the UDPMultiplexor keeps, and assign it an ID 1 through 255.
-     * 
-     * This registers it for receiving incoming events. (do)
-     * 
+     * Add a new UDPConnectionProcessor object to the table the UDPMultiplexor keeps, and assign it an ID 1 through 255.
+     *
+     * This registers it for receiving incoming events.
+     *
      * register() returns 1, 2, 3, 4, ... 253, 254, 255, and then wraps around to 1, 2, 3.
-     * It skips over numbers still in use.
-     * If the program has 255 UDP connections taking up all the IDs 1 through 255, doesn't list it and returns null.
-     * 
+     * It skips over numbers still in use by our connections to the same IP address and port number.
+     * If we already have 255 UDP connections to that IP address and port number, doesn't list it and returns 0.
+     *
      * The UDPMultiplexor won't create a normal reference to the given UDPConnectionProcessor object.
-     * If you loose all your references to it, the garbage collector will delete it, and it will safely remove itself from our list of connections.
-     * 
-     * @param con A new UDPConnectionProcessor object.
+     * If you loose all your references to it, the garbage collector will delete it, and it will safely remove itself from our table.
+     *
+     * @param con A new UDPConnectionProcessor object, which knows the IP address and port number it's connecting to
      * @return    The connection ID we chose for it.
-     *            If we already have 255 UDP connections taking up the IDs 1 through 255, returns null.
+     *            If we already have 255 UDP connections to the same IP address and port number, returns 0, UNASSIGNED_SLOT.
      */
 	public synchronized byte register(UDPConnectionProcessor con) {
 
-        // The connection ID number from 1 through 255 that we'll choose for this new UDP connection, and return
-		int connID;
-
-        // Make a copy of our _connections array
-		WeakReference[] copy = new WeakReference[_connections.length];           // Make a new array that can reference 256 WeakReference objects
-		for (int i = 0; i < _connections.length; i++) copy[i] = _connections[i]; // Copy all the references from _connections to copy
+        // Get the remote computer's address
+        InetAddress ip = con.getInetAddress();
+        int port = con.getPort();
+        SessionTable sessions = _sessions;
 
-        // Loop 256 times, with i going from 1 through 256
-		for (int i = 1; i <= copy.length; i++) {
-
-            /*
-             * The first time this loop runs, connID will be 1 more than the connection ID register() assigned the last time.
-             * The second time this loop runs, connID will be 1 more than that.
-             * connID can't reach 256, it loops around like 253, 254, 255, 0, 1, 2, 3.
-             * If we get 0, we loop again, making it wrap around like 253, 254, 255, 1, 2, 3.
-             */
+        // Loop 255 times, trying the connection IDs after the last one we assigned
+		for (int i = 1; i <= 256; i++) {
 
             // Try the next connection ID number, only choosing from values from 1 through 255
-			connID = (_lastConnectionID + i) % 256;
+			int connID = (_lastConnectionID + i) % 256;
 			if (connID == 0) continue; // Never assign 0, loop again to try connID of 1 instead
 
-			// If the slot is open, take it
-			if (copy[connID] == null ||       // This spot in our array of 256 references to WeakReference objects is null instead of pointing to one, or
-                copy[connID].get() == null) { // There is a WeakReference object here, but the UDPConnectionProcessor it pointed to is gone
+			// If none of our connections to this IP address and port number has this ID, take it
+			if (sessions.get(ip, port, connID) == null) {
 
                 // Save the connection ID we're choosing as the last one we've produced
 				_lastConnectionID = connID; // The next time register() runs, it will try looking from this point forward
 
-                // Make a new WeakReference object that points to the given UDPConnectionProcessor, and store it in our array
-				copy[connID] = new WeakReference(con); // Change the copy of the array we made, then
-				_connections = copy;                   // Point _connections at the copy, this is faster than editing the array directly
+                // Make a new table with the connection added, and start using it
+				_sessions = sessions.copy(con, connID, null);
 
                 // Return the connection ID we assigned
 				return (byte)connID;
 			}
 		}
 
-        // All the slots 1 through 255 are full
+        // All the IDs 1 through 255 are taken for this IP address and port number
 		return UNASSIGNED_SLOT; // Return 0, we can't start a new connection
 	}
 
     /**
-     * Remove a given UDPConnectionProcessor object from the list of them the UDPMultiplexor keeps.
+     * Remove a given UDPConnectionProcessor object from the table the UDPMultiplexor keeps.
      * Unregisters the UDPConnectionProcessor for receiving incoming messages.
-	 * Frees up the slot.
-     * 
-     * @param con A UDPConnectionProcessor object in our array
+	 * Frees up its connection ID.
+     *
+     * @param con A UDPConnectionProcessor object in our table
      */
 	public synchronized void unregister(UDPConnectionProcessor con) {
 
         // Get the connection ID we assigned the connection we're going to unregister
 		int connID = (int)con.getConnectionID() & 0xff; // Make sure it fits into 1 byte
 
-        // Make a copy of the _connections array
-		WeakReference[] copy = new WeakReference[_connections.length];           // Make a new array called copy that can hold 255 WeakReference objects
-		for (int i = 0; i < _connections.length; i++) copy[i] = _connections[i]; // Copy all the references to WeakReference objects from _connections to copy
-
-        // Look up the connection ID in the array
-		if (copy[connID] != null &&      // There is a WeakReference object here, and
-            copy[connID].get() == con) { // It weakly references a UDPConnectionProcessor object
-
-            // Clear that spot in the array
-		    copy[connID].clear(); // Have the WeakReference disconnect from the UDPConnectionProcessor object
-		    copy[connID] = null;  // Remove the WeakReference object from the array
-		}
-
-        // Point _connections at the array we copied and edited
-        _connections = copy;
+        // Make a new table without it, if it's in the table
+        SessionTable sessions = _sessions;
+        if (sessions.get(con.getInetAddress(), con.getPort(), connID) == con) _sessions = sessions.copy(null, 0, con);
 	}
 
     /**
      * Give a UDP connection message we've just received to the UDPConnectionProcessor that represents the UDP connection the message is a part of.
-     * 
+     *
      * The message we just received is part of a UDP connection, represented by a UDPConnectionProcessor object.
      * It's routeMessage()'s job to give the message to the right connection.
-     * 
+     *
      * We use 2 pieces of information about the UDP connection message we just received to find the right UDPConnectionProcessor:
      * The connection ID, like 0, or 1 through 255, written into its first byte.
      * The IP address and port number we got the message from.
-     * 
-     * The UDPMultiplexor keeps an array called _connections of UDPConnectionProcessor objects, indexed 1 through 255.
-     * If the message we just got has a connection ID of 5, we look up _connections[5], and give the message to that UDPConnectionProcessor.
-     * We make sure the UDPConnectionProcessor is connected to the same IP address and port number the message came from, also.
-     * 
+     *
+     * If the message we just got from 1.2.3.4:6346 has a connection ID of 5, we look up 1.2.3.4, 6346, and 5 in the table, and give the message to that UDPConnectionProcessor.
+     *
      * When the connection is just starting, we'll get Syn messages with connection IDs of 0.
      * In this case, we find the UDPConnectionProcessor by IP address and port number alone.
-     * routeMessage() looks through the _connections array until it finds a UDPConnectionProcessor with an IP address and port number that match the message's.
-     * Then, it gives the message to that UDPConnectionProcessor.
-     * 
+     * We look up each ID for that IP address and port number, until we find a UDPConnectionProcessor that's still connecting.
+     * Then, we give the message to that UDPConnectionProcessor.
+     * This only looks at our connections to the computer that sent the Syn, not all our connections.
+     *
      * @param msg        A UDP connection message we just received
      * @param senderIP   The IP address it came from
      * @param senderPort The port number it came from
      */
 	public void routeMessage(UDPConnectionMessage msg, InetAddress senderIP, int senderPort) {
 
-        // When we find the UDPConnectionProcessor that represents the UDP connection the message we just received is a part of, we'll point con at it
-		UDPConnectionProcessor con;
-
-        // Point array at our _connections array of 255 references to WeakReference objects
-		WeakReference[] array = _connections;
+        // Get the current table
+		SessionTable sessions = _sessions;
 
         // Read the connection ID from the first byte of the message
 		int connID = (int)msg.getConnectionID() & 0xff; // Mask with 0xff to make sure connID isn't bigger than 255
@@ -255,17 +216,17 @@ public class UDPMultiplexor {
             // Make a note we've received a Syn message with a connection ID of 0
             if (LOG.isDebugEnabled()) LOG.debug("Receiving SynMessage :" + msg);
 
-            // Loop i from 1 through 255, covering every connection ID we assign
-            for (int i = 1; i < array.length; i++) {
+            // Skip the lookups if we don't have any connections to this IP address at all
+            if (!sessions.ADDRESSES.containsKey(senderIP)) return;
+
+            // Loop i from 1 through 255, covering every connection ID we could have assigned a connection to this computer
+            for (int i = 1; i < 256; i++) {
 
-                // Look up the UDPConnectionProcessor at the index i that we assigned connection ID i in the array
-				if (array[i] == null) con = null;                                   // No WeakReference object here
-				else                  con = (UDPConnectionProcessor)array[i].get(); // Get the UDPConnectionProcessor the WeakReference object references
+                // Look up our connection to the computer that sent the Syn with the ID i
+                UDPConnectionProcessor con = sessions.get(senderIP, senderPort, i);
 
-                // See if our UDPConnectionProcessor object at i is trying to connect to the same IP address that sent us this packet
-				if (con != null        &&                     // Our array has a UDPConnectionProcessor object for i, and
-					con.isConnecting() &&                     // It hasn't connected yet, and
-					con.matchAddress(senderIP, senderPort)) { // It's trying to connect to the same computer that just sent us the Syn message with an ID of 0
+                // See if it hasn't connected yet
+				if (con != null && con.isConnecting()) {
 
                     // We've found the UDPConnectionProcessor to give the message to
                     if (LOG.isDebugEnabled()) LOG.debug("routeMessage to conn:" + i + " Syn:" + msg);
@@ -286,16 +247,172 @@ public class UDPMultiplexor {
              * If valid connID then send on to connection
              */
 
-            // Look up the UDPConnectionProcessor object at the connection ID's place in the array
-            if (array[connID] == null) con = null;                                        // No WeakReference object
-			else                       con = (UDPConnectionProcessor)array[connID].get(); // Get the UDPConnectionProcessor from the WeakReference object
+            // Look up our connection to the computer that sent the message with the ID in the message
+            UDPConnectionProcessor con = sessions.get(senderIP, senderPort, connID);
 
-            // If we found a UDPConnectionProcessor object with the message's ID, and this packet came from the same IP address and port number it's connected to
-			if (con != null && con.matchAddress(senderIP, senderPort)) {
-
-                // Give the message we just received to the UDPConnectionProcessor object
-				con.handleMessage(msg);
-			}
+            // If we found it, give it the message we just received
+			if (con != null) con.handleMessage(msg);
 		}
 	}
+
+    /**
+     * A SessionTable is an open addressing hash table of our UDP connections, keyed by IP address, port number, and connection ID.
+     *
+     * Each key is a long made from the address's hash code, the port number, and the ID.
+     * For an IPv4 address, the hash code is the address itself, so keys of different connections are different.
+     * get() also checks the UDPConnectionProcessor's address, so a key that matches by chance can't send a message to the wrong connection.
+     * It doesn't check the UDPConnectionProcessor's ID, which register() returns for the constructor to save after the connection is already in the table.
+     *
+     * Empty places in the table have a null WeakReference.
+     * The table is at most half full, so a lookup only looks at a few places.
+     *
+     * A SessionTable is never changed once copy() has made it.
+     */
+    private static final class SessionTable {
+
+        /** KEYS[i] is the key of the connection at i. */
+        private final long[] KEYS;
+
+        /** REFS[i] is a WeakReference to the UDPConnectionProcessor at i, or null if i is empty. */
+        private final WeakReference[] REFS;
+
+        /** The number of connections to each IP address, an InetAddress key leads to an Integer count. */
+        final Map ADDRESSES;
+
+        /** The number of connections in the table. */
+        final int size;
+
+        /**
+         * Make an empty table with room for the given number of connections.
+         *
+         * @param count The number of connections we'll put in it
+         */
+        SessionTable(int count) {
+
+            // Make the arrays at least twice as big as count, and a power of 2
+            int capacity = 16;
+            while (capacity < count * 2) capacity <<= 1;
+            KEYS = new long[capacity];
+            REFS = new WeakReference[capacity];
+            ADDRESSES = new HashMap();
+            size = 0;
+        }
+
+        /**
+         * Look up a connection.
+         *
+         * @param ip     The IP address of the remote computer
+         * @param port   Its port number
+         * @param connID The ID we assigned the connection, 1 through 255
+         * @return       The UDPConnectionProcessor object, or null if we don't have that connection
+         */
+        UDPConnectionProcessor get(InetAddress ip, int port, int connID) {
+
+            // Look in the places the key hashes to, until we find an empty one
+            long key = key(ip, port, connID);
+            int mask = KEYS.length - 1;
+            for (int i = hash(key) & mask; REFS[i] != null; i = (i + 1) & mask) {
+                if (KEYS[i] != key) continue;
+
+                // Make sure the address didn't match by chance, and the garbage collector hasn't deleted the object
+                UDPConnectionProcessor con = (UDPConnectionProcessor)REFS[i].get();
+                if (con != null && con.matchAddress(ip, port)) return con; // The key's low 8 bits are the ID, so it matches exactly
+            }
+            return null;
+        }
+
+        /**
+         * Make a new table like this one, with a connection added or removed.
+         * Leaves out connections the garbage collector has deleted.
+         *
+         * @param add    A UDPConnectionProcessor to add, or null
+         * @param connID The ID we assigned it
+         * @param remove A UDPConnectionProcessor to leave out, or null
+         * @return       A new SessionTable object
+         */
+        SessionTable copy(UDPConnectionProcessor add, int connID, UDPConnectionProcessor remove) {
+
+            // Make a table big enough for all of them, and one more
+            SessionTable table = new SessionTable(size + 1);
+
+            // Copy in all the connections we still have
+            int count = 0;
+            for (int i = 0; i < REFS.length; i++) {
+                if (REFS[i] == null) continue;
+                UDPConnectionProcessor con = (UDPConnectionProcessor)REFS[i].get();
+                if (con == null || con == remove) continue;
+                table.put(KEYS[i], REFS[i], con.getInetAddress());
+                count++;
+            }
+
+            // Add the new one
+            if (add != null) {
+                table.put(key(add.getInetAddress(), add.getPort(), connID), new WeakReference(add), add.getInetAddress());
+                count++;
+            }
+
+            // Return a table with the right size
+            return new SessionTable(table, count);
+        }
+
+        /**
+         * Make a table that shares the arrays of another, with the right size.
+         *
+         * @param table The table copy() filled
+         * @param count The number of connections it put in it
+         */
+        private SessionTable(SessionTable table, int count) {
+            KEYS = table.KEYS;
+            REFS = table.REFS;
+            ADDRESSES = table.ADDRESSES;
+            size = count;
+        }
+
+        /**
+         * Put a connection in this table while copy() is making it.
+         *
+         * @param key  Its key
+         * @param ref  The WeakReference to its UDPConnectionProcessor
+         * @param ip   The IP address it's connected to
+         */
+        private void put(long key, WeakReference ref, InetAddress ip) {
+
+            // Find the first empty place from where the key hashes to
+            int mask = KEYS.length - 1;
+            int i = hash(key) & mask;
+            while (REFS[i] != null) i = (i + 1) & mask;
+            KEYS[i] = key;
+            REFS[i] = ref;
+
+            // Count another connection to the IP address
+            Integer n = (Integer)ADDRESSES.get(ip);
+            ADDRESSES.put(ip, new Integer(n == null ? 1 : n.intValue() + 1));
+        }
+
+        /**
+         * Make the key for a connection.
+         *
+         * @param ip     The IP address of the remote computer
+         * @param port   Its port number
+         * @param connID The ID we assigned the connection
+         * @return       A long with the address hash code, then 16 bits of port number, then 8 bits of ID
+         */
+        private static long key(InetAddress ip, int port, int connID) {
+            return ((long)ip.hashCode() << 24) | ((port & 0xffff) << 8) | (connID & 0xff);
+        }
+
+        /**
+         * Mix the bits of a key into a place in the table.
+         *
+         * @param key A key from key()
+         * @return    An int to mask to the size of the table
+         */
+        private static int hash(long key) {
+            int h = (int)(key ^ (key >>> 29));
+            h ^= h >>> 16;
+            h *= 0x85ebca6b;
+            h ^= h >>> 13;
+            return h;
+        }
+    }
 }
@@ -5,6 +5,8 @@ import java.lang.ref.WeakReference;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import com.limegroup.gnutella.util.TimingWheel;
+
 
 
 /**
@@ -23,6 +25,9 @@ public abstract class UDPTimerEvent implements Comparable {
     /** the UDPConnectionProcessor this event refers to */
     protected final WeakReference _udpCon;
 
+    /** The timer UDPScheduler runs this event with, once registered */
+    volatile TimingWheel.Entry _entry;
+
    /**
     *  Create a timer event with a default time.
     */
@@ -50,6 +55,9 @@ public abstract class UDPTimerEvent implements Comparable {
     protected final void unregister() {
     	_shouldUnregister=true;
     	_eventTime=1;
+    	TimingWheel.Entry entry = _entry;
+    	if (entry != null)
+    		entry.cancel();
     }
 
    /**
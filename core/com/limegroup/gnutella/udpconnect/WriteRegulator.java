@@ -4,38 +4,44 @@ import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 /** 
  *  Calculate and control the timing of data writing.
+ *
+ *  The number of messages in flight is limited by a congestion window that
+ *  is adjusted by queuing delay, as in LEDBAT.  The lowest round trip time
+ *  seen lately is taken as the delay of the path with empty queues.  Each
+ *  ack's round trip time above that is time spent waiting in a queue.  The
+ *  window grows while the queuing delay is below TARGET_DELAY and shrinks
+ *  when it's above, so the connection fills the path without filling its
+ *  buffers.  A lost message halves the window, at most once a round trip.
+ *  Writes within the window are spread over the round trip time.
  */
 public class WriteRegulator {
 
     private static final Log LOG =
       LogFactory.getLog(WriteRegulator.class);
 
-    /** Don't adjust the skipping of sleeps until the window has initialized */
-    private static final int   MIN_START_WINDOW     = 40;
+    /** The queuing delay to aim for, in milliseconds */
+    private static final int   TARGET_DELAY         = 100;
 
-    /** When the window space hits this size, it is low */
-    private static final int   LOW_WINDOW_SPACE     = 4;
+    /** How many messages the window can grow by in a round trip */
+    private static final float GAIN                 = 1.0f;
 
-    /** Cap the quick sending of blocks at this number */
-    private static final int   MAX_SKIP_LIMIT       = 14;
+    /** The smallest congestion window, in messages */
+    private static final float MIN_WINDOW           = 2.0f;
 
-    /** The expected failure rate at optimal throughput */
-    private static final float TARGET_FAILURE_RATE  = 3f / 100f;
+    /** The congestion window to start with, in messages */
+    private static final float START_WINDOW         = 4.0f;
 
-    /** The low failure rate at optimal throughput */
-    private static final float LOW_FAILURE_RATE     = 3f / 100f;
-
-    /** The high failure rate at optimal throughput */
-    private static final float HIGH_FAILURE_RATE    = 4f / 100f;
+    /** Keep the lowest round trip time of this many milliseconds back */
+    private static final long  BASE_DELAY_PERIOD    = 60 * 1000;
 
 
     private DataWindow _sendWindow;
-    private int        _skipCount  = 0;
-    private int        _skipLimit  = 2;
-    private boolean    _limitHit   = false;
-    private int        _limitCount = 0;
-    private int        _limitReset = 200;  
-    private int        _zeroCount  = 0;
+    private float      _cwnd        = START_WINDOW;
+    private int        _baseDelay   = Integer.MAX_VALUE;
+    private int        _lastBaseDelay = Integer.MAX_VALUE;
+    private long       _baseDelayStart;
+    private long       _lastDecrease;
+    private int        _zeroCount   = 0;
 
 
     /** Keep track of how many successes/failures there are in 
@@ -49,236 +55,102 @@ public class WriteRegulator {
     }
 
     /** 
-     *  When a resend is required and the failure rate is too high, 
-     *  scale down activity.
+     *  When a resend is required, a message was lost, so halve the 
+     *  congestion window unless it was already halved this round trip.
      */
     public void hitResendTimeout() {
-        if ( (!_limitHit || _limitCount >= 10) &&
-              _tracker.failureRate() > HIGH_FAILURE_RATE ) {
-            _limitHit = true;
-            _skipLimit /= 2;
-            _limitCount = 0;
-            if(LOG.isDebugEnabled())  
-                LOG.debug("hitResendTimeout _skipLimit = "+_skipLimit+
-                " fR="+_tracker.failureRateAsString());
-            _tracker.clearOldFailures();
-        }
+        long now = System.currentTimeMillis();
+        if ( now - _lastDecrease < Math.max(_sendWindow.getRTO(), 1) )
+            return;
+        _lastDecrease = now;
+        _cwnd = Math.max(_cwnd / 2, MIN_WINDOW);
+        if(LOG.isDebugEnabled())  
+            LOG.debug("hitResendTimeout cwnd = "+_cwnd+
+            " fR="+_tracker.failureRateAsString());
     }
 
     /** 
-     *  When the send window keeps getting hit, slow down activity.
+     *  When the send window keeps getting hit, the receiver is reading
+     *  slowly.  That isn't congestion, so the window is left alone.
      */
     public void hitZeroWindow() {
         _zeroCount++;
-        if ( (!_limitHit || _limitCount >= 10) && _zeroCount > 4) { 
-            // Doing nothing for now since this is irrelevent to the skipping
-            //
-
-            //_limitHit = true;
-            //_skipLimit /= 2;
-            //_limitCount = 0;
+        if ( _zeroCount > 4) { 
             _zeroCount = 0;
             if(LOG.isDebugEnabled())  
-                LOG.debug("hitZeroWindow _skipLimit = "+_skipLimit+
+                LOG.debug("hitZeroWindow cwnd = "+_cwnd+
                   " fR="+_tracker.failureRateAsString());
         }
     }
 
+    /** 
+     *  Adjust the congestion window for the round trip time of an ack.
+     *  The window moves towards the size that keeps TARGET_DELAY of 
+     *  queuing delay, by at most GAIN messages a round trip.
+     */
+    public void addRoundTripTime(int rtt, long currTime) {
+        if ( rtt < 0 )
+            return;
+
+        // Keep the lowest delay of this period and the last one, so the
+        // base delay can go up if the route changes
+        if ( currTime - _baseDelayStart > BASE_DELAY_PERIOD ) {
+            _lastBaseDelay  = _baseDelay;
+            _baseDelay      = Integer.MAX_VALUE;
+            _baseDelayStart = currTime;
+        }
+        _baseDelay = Math.min(_baseDelay, rtt);
+        int queuingDelay = rtt - Math.min(_baseDelay, _lastBaseDelay);
+
+        float offTarget = 
+          ((float)(TARGET_DELAY - queuingDelay)) / TARGET_DELAY;
+        offTarget = Math.max(-1.0f, offTarget);
+        _cwnd += GAIN * offTarget / _cwnd;
+        _cwnd  = Math.max(MIN_WINDOW, 
+          Math.min(_cwnd, (float)_sendWindow.getWindowSize()));
+    }
+
+    /** 
+     *  Get the congestion window, the number of messages that may be
+     *  waiting for an ack.  UDPConnectionProcessor stops writing while
+     *  this many are in flight, and an ack starts it again.
+     */
+    public int getCongestionWindow() {
+        return (int)_cwnd;
+    }
+
     /** 
      *  Compute how long the sleep time should be before the next write.
      */
     public long getSleepTime(long currTime, int receiverWindowSpace) {
-
-        //------------- Sleep ------------------------
-
-        // Sleep a fraction of rtt for specified window increment
-        int  usedSpots   = _sendWindow.getUsedSpots(); 
-        int  windowSize  = _sendWindow.getWindowSize(); 
-        long windowStart = _sendWindow.getWindowStart(); 
-
-        int   rto        = _sendWindow.getRTO();
-        float rttvar     = _sendWindow.getRTTVar();
-        float srtt       = _sendWindow.getSRTT();
-        int   isrtt      = (int) srtt;
-
-        int  rtt;
-        int  realRTT     = isrtt;//_sendWindow.averageRoundTripTime();
-        int  lowRTT      = _sendWindow.lowRoundTripTime();
-        int  smoothRTT   = isrtt;//_sendWindow.smoothRoundTripTime();
-        int  sentWait    = isrtt;//_sendWindow.calculateWaitTime( currTime, 3);
-        rtt = sentWait + 1;
-        if  (rtt == 0) 
-            rtt = 10;
-        int baseWait   = Math.min(realRTT, 2000)/4;  
-        //
-        // Want to ideally achieve a steady state location in writing and 
-        // reading window.  Don't want to get too far ahead or too far behind
-        //
-        int sleepTime    = ((usedSpots+1) * baseWait);
-        int minTime      = 0;
-        int gettingSlow  = 0;
-
-
-        // Ensure the sleep time is fairly distributed in the normal case
-        if ( sleepTime < windowSize ) {
-            double pct = (double) sleepTime / (double) windowSize;
-            if ( Math.random() < pct )
-                sleepTime      = 1;
-            else
-                sleepTime      = 0;
+        int   inFlight   = _sendWindow.numNotAcked();
+        int   window     = (int) _cwnd;
+        int   srtt       = (int) _sendWindow.getSRTT();
+        long  sleepTime;
+
+        if ( inFlight >= window ) {
+            // The window is full, so check back when the oldest message 
+            // should have been acked.  Nothing is sent until an ack 
+            // frees a slot, however late it is.
+            DataRecord oldest = _sendWindow.getOldestUnackedBlock();
+            long sentTime = (oldest == null ? currTime : oldest.sentTime);
+            sleepTime = Math.max(sentTime + srtt - currTime, 1);
         } else {
-            sleepTime      = sleepTime / windowSize;
-        }
-
-        // Create a sleeptime specific to having almost no room left to send
-        // more data
-        if ( receiverWindowSpace <= LOW_WINDOW_SPACE ) {
-            // Scale up the sleep time to a full timeout as you approach 
-            // zero space for writing
-            int multiple = LOW_WINDOW_SPACE / Math.max(1, receiverWindowSpace);
-            sleepTime = (((int)srtt) * multiple) / (LOW_WINDOW_SPACE + 1);
-
-			if ( receiverWindowSpace <= (LOW_WINDOW_SPACE/2) ) {
-            	sleepTime = rto;
-				if(LOG.isDebugEnabled())  
-					LOG.debug("LOW_WINDOW sT:"+sleepTime);
-			}
-			minTime = sleepTime;
+            // Spread the window's writes over a round trip
+            sleepTime = srtt / window;
         }
 
         if(LOG.isDebugEnabled())  
             LOG.debug(
               "sleepTime:"+sleepTime+
-              " uS:"+usedSpots+ 
+              " inFlight:"+inFlight+ 
+              " cwnd:"+_cwnd+
               " RWS:"+receiverWindowSpace+
-              " smoothRTT:"+smoothRTT+
-              " realRTT:"+realRTT+
-              " rtt:"+rtt+
-              " RTO:"+rto+
-              " RTTVar:"+rttvar+
               " srtt:"+srtt+
-              " sL:"+_skipLimit +
+              " base:"+Math.min(_baseDelay, _lastBaseDelay)+
               " fR="+_tracker.failureRateAsString());
 
-        if ( _skipLimit < 1 )
-            _skipLimit = 1;
-
-        // Reset Timing if you are going to wait less than rtt or
-        // RTT has elevated too much
-
-        // Compute a max target RTT given the bandwidth capacity
-        int maxRTT;
-        if ( smoothRTT > ((5*lowRTT)/2) ) {  // If avg much greater than low
-            // Capacity is limited so kick in quickly
-            maxRTT      = ((lowRTT*7) / 5);  
-        } else {
-            // Capacity doesn't seem to be limited so only kick in if extreme
-            maxRTT      = ((lowRTT*25) / 5);
-        }
-
-        // We want at least 2 round trips per full window time
-        // so find out how much you would wait for half a window
-        int windowDelay = 
-          (((baseWait * windowSize) / _skipLimit) * 2) / 4;
-
-        // If our RTT time is going up, figure out what to do
-        if ( rtt != 0 && baseWait != 0 && 
-             receiverWindowSpace <= LOW_WINDOW_SPACE &&
-             (windowDelay < rtt || rtt > maxRTT) ) {
-            if(LOG.isDebugEnabled())  
-                LOG.debug(
-                  " -- MAX EXCEED "+
-                  " RTT sL:"+_skipLimit + " w:"+ windowStart+
-                  " Rrtt:"+realRTT+ " base :"+baseWait+
-                  " uS:"+usedSpots+" RWS:"+receiverWindowSpace+
-                  " lRTT:"+_sendWindow.lowRoundTripTime()+
-                  " sWait:"+sentWait+
-                  " mRTT:"+maxRTT+
-                  " wDelay:"+windowDelay+
-                  " sT:"+sleepTime);
-
-
-            // If we are starting to affect the RTT, 
-            // then ratchet down the accelorator
-            /*
-            if ( realRTT > ((3*lowRTT)) || rtt > (3*lowRTT) ) {
-                _limitHit = true;
-                _skipLimit /= 2;
-                if(LOG.isDebugEnabled())  
-                    LOG.debug(
-                      " -- LOWER SL "+
-                      " rRTT:"+realRTT+
-                      " lRTT:"+lowRTT+
-                      " rtt:"+rtt+ 
-                      " sL:"+_skipLimit);
-            }
-            */
-
-            // If we are majorly affecting the RTT, then slow down right now
-            if ( rtt > maxRTT || realRTT > maxRTT ) {
-				minTime = lowRTT / 4;
-				if ( gettingSlow == 0 )
-            		_skipLimit--;
-				gettingSlow = 50;
-                //sleepTime = (16*rtt) / 7;
-                if(LOG.isDebugEnabled())  
-                    LOG.debug(
-                      " -- UP SLEEP "+ 
-                      " rtt:"+rtt+ 
-                      " mRTT:"+maxRTT+
-                      " rRTT:"+realRTT+
-                      " lRTT:"+lowRTT+
-                      " sT:"+sleepTime);
-            }
-        }
-
-        // Cycle through the accelerator states and enforced backoff
-        if ( _skipLimit < 1 )
-            _skipLimit = 1;
-        _skipCount = (_skipCount + 1) % _skipLimit;
-
-        if ( !_limitHit ) {
-            // Bump up the skipLimit occasionally to see if we can handle it
-            if (_skipLimit < MAX_SKIP_LIMIT    &&
-                windowStart%windowSize == 0    &&
-                gettingSlow == 0               &&
-                windowStart > MIN_START_WINDOW &&
-                _tracker.failureRate() < LOW_FAILURE_RATE ) {
-                if(LOG.isDebugEnabled())  
-                    LOG.debug("up _skipLimit = "+_skipLimit);
-                _skipLimit++;
-                if(LOG.isDebugEnabled())  
-                    LOG.debug(" -- UPP sL:"+_skipLimit);
-            }
-        } else {
-            // Wait before trying to be aggressive again
-            _limitCount++;
-            if (_limitCount >= _limitReset) {
-                if(LOG.isDebugEnabled())  
-                    LOG.debug(" -- UPP reset:"+_skipLimit);
-                _limitCount = 0;
-                _limitHit = false;
-            }
-        }
-
-        // Readjust the sleepTime to zero if the connection can handle it
-        if ( _skipCount != 0 && 
-             rtt < maxRTT && 
-             receiverWindowSpace > LOW_WINDOW_SPACE )  {
-             if(LOG.isDebugEnabled())  
-                 LOG.debug("_skipLimit = "+_skipLimit);
-            sleepTime = 0;
-        }
-
-        // Ensure that any minimum sleep time is enforced
-        sleepTime = Math.max(sleepTime, minTime);
-		
-		// Reduce the gettingSlow indicator over time
-		if ( gettingSlow > 0 )
-			gettingSlow--;
-
-        return (long) sleepTime;
-        //------------- Sleep ------------------------
+        return sleepTime;
     }
 
 
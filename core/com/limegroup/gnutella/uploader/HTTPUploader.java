@@ -418,6 +418,13 @@ public final class HTTPUploader implements Uploader {
 	    return _fis;
     }
     
+    /**
+     * Returns the socket we're uploading over.
+     */
+    Socket getSocket() {
+        return _socket;
+    }
+    
     /**
      * Returns the InetAddress of the socket we're connected to.
      */
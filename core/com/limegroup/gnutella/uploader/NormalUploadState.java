@@ -3,8 +3,11 @@ package com.limegroup.gnutella.uploader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.io.StringWriter;
 import java.io.Writer;
+import java.net.Socket;
+import java.nio.channels.FileChannel;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -15,6 +18,7 @@ import com.limegroup.gnutella.URN;
 import com.limegroup.gnutella.http.ConstantHTTPHeaderValue;
 import com.limegroup.gnutella.http.HTTPHeaderName;
 import com.limegroup.gnutella.http.HTTPUtils;
+import com.limegroup.gnutella.io.NIOSocket;
 import com.limegroup.gnutella.settings.ConnectionSettings;
 import com.limegroup.gnutella.settings.UploadSettings;
 import com.limegroup.gnutella.util.BandwidthThrottle;
@@ -22,7 +26,9 @@ import com.limegroup.gnutella.util.BandwidthThrottle;
 /**
  * An implementation of the UploadState interface for a normal upload situation,
  * i.e., the real uploader.  It should send the appropriate header information,
- * followed by the actual file.  
+ * followed by the actual file.  Over an NIOSocket, the file goes straight from
+ * the disk to the socket with FileChannel.transferTo; otherwise it is copied
+ * through a buffer a block at a time.
  */
 public final class NormalUploadState extends UploadState {
     /** The amount of time that a send/wait cycle should take for throttled
@@ -32,6 +38,12 @@ public final class NormalUploadState extends UploadState {
     private static final Log LOG = LogFactory.getLog(NormalUploadState.class);
 	
     private static final int BLOCK_SIZE=1024;
+    
+    /**
+     * The most bytes to ask the throttle for, and hand to transferTo, at
+     * once.  The throttle never gives out more than a tick's worth anyway.
+     */
+    private static final int TRANSFER_SIZE=64*1024;
 	
 	private final int _index;
 	private final String _fileName;
@@ -168,8 +180,13 @@ public final class NormalUploadState extends UploadState {
 	public void writeMessageBody(OutputStream ostream) throws IOException {
 		LOG.debug("writing message body");
         try {            
-            _fis.skip(_uploadBegin);
-            upload(ostream);
+            NIOSocket socket = getTransferSocket();
+            if(socket != null) {
+                transfer(socket, ostream);
+            } else {
+                _fis.skip(_uploadBegin);
+                upload(ostream);
+            }
         } catch(IOException e) {
             _stalledChecker.deactivate(); // no need to kill now
             throw e;
@@ -226,6 +243,53 @@ public final class NormalUploadState extends UploadState {
             
     }
 
+    /**
+     * Returns the socket to upload over with transferTo, or null if the
+     * file has to be copied through upload(..) instead.
+     */
+    private NIOSocket getTransferSocket() {
+        if(!UploadSettings.ZERO_COPY_UPLOADS.getValue() || FILE_DESC == null)
+            return null;
+        Socket socket = UPLOADER.getSocket();
+        if(!(socket instanceof NIOSocket))
+            return null;
+        return (NIOSocket)socket;
+    }
+
+    /**
+     * Upload the file with FileChannel.transferTo, so the requested range
+     * goes from the disk to the socket without being copied into Java.  The
+     * headers are still in the socket's buffer, and go out first.  Throttles
+     * the same way upload(..) does, a chunk at a time.
+     * @exception IOException If there is any I/O problem while uploading file
+     */
+    private void transfer(NIOSocket socket, OutputStream ostream)
+      throws IOException {
+        RandomAccessFile raf =
+            new RandomAccessFile(FILE_DESC.getFile(), "r");
+        try {
+            FileChannel file = raf.getChannel();
+            while(_amountWritten < _amountRequested) {
+                THROTTLE.setRate(getUploadSpeed());
+                int allowed = Math.min(TRANSFER_SIZE,
+                                       _amountRequested - _amountWritten);
+                // BLOCKING (only if we need to throttle)
+                if(!UPLOADER.isForcedShare())
+                    allowed = THROTTLE.request(allowed);
+                _stalledChecker.activate(ostream);
+                socket.transferFrom(file, _uploadBegin + _amountWritten,
+                                    allowed);
+                // as in upload(..), a stall closes the socket and throws
+                _stalledChecker.deactivate();
+
+                _amountWritten += allowed;
+                UPLOADER.setAmountUploaded(_amountWritten);
+            }
+        } finally {
+            raf.close();
+        }
+    }
+
 	/** 
 	 * Eventually this method should determine the mime type of a file fill 
 	 * in the details of this later. Assume binary for now. 
@@ -135,6 +135,30 @@ public class BandwidthThrottle {
         return result;
     }
     
+    /**
+     * Like request(..), but never blocks.  For callers that can't wait, like
+     * the NIODispatcher thread.  Records the number of bytes sent.
+     *
+     * @param desired the number of bytes the caller would like to send
+     * @return the number of bytes the sender may send, which is 0 if the
+     *  current window is used up, and otherwise at most desired
+     * @see #getMillisUntilNextTick
+     */
+    synchronized public int requestNow(int desired) {
+        updateWindow(System.currentTimeMillis());
+        int result = Math.min(desired, _availableBytes);
+        _availableBytes -= result;
+        return result;
+    }
+    
+    /**
+     * Returns how long until more bytes may be available, for a caller
+     * that got 0 from requestNow(..).
+     */
+    synchronized public long getMillisUntilNextTick() {
+        return Math.max(0, _nextTickTime - System.currentTimeMillis());
+    }
+    
     /** Waits until data is _availableBytes. */
     private void waitForBandwidth() {
         for (;;) {
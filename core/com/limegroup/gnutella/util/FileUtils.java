@@ -117,6 +117,28 @@ public class FileUtils {
         }
     }
 
+    /**
+     * Returns the path of the file system root the given file is on, the
+     * longest of File.listRoots() its path starts with.  On Windows, this is
+     * the drive.  Returns the empty string if no root matches.
+     */
+    public static String getRoot(File f) {
+        String path;
+        try {
+            path = getCanonicalPath(f);
+        } catch(IOException e) {
+            path = f.getAbsolutePath();
+        }
+        String ret = "";
+        File[] roots = File.listRoots();
+        for(int i = 0; roots != null && i < roots.length; i++) {
+            String root = roots[i].getPath();
+            if(path.startsWith(root) && root.length() > ret.length())
+                ret = root;
+        }
+        return ret;
+    }
+
     /** 
      * Detects attempts at directory traversal by testing if testDirectory 
      * really is the parent of testPath.  This method should be used to make
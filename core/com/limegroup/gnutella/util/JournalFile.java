@@ -0,0 +1,381 @@
+package com.limegroup.gnutella.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+/**
+ * Saves a map to disk as a binary snapshot, and a journal of the changes
+ * made since the snapshot was written.  A cache calls put(..) and remove(..)
+ * as it changes its map, and flush() when it wants to save.  flush() only
+ * appends the new changes to the end of the journal, so a save takes time
+ * for what changed, not for the whole map.  Once the journal has as many
+ * records as the snapshot, the cache writes a new snapshot with
+ * newSnapshot(), which empties the journal.<p>
+ *
+ * Keys and values are byte arrays.  The cache encodes its own, usually with
+ * a DataOutputStream, which is much smaller and faster to read back than
+ * serializing the objects.  read(..) hands the records back in order, the
+ * snapshot's and then the journal's.<p>
+ *
+ * Both files start with MAGIC and VERSION.  Each record after that is a
+ * byte for PUT or REMOVE, the length and bytes of the key, and for a PUT,
+ * the length and bytes of the value.  If the program dies in the middle of
+ * appending to the journal, read(..) ignores the partial record at the end.
+ * A new snapshot is written to a temporary file and then renamed over the
+ * old one, so a crash never leaves half of one.  Where a rename can't
+ * replace a file, the old snapshot is deleted first; if the program dies
+ * right then, the next read(..) finds the temporary file and uses it as the
+ * snapshot.  Changes made while a snapshot is being written may be missing
+ * from it, so they're kept and journaled after it.<p>
+ *
+ * This class is synchronized.
+ */
+public final class JournalFile {
+
+    private static final Log LOG = LogFactory.getLog(JournalFile.class);
+
+    /** The first 4 bytes of both files, "LJNL". */
+    private static final int MAGIC = 0x4C4A4E4C;
+
+    /** The version of the format. */
+    private static final int VERSION = 1;
+
+    /** The record types. */
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+
+    /** The journal isn't worth compacting until it has this many records. */
+    private static final int MIN_COMPACT = 1000;
+
+    /** The snapshot, the journal, and where a new snapshot is written. */
+    private final File SNAPSHOT;
+    private final File JOURNAL;
+    private final File TEMP;
+
+    /** The records changed since the last flush(), ready to append. */
+    private final ByteArrayOutputStream PENDING = new ByteArrayOutputStream();
+    private final DataOutputStream PENDING_OUT = new DataOutputStream(PENDING);
+
+    /** The number of records in the snapshot, the journal, and PENDING. */
+    private int _snapshotRecords;
+    private int _journalRecords;
+    private int _pendingRecords;
+
+    /**
+     * The records changed since the snapshot being written was started, or
+     * null if there isn't one.  They're written to PENDING too.
+     */
+    private ByteArrayOutputStream _since;
+    private DataOutputStream _sinceOut;
+    private int _sinceRecords;
+
+    /** Whether the files need to be rewritten, whatever their size. */
+    private boolean _damaged;
+
+    /**
+     * Creates a JournalFile that keeps its files in dir, named name.dat and
+     * name.jnl.
+     */
+    public JournalFile(File dir, String name) {
+        SNAPSHOT = new File(dir, name + ".dat");
+        JOURNAL = new File(dir, name + ".jnl");
+        TEMP = new File(dir, name + ".tmp");
+    }
+
+    /**
+     * Receives the records of a JournalFile.
+     */
+    public static interface Reader {
+
+        /** key now has value. */
+        void put(byte[] key, byte[] value) throws IOException;
+
+        /** key no longer has a value. */
+        void remove(byte[] key) throws IOException;
+    }
+
+    /**
+     * Determines if there's a snapshot or journal on disk.  If not, the
+     * cache should read its old file, if there is one, and call
+     * newSnapshot() to save it in this format.
+     */
+    public synchronized boolean exists() {
+        return snapshotFile().exists() || JOURNAL.exists();
+    }
+
+    /**
+     * Reads the snapshot and then the journal, giving each record to reader.
+     * Records reader can't parse are skipped, and the files are rewritten at
+     * the next save.
+     */
+    public synchronized void read(Reader reader) {
+        _snapshotRecords = read(snapshotFile(), reader);
+        _journalRecords = read(JOURNAL, reader);
+    }
+
+    /**
+     * Records that key now has value.
+     */
+    public synchronized void put(byte[] key, byte[] value) {
+        try {
+            writePut(PENDING_OUT, key, value);
+            _pendingRecords++;
+            if(_since != null) {
+                writePut(_sinceOut, key, value);
+                _sinceRecords++;
+            }
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
+
+    /**
+     * Records that key no longer has a value.
+     */
+    public synchronized void remove(byte[] key) {
+        try {
+            writeRemove(PENDING_OUT, key);
+            _pendingRecords++;
+            if(_since != null) {
+                writeRemove(_sinceOut, key);
+                _sinceRecords++;
+            }
+        } catch(IOException impossible) {
+            throw new RuntimeException(impossible.getMessage());
+        }
+    }
+
+    /**
+     * Determines if it's time to write a new snapshot instead of appending
+     * to the journal.  It is if the journal is long, if the files were
+     * damaged, or if there's no snapshot yet, like after a cache read its
+     * old file.
+     */
+    public synchronized boolean shouldCompact() {
+        return _damaged || !SNAPSHOT.exists() ||
+            _journalRecords >= Math.max(MIN_COMPACT, _snapshotRecords);
+    }
+
+    /**
+     * Appends the records since the last flush() to the journal.
+     */
+    public synchronized void flush() throws IOException {
+        if(PENDING.size() == 0)
+            return;
+        boolean header = !JOURNAL.exists() || JOURNAL.length() == 0;
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(JOURNAL.getPath(), true)));
+            if(header)
+                writeHeader(out);
+            PENDING.writeTo(out);
+            out.flush();
+        } finally {
+            IOUtils.close(out);
+        }
+        _journalRecords += _pendingRecords;
+        _pendingRecords = 0;
+        PENDING.reset();
+    }
+
+    /**
+     * Starts a new snapshot.  Give it every entry of the map with
+     * Snapshot.put(..), and then call Snapshot.commit() to replace the
+     * snapshot and empty the journal.  Only one snapshot may be written at
+     * a time.
+     */
+    public synchronized Snapshot newSnapshot() throws IOException {
+        if(_since != null)
+            throw new IllegalStateException("already writing a snapshot");
+        Snapshot snapshot = new Snapshot();
+        _since = new ByteArrayOutputStream();
+        _sinceOut = new DataOutputStream(_since);
+        _sinceRecords = 0;
+        return snapshot;
+    }
+
+    /**
+     * A new snapshot being written.
+     */
+    public final class Snapshot {
+
+        private final DataOutputStream OUT;
+        private int _records;
+
+        private Snapshot() throws IOException {
+            OUT = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(TEMP)));
+            writeHeader(OUT);
+        }
+
+        /** Adds an entry of the map. */
+        public void put(byte[] key, byte[] value) throws IOException {
+            OUT.writeByte(PUT);
+            writeBytes(OUT, key);
+            writeBytes(OUT, value);
+            _records++;
+        }
+
+        /**
+         * Replaces the snapshot with this one.  The changes made before it
+         * was started are in it, so they're dropped.  The changes made since
+         * are kept, to be appended to the new journal at the next flush().
+         */
+        public void commit() throws IOException {
+            OUT.close();
+            synchronized(JournalFile.this) {
+                if(_since == null)
+                    throw new IllegalStateException("snapshot was aborted");
+                // some platforms can't rename over an existing file
+                if(!TEMP.renameTo(SNAPSHOT)) {
+                    SNAPSHOT.delete();
+                    if(!TEMP.renameTo(SNAPSHOT))
+                        throw new IOException("couldn't rename " + TEMP);
+                }
+                JOURNAL.delete();
+                PENDING.reset();
+                _since.writeTo(PENDING);
+                _pendingRecords = _sinceRecords;
+                _snapshotRecords = _records;
+                _journalRecords = 0;
+                _damaged = false;
+                endSnapshot();
+            }
+        }
+
+        /** Throws this snapshot away, if commit() failed or wasn't called. */
+        public void abort() {
+            IOUtils.close(OUT);
+            synchronized(JournalFile.this) {
+                if(_since != null) {
+                    TEMP.delete();
+                    endSnapshot();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the file to read the snapshot from.  If the program died
+     * after commit() deleted the old snapshot but before it renamed the new
+     * one, the new one is still in TEMP, so the rename is finished here.
+     * If that fails too, TEMP is read where it is.
+     */
+    private File snapshotFile() {
+        if(SNAPSHOT.exists() || _since != null || !TEMP.exists())
+            return SNAPSHOT;
+        LOG.warn("recovering snapshot from " + TEMP);
+        if(TEMP.renameTo(SNAPSHOT))
+            return SNAPSHOT;
+        return TEMP;
+    }
+
+    /** Forgets the changes kept for a snapshot that's done. */
+    private void endSnapshot() {
+        _since = null;
+        _sinceOut = null;
+        _sinceRecords = 0;
+    }
+
+    /**
+     * Reads the records of one of our files, and returns how many there were.
+     */
+    private int read(File file, Reader reader) {
+        if(!file.exists())
+            return 0;
+        long max = file.length(); // no key or value is longer than the file
+        int records = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                new FileInputStream(file)));
+            if(in.readInt() != MAGIC || in.readInt() != VERSION)
+                throw new IOException("unknown format");
+            while(true) {
+                int op = in.read();
+                if(op == -1)
+                    break;
+                byte[] key = readBytes(in, max);
+                if(op == PUT) {
+                    byte[] value = readBytes(in, max);
+                    try {
+                        reader.put(key, value);
+                    } catch(IOException bad) {
+                        LOG.warn("skipping bad record", bad);
+                        _damaged = true;
+                    }
+                } else if(op == REMOVE) {
+                    try {
+                        reader.remove(key);
+                    } catch(IOException bad) {
+                        LOG.warn("skipping bad record", bad);
+                        _damaged = true;
+                    }
+                } else {
+                    throw new IOException("unknown record: " + op);
+                }
+                records++;
+            }
+        } catch(EOFException partial) {
+            // a record was cut off at the end
+            LOG.warn("partial record at end of " + file);
+            _damaged = true;
+        } catch(IOException e) {
+            LOG.error("unable to read " + file, e);
+            _damaged = true;
+        } finally {
+            IOUtils.close(in);
+        }
+        return records;
+    }
+
+    private static void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+    }
+
+    private static void writePut(DataOutputStream out, byte[] key, byte[] value)
+      throws IOException {
+        out.writeByte(PUT);
+        writeBytes(out, key);
+        writeBytes(out, value);
+    }
+
+    private static void writeRemove(DataOutputStream out, byte[] key)
+      throws IOException {
+        out.writeByte(REMOVE);
+        writeBytes(out, key);
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] b)
+      throws IOException {
+        out.writeInt(b.length);
+        out.write(b);
+    }
+
+    /**
+     * Reads a length and that many bytes.  A length below zero or above max
+     * means the file is corrupt, so it's refused before it's allocated.
+     */
+    private static byte[] readBytes(DataInputStream in, long max)
+      throws IOException {
+        int length = in.readInt();
+        if(length < 0 || length > max)
+            throw new IOException("bad length: " + length);
+        byte[] ret = new byte[length];
+        in.readFully(ret);
+        return ret;
+    }
+}
@@ -0,0 +1,548 @@
+package com.limegroup.gnutella.util;
+
+import java.util.NoSuchElementException;
+
+/**
+ * A sorted set of non-negative integers, compressed for use as a posting list
+ * in a keyword index.  Values are stored in blocks of up to MAX_BLOCK.  The
+ * first value of each block is kept in a plain int array, and the rest are
+ * stored as variable-length deltas from the value before them, so a list of
+ * nearby file indices takes about one byte per value.<p>
+ *
+ * Appending a value larger than all the others takes constant time, which is
+ * the common case since FileManager hands out indices in increasing order.
+ * Appends fill blocks to BLOCK values.  Inserting or removing anywhere else
+ * re-encodes only the block the value is in, splitting it if it grows past
+ * MAX_BLOCK and dropping it once it's empty, and then shifts the bytes and
+ * block entries after it.  contains() and Cursor.seek() gallop across the
+ * block firsts, so they only decode one block.<p>
+ *
+ * intersect() and union() write into a list the caller gives them, and
+ * allocate nothing but two cursors.  Like IntSet, this class is <b>not
+ * synchronized</b>.
+ */
+public class PostingList {
+
+    /** The number of values appending puts in each block. */
+    private static final int BLOCK = 64;
+
+    /** The number of values a block may grow to before it's split. */
+    private static final int MAX_BLOCK = 2 * BLOCK;
+
+    /**
+     * The deltas of all the blocks, one after the other.  Each delta is
+     * written 7 bits at a time, low bits first, with the high bit of each byte
+     * set if more bytes follow.
+     */
+    private byte[] data;
+
+    /** The number of bytes of data in use. */
+    private int length;
+
+    /** The first value of each block. */
+    private int[] firsts;
+
+    /** The offset in data of the deltas of each block. */
+    private int[] offsets;
+
+    /** The index of the first value of each block. */
+    private int[] starts;
+
+    /** The number of blocks in use. */
+    private int blocks;
+
+    /** The number of values in this. */
+    private int size;
+
+    /** The largest value in this, or undefined if this is empty. */
+    private int last;
+
+    /** Creates an empty list. */
+    public PostingList() {
+        this(BLOCK);
+    }
+
+    /** Creates an empty list with room for about expectedSize values. */
+    public PostingList(int expectedSize) {
+        data = new byte[Math.max(expectedSize, 4)];
+        int b = expectedSize / BLOCK + 1;
+        firsts = new int[b];
+        offsets = new int[b];
+        starts = new int[b];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /** Makes this empty, keeping its storage. */
+    public void clear() {
+        length = 0;
+        blocks = 0;
+        size = 0;
+    }
+
+    public boolean contains(int x) {
+        int b = blockFor(x, 0);
+        if (b < 0)
+            return false;
+        int v = firsts[b];
+        int pos = offsets[b];
+        int end = blockEnd(b);
+        while (v < x && pos < end) {
+            int delta = 0;
+            int shift = 0;
+            byte c;
+            do {
+                c = data[pos++];
+                delta |= (c & 0x7F) << shift;
+                shift += 7;
+            } while (c < 0);
+            v += delta;
+        }
+        return v == x;
+    }
+
+    /**
+     * Adds x to this.  Takes constant time if x is larger than every value
+     * already here, and otherwise re-encodes the block x goes in.
+     *
+     * @return true if x wasn't already here
+     */
+    public boolean add(int x) {
+        if (x < 0)
+            throw new IllegalArgumentException("negative value: " + x);
+        if (size == 0 || x > last) {
+            append(x);
+            return true;
+        }
+
+        // x goes in the block it would be found in, or the first block if
+        // it's smaller than everything
+        int b = Math.max(blockFor(x, 0), 0);
+        int n = blockSize(b);
+        int[] values = new int[n + 1];
+        decode(b, values);
+        int i = 0;
+        while (i < n && values[i] < x)
+            i++;
+        if (i < n && values[i] == x)
+            return false;
+        System.arraycopy(values, i, values, i + 1, n - i);
+        values[i] = x;
+        replaceBlock(b, values, n + 1);
+        return true;
+    }
+
+    /**
+     * Removes x from this, re-encoding the block it was in.
+     *
+     * @return true if x was here
+     */
+    public boolean remove(int x) {
+        int b = blockFor(x, 0);
+        if (b < 0)
+            return false;
+        int n = blockSize(b);
+        int[] values = new int[n];
+        decode(b, values);
+        int i = 0;
+        while (i < n && values[i] < x)
+            i++;
+        if (i == n || values[i] != x)
+            return false;
+        System.arraycopy(values, i + 1, values, i, n - i - 1);
+        replaceBlock(b, values, n - 1);
+        return true;
+    }
+
+    /** Returns the values of this in increasing order. */
+    public int[] toArray() {
+        int[] ret = new int[size];
+        Cursor c = cursor();
+        for (int i = 0; i < ret.length; i++)
+            ret[i] = c.next();
+        return ret;
+    }
+
+    /**
+     * Returns a copy of this that takes the minimum amount of memory.
+     */
+    public PostingList copy() {
+        PostingList ret = new PostingList(0);
+        ret.data = new byte[length];
+        System.arraycopy(data, 0, ret.data, 0, length);
+        ret.firsts = new int[blocks];
+        System.arraycopy(firsts, 0, ret.firsts, 0, blocks);
+        ret.offsets = new int[blocks];
+        System.arraycopy(offsets, 0, ret.offsets, 0, blocks);
+        ret.starts = new int[blocks];
+        System.arraycopy(starts, 0, ret.starts, 0, blocks);
+        ret.length = length;
+        ret.blocks = blocks;
+        ret.size = size;
+        ret.last = last;
+        return ret;
+    }
+
+    /** Ensures that this consumes the minimum amount of memory.  This method
+     *  should typically be called after the last call to add(..).  Insertions
+     *  can still be done after the call, but they might be slower. */
+    public void trim() {
+        if (data.length != length) {
+            byte[] d = new byte[length];
+            System.arraycopy(data, 0, d, 0, length);
+            data = d;
+        }
+        if (firsts.length != blocks)
+            growBlocks(blocks);
+    }
+
+    /**
+     * Returns the approximate number of bytes this uses, not counting the
+     * object header.
+     */
+    public int getMemoryUsed() {
+        return data.length +
+            4 * (firsts.length + offsets.length + starts.length) + 5 * 4;
+    }
+
+    /**
+     * Puts the values that are in both a and b into into, replacing what was
+     * there.  Walks the smaller list and seeks through the larger one, so it
+     * takes about min * log(max / min) steps.
+     *
+     * @requires into is neither a nor b
+     * @return into
+     */
+    public static PostingList intersect(PostingList a, PostingList b,
+                                        PostingList into) {
+        into.clear();
+        if (a.size > b.size) {
+            PostingList t = a;
+            a = b;
+            b = t;
+        }
+        if (a.size == 0)
+            return into;
+
+        Cursor small = a.cursor();
+        Cursor large = b.cursor();
+        while (small.hasNext()) {
+            int x = small.next();
+            int y = large.seek(x);
+            if (y < 0)
+                break;
+            if (y == x)
+                into.append(x);
+        }
+        return into;
+    }
+
+    /**
+     * Puts the values that are in a or b into into, replacing what was there.
+     *
+     * @requires into is neither a nor b
+     * @return into
+     */
+    public static PostingList union(PostingList a, PostingList b,
+                                    PostingList into) {
+        into.clear();
+        Cursor ca = a.cursor();
+        Cursor cb = b.cursor();
+        int x = ca.hasNext() ? ca.next() : -1;
+        int y = cb.hasNext() ? cb.next() : -1;
+        while (x >= 0 || y >= 0) {
+            if (y < 0 || (x >= 0 && x < y)) {
+                into.append(x);
+                x = ca.hasNext() ? ca.next() : -1;
+            } else if (x < 0 || y < x) {
+                into.append(y);
+                y = cb.hasNext() ? cb.next() : -1;
+            } else {
+                into.append(x);
+                x = ca.hasNext() ? ca.next() : -1;
+                y = cb.hasNext() ? cb.next() : -1;
+            }
+        }
+        return into;
+    }
+
+    /**
+     * Returns the values of this in order from lowest to highest.
+     *     @requires this not modified while cursor in use
+     */
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * Yields the values of this in increasing order, and can skip ahead to
+     * the first value at least some target without decoding the blocks in
+     * between.
+     */
+    public class Cursor {
+        /** The index of the next value to yield. */
+        private int index;
+        /** The block of the next value to yield. */
+        private int block;
+        /** The next value to yield, if index<size. */
+        private int value;
+        /** The offset in data of the delta after value. */
+        private int pos;
+
+        private Cursor() {
+            if (size > 0) {
+                value = firsts[0];
+                pos = offsets[0];
+            }
+        }
+
+        public boolean hasNext() {
+            return index < size;
+        }
+
+        public int next() throws NoSuchElementException {
+            if (index >= size)
+                throw new NoSuchElementException();
+            int ret = value;
+            step();
+            return ret;
+        }
+
+        /**
+         * Skips past all the values smaller than target, and returns the next
+         * value without yielding it, or -1 if there are no values left that
+         * are at least target.
+         */
+        public int seek(int target) {
+            if (index >= size)
+                return -1;
+            if (value >= target)
+                return value;
+
+            // Gallop forward through the block firsts to the last block that
+            // starts at or before target.
+            int b = blockFor(target, block);
+            if (b > block) {
+                block = b;
+                index = starts[b];
+                value = firsts[b];
+                pos = offsets[b];
+            }
+
+            // Decode forward inside the block.
+            while (value < target) {
+                step();
+                if (index >= size)
+                    return -1;
+            }
+            return value;
+        }
+
+        /** Moves to the next value. */
+        private void step() {
+            index++;
+            if (index >= size)
+                return;
+            if (block + 1 < blocks && index == starts[block + 1]) {
+                block++;
+                value = firsts[block];
+                pos = offsets[block];
+            } else {
+                int delta = 0;
+                int shift = 0;
+                byte c;
+                do {
+                    c = data[pos++];
+                    delta |= (c & 0x7F) << shift;
+                    shift += 7;
+                } while (c < 0);
+                value += delta;
+            }
+        }
+    }
+
+    public String toString() {
+        StringBuffer buf = new StringBuffer("[");
+        for (Cursor c = cursor(); c.hasNext(); ) {
+            buf.append(c.next());
+            if (c.hasNext())
+                buf.append(", ");
+        }
+        return buf.append("]").toString();
+    }
+
+    /**
+     * Returns the last block at or after from whose first value is at most
+     * x, or -1 if x is smaller than everything from block from on.  Gallops
+     * forward by doubling steps, then binary searches the last step.
+     */
+    private int blockFor(int x, int from) {
+        if (from >= blocks || firsts[from] > x)
+            return -1;
+        int lo = from;
+        int step = 1;
+        while (lo + step < blocks && firsts[lo + step] <= x) {
+            lo += step;
+            step <<= 1;
+        }
+        int hi = Math.min(lo + step, blocks) - 1;
+        while (lo < hi) {
+            int mid = (lo + hi + 1) >>> 1;
+            if (firsts[mid] <= x)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        return lo;
+    }
+
+    /** Returns the offset in data just past the deltas of block b. */
+    private int blockEnd(int b) {
+        return b + 1 < blocks ? offsets[b + 1] : length;
+    }
+
+    /** Returns the number of values in block b. */
+    private int blockSize(int b) {
+        return (b + 1 < blocks ? starts[b + 1] : size) - starts[b];
+    }
+
+    /** Puts the values of block b into the start of values. */
+    private void decode(int b, int[] values) {
+        int v = firsts[b];
+        int pos = offsets[b];
+        int end = blockEnd(b);
+        int n = 0;
+        values[n++] = v;
+        while (pos < end) {
+            int delta = 0;
+            int shift = 0;
+            byte c;
+            do {
+                c = data[pos++];
+                delta |= (c & 0x7F) << shift;
+                shift += 7;
+            } while (c < 0);
+            v += delta;
+            values[n++] = v;
+        }
+    }
+
+    /**
+     * Adds x to the end of this.
+     * @requires this is empty or x > last
+     */
+    private void append(int x) {
+        if (blocks == 0 || blockSize(blocks - 1) >= BLOCK) {
+            if (blocks == firsts.length)
+                growBlocks(blocks * 2 + 1);
+            firsts[blocks] = x;
+            offsets[blocks] = length;
+            starts[blocks] = size;
+            blocks++;
+        } else {
+            ensureData(length + 5);
+            length = encode(x - last, data, length);
+        }
+        last = x;
+        size++;
+    }
+
+    /**
+     * Replaces the values of block b with the first n of values, which must
+     * still fall between the blocks before and after it.  Splits the block
+     * in two if n is more than MAX_BLOCK, and drops it if n is 0.
+     */
+    private void replaceBlock(int b, int[] values, int n) {
+        int parts = n == 0 ? 0 : (n > MAX_BLOCK ? 2 : 1);
+        int split = parts == 2 ? n / 2 : n;
+        int valuesMoved = n - blockSize(b);
+
+        // Encode the new deltas, noting where the second part starts.
+        byte[] deltas = new byte[5 * n];
+        int len = 0;
+        int splitOffset = 0;
+        for (int i = 1; i < n; i++) {
+            if (i == split)
+                splitOffset = len;
+            else
+                len = encode(values[i] - values[i - 1], deltas, len);
+        }
+
+        // Put them in place of the old ones.
+        int start = offsets[b];
+        int end = blockEnd(b);
+        int bytesMoved = len - (end - start);
+        ensureData(length + bytesMoved);
+        System.arraycopy(data, end, data, start + len, length - end);
+        System.arraycopy(deltas, 0, data, start, len);
+        length += bytesMoved;
+
+        // Make room for the new number of block entries.
+        int blocksMoved = parts - 1;
+        if (blocks + blocksMoved > firsts.length)
+            growBlocks(blocks * 2 + 1);
+        int after = blocks - b - 1;
+        System.arraycopy(firsts, b + 1, firsts, b + 1 + blocksMoved, after);
+        System.arraycopy(offsets, b + 1, offsets, b + 1 + blocksMoved, after);
+        System.arraycopy(starts, b + 1, starts, b + 1 + blocksMoved, after);
+        blocks += blocksMoved;
+
+        if (parts > 0) {
+            firsts[b] = values[0];
+            offsets[b] = start;
+        }
+        if (parts == 2) {
+            firsts[b + 1] = values[split];
+            offsets[b + 1] = start + splitOffset;
+            starts[b + 1] = starts[b] + split;
+        }
+        for (int i = b + parts; i < blocks; i++) {
+            offsets[i] += bytesMoved;
+            starts[i] += valuesMoved;
+        }
+        size += valuesMoved;
+
+        if (b + parts == blocks && blocks > 0) {
+            int[] tail = new int[blockSize(blocks - 1)];
+            decode(blocks - 1, tail);
+            last = tail[tail.length - 1];
+        }
+    }
+
+    /**
+     * Writes delta into buf at pos, 7 bits at a time, and returns the offset
+     * just past it.
+     */
+    private static int encode(int delta, byte[] buf, int pos) {
+        while ((delta & ~0x7F) != 0) {
+            buf[pos++] = (byte)((delta & 0x7F) | 0x80);
+            delta >>>= 7;
+        }
+        buf[pos++] = (byte)delta;
+        return pos;
+    }
+
+    /** Makes data at least n bytes long. */
+    private void ensureData(int n) {
+        if (n > data.length) {
+            byte[] d = new byte[Math.max(data.length * 2, n)];
+            System.arraycopy(data, 0, d, 0, length);
+            data = d;
+        }
+    }
+
+    /** Resizes the block arrays to n entries. */
+    private void growBlocks(int n) {
+        int[] f = new int[n];
+        int[] o = new int[n];
+        int[] s = new int[n];
+        System.arraycopy(firsts, 0, f, 0, blocks);
+        System.arraycopy(offsets, 0, o, 0, blocks);
+        System.arraycopy(starts, 0, s, 0, blocks);
+        firsts = f;
+        offsets = o;
+        starts = s;
+    }
+}
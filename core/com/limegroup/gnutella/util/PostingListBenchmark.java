@@ -0,0 +1,158 @@
+package com.limegroup.gnutella.util;
+
+import java.util.Random;
+
+/**
+ * Compares PostingList with IntSet, which FileManager's keyword index used
+ * before, for memory, intersection speed and edits.  Run it with
+ *
+ * <pre>
+ * java com.limegroup.gnutella.util.PostingListBenchmark [files [lists]]
+ * </pre>
+ *
+ * The index is modelled as a library of files, 100,000 by default, with
+ * keywords that are in a random quarter of them, or a random fiftieth.
+ * It prints:
+ *
+ * <ul>
+ * <li>the heap each kind of list takes, measured by building lists, 50 by
+ *     default, of common keywords and looking at the heap before and after.
+ *     Run it with a heap big enough for the IntSets.
+ * <li>the time for 200 searches for a rare and a common keyword, done the
+ *     way FileManager did with IntSet, copying one and calling
+ *     retainAll(..), and with PostingList.intersect(..) into one list.
+ * <li>the time to unshare and reshare a tenth of the files from a common
+ *     keyword's list.
+ * </ul>
+ *
+ * Each is run three times, so the later rounds are after the JIT.
+ */
+public class PostingListBenchmark {
+
+    /** The number of searches timed. */
+    private static final int SEARCHES = 200;
+
+    public static void main(String[] args) {
+        int files = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int lists = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        System.out.println("IntSet:      " + intSetMemory(files, lists) +
+                           " bytes per common keyword");
+        System.out.println("PostingList: " + postingListMemory(files, lists) +
+                           " bytes per common keyword");
+
+        Random random = new Random(2);
+        IntSet commonSet = new IntSet();
+        IntSet rareSet = new IntSet();
+        PostingList common = new PostingList();
+        PostingList rare = new PostingList();
+        for (int i = 0; i < files; i++) {
+            if (random.nextInt(4) == 0) {
+                commonSet.add(i);
+                common.add(i);
+            }
+            if (random.nextInt(50) == 0) {
+                rareSet.add(i);
+                rare.add(i);
+            }
+        }
+
+        for (int round = 0; round < 3; round++) {
+            int found = 0;
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < SEARCHES; i++) {
+                IntSet matches = new IntSet();
+                matches.addAll(rareSet);
+                matches.retainAll(commonSet);
+                found += matches.size();
+            }
+            long intSetTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            PostingList matches = new PostingList();
+            for (int i = 0; i < SEARCHES; i++)
+                found -= PostingList.intersect(rare, common, matches).size();
+            long postingListTime = System.currentTimeMillis() - start;
+
+            if (found != 0)
+                throw new IllegalStateException("intersections differ");
+            System.out.println(SEARCHES + " searches: IntSet " + intSetTime +
+                               "ms, PostingList " + postingListTime + "ms");
+        }
+
+        for (int round = 0; round < 3; round++) {
+            IntSet set = copy(commonSet);
+            PostingList list = common.copy();
+            int[] values = list.toArray();
+            long start = System.currentTimeMillis();
+            for (int i = 0; i < values.length; i += 10)
+                set.remove(values[i]);
+            for (int i = 0; i < values.length; i += 10)
+                set.add(values[i]);
+            long intSetTime = System.currentTimeMillis() - start;
+
+            start = System.currentTimeMillis();
+            for (int i = 0; i < values.length; i += 10)
+                list.remove(values[i]);
+            for (int i = 0; i < values.length; i += 10)
+                list.add(values[i]);
+            long postingListTime = System.currentTimeMillis() - start;
+
+            if (set.size() != list.size())
+                throw new IllegalStateException("edits differ");
+            System.out.println((values.length / 10) + " removes and adds: " +
+                               "IntSet " + intSetTime + "ms, PostingList " +
+                               postingListTime + "ms");
+        }
+    }
+
+    /** Returns the heap an IntSet of a common keyword takes. */
+    private static long intSetMemory(int files, int lists) {
+        Object[] keep = new Object[lists];
+        long before = usedMemory();
+        Random random = new Random(1);
+        for (int l = 0; l < lists; l++) {
+            IntSet set = new IntSet();
+            for (int i = 0; i < files; i++) {
+                if (random.nextInt(4) == 0)
+                    set.add(i);
+            }
+            set.trim();
+            keep[l] = set;
+        }
+        long used = usedMemory() - before;
+        return keep.length == 0 ? 0 : used / lists;
+    }
+
+    /** Returns the heap a PostingList of a common keyword takes. */
+    private static long postingListMemory(int files, int lists) {
+        Object[] keep = new Object[lists];
+        long before = usedMemory();
+        Random random = new Random(1);
+        for (int l = 0; l < lists; l++) {
+            PostingList list = new PostingList();
+            for (int i = 0; i < files; i++) {
+                if (random.nextInt(4) == 0)
+                    list.add(i);
+            }
+            list.trim();
+            keep[l] = list;
+        }
+        long used = usedMemory() - before;
+        return keep.length == 0 ? 0 : used / lists;
+    }
+
+    private static IntSet copy(IntSet set) {
+        IntSet ret = new IntSet();
+        ret.addAll(set);
+        return ret;
+    }
+
+    /** Returns the bytes of heap in use, after collecting garbage. */
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
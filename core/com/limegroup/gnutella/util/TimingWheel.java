@@ -0,0 +1,533 @@
+package com.limegroup.gnutella.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.limegroup.gnutella.ErrorService;
+
+/**
+ * The one timing wheel that keeps the program's timers: the tasks given to
+ * RouterService.schedule(..), the udpconnect timers, and the periodic work of
+ * QueryDispatcher and MessageRouter.<p>
+ *
+ * Timers are kept in a hierarchical timing wheel.  The lowest wheel has a
+ * slot for each of the next 256 milliseconds, and each wheel above it has a
+ * slot for a whole turn of the one below, so four wheels cover 49 days.  A
+ * timer goes in the lowest wheel its time fits in, and moves down a wheel
+ * each time the wheel below comes around to its slot.  Each slot is a doubly
+ * linked list, so scheduling, rescheduling and cancelling a timer are O(1)
+ * no matter how many there are.<p>
+ *
+ * Every timer has an Owner, shared by the timers of one component.  The
+ * owner keeps how late its timers ran and how long they took, so a slow one
+ * can be found with getOwners().<p>
+ *
+ * The "TimingWheel" thread only keeps time.  When a timer comes due, it's
+ * handed to a ProcessingQueue that runs it: the owner's own, or one given to
+ * schedule(..) or create(..) to share between owners.  So a task that blocks only holds up
+ * the other tasks of its own queue.  Errors tasks throw are reported to the
+ * ErrorService.
+ */
+public final class TimingWheel {
+
+    /** The number of bits of a time each wheel covers. */
+    private static final int BITS = 8;
+
+    /** The number of slots in a wheel. */
+    private static final int SLOTS = 1 << BITS;
+
+    /** SLOTS-1, to turn a time into a slot. */
+    private static final int MASK = SLOTS - 1;
+
+    /** The number of wheels. */
+    private static final int LEVELS = 4;
+
+    /**
+     * The number of milliseconds the wheels cover.  A later timer is put in
+     * the top wheel's last slot, and placed again when it comes around.
+     */
+    private static final long SPAN = 1L << (BITS * LEVELS);
+
+    /** The states of an Entry. */
+    private static final int IDLE = 0;
+    private static final int SCHEDULED = 1;
+    private static final int DUE = 2;
+    private static final int RUNNING = 3;
+    private static final int CANCELLED = 4;
+
+    /** The program's timing wheel. */
+    private static final TimingWheel INSTANCE = new TimingWheel();
+
+    /** WHEELS[level][slot] is the first timer in the slot.  LOCKING: this. */
+    private final Entry[][] WHEELS = new Entry[LEVELS][SLOTS];
+
+    /** The number of timers in each wheel.  LOCKING: this. */
+    private final int[] COUNTS = new int[LEVELS];
+
+    /** The owners, by name.  LOCKING: OWNERS. */
+    private final Map /* String -> Owner */ OWNERS = new HashMap();
+
+    /** The last millisecond whose timers were taken to run.  LOCKING: this. */
+    private long _now;
+
+    /**
+     * The time the thread is waiting until, so scheduling an earlier timer
+     * knows to wake it.  LOCKING: this.
+     */
+    private long _wakeup = Long.MAX_VALUE;
+
+    /** Returns the program's timing wheel. */
+    public static TimingWheel instance() {
+        return INSTANCE;
+    }
+
+    private TimingWheel() {
+        _now = System.currentTimeMillis();
+        Thread thread = new ManagedThread("TimingWheel") {
+            protected void managedRun() {
+                turn();
+            }
+        };
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Schedules the given task for fixed-delay execution after the given
+     * delay, repeating every period.
+     *
+     * @param task the task to run
+     * @param delay the initial delay, in milliseconds
+     * @param period the delay between executions, in milliseconds,
+     *  or zero if it should not be rescheduled
+     * @param owner the name of the component the task belongs to
+     * @return the timer, which can be cancelled or rescheduled
+     * @exception IllegalArgumentException delay or period negative
+     */
+    public Entry schedule(Runnable task, long delay, long period, String owner) {
+        return schedule(task, delay, period, owner, null);
+    }
+
+    /**
+     * Schedules the given task for fixed-delay execution after the given
+     * delay, repeating every period, on the given queue instead of its
+     * owner's.
+     *
+     * @param task the task to run
+     * @param delay the initial delay, in milliseconds
+     * @param period the delay between executions, in milliseconds,
+     *  or zero if it should not be rescheduled
+     * @param owner the name of the component the task belongs to
+     * @param runner the queue to run the task on, or null for the owner's
+     * @return the timer, which can be cancelled or rescheduled
+     * @exception IllegalArgumentException delay or period negative
+     */
+    public Entry schedule(Runnable task, long delay, long period, String owner,
+                          ProcessingQueue runner) {
+        if (delay < 0)
+            throw new IllegalArgumentException("Negative delay: " + delay);
+        if (period < 0)
+            throw new IllegalArgumentException("Negative period: " + period);
+        Entry entry = new Entry(this, task, period, getOwner(owner), runner);
+        entry.scheduleAt(System.currentTimeMillis() + delay);
+        return entry;
+    }
+
+    /**
+     * Returns a timer for the given task that isn't scheduled yet.  Call
+     * scheduleAt(..) on it to set when it runs.
+     *
+     * @param task the task to run
+     * @param owner the name of the component the task belongs to
+     */
+    public Entry create(Runnable task, String owner) {
+        return create(task, owner, null);
+    }
+
+    /**
+     * Returns a timer for the given task that isn't scheduled yet, which runs
+     * on the given queue instead of its owner's.  Call scheduleAt(..) on it
+     * to set when it runs.
+     *
+     * @param task the task to run
+     * @param owner the name of the component the task belongs to
+     * @param runner the queue to run the task on, or null for the owner's
+     */
+    public Entry create(Runnable task, String owner, ProcessingQueue runner) {
+        return new Entry(this, task, 0, getOwner(owner), runner);
+    }
+
+    /**
+     * Returns the owners of the timers scheduled so far, with how late and
+     * how long their timers ran.
+     */
+    public List /* of Owner */ getOwners() {
+        synchronized (OWNERS) {
+            return new ArrayList(OWNERS.values());
+        }
+    }
+
+    /** Returns the owner with the given name, making it if it's new. */
+    private Owner getOwner(String name) {
+        synchronized (OWNERS) {
+            Owner owner = (Owner)OWNERS.get(name);
+            if (owner == null) {
+                owner = new Owner(name);
+                OWNERS.put(name, owner);
+            }
+            return owner;
+        }
+    }
+
+    /**
+     * Puts a timer in the wheel its time fits in.  A timer whose time has
+     * passed goes in the next millisecond's slot.  A timer more than SPAN
+     * away goes in the top wheel's last slot, and tick() places it again
+     * when that comes around.  LOCKING: this.
+     */
+    private void place(Entry entry) {
+        long base = _now + 1;
+        long time = Math.max(entry._time, base);
+        if (time - base >= SPAN)
+            time = base + SPAN - 1;
+        long delta = time - base;
+        int level = 0;
+        while (level < LEVELS - 1 && delta >= (1L << (BITS * (level + 1))))
+            level++;
+        int slot = (int)(time >>> (BITS * level)) & MASK;
+
+        entry._level = level;
+        entry._slot = slot;
+        entry._prev = null;
+        entry._next = WHEELS[level][slot];
+        if (entry._next != null)
+            entry._next._prev = entry;
+        WHEELS[level][slot] = entry;
+        COUNTS[level]++;
+        entry._state = SCHEDULED;
+
+        if (time < _wakeup)
+            notify();
+    }
+
+    /** Takes a timer out of its slot.  LOCKING: this. */
+    private void unlink(Entry entry) {
+        if (entry._prev != null)
+            entry._prev._next = entry._next;
+        else
+            WHEELS[entry._level][entry._slot] = entry._next;
+        if (entry._next != null)
+            entry._next._prev = entry._prev;
+        COUNTS[entry._level]--;
+        entry._prev = null;
+        entry._next = null;
+        entry._level = -1;
+    }
+
+    /**
+     * Turns the wheels forward one millisecond, moving the timers of the
+     * wheels above down when the wheel below comes around, and adds the
+     * timers of the new millisecond to due.  A timer in the lowest wheel
+     * whose time is still ahead is placed again instead.  LOCKING: this.
+     */
+    private void tick(List due) {
+        long next = _now + 1;
+        if ((next & MASK) == 0) {
+            for (int level = 1; level < LEVELS; level++) {
+                int slot = (int)(next >>> (BITS * level)) & MASK;
+                Entry entry = WHEELS[level][slot];
+                WHEELS[level][slot] = null;
+                while (entry != null) {
+                    Entry following = entry._next;
+                    COUNTS[level]--;
+                    place(entry);
+                    entry = following;
+                }
+                // the wheel above only comes around when this one did too
+                if (slot != 0)
+                    break;
+            }
+        }
+        _now = next;
+
+        int slot = (int)next & MASK;
+        Entry entry = WHEELS[0][slot];
+        WHEELS[0][slot] = null;
+        while (entry != null) {
+            Entry following = entry._next;
+            COUNTS[0]--;
+            entry._prev = null;
+            entry._next = null;
+            entry._level = -1;
+            if (entry._time > next) {
+                place(entry);
+            } else {
+                entry._state = DUE;
+                due.add(entry);
+            }
+            entry = following;
+        }
+    }
+
+    /**
+     * Returns the time of the next millisecond that may have timers to run,
+     * or Long.MAX_VALUE if there are no timers.  LOCKING: this.
+     */
+    private long getNextTime() {
+        // Timers in the wheels above may come down when the lowest wheel
+        // comes around, so don't look past that.
+        long last = Long.MAX_VALUE;
+        for (int level = 1; level < LEVELS; level++) {
+            if (COUNTS[level] > 0)
+                last = (_now | MASK) + 1;
+        }
+        if (COUNTS[0] > 0) {
+            for (long time = _now + 1; time <= _now + SLOTS && time < last; time++) {
+                if (WHEELS[0][(int)time & MASK] != null)
+                    return time;
+            }
+        }
+        return last;
+    }
+
+    /**
+     * Hands the timers to their queues as they come due, forever.
+     */
+    private void turn() {
+        List due = new ArrayList();
+        while (true) {
+            synchronized (this) {
+                while (due.isEmpty()) {
+                    long now = System.currentTimeMillis();
+                    while (_now < now && due.isEmpty()) {
+                        // skip ahead over empty milliseconds of the lowest wheel
+                        if (COUNTS[0] == 0)
+                            _now = Math.max(_now, Math.min(now - 1, _now | MASK));
+                        tick(due);
+                    }
+                    if (!due.isEmpty())
+                        break;
+                    _wakeup = getNextTime();
+                    try {
+                        if (_wakeup == Long.MAX_VALUE)
+                            wait();
+                        else
+                            wait(Math.max(1, _wakeup - now));
+                    } catch (InterruptedException ignored) {}
+                    _wakeup = Long.MAX_VALUE;
+                }
+            }
+
+            for (int i = 0; i < due.size(); i++) {
+                Entry entry = (Entry)due.get(i);
+                entry.RUNNER.add(entry.RUN);
+            }
+            due.clear();
+        }
+    }
+
+    /**
+     * Runs one timer that came due, unless it was cancelled or rescheduled
+     * since, and schedules it again if it repeats.  Called on the timer's
+     * queue.
+     */
+    private void run(Entry entry) {
+        long time;
+        synchronized (this) {
+            if (entry._state != DUE)
+                return;
+            entry._state = RUNNING;
+            time = entry._time;
+        }
+
+        long start = System.currentTimeMillis();
+        try {
+            entry.TASK.run();
+        } catch (Throwable t) {
+            ErrorService.error(t);
+        }
+        long end = System.currentTimeMillis();
+        entry.OWNER.record(start - time, end - start);
+
+        synchronized (this) {
+            if (entry._state != RUNNING)
+                return; // the task rescheduled or cancelled itself
+            if (entry.PERIOD > 0) {
+                entry._time = end + entry.PERIOD;
+                place(entry);
+            } else {
+                entry._state = IDLE;
+            }
+        }
+    }
+
+    /**
+     * A task in the wheel, which may be rescheduled or cancelled from any
+     * thread.
+     */
+    public static final class Entry {
+
+        /** The wheel this timer is in. */
+        private final TimingWheel WHEEL;
+
+        /** The task to run. */
+        private final Runnable TASK;
+
+        /** The milliseconds between runs, or 0 if it doesn't repeat. */
+        private final long PERIOD;
+
+        /** The owner of this timer. */
+        private final Owner OWNER;
+
+        /** The queue the task runs on. */
+        private final ProcessingQueue RUNNER;
+
+        /** Added to RUNNER when the timer comes due. */
+        private final Runnable RUN = new Runnable() {
+            public void run() {
+                WHEEL.run(Entry.this);
+            }
+        };
+
+        /** When the task should run.  LOCKING: WHEEL. */
+        private long _time;
+
+        /** IDLE, SCHEDULED, DUE, RUNNING or CANCELLED.  LOCKING: WHEEL. */
+        private int _state = IDLE;
+
+        /** The wheel and slot this timer is in, if SCHEDULED.  LOCKING: WHEEL. */
+        private int _level = -1;
+        private int _slot;
+
+        /** The timers before and after this one in its slot.  LOCKING: WHEEL. */
+        private Entry _prev;
+        private Entry _next;
+
+        private Entry(TimingWheel wheel, Runnable task, long period, Owner owner,
+                      ProcessingQueue runner) {
+            WHEEL = wheel;
+            TASK = task;
+            PERIOD = period;
+            OWNER = owner;
+            RUNNER = runner != null ? runner : owner.RUNNER;
+        }
+
+        /**
+         * Sets the time the task runs, in place of any time it was
+         * scheduled for.  Long.MAX_VALUE unschedules it.  Does nothing if
+         * the timer was cancelled.
+         *
+         * @param time the time to run, in System.currentTimeMillis() terms
+         */
+        public void scheduleAt(long time) {
+            synchronized (WHEEL) {
+                if (_state == CANCELLED)
+                    return;
+                if (_state == SCHEDULED)
+                    WHEEL.unlink(this);
+                _time = time;
+                if (time == Long.MAX_VALUE)
+                    _state = IDLE;
+                else
+                    WHEEL.place(this);
+            }
+        }
+
+        /**
+         * Stops the task from running again.  A task that is running now
+         * finishes.
+         */
+        public void cancel() {
+            synchronized (WHEEL) {
+                if (_state == SCHEDULED)
+                    WHEEL.unlink(this);
+                _state = CANCELLED;
+            }
+        }
+
+        /**
+         * Returns true if the task is waiting to run.
+         */
+        public boolean isScheduled() {
+            synchronized (WHEEL) {
+                return _state == SCHEDULED || _state == DUE;
+            }
+        }
+    }
+
+    /**
+     * The timers of one component, with how late and how long they ran.
+     */
+    public static final class Owner {
+
+        /** The name of the component. */
+        private final String NAME;
+
+        /** The queue the component's timers run on, unless given another. */
+        private final ProcessingQueue RUNNER;
+
+        /** The number of times a timer ran. */
+        private long _runs;
+
+        /** The total and largest milliseconds timers ran after their time. */
+        private long _totalLag;
+        private long _maxLag;
+
+        /** The total and largest milliseconds timers took to run. */
+        private long _totalRunTime;
+        private long _maxRunTime;
+
+        private Owner(String name) {
+            NAME = name;
+            RUNNER = new ProcessingQueue("TimingWheel: " + name);
+        }
+
+        /** Records one run of a timer. */
+        private synchronized void record(long lag, long runTime) {
+            lag = Math.max(lag, 0);
+            _runs++;
+            _totalLag += lag;
+            _maxLag = Math.max(_maxLag, lag);
+            _totalRunTime += runTime;
+            _maxRunTime = Math.max(_maxRunTime, runTime);
+        }
+
+        /** Returns the name of the component. */
+        public String getName() {
+            return NAME;
+        }
+
+        /** Returns the number of times the component's timers ran. */
+        public synchronized long getRuns() {
+            return _runs;
+        }
+
+        /** Returns the average milliseconds a timer ran after its time. */
+        public synchronized long getAverageLag() {
+            return _runs == 0 ? 0 : _totalLag / _runs;
+        }
+
+        /** Returns the most milliseconds a timer ran after its time. */
+        public synchronized long getMaxLag() {
+            return _maxLag;
+        }
+
+        /** Returns the average milliseconds a timer took to run. */
+        public synchronized long getAverageRunTime() {
+            return _runs == 0 ? 0 : _totalRunTime / _runs;
+        }
+
+        /** Returns the most milliseconds a timer took to run. */
+        public synchronized long getMaxRunTime() {
+            return _maxRunTime;
+        }
+
+        public synchronized String toString() {
+            return NAME + " runs: " + _runs +
+                " lag: " + getAverageLag() + "/" + _maxLag +
+                " run time: " + getAverageRunTime() + "/" + _maxRunTime;
+        }
+    }
+}
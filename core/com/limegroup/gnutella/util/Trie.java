@@ -420,6 +420,20 @@ public class Trie {
         }
      }
 
+    /**
+     * Returns a copy of this with the same keys.  Each value in the copy is
+     * valueCopier.apply(value), or the same value if valueCopier is null.
+     * The copy shares no nodes with this, so later changes to one don't
+     * affect the other.  Any exceptions thrown by a call to valueCopier are
+     * thrown by this.
+     */
+    public Trie copy(Function valueCopier)
+            throws IllegalArgumentException, ClassCastException {
+        Trie ret = new Trie(ignoreCase);
+        ret.root = root.copy(valueCopier);
+        return ret;
+    }
+
     public class NodeIterator extends UnmodifiableIterator {
         /**
          * Stack for DFS. Push and pop from back.  The last element
@@ -698,6 +712,23 @@ final class TrieNode {
         return true;
     }
 
+    /**
+     * Returns a deep copy of this and all its descendants.  Values are
+     * copied with valueCopier.apply(value) if valueCopier is not null.
+     * The copy's children take a minimal amount of storage.
+     */
+    public TrieNode copy(Function valueCopier) {
+        TrieNode ret = new TrieNode(
+            (value == null || valueCopier == null) ? value : valueCopier.apply(value));
+        ret.children = new ArrayList(children.size());
+        for (int i = 0; i < children.size(); i++) {
+            TrieEdge edge = get(i);
+            ret.children.add(
+                new TrieEdge(edge.getLabel(), edge.getChild().copy(valueCopier)));
+        }
+        return ret;
+    }
+
     /**
      * Ensures that this's children take a minimal amount of storage.  This
      * should be called after numerous calls to add().
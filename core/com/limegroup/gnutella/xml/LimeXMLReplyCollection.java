@@ -12,6 +12,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
@@ -33,6 +34,7 @@ import com.limegroup.gnutella.util.I18NConvert;
 import com.limegroup.gnutella.util.Trie;
 import com.limegroup.gnutella.util.IOUtils;
 import com.limegroup.gnutella.util.NameValue;
+import com.limegroup.gnutella.util.PostingList;
 
 /**
  * Maps LimeXMLDocuments for FileDescs in a specific schema.
@@ -68,12 +70,37 @@ public class LimeXMLReplyCollection {
      * that has a lookup table for the values of that field.
      *
      * The Trie value is a mapping of keywords in LimeXMLDocuments
-     * to the list of documents that have that keyword.
+     * to the ids of the documents that have that keyword.  See docs.
      *
      * SYNCHRONIZATION: Synchronize on mainMap when accessing,
      *  adding or removing.
      */
-    private final Map /* String -> Trie (String -> List) */ trieMap;
+    private final Map /* String -> Trie (String -> PostingList) */ trieMap;
+
+    /**
+     * The documents in trieMap, by id.  A document gets an id when its
+     * keywords are added, and its slot is set to null when they're removed.
+     * The ids of removed documents are given out again before new ones, so
+     * docs doesn't grow as files are replaced.
+     *
+     * SYNCHRONIZATION: Synchronize on mainMap.
+     */
+    private final List /* of LimeXMLDocument */ docs;
+
+    /**
+     * The ids whose slots in docs are null, waiting to be reused.
+     *
+     * SYNCHRONIZATION: Synchronize on mainMap.
+     */
+    private final List /* of Integer */ freeIds;
+
+    /**
+     * The id of each document in docs.  Compares documents by identity,
+     * since equal documents for different files have different ids.
+     *
+     * SYNCHRONIZATION: Synchronize on mainMap.
+     */
+    private final Map /* LimeXMLDocument -> Integer */ docIds;
     
     /**
      * Whether or not data became dirty after we last wrote to disk.
@@ -109,6 +136,9 @@ public class LimeXMLReplyCollection {
     public LimeXMLReplyCollection(String URI) {
         this.schemaURI = URI;
         this.trieMap = new HashMap();
+        this.docs = new ArrayList();
+        this.docIds = new IdentityHashMap();
+        this.freeIds = new ArrayList();
         this.dataFile = new File(LimeXMLProperties.instance().getXMLDocsDir(),
                                  LimeXMLSchema.getDisplayString(schemaURI)+ ".sxml");
         this.mainMap = new HashMap();
@@ -323,6 +353,17 @@ public class LimeXMLReplyCollection {
      */
     private void addKeywords(LimeXMLDocument doc) {
         synchronized(mainMap) {
+            Integer id = (Integer)docIds.get(doc);
+            if(id == null) {
+                if(!freeIds.isEmpty()) {
+                    id = (Integer)freeIds.remove(freeIds.size() - 1);
+                    docs.set(id.intValue(), doc);
+                } else {
+                    id = new Integer(docs.size());
+                    docs.add(doc);
+                }
+                docIds.put(doc, id);
+            }
             for(Iterator i = doc.getNameValueSet().iterator(); i.hasNext(); ) {
                 Map.Entry entry = (Map.Entry)i.next();
                 final String name = (String)entry.getKey();
@@ -334,14 +375,14 @@ public class LimeXMLReplyCollection {
                     trie = new Trie(true); //ignore case.
                     trieMap.put(name, trie);
                 }
-                List allDocs = (List)trie.get(value);
+                PostingList allDocs = (PostingList)trie.get(value);
                 // if no list of docs for this value created, create & insert.
                 if( allDocs == null ) {
-                    allDocs = new LinkedList();
+                    allDocs = new PostingList(1);
                     trie.add(value, allDocs);
                 }
-                //Add the value to the list of docs
-                allDocs.add(doc);
+                //Add the doc's id to the list of docs
+                allDocs.add(id.intValue());
             }
         }
     }
@@ -352,6 +393,12 @@ public class LimeXMLReplyCollection {
      */
     private void removeKeywords(LimeXMLDocument doc) {
         synchronized(mainMap) {
+            Integer id = (Integer)docIds.remove(doc);
+            // if the doc was never added, ignore.
+            if(id == null)
+                return;
+            docs.set(id.intValue(), null);
+            freeIds.add(id);
             for(Iterator i = doc.getNameValueSet().iterator(); i.hasNext(); ) {
                 Map.Entry entry = (Map.Entry)i.next();
                 final String name = (String)entry.getKey();
@@ -363,11 +410,11 @@ public class LimeXMLReplyCollection {
                     
                 final String value = 
                     I18NConvert.instance().getNorm((String)entry.getValue());
-                List allDocs = (List)trie.get(value);
+                PostingList allDocs = (PostingList)trie.get(value);
                 // if no list, ignore.
                 if( allDocs == null )
                     continue;
-                allDocs.remove(doc);
+                allDocs.remove(id.intValue());
                 // if we emptied the doc, remove from trie...
                 if( allDocs.size() == 0 )
                     trie.remove(value);
@@ -448,7 +495,7 @@ public class LimeXMLReplyCollection {
                 // Get our shared XML docs that match this value.
                 // This query is from the network, and is therefore already
                 // normalized -- SHOULD NOT NORMALIZE AGAIN!!
-                Iterator /* of List */ iter = trie.getPrefixedBy(value);
+                Iterator /* of PostingList */ iter = trie.getPrefixedBy(value);
                 // If some matches and 'matching' not allocated yet,
                 // allocate a new Set for storing matches
                 if(iter.hasNext()) {
@@ -457,12 +504,13 @@ public class LimeXMLReplyCollection {
                     // Iterate through each set of matches the Trie found
                     // and add those matching-lists to our set of matches.
                     // Note that the trie.getPrefixedBy returned
-                    // an Iterator of Lists -- this is because the Trie
-                    // does prefix matching, so there are many Lists of XML
+                    // an Iterator of PostingLists -- this is because the Trie
+                    // does prefix matching, so there are many lists of XML
                     // docs that could match.
                     while(iter.hasNext()) {
-                        List matchesVal = (List)iter.next();
-                        matching.addAll(matchesVal);
+                        PostingList matchesVal = (PostingList)iter.next();
+                        for(PostingList.Cursor c = matchesVal.cursor(); c.hasNext(); )
+                            matching.add(docs.get(c.next()));
                     }
                 }
             }
@@ -41,8 +41,9 @@ public class MetaFileManager extends FileManager {
      * Overrides FileManager.query.
      *
      * Used to search XML information in addition to normal searches.
+     * Like FileManager.query, this doesn't lock this.
      */
-    public synchronized Response[] query(QueryRequest request) {
+    public Response[] query(QueryRequest request) {
         Response[] result = super.query(request);
 
         if (shouldIncludeXMLInResponse(request)) {
@@ -432,7 +433,7 @@ public class MetaFileManager extends FileManager {
             if (file == null) { //pure metadata (no file)
                 res = new Response(LimeXMLProperties.DEFAULT_NONFILE_INDEX, 0, " ");
             } else { //meta-data about a specific file
-                FileDesc fd = RouterService.getFileManager().getFileDescForFile(file);
+                FileDesc fd = getSnapshotFileDescForFile(file);
                 if( fd == null) {
                     // if fd is null, MetaFileManager is out of synch with
                     // FileManager -- this is bad.